@@ -0,0 +1,47 @@
+package dicom.benchmarks;
+
+import dicom.json.Projection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inline binary values, dominated by the handler's base64 encoding: one OB attribute of
+ * {@code size} bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class Base64Benchmark {
+
+    @Param({"64", "4096", "65536", "1048576"})
+    public int size;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+
+        data = Datasets.binary(size);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+
+        return Documents.toJson(data, Integer.MAX_VALUE, Projection.ALL);
+    }
+}
@@ -0,0 +1,91 @@
+package dicom.benchmarks;
+
+import dicom.hbase.BlobCodec;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blob codecs on whole DICOM files: {@code encode} is the work added to an ingest lane per blob,
+ * {@code decode} the work added to a read. The {@code megabytes} counter gives the rate in MB/s
+ * of original bytes; the setup prints the compression ratio of each codec and dataset.
+ * {@code MULTI_FRAME} holds encapsulated frames, which the policy stores as they are.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"deflate:1", "deflate:6", "lz4", "lz4:9", "zstd:1", "zstd:3", "zstd:9"})
+    public String codec;
+
+    @Param({"SMALL_CR", "CT_SLICE", "MULTI_FRAME"})
+    public Datasets.Kind kind;
+
+    private BlobCodec blobCodec;
+
+    private byte[] data;
+
+    private byte[] encoded;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Megabytes {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+
+        blobCodec = BlobCodec.forName(codec);
+        data = Datasets.generate(kind);
+        encoded = blobCodec.encode(data);
+
+        if (!Arrays.equals(blobCodec.decode(encoded, data.length), data)) {
+            throw new IllegalStateException(codec + " does not decode what it encoded");
+        }
+
+        System.out.println(String.format("%s on %s: %d to %d bytes, ratio %.2f",
+                codec, kind, data.length, encoded.length, (double) data.length / encoded.length));
+    }
+
+    @Benchmark
+    public byte[] encode(Megabytes counter) {
+
+        counter.megabytes += data.length / 1e6;
+
+        return blobCodec.encode(data);
+    }
+
+    @Benchmark
+    public byte[] decode(Megabytes counter) throws IOException {
+
+        counter.megabytes += data.length / 1e6;
+
+        return blobCodec.decode(encoded, data.length);
+    }
+}
@@ -0,0 +1,395 @@
+package dicom.benchmarks;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic DICOM files for the benchmarks, encoded in code so runs need no sample data. The
+ * content is deterministic: the same dataset always has the same attributes and pixel bytes.
+ */
+public final class Datasets {
+
+    public enum Kind {
+
+        /**
+         * Computed radiography: one 1024x1024 16 bit native frame.
+         */
+        SMALL_CR,
+
+        /**
+         * One slice of a CT series: 512x512 16 bit native, with the usual geometry attributes.
+         */
+        CT_SLICE,
+
+        /**
+         * Ultrasound cine: 60 encapsulated frames of 32 KiB.
+         */
+        MULTI_FRAME,
+
+        /**
+         * Sequences nested 8 levels deep, 3 items per level.
+         */
+        DEEP_SEQUENCES,
+
+        /**
+         * 1000 private attributes of mixed VRs in 4 private blocks.
+         */
+        PRIVATE_TAGS
+    }
+
+    /**
+     * Families of values, one per {@code write*Values} path of the JSON handler.
+     */
+    public enum Values {
+        STRING, DECIMAL, PERSON_NAME, DOUBLE, INT, UINT, BINARY
+    }
+
+    private static final String PRIVATE_CREATOR = "DICOM BENCHMARK";
+
+    private Datasets() {
+    }
+
+    public static byte[] generate(Kind kind) throws IOException {
+
+        switch (kind) {
+            case SMALL_CR:
+                return smallCr();
+            case CT_SLICE:
+                return ctSeries(1).get(0);
+            case MULTI_FRAME:
+                return multiFrame(60, 32 * 1024);
+            case DEEP_SEQUENCES:
+                return deepSequences(8, 3);
+            case PRIVATE_TAGS:
+                return privateTags(1000);
+            default:
+                throw new IllegalArgumentException(kind.toString());
+        }
+    }
+
+    public static byte[] smallCr() throws IOException {
+
+        Attributes attrs = header(UID.ComputedRadiographyImageStorage, "CR", UIDUtils.createUID(), UIDUtils.createUID());
+
+        attrs.setString(Tag.BodyPartExamined, VR.CS, "CHEST");
+        attrs.setString(Tag.ViewPosition, VR.CS, "PA");
+        image(attrs, 1024, 1024);
+
+        return encode(attrs, UID.ExplicitVRLittleEndian);
+    }
+
+    /**
+     * Returns the slices of one CT series sharing a study and series.
+     */
+    public static List<byte[]> ctSeries(int slices) throws IOException {
+
+        return ctSeries(null, slices, 512);
+    }
+
+    /**
+     * Returns the slices of one CT series of {@code patientId}, or of the default patient when
+     * it is {@code null}, with images of {@code size} by {@code size} pixels.
+     */
+    public static List<byte[]> ctSeries(String patientId, int slices, int size) throws IOException {
+
+        String studyUid = UIDUtils.createUID();
+        String seriesUid = UIDUtils.createUID();
+        List<byte[]> files = new ArrayList<>(slices);
+
+        for (int i = 0; i < slices; i++) {
+            Attributes attrs = header(UID.CTImageStorage, "CT", studyUid, seriesUid);
+
+            if (patientId != null) {
+                attrs.setString(Tag.PatientID, VR.LO, patientId);
+            }
+
+            attrs.setInt(Tag.InstanceNumber, VR.IS, i + 1);
+            attrs.setDouble(Tag.SliceThickness, VR.DS, 1.25);
+            attrs.setDouble(Tag.SliceLocation, VR.DS, -120.5 + i * 1.25);
+            attrs.setDouble(Tag.ImagePositionPatient, VR.DS, -250.0, -250.0, -120.5 + i * 1.25);
+            attrs.setDouble(Tag.ImageOrientationPatient, VR.DS, 1, 0, 0, 0, 1, 0);
+            attrs.setDouble(Tag.PixelSpacing, VR.DS, 0.976562, 0.976562);
+            attrs.setDouble(Tag.KVP, VR.DS, 120);
+            attrs.setInt(Tag.XRayTubeCurrent, VR.IS, 250);
+            attrs.setDouble(Tag.RescaleIntercept, VR.DS, -1024);
+            attrs.setDouble(Tag.RescaleSlope, VR.DS, 1);
+            attrs.setDouble(Tag.WindowCenter, VR.DS, 40, 400);
+            attrs.setDouble(Tag.WindowWidth, VR.DS, 400, 2000);
+            attrs.setString(Tag.ConvolutionKernel, VR.SH, "STANDARD");
+            image(attrs, size, size);
+
+            files.add(encode(attrs, UID.ExplicitVRLittleEndian));
+        }
+
+        return files;
+    }
+
+    public static byte[] multiFrame(int frames, int frameSize) throws IOException {
+
+        Attributes attrs = header(UID.UltrasoundMultiFrameImageStorage, "US", UIDUtils.createUID(), UIDUtils.createUID());
+
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 3);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "YBR_FULL_422");
+        attrs.setInt(Tag.PlanarConfiguration, VR.US, 0);
+        attrs.setInt(Tag.Rows, VR.US, 480);
+        attrs.setInt(Tag.Columns, VR.US, 640);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 8);
+        attrs.setInt(Tag.BitsStored, VR.US, 8);
+        attrs.setInt(Tag.HighBit, VR.US, 7);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attrs.setDouble(Tag.FrameTime, VR.DS, 33.3);
+
+        Fragments fragments = attrs.newFragments(Tag.PixelData, VR.OB, frames + 1);
+        Random random = new Random(frames);
+
+        fragments.add(new byte[0]);
+
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = new byte[frameSize];
+            random.nextBytes(frame);
+            fragments.add(frame);
+        }
+
+        return encode(attrs, UID.JPEGBaseline1);
+    }
+
+    public static byte[] deepSequences(int depth, int width) throws IOException {
+
+        Attributes attrs = header(UID.EnhancedSRStorage, "SR", UIDUtils.createUID(), UIDUtils.createUID());
+
+        attrs.setString(Tag.ValueType, VR.CS, "CONTAINER");
+        nest(attrs, depth, width);
+
+        return encode(attrs, UID.ExplicitVRLittleEndian);
+    }
+
+    private static void nest(Attributes attrs, int depth, int width) {
+
+        if (depth == 0) {
+            return;
+        }
+
+        Sequence seq = attrs.newSequence(Tag.ContentSequence, width);
+
+        for (int i = 0; i < width; i++) {
+            Attributes item = new Attributes();
+
+            item.setString(Tag.RelationshipType, VR.CS, "CONTAINS");
+            item.setString(Tag.ValueType, VR.CS, depth == 1 ? "NUM" : "CONTAINER");
+            item.setString(Tag.TextValue, VR.UT, "Finding " + depth + '.' + i);
+            item.setDouble(Tag.NumericValue, VR.DS, depth * 10.5 + i);
+
+            Sequence concept = item.newSequence(Tag.ConceptNameCodeSequence, 1);
+            Attributes code = new Attributes();
+            code.setString(Tag.CodeValue, VR.SH, "1" + depth + i);
+            code.setString(Tag.CodingSchemeDesignator, VR.SH, "DCM");
+            code.setString(Tag.CodeMeaning, VR.LO, "Measurement " + depth + '.' + i);
+            concept.add(code);
+
+            nest(item, depth - 1, width);
+            seq.add(item);
+        }
+    }
+
+    public static byte[] privateTags(int count) throws IOException {
+
+        Attributes attrs = header(UID.CTImageStorage, "CT", UIDUtils.createUID(), UIDUtils.createUID());
+        VR[] vrs = {VR.LO, VR.DS, VR.US, VR.FD, VR.SH, VR.UL, VR.OB};
+
+        for (int i = 0; i < count; i++) {
+            int block = 0x10 + i / 256;
+            int tag = 0x00190000 | block << 8 | i % 256;
+
+            attrs.setString(0x00190000 | block, VR.LO, PRIVATE_CREATOR + ' ' + block);
+            setValue(attrs, tag, vrs[i % vrs.length], i);
+        }
+
+        return encode(attrs, UID.ExplicitVRLittleEndian);
+    }
+
+    /**
+     * Returns a dataset of {@code count} private attributes of the given family, four values each,
+     * so the handler spends its time in one {@code write*Values} path.
+     */
+    public static byte[] values(Values values, int count) throws IOException {
+
+        Attributes attrs = header(UID.SecondaryCaptureImageStorage, "OT", UIDUtils.createUID(), UIDUtils.createUID());
+
+        for (int i = 0; i < count; i++) {
+            int block = 0x10 + i / 256;
+            int tag = 0x00190000 | block << 8 | i % 256;
+
+            attrs.setString(0x00190000 | block, VR.LO, PRIVATE_CREATOR + ' ' + block);
+
+            switch (values) {
+                case STRING:
+                    attrs.setString(tag, VR.LO, "Value " + i, "Second " + i, "Third", "Fourth");
+                    break;
+                case DECIMAL:
+                    attrs.setString(tag, VR.DS, "1.5", Integer.toString(i), "-0.25", "1E3");
+                    break;
+                case PERSON_NAME:
+                    attrs.setString(tag, VR.PN, "Doe^John^M^Dr^Jr", "Roe^Jane", "Smith^" + i, "Silva^Maria");
+                    break;
+                case DOUBLE:
+                    attrs.setDouble(tag, VR.FD, 1.5, i, -0.25, 1e3);
+                    break;
+                case INT:
+                    attrs.setInt(tag, VR.SL, 1, i, -25, 1000);
+                    break;
+                case UINT:
+                    attrs.setInt(tag, VR.UL, 1, i, 0xFFFFFFFF, 1000);
+                    break;
+                case BINARY:
+                    attrs.setBytes(tag, VR.OB, bytes(64, i));
+                    break;
+            }
+        }
+
+        return encode(attrs, UID.ExplicitVRLittleEndian);
+    }
+
+    /**
+     * Returns a dataset holding one OB attribute of {@code size} bytes, written inline as base64.
+     */
+    public static byte[] binary(int size) throws IOException {
+
+        Attributes attrs = header(UID.SecondaryCaptureImageStorage, "OT", UIDUtils.createUID(), UIDUtils.createUID());
+
+        attrs.setString(0x00190010, VR.LO, PRIVATE_CREATOR);
+        attrs.setBytes(0x00191000, VR.OB, bytes(size, size));
+
+        return encode(attrs, UID.ExplicitVRLittleEndian);
+    }
+
+    private static void setValue(Attributes attrs, int tag, VR vr, int i) {
+
+        switch (vr) {
+            case DS:
+                attrs.setDouble(tag, vr, i * 0.5);
+                break;
+            case US:
+            case UL:
+                attrs.setInt(tag, vr, i);
+                break;
+            case FD:
+                attrs.setDouble(tag, vr, i * 0.25, i * 0.75);
+                break;
+            case OB:
+                attrs.setBytes(tag, vr, bytes(32, i));
+                break;
+            default:
+                attrs.setString(tag, vr, "Private value " + i);
+        }
+    }
+
+    private static Attributes header(String sopClassUid, String modality, String studyUid, String seriesUid) {
+
+        Attributes attrs = new Attributes();
+
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        attrs.setString(Tag.ImageType, VR.CS, "ORIGINAL", "PRIMARY", "AXIAL");
+        attrs.setString(Tag.SOPClassUID, VR.UI, sopClassUid);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, UIDUtils.createUID());
+        attrs.setString(Tag.StudyDate, VR.DA, "20180412");
+        attrs.setString(Tag.StudyTime, VR.TM, "101530.250");
+        attrs.setString(Tag.AccessionNumber, VR.SH, "A123456");
+        attrs.setString(Tag.Modality, VR.CS, modality);
+        attrs.setString(Tag.Manufacturer, VR.LO, "ACME Medical");
+        attrs.setString(Tag.InstitutionName, VR.LO, "Hospital Universitario");
+        attrs.setString(Tag.ReferringPhysicianName, VR.PN, "House^Gregory");
+        attrs.setString(Tag.StudyDescription, VR.LO, "Benchmark study");
+        attrs.setString(Tag.SeriesDescription, VR.LO, "Benchmark series");
+        attrs.setString(Tag.PatientName, VR.PN, "Doe^John");
+        attrs.setString(Tag.PatientID, VR.LO, "P0001234");
+        attrs.setString(Tag.PatientBirthDate, VR.DA, "19700101");
+        attrs.setString(Tag.PatientSex, VR.CS, "M");
+        attrs.setString(Tag.PatientAge, VR.AS, "048Y");
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+        attrs.setString(Tag.StudyID, VR.SH, "1");
+        attrs.setInt(Tag.SeriesNumber, VR.IS, 1);
+
+        return attrs;
+    }
+
+    private static void image(Attributes attrs, int rows, int columns) {
+
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.Rows, VR.US, rows);
+        attrs.setInt(Tag.Columns, VR.US, columns);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 16);
+        attrs.setInt(Tag.BitsStored, VR.US, 12);
+        attrs.setInt(Tag.HighBit, VR.US, 11);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attrs.setBytes(Tag.PixelData, VR.OW, phantom(rows, columns));
+    }
+
+    /**
+     * Returns 12 bit little endian pixels of an ellipse of soft tissue holding a disc of bone, in
+     * air, with noise: smooth regions and noisy low bits, which compress like real native images
+     * and unlike random bytes.
+     */
+    private static byte[] phantom(int rows, int columns) {
+
+        Random random = new Random(rows);
+        byte[] b = new byte[rows * columns * 2];
+
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+                double dx = (x - columns / 2.0) / (columns * 0.45);
+                double dy = (y - rows / 2.0) / (rows * 0.35);
+                double r = dx * dx + dy * dy;
+                double value;
+
+                if (r > 1) {
+                    value = 24 + random.nextGaussian() * 4;
+                } else if (r < 0.04) {
+                    value = 1824 + random.nextGaussian() * 20;
+                } else {
+                    value = 1064 + random.nextGaussian() * 12;
+                }
+
+                int pixel = Math.max(0, Math.min(4095, (int) Math.round(value)));
+                int offset = (y * columns + x) * 2;
+
+                b[offset] = (byte) pixel;
+                b[offset + 1] = (byte) (pixel >> 8);
+            }
+        }
+
+        return b;
+    }
+
+    private static byte[] bytes(int size, long seed) {
+
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] encode(Attributes attrs, String transferSyntaxUid) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+            dos.writeDataset(attrs.createFileMetaInformation(transferSyntaxUid), attrs);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,64 @@
+package dicom.benchmarks;
+
+import dicom.json.BlobLocation;
+import dicom.json.JsonInputHandler;
+import dicom.json.Projection;
+import org.dcm4che3.io.DicomInputStream;
+
+import javax.json.Json;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Parses a DICOM file to its JSON document the way the ingest parse stage does.
+ */
+public final class Documents {
+
+    private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(Collections.emptyMap());
+
+    private static final BlobLocation LOCATION = new BlobLocation() {
+
+        @Override
+        public String row(String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+            return patientId;
+        }
+
+        @Override
+        public String column(String sopInstanceUid) {
+
+            return "file:" + sopInstanceUid;
+        }
+    };
+
+    private Documents() {
+    }
+
+    /**
+     * @param bulkDataThreshold binary values longer than this are written as locators, shorter
+     *                          ones inline; negative to leave binary values out
+     */
+    public static byte[] toJson(byte[] data, int bulkDataThreshold, Projection projection) throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(8 * 1024);
+
+        try (JsonGenerator jsonGenerator = GENERATORS.createGenerator(os)) {
+            JsonInputHandler dicomHandler = new JsonInputHandler(jsonGenerator, bulkDataThreshold >= 0, true, projection);
+
+            if (bulkDataThreshold >= 0) {
+                dicomHandler.setBulkDataLocation(LOCATION, bulkDataThreshold);
+            }
+
+            try (DicomInputStream is = new DicomInputStream(new ByteArrayInputStream(data))) {
+                is.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+                dicomHandler.readDataset(is);
+            }
+        }
+
+        return os.toByteArray();
+    }
+}
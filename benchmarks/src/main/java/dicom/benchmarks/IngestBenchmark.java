@@ -0,0 +1,102 @@
+package dicom.benchmarks;
+
+import dicom.Main;
+import dicom.ingest.IngestFailure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Main#process()} end to end over a 64-slice CT series, against the in-memory sinks with
+ * {@code latency} milliseconds per write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final int SLICES = 64;
+
+    @Param({"4"})
+    public int workers;
+
+    @Param({"0", "5"})
+    public int latency;
+
+    private Path directory;
+
+    private Path config;
+
+    private final List<Path> files = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+
+        directory = Files.createTempDirectory("dicom-benchmark");
+
+        List<byte[]> series = Datasets.ctSeries(SLICES);
+
+        for (int i = 0; i < series.size(); i++) {
+            Path file = directory.resolve(String.format("%04d.dcm", i));
+            Files.write(file, series.get(i));
+            files.add(file);
+        }
+
+        Properties props = new Properties();
+        props.setProperty("sink.metadata", "memory");
+        props.setProperty("sink.blob", "memory");
+        props.setProperty("sink.latency.millis", Integer.toString(latency));
+        props.setProperty("ingest.workers", Integer.toString(workers));
+        props.setProperty("log.file.level", "OFF");
+
+        config = Files.createTempFile("dicom-benchmark", ".properties");
+
+        try (OutputStream out = Files.newOutputStream(config)) {
+            props.store(out, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+
+        Files.deleteIfExists(directory);
+        Files.deleteIfExists(config);
+    }
+
+    @Benchmark
+    public int ingest() throws IOException {
+
+        List<IngestFailure> failures = new Main(config.toString(), directory.toString()).process();
+
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.get(0).toString(), failures.get(0).getCause());
+        }
+
+        return files.size();
+    }
+}
@@ -0,0 +1,50 @@
+package dicom.benchmarks;
+
+import dicom.json.Projection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code JsonInputHandler} end to end, from the file bytes to the JSON document, for each
+ * synthetic dataset, without binary values and with bulk data written as locators.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class JsonInputHandlerBenchmark {
+
+    @Param({"SMALL_CR", "CT_SLICE", "MULTI_FRAME", "DEEP_SEQUENCES", "PRIVATE_TAGS"})
+    public Datasets.Kind dataset;
+
+    @Param({"-1", "1024"})
+    public int bulkDataThreshold;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+
+        data = Datasets.generate(dataset);
+    }
+
+    @Benchmark
+    public byte[] parse() throws IOException {
+
+        return Documents.toJson(data, bulkDataThreshold, Projection.ALL);
+    }
+}
@@ -0,0 +1,159 @@
+package dicom.benchmarks;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dicom.hbase.MetadataColumns;
+import dicom.hbase.MetadataQuery;
+import dicom.json.TagValues;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.dcm4che3.data.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per instance of testing "CT with a CTDIvol of at least 20 acquired in March 2018" against
+ * the stored form of each store, in process. {@code columns} evaluates the {@link MetadataQuery}
+ * against the encoded {@link MetadataColumns} of each row, the byte comparisons a region server
+ * runs for a filtered scan. {@code documents} decodes each JSON document with Gson and applies the
+ * same test in Java.
+ * <p>
+ * {@code documents} is not a CouchDB view query: a built view such as
+ * {@code radiation-by_modality_and_datetime} answers from a key range of its index without
+ * reading documents, and leaves the CTDIvol test to the client. It stands for the per-document
+ * decoding any filter over whole documents pays, as when a view is built or documents are read
+ * without one; the JavaScript view server and the index are not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetadataFilterBenchmark {
+
+    private static final int INSTANCES = 10000;
+
+    private static final String[] MODALITIES = {"CT", "CT", "MR", "CR", "DX", "US"};
+
+    private static final String MODALITY = TagValues.key(Tag.Modality);
+
+    private static final String CTDI_VOL = TagValues.key(Tag.CTDIvol);
+
+    private static final String DATETIME = Bytes.toString(MetadataColumns.DATETIME);
+
+    private static final long FROM = 20180301000000L;
+
+    private static final long TO = 20180331235959L;
+
+    private final byte[][] docs = new byte[INSTANCES][];
+
+    @SuppressWarnings("unchecked")
+    private final Map<String, byte[]>[] rows = new Map[INSTANCES];
+
+    private final MetadataQuery query = new MetadataQuery(Bytes.toBytes("meta"))
+            .equal(Tag.Modality, "CT")
+            .atLeast(Tag.CTDIvol, 20)
+            .dateTimeBetween(FROM, TO);
+
+    private final JsonParser jsonParser = new JsonParser();
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(42);
+
+        for (int i = 0; i < INSTANCES; i++) {
+            String modality = MODALITIES[random.nextInt(MODALITIES.length)];
+            String dateTime = String.format("2018%02d%02d%02d%02d%02d", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60));
+
+            JsonObject doc = new JsonObject();
+            Map<String, byte[]> row = new HashMap<>();
+
+            doc.addProperty("_id", "1.2.3." + i);
+            doc.addProperty(TagValues.key(Tag.PatientID), "P" + random.nextInt(1000));
+            doc.addProperty(MODALITY, modality);
+            doc.addProperty(TagValues.key(Tag.AcquisitionDateTime), dateTime);
+
+            row.put(Bytes.toString(MetadataColumns.UID), MetadataColumns.encode("1.2.3." + i));
+            row.put(MODALITY, MetadataColumns.encode(modality));
+            row.put(DATETIME, MetadataColumns.encode(Long.parseLong(dateTime)));
+
+            if (modality.equals("CT")) {
+                double ctdiVol = random.nextDouble() * 60;
+
+                doc.addProperty(CTDI_VOL, ctdiVol);
+                row.put(CTDI_VOL, MetadataColumns.encode(ctdiVol));
+            }
+
+            docs[i] = doc.toString().getBytes(StandardCharsets.UTF_8);
+            rows[i] = row;
+        }
+
+        int columns = columns();
+        int documents = documents();
+
+        if (columns != documents) {
+            throw new IllegalStateException(String.format("columns found %d instances, documents %d", columns, documents));
+        }
+
+        System.out.println(String.format("%d of %d instances match", columns, INSTANCES));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTANCES)
+    public int columns() {
+
+        int found = 0;
+
+        for (Map<String, byte[]> row : rows) {
+            if (query.matches(row)) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTANCES)
+    public int documents() {
+
+        int found = 0;
+
+        for (byte[] bytes : docs) {
+            JsonObject doc = (JsonObject) jsonParser.parse(new String(bytes, StandardCharsets.UTF_8));
+            JsonElement modality = doc.get(MODALITY);
+            JsonElement ctdiVol = doc.get(CTDI_VOL);
+            JsonElement dateTime = doc.get(TagValues.key(Tag.AcquisitionDateTime));
+
+            if (modality == null || ctdiVol == null || dateTime == null || !modality.getAsString().equals("CT")) {
+                continue;
+            }
+
+            long time = Long.parseLong(dateTime.getAsString().substring(0, 14));
+
+            if (ctdiVol.getAsDouble() >= 20 && time >= FROM && time <= TO) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+}
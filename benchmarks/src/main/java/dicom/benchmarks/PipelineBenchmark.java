@@ -0,0 +1,122 @@
+package dicom.benchmarks;
+
+import dicom.ingest.IngestFailure;
+import dicom.ingest.IngestPipeline;
+import dicom.ingest.IngestTask;
+import dicom.json.JsonInputHandler;
+import org.dcm4che3.io.DicomInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole CT series of 64 slices through the ingest pipeline, read from disk and parsed as the
+ * ingest stages do, against write stages that only drop the document and the file bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int SLICES = 64;
+
+    @Param({"1", "4"})
+    public int workers;
+
+    private Path directory;
+
+    private final List<File> files = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException {
+
+        directory = Files.createTempDirectory("dicom-benchmark");
+
+        List<byte[]> series = Datasets.ctSeries(SLICES);
+
+        for (int i = 0; i < series.size(); i++) {
+            Path file = directory.resolve(String.format("%04d.dcm", i));
+            Files.write(file, series.get(i));
+            files.add(file.toFile());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+        }
+
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int series() throws IOException {
+
+        IngestPipeline pipeline = new IngestPipeline(workers, workers * 4,
+                PipelineBenchmark::read, PipelineBenchmark::parse,
+                task -> task.setJson(null), task -> task.setData(null));
+
+        for (File file : files) {
+            pipeline.submit(file);
+        }
+
+        List<IngestFailure> failures = pipeline.finish();
+
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.get(0).toString(), failures.get(0).getCause());
+        }
+
+        return files.size();
+    }
+
+    private static void read(IngestTask task) throws IOException {
+
+        task.setData(Files.readAllBytes(task.getFile().toPath()));
+    }
+
+    private static void parse(IngestTask task) throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(8 * 1024);
+
+        try (JsonGenerator jsonGenerator = Json.createGeneratorFactory(Collections.emptyMap()).createGenerator(os)) {
+            JsonInputHandler dicomHandler = new JsonInputHandler(jsonGenerator, false, true);
+
+            try (DicomInputStream is = new DicomInputStream(new ByteArrayInputStream(task.getData()))) {
+                is.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+                dicomHandler.readDataset(is);
+            }
+
+            task.setSopInstanceUid(dicomHandler.getSopInstanceUid());
+            task.setPatientId(dicomHandler.getPatientId());
+        }
+
+        task.setJson(os.toByteArray());
+    }
+}
@@ -0,0 +1,190 @@
+package dicom.benchmarks;
+
+import dicom.Main;
+import dicom.hbase.RowKeyStrategy;
+import dicom.ingest.IngestFailure;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Cost of building row keys with each {@link RowKeyStrategy}. The setup also ingests small series
+ * of sequential patient IDs through {@link Main#process()} into the file blob sink, and prints how
+ * the writes and bytes it stored spread over the regions of a table pre-split for the strategy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowKeyBenchmark {
+
+    private static final int KEYS = 1024;
+
+    private static final int REGIONS = 16;
+
+    private static final int LOAD_PATIENTS = 512;
+
+    private static final int LOAD_SLICES = 8;
+
+    private static final int LOAD_SIZE = 64;
+
+    @Param({"patient", "salted", "hashed"})
+    public String strategy;
+
+    private RowKeyStrategy rowKeys;
+
+    private final String[] patientIds = new String[KEYS];
+
+    private Path directory;
+
+    @Setup
+    public void setup() throws IOException {
+
+        rowKeys = RowKeyStrategy.forName(strategy, REGIONS);
+
+        for (int i = 0; i < KEYS; i++) {
+            patientIds[i] = String.format("P%08d", i);
+        }
+
+        directory = Files.createTempDirectory("dicom-rowkey");
+
+        ingest();
+        printLoad();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void rowKey(Blackhole blackhole) {
+
+        for (String patientId : patientIds) {
+            blackhole.consume(rowKeys.rowKey(patientId, "1.2.840.113619.2.55.3.604688119", "1.2.840.113619.2.55.3.604688119.1"));
+        }
+    }
+
+    private void ingest() throws IOException {
+
+        Path input = Files.createDirectories(directory.resolve("input"));
+
+        for (int i = 0; i < LOAD_PATIENTS; i++) {
+            List<byte[]> series = Datasets.ctSeries(String.format("P%08d", i), LOAD_SLICES, LOAD_SIZE);
+
+            for (int j = 0; j < series.size(); j++) {
+                Files.write(input.resolve(String.format("%04d-%02d.dcm", i, j)), series.get(j));
+            }
+        }
+
+        Properties props = new Properties();
+        props.setProperty("sink.metadata", "memory");
+        props.setProperty("sink.blob", "file");
+        props.setProperty("sink.directory", directory.resolve("sink").toString());
+        props.setProperty("hbase.rowkey", strategy);
+        props.setProperty("hbase.rowkey.buckets", Integer.toString(REGIONS));
+        props.setProperty("log.file.level", "OFF");
+
+        Path config = directory.resolve("config.properties");
+
+        try (OutputStream out = Files.newOutputStream(config)) {
+            props.store(out, null);
+        }
+
+        List<IngestFailure> failures = new Main(config.toString(), input.toString()).process();
+
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException(failures.get(0).toString(), failures.get(0).getCause());
+        }
+    }
+
+    /**
+     * Assigns each row directory the blob sink wrote to the region of its key, counting the
+     * instances and bytes stored under it.
+     */
+    private void printLoad() throws IOException {
+
+        byte[][] splits = rowKeys.splitKeys(REGIONS);
+        int regions = splits == null ? 1 : splits.length + 1;
+        long[] writes = new long[regions];
+        long[] bytes = new long[regions];
+
+        try (DirectoryStream<Path> rows = Files.newDirectoryStream(directory.resolve("sink").resolve("blob"))) {
+            for (Path row : rows) {
+                int region = region(Bytes.fromHex(row.getFileName().toString()), splits);
+
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(row, "*.dcm")) {
+                    for (Path blob : blobs) {
+                        writes[region]++;
+                        bytes[region] += Files.size(blob);
+                    }
+                }
+            }
+        }
+
+        System.out.println(String.format("%s: %d region(s), busiest region took %.1f%% of %d writes and %.1f%% of %d bytes",
+                strategy, regions, 100.0 * max(writes) / sum(writes), sum(writes), 100.0 * max(bytes) / sum(bytes), sum(bytes)));
+    }
+
+    private static int region(byte[] row, byte[][] splits) {
+
+        int region = 0;
+
+        while (splits != null && region < splits.length && Bytes.compareTo(row, splits[region]) >= 0) {
+            region++;
+        }
+
+        return region;
+    }
+
+    private static long max(long[] values) {
+
+        long max = 0;
+
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+
+        return max;
+    }
+
+    private static long sum(long[] values) {
+
+        long sum = 0;
+
+        for (long value : values) {
+            sum += value;
+        }
+
+        return sum;
+    }
+}
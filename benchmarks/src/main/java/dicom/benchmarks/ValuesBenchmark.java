@@ -0,0 +1,47 @@
+package dicom.benchmarks;
+
+import dicom.json.Projection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One {@code write*Values} path of {@code JsonInputHandler} at a time: each dataset holds 1000
+ * attributes of a single value family, with binary values written inline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ValuesBenchmark {
+
+    @Param({"STRING", "DECIMAL", "PERSON_NAME", "DOUBLE", "INT", "UINT", "BINARY"})
+    public Datasets.Values values;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException {
+
+        data = Datasets.values(values, 1000);
+    }
+
+    @Benchmark
+    public byte[] parse() throws IOException {
+
+        return Documents.toJson(data, Integer.MAX_VALUE, Projection.ALL);
+    }
+}
@@ -0,0 +1,107 @@
+package dicom.couchdb;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dicom.benchmarks.Datasets;
+import dicom.benchmarks.Documents;
+import dicom.json.Projection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing a batch of 100 documents for CouchDB: {@code reparse} is the former path, which
+ * decoded each document into a Gson tree and serialized it again to add {@code _rev};
+ * {@code stream} is {@link BulkDocsEntity}, which splices the revision into the parser output.
+ * The allocation per batch, {@code gc.alloc.rate.norm}, is the figure that matters; the
+ * {@link dicom.benchmarks.Benchmarks} runner reports it by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BulkDocsBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"CT_SLICE", "DEEP_SEQUENCES", "PRIVATE_TAGS"})
+    public Datasets.Kind dataset;
+
+    private final List<byte[]> docs = new ArrayList<>();
+
+    private final List<String> revs = new ArrayList<>();
+
+    private final JsonParser jsonParser = new JsonParser();
+
+    private final Gson gson = new Gson();
+
+    @Setup
+    public void setup() throws IOException {
+
+        byte[] doc = Documents.toJson(Datasets.generate(dataset), -1, Projection.ALL);
+
+        for (int i = 0; i < BATCH; i++) {
+            docs.add(doc);
+            revs.add(i % 2 == 0 ? null : "1-967a00dff5e02add41819138abb3284d");
+        }
+    }
+
+    @Benchmark
+    public void reparse(Blackhole blackhole) {
+
+        for (int i = 0; i < BATCH; i++) {
+            JsonObject object = (JsonObject) jsonParser.parse(new String(docs.get(i), StandardCharsets.UTF_8));
+
+            if (revs.get(i) != null) {
+                object.addProperty("_rev", revs.get(i));
+            }
+
+            blackhole.consume(gson.toJson((JsonElement) object).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+
+        CountingOutputStream out = new CountingOutputStream();
+        new BulkDocsEntity(docs, revs).writeTo(out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package dicom.json;
+
+import org.dcm4che3.util.TagUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON member names for a dataset's worth of tags: {@link TagKeys} against
+ * {@code 't' + TagUtils.toHexString(tag)}, the code the cache replaced in
+ * {@link JsonInputHandler}. The allocation per tag, {@code gc.alloc.rate.norm}, is what the cache
+ * was added for: none on a hit against a string and its builder per tag. The
+ * {@link dicom.benchmarks.Benchmarks} runner reports it by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TagKeysBenchmark {
+
+    private static final int TAGS = 1024;
+
+    private final int[] tags = new int[TAGS];
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(TAGS);
+        int[] dictionary = TagKeys.standardTags();
+
+        for (int i = 0; i < TAGS; i++) {
+            // one tag in eight is private
+            if (i % 8 == 0) {
+                tags[i] = (2 * (4 + random.nextInt(32)) + 1) << 16 | random.nextInt(0x10000);
+            } else {
+                tags[i] = dictionary[random.nextInt(dictionary.length)];
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TAGS)
+    public void cached(Blackhole blackhole) {
+
+        for (int tag : tags) {
+            blackhole.consume(TagKeys.of(tag));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TAGS)
+    public void built(Blackhole blackhole) {
+
+        for (int tag : tags) {
+            blackhole.consume('t' + TagUtils.toHexString(tag));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+var map = function (doc) {
+    if (doc.rollup === "exam_count-by_patient_and_datetime") {
+        doc.rows.forEach(function (row) {
+            emit(row[0], row[1]);
+        });
+    }
+};
+
+var reduce = "_sum";
\ No newline at end of file
@@ -0,0 +1,7 @@
+var map = function (doc) {
+    if (doc.rollup === "radiation-by_modality_and_datetime") {
+        doc.rows.forEach(function (row) {
+            emit(row[0], row[1]);
+        });
+    }
+};
\ No newline at end of file
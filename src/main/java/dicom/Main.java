@@ -1,37 +1,148 @@
 package dicom;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import dicom.couchdb.CouchDbBatchWriter;
+import dicom.couchdb.CouchDbInstanceLocator;
+import dicom.hbase.BlobCodec;
+import dicom.hbase.BlobCodecPolicy;
+import dicom.hbase.BlobDigestLookup;
+import dicom.hbase.DicomTable;
+import dicom.hbase.HBaseBlobReader;
+import dicom.hbase.HBaseBlobSink;
+import dicom.hbase.HBaseBlobWriter;
+import dicom.hbase.MetadataColumns;
+import dicom.hbase.RowKeyStrategy;
+import dicom.hbase.StudyIndex;
+import dicom.hbase.StudyIndexLocator;
+import dicom.hbase.StudyIndexWriter;
+import dicom.ingest.DicomFileWalker;
+import dicom.ingest.DropFolderWatcher;
+import dicom.ingest.IngestFailure;
+import dicom.ingest.IngestJob;
+import dicom.ingest.IngestListener;
+import dicom.ingest.IngestManifest;
+import dicom.ingest.IngestPipeline;
+import dicom.ingest.IngestRunner;
+import dicom.ingest.IngestTask;
+import dicom.ingest.ShardLedger;
+import dicom.ingest.ShardMode;
+import dicom.ingest.WatchMode;
+import dicom.json.BlobLocation;
 import dicom.json.JsonInputHandler;
+import dicom.json.Projection;
+import dicom.json.MemberCapture;
+import dicom.json.TagValues;
+import dicom.metrics.IngestMetrics;
+import dicom.metrics.PrometheusFileReporter;
+import dicom.reindex.KeyRange;
+import dicom.reindex.ReindexCheckpoint;
+import dicom.reindex.ReindexMode;
+import dicom.reindex.Reindexer;
+import dicom.retrieve.DicomRetriever;
+import dicom.retrieve.InstanceLocator;
+import dicom.retrieve.RetrieveMode;
+import dicom.rollup.RollupEngine;
+import dicom.rollup.RollupInput;
+import dicom.sink.BlobSink;
+import dicom.sink.FileBlobSink;
+import dicom.sink.FileMetadataSink;
+import dicom.sink.MemoryBlobSink;
+import dicom.sink.MemoryMetadataSink;
+import dicom.sink.MetadataSink;
+import dicom.sink.WriteOutcome;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.dcm4che3.io.DicomInputStream;
 import org.lightcouch.CouchDbClient;
 import org.lightcouch.CouchDbProperties;
-import org.lightcouch.NoDocumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
+import javax.management.JMException;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Main {
 
-    private JsonParser jsonParser = new JsonParser();
+    private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
 
     private CouchDbClient couchdbClient;
 
     private Connection hbaseClient;
 
+    private MetadataSink metadataSink;
+
+    private BlobSink blobSink;
+
     private Properties props;
 
     private File target;
 
+    private long streamingThreshold;
+
+    private Projection projection;
+
+    private int bulkDataThreshold;
+
+    private String documentVersion;
+
+    private RowKeyStrategy rowKeys;
+
+    private int[] metadataTags;
+
+    private HBaseBlobWriter columnWriter;
+
+    private BlobCodecPolicy codecs;
+
+    private BlobLocation blobLocation;
+
+    private IngestManifest manifest;
+
+    private int shardIndex = -1;
+
+    private RollupEngine rollup;
+
+    private StudyIndexWriter index;
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private boolean dedup;
+
+    private String fileLogLevel;
+
+    private final AtomicLong dedupDocuments = new AtomicLong();
+
+    private final AtomicLong dedupBlobs = new AtomicLong();
+
+    private final AtomicLong dedupBytes = new AtomicLong();
+
+    private final AtomicLong encodingSavedBytes = new AtomicLong();
+
     public Main(String propsPath, String targetPath) throws IOException {
 
         props = new Properties();
@@ -41,26 +152,645 @@ public class Main {
         }
 
         target = new File(targetPath);
-    }
 
-    public void process() throws IOException {
+        streamingThreshold = getLongProperty("ingest.streaming.threshold", 64L * 1024 * 1024);
 
-        if (target.exists()) {
-            openHBaseClient();
-            openCouchDbClient();
+        projection = loadProjection();
+
+        bulkDataThreshold = getIntProperty("json.bulkdata.threshold", -1);
+
+        documentVersion = documentVersion();
+
+        dedup = Boolean.parseBoolean(props.getProperty("ingest.dedup", "false").trim());
+
+        fileLogLevel = props.getProperty("log.file.level", "DEBUG").trim().toUpperCase();
 
+        rowKeys = RowKeyStrategy.forName(props.getProperty("hbase.rowkey", "patient").trim(),
+                getIntProperty("hbase.rowkey.buckets", 16));
 
+        metadataTags = loadMetadataTags();
+
+        codecs = loadCodecPolicy();
+
+        blobLocation = new BlobLocation() {
+
+            @Override
+            public String row(String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+                return Bytes.toStringBinary(rowKeys.rowKey(patientId, studyInstanceUid, sopInstanceUid));
+            }
+
+            @Override
+            public String column(String sopInstanceUid) {
+
+                return DicomTable.FILE_FAMILY + ':' + sopInstanceUid;
+            }
+        };
+    }
+
+    public List<IngestFailure> process() throws IOException {
+
+        if (!target.exists()) {
+            return Collections.emptyList();
+        }
+
+        return ingest(pipeline -> {
             if (target.isFile()) {
-                processFile(target);
+                processFile(pipeline, target.toPath(),
+                        Files.readAttributes(target.toPath(), BasicFileAttributes.class));
             } else {
-                processFolder(target);
+                processFolder(pipeline, target);
+            }
+        }, null);
+    }
+
+    /**
+     * Runs as a daemon, as {@link WatchMode} does, watching the folders for files once they are
+     * completely written. Files are drained for up to watch.drain.millis on shutdown.
+     */
+    public List<IngestFailure> watch(List<File> folders) throws IOException {
+
+        List<Path> paths = new ArrayList<>(folders.size());
+
+        for (File folder : folders) {
+            if (!folder.isDirectory()) {
+                throw new FileNotFoundException("Diretório não encontrado: " + folder);
+            }
+
+            paths.add(folder.toPath());
+        }
+
+        DropFolderWatcher watcher = new DropFolderWatcher(paths, newWalker(),
+                getLongProperty("watch.settle.millis", 2000),
+                getLongProperty("watch.rescan.millis", 300000));
+
+        if (props.getProperty("ingest.manifest", "").trim().isEmpty()) {
+            System.out.println("Sem ingest.manifest, os arquivos serão inseridos novamente a cada reinício");
+        }
+
+        System.out.println(String.format("Observando %d diretório(s)...", paths.size()));
+
+        return new WatchMode(runner(), watcher, getLongProperty("watch.drain.millis", 60000)).run();
+    }
+
+    /**
+     * Ingests shard {@code index} of {@code count} of the files under the target, as
+     * {@link ShardMode} does, coordinating through the {@link ShardLedger} named by
+     * ingest.shard.ledger. Each process keeps its own manifest, suffixed with its index. Once done
+     * with its shard, a process takes over those whose owner stopped beating for
+     * ingest.shard.stale.millis, or that nobody claimed that long after it started, unless
+     * ingest.shard.takeover is false.
+     * <p>
+     * The ledger relies on appends to a file being atomic, which NFS does not guarantee: all the
+     * processes of a sharded ingest must run on the same node, with the ledger on a local file
+     * system, unless the storage they share guarantees atomic appends.
+     */
+    public List<IngestFailure> shard(int index, int count) throws IOException {
+
+        if (!target.isDirectory()) {
+            throw new FileNotFoundException("Diretório não encontrado: " + target);
+        }
+
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException(String.format("Fragmento %d fora de 0..%d", index, count - 1));
+        }
+
+        long staleMillis = getLongProperty("ingest.shard.stale.millis", 60000);
+        boolean takeover = Boolean.parseBoolean(props.getProperty("ingest.shard.takeover", "true").trim());
+
+        shardIndex = index;
+
+        try (ShardLedger ledger = new ShardLedger(
+                new File(props.getProperty("ingest.shard.ledger", "ingest.ledger").trim()).toPath(), count, staleMillis)) {
+            System.out.println(String.format("Fragmento %d de %d ( %s )", index, count, ledger.getOwner()));
+
+            return new ShardMode(runner(), ledger, newWalker(), target.toPath(), index,
+                    Math.max(1, staleMillis / 4), takeover).run();
+        } finally {
+            shardIndex = -1;
+        }
+    }
+
+    /**
+     * Lets the modes in the feature packages run jobs over the stores opened here.
+     */
+    private IngestRunner runner() {
+
+        return new IngestRunner() {
+
+            @Override
+            public List<IngestFailure> ingest(IngestJob job, IngestListener listener) throws IOException {
+
+                return Main.this.ingest(job, listener);
             }
 
+            @Override
+            public boolean submit(IngestPipeline pipeline, Path file, BasicFileAttributes attributes) throws IOException {
+
+                return processFile(pipeline, file, attributes);
+            }
+        };
+    }
+
+    /**
+     * Opens the stores, runs the job against a new pipeline, waits until every file it submitted
+     * left the pipeline and closes the stores. {@code listener}, unless {@code null}, is told of
+     * every outcome after the manifest.
+     */
+    private List<IngestFailure> ingest(IngestJob job, IngestListener listener) throws IOException {
+
+        List<IngestFailure> failures = Collections.emptyList();
+
+        checkProjection();
+        openManifest();
+        openBlobSink();
+        openMetadataSink();
+        openRollup();
+        openIndex();
+
+        try {
+            int workers = getIntProperty("ingest.workers", Runtime.getRuntime().availableProcessors());
+            int queueSize = getIntProperty("ingest.queue.size", workers * 4);
+
+            IngestPipeline pipeline = new IngestPipeline(workers, queueSize,
+                    this::readFile, this::parseFile, this::writeCouchDb, this::writeHBase,
+                    manifest == null && listener == null ? null : new OutcomeListener(listener));
+
+            IngestMetrics metrics = pipeline.getMetrics();
+            PrometheusFileReporter reporter = openMetrics(metrics);
+
+            try {
+                job.run(pipeline);
+            } finally {
+                failures = pipeline.finish();
+                closeMetrics(metrics, reporter);
+            }
+        } finally {
+            closeIndex();
+            closeRollup();
+            closeMetadataSink();
+            closeBlobSink();
+            closeManifest();
+        }
+
+        if (skipped.get() > 0) {
+            System.out.println(String.format("%d arquivo(s) inalterado(s) ignorado(s)", skipped.get()));
+        }
+
+        if (dedup) {
+            System.out.println(String.format("Deduplicados: %d documento(s), %d blob(s) ( %d bytes )",
+                    dedupDocuments.get(), dedupBlobs.get(), dedupBytes.get()));
+        }
+
+        if (codecs != null) {
+            System.out.println(String.format("Compressão economizou %d bytes", encodingSavedBytes.get()));
+        }
+
+        return failures;
+    }
+
+    /**
+     * Reads hbase.metadata.tags, the attributes written as {@link MetadataColumns}, together with
+     * those the datetime column is taken from. Returns {@code null} when none are listed or the
+     * row key strategy does not store one instance per row.
+     */
+    private int[] loadMetadataTags() {
+
+        String tags = props.getProperty("hbase.metadata.tags");
+
+        if (tags == null || tags.trim().isEmpty()) {
+            return null;
+        }
+
+        if (!rowKeys.isRowPerInstance()) {
+            LOGGER.warn("hbase.metadata.tags ignored: the row key strategy does not store one instance per row");
+            return null;
+        }
+
+        int[] listed = TagValues.parseTags(tags);
+        int[] all = Arrays.copyOf(listed, listed.length + MetadataColumns.DATETIME_TAGS.length);
+
+        System.arraycopy(MetadataColumns.DATETIME_TAGS, 0, all, listed.length, MetadataColumns.DATETIME_TAGS.length);
+
+        return all;
+    }
+
+    /**
+     * Reads hbase.blob.codec, the codec of blobs by default, and its
+     * hbase.blob.codec.modality.&lt;modality&gt; and hbase.blob.codec.syntax.&lt;transfer syntax UID&gt;
+     * overrides. Returns {@code null} when every blob is stored as is. Only files loaded in heap
+     * are encoded: those over ingest.streaming.threshold are streamed and stored as they are.
+     */
+    private BlobCodecPolicy loadCodecPolicy() {
+
+        String codec = props.getProperty("hbase.blob.codec", "none").trim();
+        Map<String, BlobCodec> byModality = new HashMap<>();
+        Map<String, BlobCodec> byTransferSyntax = new HashMap<>();
+
+        for (String key : props.stringPropertyNames()) {
+            String value = props.getProperty(key).trim();
+
+            if (value.isEmpty()) {
+                continue;
+            }
+
+            if (key.startsWith("hbase.blob.codec.modality.")) {
+                byModality.put(key.substring("hbase.blob.codec.modality.".length()), BlobCodec.forName(value));
+            } else if (key.startsWith("hbase.blob.codec.syntax.")) {
+                byTransferSyntax.put(key.substring("hbase.blob.codec.syntax.".length()), BlobCodec.forName(value));
+            }
+        }
+
+        BlobCodec defaultCodec = BlobCodec.forName(codec.isEmpty() ? "none" : codec);
+
+        if (defaultCodec == BlobCodec.NONE && byModality.isEmpty() && byTransferSyntax.isEmpty()) {
+            return null;
+        }
+
+        return new BlobCodecPolicy(defaultCodec, byModality, byTransferSyntax,
+                getDoubleProperty("hbase.blob.codec.min.saving", 0.1));
+    }
+
+    /**
+     * Loads the projection profile named by json.projection from its json.projection.&lt;name&gt;.*
+     * entries; without a profile every attribute is written.
+     */
+    private Projection loadProjection() {
+
+        String name = props.getProperty("json.projection");
+
+        if (name != null) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                String prefix = "json.projection." + name;
+
+                return Projection.parse(props.getProperty(prefix + ".include"),
+                        props.getProperty(prefix + ".exclude"),
+                        getIntProperty(prefix + ".depth", -1));
+            }
+        }
+
+        return Projection.ALL;
+    }
+
+    private long getLongProperty(String key, long defaultValue) {
+
+        String value = props.getProperty(key);
+
+        if (value != null) {
+            value = value.trim();
+            if (!value.isEmpty()) {
+                try {
+                    return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return defaultValue;
+    }
+
+    private double getDoubleProperty(String key, double defaultValue) {
+
+        String value = props.getProperty(key);
+
+        if (value != null) {
+            value = value.trim();
+            if (!value.isEmpty()) {
+                try {
+                    return Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return defaultValue;
+    }
+
+    private int getIntProperty(String key, int defaultValue) {
+
+        String value = props.getProperty(key);
+
+        if (value != null) {
+            value = value.trim();
+            if (!value.isEmpty()) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Registers the pipeline metrics over JMX and, when metrics.prometheus.file is set, writes
+     * them there every metrics.prometheus.millis.
+     */
+    private PrometheusFileReporter openMetrics(IngestMetrics metrics) {
+
+        try {
+            metrics.register();
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register the ingest metrics over JMX", e);
+        }
+
+        String path = props.getProperty("metrics.prometheus.file");
+
+        if (path != null) {
+            path = path.trim();
+            if (!path.isEmpty()) {
+                return new PrometheusFileReporter(metrics, new File(path).toPath(),
+                        getLongProperty("metrics.prometheus.millis", 10000));
+            }
+        }
+
+        return null;
+    }
+
+    private void closeMetrics(IngestMetrics metrics, PrometheusFileReporter reporter) throws IOException {
+
+        try {
+            if (reporter != null) {
+                reporter.close();
+            }
+        } finally {
+            metrics.unregister();
+        }
+
+        System.out.println(String.format("%d arquivo(s) inserido(s) | %d byte(s) | %d atributo(s)",
+                metrics.getFilesIngested(), metrics.getBytesIngested(), metrics.getAttributesWritten()));
+    }
+
+    /**
+     * Logs a per-file message at log.file.level: TRACE, DEBUG, INFO, WARN or OFF.
+     */
+    private void logFile(String format, Object... args) {
+
+        switch (fileLogLevel) {
+            case "OFF":
+                break;
+            case "TRACE":
+                LOGGER.trace(format, args);
+                break;
+            case "INFO":
+                LOGGER.info(format, args);
+                break;
+            case "WARN":
+                LOGGER.warn(format, args);
+                break;
+            default:
+                LOGGER.debug(format, args);
+        }
+    }
+
+    /**
+     * Opens the manifest named by ingest.manifest, which records the files already ingested so
+     * unchanged files are skipped; without it every file is ingested. Outcomes are written to it
+     * every ingest.manifest.flush.records records and every ingest.manifest.flush.millis.
+     */
+    private void openManifest() throws IOException {
+
+        String path = props.getProperty("ingest.manifest");
+
+        if (manifest == null && path != null) {
+            path = path.trim();
+            if (!path.isEmpty()) {
+                manifest = new IngestManifest(new File(shardIndex < 0 ? path : path + "." + shardIndex).toPath(),
+                        getIntProperty("ingest.manifest.flush.records", 256),
+                        getLongProperty("ingest.manifest.flush.millis", 1000));
+
+                System.out.println(String.format("Manifesto carregado ( %d arquivo(s) )", manifest.size()));
+            }
+        }
+    }
+
+    private void closeManifest() throws IOException {
+
+        if (manifest != null) {
+            manifest.close();
+            manifest = null;
+        }
+    }
+
+    /**
+     * Opens the metadata sink named by sink.metadata: couchdb, or the memory and file stand-ins,
+     * which complete each write after sink.latency.millis.
+     */
+    private void openMetadataSink() throws IOException {
+
+        String type = props.getProperty("sink.metadata", "couchdb").trim();
+
+        switch (type) {
+            case "couchdb":
+                openCouchDbClient();
+
+                if (dedup && !CouchDbBatchWriter.hasDigestView(couchdbClient)) {
+                    throw new IllegalStateException("The digest view is missing, create it with --create-views");
+                }
+
+                metadataSink = new CouchDbBatchWriter(couchdbClient,
+                        getIntProperty("couchdb.batch.size", 500),
+                        getIntProperty("couchdb.batch.millis", 1000),
+                        getIntProperty("couchdb.batch.retries", 3));
+                break;
+            case "memory":
+                metadataSink = new MemoryMetadataSink(getLongProperty("sink.latency.millis", 0),
+                        Boolean.parseBoolean(props.getProperty("sink.memory.retain", "false").trim()));
+                break;
+            case "file":
+                metadataSink = new FileMetadataSink(getSinkDirectory().resolve("metadata"),
+                        getLongProperty("sink.latency.millis", 0));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metadata sink: " + type);
+        }
+    }
+
+    private void closeMetadataSink() throws IOException {
+
+        try {
+            if (metadataSink != null) {
+                metadataSink.close();
+            }
+        } finally {
+            metadataSink = null;
             closeCouchDbClient();
+        }
+    }
+
+    /**
+     * Opens the rollup engine when rollup.enabled is set, which computes the exam count and
+     * radiation views while ingesting and writes them to the metadata sink every
+     * rollup.flush.millis.
+     */
+    private void openRollup() {
+
+        if (isRollupEnabled()) {
+            rollup = new RollupEngine(metadataSink,
+                    getLongProperty("rollup.flush.millis", 60000),
+                    getIntProperty("rollup.rows.per.document", 10000));
+        }
+    }
+
+    private void closeRollup() {
+
+        if (rollup != null) {
+            rollup.close();
+
+            System.out.println(String.format("%d documento(s) de rollup inserido(s)", rollup.getDocumentsWritten()));
+
+            rollup = null;
+        }
+    }
+
+    /**
+     * Opens the study index writer when index.enabled is set, which lists the instances of every
+     * study and series in the dicom_index table and flushes its counters every index.flush.millis.
+     */
+    private void openIndex() throws IOException {
+
+        if (isIndexEnabled()) {
+            openHBaseClient();
+
+            index = new StudyIndexWriter(hbaseClient, getLongProperty("index.flush.millis", 1000));
+        }
+    }
+
+    private void closeIndex() {
+
+        try {
+            if (index != null) {
+                index.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            index = null;
+        }
+    }
+
+    private boolean isIndexEnabled() {
+
+        return Boolean.parseBoolean(props.getProperty("index.enabled", "false").trim());
+    }
+
+    private boolean isRollupEnabled() {
+
+        return Boolean.parseBoolean(props.getProperty("rollup.enabled", "false").trim());
+    }
+
+    /**
+     * Fails when json.projection leaves out attributes that an enabled consumer reads while the
+     * document is written: the rollups, the study index and the metadata columns. Left out, they
+     * would silently be missing from every instance instead.
+     */
+    private void checkProjection() {
+
+        if (isRollupEnabled()) {
+            checkProjection("rollup.enabled", RollupInput.TAGS);
+        }
+
+        if (isIndexEnabled()) {
+            checkProjection("index.enabled", StudyIndex.TAGS);
+        }
+
+        if (metadataTags != null) {
+            checkProjection("hbase.metadata.tags", metadataTags);
+        }
+    }
+
+    private void checkProjection(String consumer, int[] tags) {
+
+        int[] unselected = projection.unselected(tags);
+
+        if (unselected.length > 0) {
+            StringBuilder names = new StringBuilder();
+
+            for (int tag : unselected) {
+                if (names.length() > 0) {
+                    names.append(',');
+                }
+
+                names.append(String.format("%08X", tag));
+            }
+
+            throw new IllegalStateException(String.format("json.projection does not select %s, needed by %s",
+                    names, consumer));
+        }
+    }
+
+    /**
+     * Opens the blob sink named by sink.blob: hbase, or the memory and file stand-ins. Blobs with
+     * bulk data locators are stored unencoded, in hbase.blob.chunk.size.located chunks once larger
+     * than hbase.blob.chunk.threshold.located, so each locator is read without the whole blob.
+     */
+    private void openBlobSink() throws IOException {
+
+        String type = props.getProperty("sink.blob", "hbase").trim();
+
+        switch (type) {
+            case "hbase":
+                openHBaseClient();
+
+                HBaseBlobWriter hbaseWriter = new HBaseBlobWriter(hbaseClient, DicomTable.NAME,
+                        getLongProperty("hbase.write.buffer", 32L * 1024 * 1024),
+                        getLongProperty("hbase.flush.millis", 1000),
+                        getLongProperty("hbase.max.inflight.bytes", 256L * 1024 * 1024),
+                        getIntProperty("hbase.blob.chunk.threshold", 10 * 1024 * 1024),
+                        getIntProperty("hbase.blob.chunk.size", 4 * 1024 * 1024));
+
+                if (metadataTags != null) {
+                    columnWriter = hbaseWriter;
+                }
+
+                blobSink = new HBaseBlobSink(hbaseWriter,
+                        dedup ? new BlobDigestLookup(hbaseClient, DicomTable.NAME, getIntProperty("hbase.digest.batch", 256)) : null,
+                        DicomTable.FILE_FAMILY, codecs,
+                        getIntProperty("hbase.blob.chunk.threshold.located", 1024 * 1024),
+                        getIntProperty("hbase.blob.chunk.size.located", 1024 * 1024));
+                break;
+            case "memory":
+                blobSink = new MemoryBlobSink(getLongProperty("sink.latency.millis", 0),
+                        Boolean.parseBoolean(props.getProperty("sink.memory.retain", "false").trim()));
+                break;
+            case "file":
+                blobSink = new FileBlobSink(getSinkDirectory().resolve("blob"),
+                        getLongProperty("sink.latency.millis", 0));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown blob sink: " + type);
+        }
+    }
+
+    private void closeBlobSink() throws IOException {
+
+        try {
+            if (blobSink instanceof HBaseBlobSink) {
+                encodingSavedBytes.addAndGet(((HBaseBlobSink) blobSink).getSavedBytes());
+            }
+
+            if (blobSink != null) {
+                blobSink.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            blobSink = null;
+            columnWriter = null;
             closeHBaseClient();
         }
     }
 
+    private Path getSinkDirectory() {
+
+        return new File(props.getProperty("sink.directory", "sink").trim()).toPath();
+    }
+
     private void openCouchDbClient() throws IOException {
 
         if (couchdbClient == null) {
@@ -167,7 +897,10 @@ public class Main {
                 }
             }
 
-            hbaseConfig.setInt("hbase.client.keyvalue.maxsize", 0);
+            int chunkThreshold = getIntProperty("hbase.blob.chunk.threshold", 10 * 1024 * 1024);
+            int chunkSize = getIntProperty("hbase.blob.chunk.size", 4 * 1024 * 1024);
+
+            hbaseConfig.setInt("hbase.client.keyvalue.maxsize", Math.max(chunkThreshold, chunkSize) + 64 * 1024);
 
             HBaseAdmin.available(hbaseConfig);
 
@@ -193,85 +926,563 @@ public class Main {
         }
     }
 
-    private void processFile(File file) throws IOException {
+    /**
+     * Files up to ingest.streaming.threshold bytes are loaded in heap; larger ones are left on
+     * disk, parsed straight from a {@link FileChannel} and streamed to HBase in chunks.
+     */
+    private void readFile(IngestTask task) throws IOException {
 
-        if (file.getName().endsWith(".dcm")) {
+        Path path = task.getFile().toPath();
 
-            byte[] dataBytes = Files.readAllBytes(file.toPath());
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
 
-            String patientId;
-            String sopInstanceId;
-            String rev;
-            byte[] jsonBytes;
-            JsonObject jsonObject;
+        task.setSize(attributes.size());
+        task.setLastModified(attributes.lastModifiedTime().toMillis());
 
-            try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-                try (JsonGenerator jsonGenerator = Json.createGeneratorFactory(Collections.emptyMap()).createGenerator(os)) {
-                    JsonInputHandler dicomHandler = new JsonInputHandler(jsonGenerator);
+        if (attributes.size() <= streamingThreshold) {
+            task.setData(Files.readAllBytes(path));
+        }
 
-                    try (DicomInputStream is = new DicomInputStream(new ByteArrayInputStream(dataBytes))) {
-                        is.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
-                        is.setDicomInputHandler(dicomHandler);
-                        is.readDataset(-1, -1);
-                    }
+        if (manifest != null || dedup) {
+            task.setDigest(digest(task));
+        }
+    }
+
+    private static byte[] digest(IngestTask task) throws IOException {
+
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (task.getData() != null) {
+            return digest.digest(task.getData());
+        }
+
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+
+        try (InputStream in = new DigestInputStream(openData(task), digest)) {
+            while (in.read(buffer) >= 0) {
+                // digest only
+            }
+        }
+
+        return digest.digest();
+    }
+
+    private void parseFile(IngestTask task) throws IOException {
+
+        try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
+            try (JsonGenerator jsonGenerator = Json.createGeneratorFactory(Collections.emptyMap()).createGenerator(os)) {
+                JsonInputHandler dicomHandler = new JsonInputHandler(jsonGenerator, bulkDataThreshold >= 0, true, projection);
+
+                if (bulkDataThreshold >= 0) {
+                    dicomHandler.setBulkDataLocation(blobLocation, bulkDataThreshold);
+                }
 
-                    sopInstanceId = dicomHandler.getSopInstanceUid();
-                    patientId = dicomHandler.getPatientId();
+                if (task.getDigest() != null) {
+                    dicomHandler.setContentDigest(documentDigest(task));
                 }
 
-                jsonBytes = os.toByteArray();
-                jsonObject = (JsonObject) jsonParser.parse(new String(jsonBytes));
+                if (metadataTags != null) {
+                    TagValues tagValues = new TagValues(metadataTags);
+                    dicomHandler.setTagValues(tagValues);
+                    task.setTagValues(tagValues);
+                }
+
+                MemberCapture rollupMembers = null;
+
+                if (rollup != null) {
+                    rollupMembers = new MemberCapture(RollupInput.TAGS);
+                    dicomHandler.setMemberCapture(rollupMembers);
+                }
+
+                try (InputStream in = openData(task); DicomInputStream is = new DicomInputStream(in)) {
+                    is.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+                    dicomHandler.readDataset(is);
+                    task.setTransferSyntaxUid(is.getTransferSyntax());
+                }
+
+                if (rollupMembers != null) {
+                    task.setRollupInput(RollupInput.extract(rollupMembers));
+                }
+
+                task.setSopInstanceUid(dicomHandler.getSopInstanceUid());
+                task.setPatientId(dicomHandler.getPatientId());
+                task.setStudyInstanceUid(dicomHandler.getStudyInstanceUid());
+                task.setSeriesInstanceUid(dicomHandler.getSeriesInstanceUid());
+                task.setModality(dicomHandler.getModality());
+                task.setAttributeCount(dicomHandler.getAttributeCount());
+                task.setLocated(dicomHandler.getLocatorCount() > 0);
             }
 
-            try {
-                rev = couchdbClient.find(JsonObject.class, sopInstanceId).get("_rev").getAsString();
-            } catch (NoDocumentException e) {
-                rev = null;
+            task.setJson(os.toByteArray());
+        }
+
+        if (task.getSopInstanceUid() == null) {
+            throw new IOException("SOP Instance UID ausente");
+        }
+
+        if (task.getPatientId() == null) {
+            throw new IOException("Patient ID ausente");
+        }
+
+        if (dedup && task.getDigest() != null && blobSink != null) {
+            task.setStoredDigest(blobSink.findDigest(rowKey(task), task.getSopInstanceUid()));
+        }
+    }
+
+    /**
+     * Returns the digest the document of the file is deduplicated by: the digest of the file
+     * followed by the document version, so a document written by another version of the handler
+     * or with another projection is not taken as unchanged.
+     */
+    private String documentDigest(IngestTask task) {
+
+        return toHex(task.getDigest()) + '.' + documentVersion;
+    }
+
+    /**
+     * Identifies how documents are produced from a file: the format version of the handler, the
+     * projection and the bulk data threshold.
+     */
+    private String documentVersion() {
+
+        String settings = projection + ";bulkdata=" + bulkDataThreshold;
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+
+            return JsonInputHandler.FORMAT_VERSION + "-" + toHex(Arrays.copyOf(hash, 4));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] rowKey(IngestTask task) {
+
+        return rowKeys.rowKey(task.getPatientId(), task.getStudyInstanceUid(), task.getSopInstanceUid());
+    }
+
+    private static InputStream openData(IngestTask task) throws IOException {
+
+        if (task.getData() != null) {
+            return new ByteArrayInputStream(task.getData());
+        }
+
+        if (task.getSource() != null) {
+            return new BufferedInputStream(task.getSource().open(), STREAM_BUFFER_SIZE);
+        }
+
+        FileChannel channel = FileChannel.open(task.getFile().toPath(), StandardOpenOption.READ);
+
+        return new BufferedInputStream(Channels.newInputStream(channel), STREAM_BUFFER_SIZE);
+    }
+
+    private void writeCouchDb(IngestTask task) {
+
+        String digest = dedup && task.getDigest() != null ? documentDigest(task) : null;
+        RollupInput rollupInput = task.getRollupInput();
+        Consumer<byte[]> replaced = rollup == null ? null
+                : previous -> rollup.replace(RollupInput.extract(previous), rollupInput);
+
+        task.defer("couchdb", metadataSink.write(task.getSopInstanceUid(), task.getJson(), digest, replaced)
+                .thenAccept(outcome -> {
+                    if (outcome == WriteOutcome.UNCHANGED) {
+                        dedupDocuments.incrementAndGet();
+                    } else if (outcome == WriteOutcome.CREATED && rollupInput != null) {
+                        rollup.add(rollupInput);
+                    }
+
+                    if (outcome != WriteOutcome.UNCHANGED && index != null) {
+                        try {
+                            index.add(task.getPatientId(), task.getStudyInstanceUid(), task.getSeriesInstanceUid(),
+                                    task.getSopInstanceUid(), task.getSize(), outcome == WriteOutcome.CREATED);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }));
+
+        task.setJson(null);
+    }
+
+    private void writeHBase(IngestTask task) throws IOException {
+
+        byte[] row = rowKey(task);
+
+        if (columnWriter != null && task.getTagValues() != null) {
+            Put columns = MetadataColumns.toPut(row, Bytes.toBytes(DicomTable.METADATA_FAMILY),
+                    task.getSopInstanceUid(), task.getTagValues());
+
+            if (columns != null) {
+                task.defer("hbase.meta", columnWriter.write(task.getSopInstanceUid(), columns));
             }
+        }
 
-            if (rev == null) {
-                jsonObject.addProperty("_id", sopInstanceId);
-                couchdbClient.save(jsonObject);
-            } else {
-                jsonObject.addProperty("_id", sopInstanceId);
-                jsonObject.addProperty("_rev", rev);
-                couchdbClient.update(jsonObject);
+        if (isBlobStored(task)) {
+            dedupBlobs.incrementAndGet();
+            dedupBytes.addAndGet(task.getSize());
+            task.setData(null);
+            return;
+        }
+
+        CompletableFuture<Void> future;
+
+        if (task.isLocated()) {
+            future = task.getData() != null
+                    ? blobSink.writeLocated(task.getSopInstanceUid(), row, task.getData(), task.getDigest())
+                    : blobSink.writeLocated(task.getSopInstanceUid(), row, task.getFile().toPath(), task.getDigest());
+        } else if (task.getData() != null) {
+            future = blobSink.write(task.getSopInstanceUid(), row, task.getData(), task.getDigest(),
+                    task.getModality(), task.getTransferSyntaxUid());
+        } else {
+            future = blobSink.write(task.getSopInstanceUid(), row, task.getFile().toPath(), task.getDigest());
+        }
+
+        task.defer("hbase", future.thenRun(() ->
+                logFile("Dados inseridos ( {} ) | Arquivo {}", task.getSopInstanceUid(), task.getFile())));
+
+        task.setData(null);
+    }
+
+    /**
+     * Tells whether HBase already holds a blob with the digest of the file. A failed lookup
+     * counts as not stored, so the blob is simply written again.
+     */
+    private static boolean isBlobStored(IngestTask task) {
+
+        if (task.getStoredDigest() == null) {
+            return false;
+        }
+
+        try {
+            return Arrays.equals(task.getStoredDigest().join(), task.getDigest());
+        } catch (CompletionException e) {
+            return false;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Submits a file unless the manifest has it unchanged, and tells whether it was submitted.
+     * Files named *.dcm are taken as they are; any other file only when it carries the DICM magic
+     * of the DICOM file format.
+     */
+    private boolean processFile(IngestPipeline pipeline, Path file, BasicFileAttributes attributes) throws IOException {
+
+        if (manifest != null && manifest.isIngested(file, attributes.size(), attributes.lastModifiedTime().toMillis())) {
+            skipped.incrementAndGet();
+            return false;
+        }
+
+        if (file.getFileName().toString().endsWith(".dcm") || isDicom(file)) {
+            pipeline.submit(file.toFile());
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isDicom(Path file) {
+
+        try {
+            return DicomFileWalker.isDicom(file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read {}", file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Walks the folder with ingest.walkers threads, expanding DICOMDIR indexes when
+     * ingest.dicomdir is set.
+     */
+    private void processFolder(IngestPipeline pipeline, File folder) throws IOException {
+
+        newWalker().walk(folder.toPath(), (file, attributes) -> processFile(pipeline, file, attributes));
+    }
+
+    private DicomFileWalker newWalker() {
+
+        return new DicomFileWalker(getIntProperty("ingest.walkers", 4),
+                Boolean.parseBoolean(props.getProperty("ingest.dicomdir", "false").trim()));
+    }
+
+    /**
+     * Records the outcome of every file in the manifest, then tells the listener of the mode, if
+     * any.
+     */
+    private class OutcomeListener implements IngestListener {
+
+        private final IngestListener next;
+
+        private OutcomeListener(IngestListener next) {
+
+            this.next = next;
+        }
+
+        @Override
+        public void ingested(IngestTask task) throws Exception {
+
+            if (manifest != null) {
+                manifest.record(task.getFile().toPath(), task.getSize(), task.getLastModified(), task.getDigest(),
+                        task.getSopInstanceUid(), IngestManifest.Outcome.INGESTED);
+            }
+
+            if (next != null) {
+                next.ingested(task);
+            }
+        }
+
+        @Override
+        public void failed(IngestTask task, IngestFailure failure) throws Exception {
+
+            if (manifest != null) {
+                manifest.record(task.getFile().toPath(), task.getSize(), task.getLastModified(), task.getDigest(),
+                        task.getSopInstanceUid(), IngestManifest.Outcome.FAILED);
             }
 
-            Table table = hbaseClient.getTable(TableName.valueOf("dicom"));
+            if (next != null) {
+                next.failed(task, failure);
+            }
+        }
+    }
 
-            Put put = new Put(Bytes.toBytes(patientId));
+    /**
+     * Creates the dicom table, pre-split into hbase.regions regions for the configured row key
+     * strategy, with the meta family when hbase.metadata.tags is set, and the dicom_index table
+     * when index.enabled is set.
+     */
+    public void createTable() throws IOException {
 
-            put.addColumn(Bytes.toBytes("file"), Bytes.toBytes(sopInstanceId), dataBytes);
+        openHBaseClient();
 
-            table.put(put);
+        try {
+            if (DicomTable.create(hbaseClient, rowKeys, getIntProperty("hbase.regions", 16), metadataTags != null)) {
+                System.out.println("Tabela criada!");
+            } else {
+                System.out.println("A tabela já existe");
+            }
 
-            System.out.println(String.format("Dados inseridos ( %s ) | Arquivo %s", sopInstanceId, file.toString()));
+            if (isIndexEnabled()) {
+                if (StudyIndex.create(hbaseClient)) {
+                    System.out.println("Tabela de índice criada!");
+                } else {
+                    System.out.println("A tabela de índice já existe");
+                }
+            }
+        } finally {
+            closeHBaseClient();
         }
     }
 
-    private void processFolder(File folder) throws IOException {
+    /**
+     * Creates the CouchDB views the ingest queries: the digest view, when ingest.dedup is set.
+     */
+    public void createViews() throws IOException {
 
-        for (File target : folder.listFiles()) {
-            if (target.isFile()) {
-                processFile(target);
+        openCouchDbClient();
+
+        try {
+            if (!dedup) {
+                System.out.println("Nenhuma visão necessária ( ingest.dedup desativado )");
+            } else if (CouchDbBatchWriter.createDigestView(couchdbClient)) {
+                System.out.println("Visão de digest criada!");
             } else {
-                processFolder(target);
+                System.out.println("A visão de digest já existe");
             }
+        } finally {
+            closeCouchDbClient();
+        }
+    }
+
+    /**
+     * Rebuilds the metadata documents from the blobs of the dicom table, re-parsed as the ingest
+     * would parse the original files, as {@link ReindexMode} does. Progress is kept per region in
+     * reindex.checkpoint, so an interrupted run resumes where it stopped; delete the file to start
+     * over.
+     */
+    public void reindex() throws IOException {
+
+        Path checkpointFile = new File(props.getProperty("reindex.checkpoint", "reindex.checkpoint").trim()).toPath();
+        boolean digests = dedup || !props.getProperty("ingest.manifest", "").trim().isEmpty();
+
+        openHBaseClient();
+
+        try {
+            openMetadataSink();
+
+            try {
+                ReindexCheckpoint checkpoint = ReindexCheckpoint.open(checkpointFile,
+                        KeyRange.regions(hbaseClient, DicomTable.NAME));
+
+                IngestMetrics metrics = new IngestMetrics();
+                PrometheusFileReporter reporter = openMetrics(metrics);
+
+                Reindexer reindexer = new Reindexer(hbaseClient, DicomTable.NAME, Bytes.toBytes(DicomTable.FILE_FAMILY),
+                        new HBaseBlobReader(hbaseClient, DicomTable.NAME, getIntProperty("retrieve.prefetch", 4)),
+                        task -> {
+                            if (digests) {
+                                task.setDigest(digest(task));
+                            }
+
+                            parseFile(task);
+                        },
+                        metadataSink, metrics,
+                        getIntProperty("reindex.threads", Runtime.getRuntime().availableProcessors()),
+                        getIntProperty("reindex.batch.size", 256),
+                        getLongProperty("reindex.batch.bytes", 64L * 1024 * 1024),
+                        getLongProperty("reindex.max.bytes.per.second", 0));
+
+                try {
+                    new ReindexMode(reindexer, checkpoint,
+                            getLongProperty("reindex.checkpoint.millis", 10000),
+                            getLongProperty("reindex.drain.millis", 60000)).run();
+                } finally {
+                    closeMetrics(metrics, reporter);
+                }
+            } finally {
+                closeMetadataSink();
+            }
+        } finally {
+            closeHBaseClient();
+        }
+    }
+
+    /**
+     * Retrieves the instance, series or study with the given UID, as {@link RetrieveMode} does,
+     * through caches sized by retrieve.cache.metadata.bytes and retrieve.cache.blob.bytes.
+     */
+    public void retrieve(String level, String uid, File directory) throws IOException {
+
+        openCouchDbClient();
+
+        try {
+            openHBaseClient();
+
+            try {
+                InstanceLocator locator = new CouchDbInstanceLocator(couchdbClient);
+
+                if (isIndexEnabled()) {
+                    locator = new StudyIndexLocator(hbaseClient, locator);
+                }
+
+                DicomRetriever retriever = new DicomRetriever(locator,
+                        new HBaseBlobReader(hbaseClient, DicomTable.NAME, getIntProperty("retrieve.prefetch", 4)),
+                        rowKeys, Bytes.toBytes(DicomTable.FILE_FAMILY),
+                        getLongProperty("retrieve.cache.metadata.bytes", 64L * 1024 * 1024),
+                        getLongProperty("retrieve.cache.blob.bytes", 512L * 1024 * 1024),
+                        Boolean.parseBoolean(props.getProperty("retrieve.cache.blob.offheap", "true").trim()));
+
+                new RetrieveMode(retriever).run(level, uid, directory.toPath());
+            } finally {
+                closeHBaseClient();
+            }
+        } finally {
+            closeCouchDbClient();
         }
     }
 
     public static void main(String... args) throws IOException {
 
+        if (args.length > 0 && args[0].equals("--create-table")) {
+            new Main(args.length > 1 ? args[1] : "./config.properties", ".").createTable();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--create-views")) {
+            new Main(args.length > 1 ? args[1] : "./config.properties", ".").createViews();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--retrieve")) {
+            if (args.length < 5) {
+                System.out.println("Informe a configuração, o nível (instance, series ou study), o UID e o diretório de saída");
+                return;
+            }
+
+            new Main(args[1], ".").retrieve(args[2], args[3], new File(args[4]));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--reindex")) {
+            new Main(args.length > 1 ? args[1] : "./config.properties", ".").reindex();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--shard")) {
+            if (args.length < 3 || !args[1].matches("\\d+/\\d+")) {
+                System.out.println("Informe o fragmento como índice/total, a configuração e o diretório contendo os arquivos DICOM");
+                return;
+            }
+
+            String[] shard = args[1].split("/");
+
+            report(new Main(args.length > 3 ? args[2] : "./config.properties", args[args.length - 1])
+                    .shard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1])));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--watch")) {
+            if (args.length < 3) {
+                System.out.println("Informe o caminho para a configuração e para os diretórios a observar");
+                return;
+            }
+
+            List<File> folders = new ArrayList<>();
+
+            for (int i = 2; i < args.length; i++) {
+                folders.add(new File(args[i]));
+            }
+
+            print(new Main(args[1], args[2]).watch(folders));
+            return;
+        }
+
         switch (args.length) {
             case 1:
-                new Main("./config.properties", args[0]).process();
+                report(new Main("./config.properties", args[0]).process());
                 break;
             case 2:
-                new Main(args[0], args[1]).process();
+                report(new Main(args[0], args[1]).process());
                 break;
             default:
                 System.out.println("Informe o caminho para a configuração e para o diretório contendo os arquivos DICOM");
         }
     }
+
+    private static void report(List<IngestFailure> failures) {
+
+        if (!failures.isEmpty()) {
+            print(failures);
+
+            System.exit(1);
+        }
+    }
+
+    private static void print(List<IngestFailure> failures) {
+
+        if (!failures.isEmpty()) {
+            System.out.println(String.format("%d arquivo(s) com falha:", failures.size()));
+
+            for (IngestFailure failure : failures) {
+                System.out.println(String.format("Falha ( %s ) | Arquivo %s | %s",
+                        failure.getStage(), failure.getFile(), failure.getCause()));
+            }
+        }
+    }
 }
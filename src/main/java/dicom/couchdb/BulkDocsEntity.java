@@ -0,0 +1,112 @@
+package dicom.couchdb;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * {@code _bulk_docs} request body written straight from the UTF-8 JSON documents produced by
+ * the parser. A known {@code _rev} is spliced in front of the document's first member, so the
+ * documents are never decoded or rebuilt.
+ */
+class BulkDocsEntity extends AbstractHttpEntity {
+
+    private static final byte[] START = "{\"docs\":[".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] END = "]}".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] REV_START = "{\"_rev\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] REV_END = "\",".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<byte[]> docs;
+
+    private final List<String> revs;
+
+    private final long length;
+
+    /**
+     * @param docs JSON objects, each holding at least one member
+     * @param revs revision of each document, or {@code null} for new documents
+     */
+    BulkDocsEntity(List<byte[]> docs, List<String> revs) {
+
+        this.docs = docs;
+        this.revs = revs;
+
+        long length = START.length + END.length + Math.max(docs.size() - 1, 0);
+
+        for (int i = 0; i < docs.size(); i++) {
+            length += docs.get(i).length;
+
+            String rev = revs.get(i);
+            if (rev != null) {
+                length += REV_START.length + rev.length() + REV_END.length - 1;
+            }
+        }
+
+        this.length = length;
+
+        setContentType(ContentType.APPLICATION_JSON.toString());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream((int) length);
+        writeTo(os);
+        return new ByteArrayInputStream(os.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+
+        os.write(START);
+
+        for (int i = 0; i < docs.size(); i++) {
+            byte[] doc = docs.get(i);
+            String rev = revs.get(i);
+
+            if (i > 0) {
+                os.write(',');
+            }
+
+            if (rev == null) {
+                os.write(doc);
+            } else {
+                os.write(REV_START);
+                os.write(rev.getBytes(StandardCharsets.US_ASCII));
+                os.write(REV_END);
+                os.write(doc, 1, doc.length - 1);
+            }
+        }
+
+        os.write(END);
+        os.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+
+        return false;
+    }
+}
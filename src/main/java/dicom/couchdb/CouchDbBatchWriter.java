@@ -0,0 +1,479 @@
+package dicom.couchdb;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import dicom.sink.MetadataSink;
+import dicom.sink.WriteOutcome;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.lightcouch.CouchDbClient;
+import org.lightcouch.CouchDbException;
+import org.lightcouch.DocumentConflictException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Gathers documents and commits them to CouchDB in batches.
+ * <p>
+ * A batch is committed once it holds {@code batchSize} documents or {@code batchMillis} after it
+ * started. The current revisions of the whole batch are looked up with a single
+ * {@code _all_docs} request by key, and the batch is written with a single {@code _bulk_docs}
+ * request streamed from the documents' JSON bytes. When documents were queued with a digest, the
+ * stored {@code digest} members are looked up by key in the {@code _design/ingest} {@code digest}
+ * view, which {@link #createDigestView} creates beforehand, so neither lookup scans the database
+ * nor fetches the documents.
+ * Documents whose stored digest equals the digest they were queued with are not written again.
+ * The documents a batch replaces are only fetched for the writes that asked for them. Documents
+ * rejected by CouchDB are retried one by one.
+ * <p>
+ * Batches are committed one at a time on the flusher thread, in the order they were closed, so
+ * when the same id is written twice the newer document is the one stored last. A writer that
+ * closes a full batch waits for its commit, so writers cannot get ahead of CouchDB.
+ */
+public class CouchDbBatchWriter implements MetadataSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CouchDbBatchWriter.class);
+
+    private static final String DESIGN_ID = "_design/ingest";
+
+    private static final String DIGEST_VIEW = DESIGN_ID + "/_view/digest";
+
+    private static final String DIGEST_MAP = "function (doc) { if (doc.digest) { emit(doc._id, doc.digest); } }";
+
+    private final CouchDbClient couchdbClient;
+
+    private final int batchSize;
+
+    private final int retries;
+
+    private final ScheduledExecutorService flusher;
+
+    private final Object lock = new Object();
+
+    private Map<String, Pending> batch = new LinkedHashMap<>();
+
+    private boolean closed = false;
+
+    public CouchDbBatchWriter(CouchDbClient couchdbClient, int batchSize, long batchMillis, int retries) {
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+
+        this.couchdbClient = couchdbClient;
+        this.batchSize = batchSize;
+        this.retries = retries;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-couchdb-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flushLater, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a document for writing. {@code doc} is a UTF-8 JSON object that already carries
+     * {@code _id} and no {@code _rev}; the current revision is added when the batch is committed.
+     * The returned future completes once CouchDB accepted the document.
+     */
+    public CompletableFuture<Void> write(String id, byte[] doc) {
+
+        return write(id, doc, null).thenApply(written -> null);
+    }
+
+    /**
+     * Queues a document that carries {@code digest} as its {@code digest} member. The returned
+     * future completes with {@link WriteOutcome#UNCHANGED} when the stored document already has
+     * that digest and was left as it is, otherwise once CouchDB accepted the new document. The
+     * document it replaces, fetched in the same batch, is given to {@code replaced} first.
+     */
+    @Override
+    public CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+        Pending pending = new Pending(doc, digest, replaced);
+        CompletableFuture<Void> committed = null;
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("CouchDB writer closed");
+            }
+
+            if (batch.containsKey(id)) {
+                committed = swap();
+            }
+
+            batch.put(id, pending);
+
+            if (committed == null && batch.size() >= batchSize) {
+                committed = swap();
+            }
+        }
+
+        if (committed != null) {
+            committed.join();
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Commits the current batch and waits until it and every batch closed before it are
+     * committed.
+     */
+    public void flush() {
+
+        CompletableFuture<Void> committed;
+
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+
+            committed = swap();
+        }
+
+        committed.join();
+    }
+
+    @Override
+    public void close() {
+
+        CompletableFuture<Void> committed;
+
+        synchronized (lock) {
+            closed = true;
+            committed = swap();
+        }
+
+        committed.join();
+        flusher.shutdown();
+
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the current batch and queues its commit behind the batches closed before it. Called
+     * under {@code lock}, so batches are queued in the order they were closed.
+     */
+    private CompletableFuture<Void> swap() {
+
+        Map<String, Pending> full = batch;
+        batch = new LinkedHashMap<>();
+        return CompletableFuture.runAsync(() -> commit(full), flusher);
+    }
+
+    /**
+     * Queues the commit of the current batch without waiting for it: this runs on the flusher
+     * thread, which commits the batches queued ahead of it first.
+     */
+    private void flushLater() {
+
+        synchronized (lock) {
+            if (!batch.isEmpty()) {
+                swap();
+            }
+        }
+    }
+
+    private void commit(Map<String, Pending> docs) {
+
+        if (docs.isEmpty()) {
+            return;
+        }
+
+        Map<String, Pending> rejected;
+
+        try {
+            rejected = write(docs);
+        } catch (Throwable e) {
+            for (Pending pending : docs.values()) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (Map.Entry<String, Pending> entry : rejected.entrySet()) {
+            retry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void retry(String id, Pending pending) {
+
+        Map<String, Pending> single = new HashMap<>();
+        single.put(id, pending);
+
+        for (int attempt = 0; attempt < retries; attempt++) {
+            try {
+                if (write(single).isEmpty()) {
+                    return;
+                }
+            } catch (Throwable e) {
+                pending.future.completeExceptionally(e);
+                return;
+            }
+
+            LOGGER.debug("Retrying CouchDB document {} ({})", id, pending.error);
+        }
+
+        pending.future.completeExceptionally(new CouchDbException(
+                String.format("Document %s rejected: %s", id, pending.error)));
+    }
+
+    /**
+     * Writes the documents with their current revisions and completes the accepted ones.
+     * Returns the documents CouchDB rejected.
+     */
+    private Map<String, Pending> write(Map<String, Pending> docs) throws IOException {
+
+        Map<String, Current> current = findCurrent(docs);
+
+        List<byte[]> bodies = new ArrayList<>(docs.size());
+        List<String> bodyRevs = new ArrayList<>(docs.size());
+        List<String> replacing = new ArrayList<>();
+
+        for (Map.Entry<String, Pending> entry : docs.entrySet()) {
+            Pending pending = entry.getValue();
+            Current stored = current.get(entry.getKey());
+
+            if (stored != null && pending.digest != null && pending.digest.equals(stored.digest)) {
+                pending.future.complete(WriteOutcome.UNCHANGED);
+                continue;
+            }
+
+            pending.existed = stored != null;
+
+            if (pending.existed && pending.replaced != null) {
+                replacing.add(entry.getKey());
+            }
+
+            bodies.add(pending.doc);
+            bodyRevs.add(stored == null ? null : stored.rev);
+        }
+
+        if (bodies.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        if (!replacing.isEmpty()) {
+            findPrevious(replacing, docs);
+        }
+
+        JsonArray results = post("_bulk_docs", new BulkDocsEntity(bodies, bodyRevs)).getAsJsonArray();
+
+        Map<String, Pending> rejected = new LinkedHashMap<>();
+
+        for (JsonElement element : results) {
+            JsonObject result = element.getAsJsonObject();
+            Pending pending = docs.get(result.get("id").getAsString());
+
+            if (pending == null) {
+                continue;
+            }
+
+            if (result.has("error")) {
+                pending.error = result.get("error").getAsString();
+                if (result.has("reason")) {
+                    pending.error = pending.error + ": " + result.get("reason").getAsString();
+                }
+                rejected.put(result.get("id").getAsString(), pending);
+            } else {
+                if (pending.previous != null) {
+                    try {
+                        pending.replaced.accept(pending.previous);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Failed to handle the document replaced by {}", result.get("id").getAsString(), e);
+                    }
+                }
+
+                pending.future.complete(pending.existed ? WriteOutcome.UPDATED : WriteOutcome.CREATED);
+            }
+        }
+
+        for (Map.Entry<String, Pending> entry : docs.entrySet()) {
+            if (!entry.getValue().future.isDone() && !rejected.containsKey(entry.getKey())) {
+                entry.getValue().error = "missing from _bulk_docs response";
+                rejected.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return rejected;
+    }
+
+    /**
+     * Looks up the current revision of each id with one {@code _all_docs} request, and the digest
+     * of those queued with a digest with one request to the digest view. Missing and deleted
+     * documents have no entry in the result.
+     */
+    private Map<String, Current> findCurrent(Map<String, Pending> docs) throws IOException {
+
+        JsonArray rows = post("_all_docs", keys(docs.keySet())).getAsJsonObject().getAsJsonArray("rows");
+
+        Map<String, Current> current = new HashMap<>();
+        List<String> digested = new ArrayList<>();
+
+        for (JsonElement element : rows) {
+            JsonObject row = element.getAsJsonObject();
+            JsonElement value = row.get("value");
+
+            if (row.has("error") || value == null || !value.isJsonObject() || value.getAsJsonObject().has("deleted")) {
+                continue;
+            }
+
+            String id = row.get("id").getAsString();
+            current.put(id, new Current(value.getAsJsonObject().get("rev").getAsString()));
+
+            if (docs.get(id) != null && docs.get(id).digest != null) {
+                digested.add(id);
+            }
+        }
+
+        if (digested.isEmpty()) {
+            return current;
+        }
+
+        for (JsonElement element : post(DIGEST_VIEW, keys(digested)).getAsJsonObject().getAsJsonArray("rows")) {
+            JsonObject row = element.getAsJsonObject();
+            Current stored = current.get(row.get("id").getAsString());
+
+            if (stored != null && row.get("value").isJsonPrimitive()) {
+                stored.digest = row.get("value").getAsString();
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Fetches the stored documents of {@code ids} with one {@code _all_docs} request.
+     */
+    private void findPrevious(List<String> ids, Map<String, Pending> docs) throws IOException {
+
+        JsonArray rows = post("_all_docs?include_docs=true", keys(ids)).getAsJsonObject().getAsJsonArray("rows");
+
+        for (JsonElement element : rows) {
+            JsonObject row = element.getAsJsonObject();
+            JsonElement doc = row.get("doc");
+
+            if (doc != null && doc.isJsonObject()) {
+                docs.get(row.get("id").getAsString()).previous = doc.toString().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static HttpEntity keys(Collection<String> ids) {
+
+        JsonArray keys = new JsonArray();
+
+        for (String id : ids) {
+            keys.add(id);
+        }
+
+        JsonObject body = new JsonObject();
+        body.add("keys", keys);
+
+        return new StringEntity(body.toString(), ContentType.APPLICATION_JSON);
+    }
+
+    /**
+     * Creates the {@code _design/ingest} design document holding the {@code digest} view the
+     * writer looks stored digests up in, unless it exists. Returns whether it was created. Its
+     * index is built by the first query, the only one that reads every document.
+     */
+    public static boolean createDigestView(CouchDbClient couchdbClient) {
+
+        if (hasDigestView(couchdbClient)) {
+            return false;
+        }
+
+        JsonObject map = new JsonObject();
+        map.addProperty("map", DIGEST_MAP);
+
+        JsonObject views = new JsonObject();
+        views.add("digest", map);
+
+        JsonObject design = new JsonObject();
+        design.addProperty("_id", DESIGN_ID);
+        design.addProperty("language", "javascript");
+        design.add("views", views);
+
+        try {
+            couchdbClient.save(design);
+        } catch (DocumentConflictException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Tells whether the design document of the digest view exists; writes with a digest fail
+     * without it.
+     */
+    public static boolean hasDigestView(CouchDbClient couchdbClient) {
+
+        return couchdbClient.contains(DESIGN_ID);
+    }
+
+    private JsonElement post(String path, HttpEntity body) throws IOException {
+
+        return CouchDbRequests.post(couchdbClient, path, body);
+    }
+
+    private static class Pending {
+
+        private final byte[] doc;
+
+        private final String digest;
+
+        private final Consumer<byte[]> replaced;
+
+        private final CompletableFuture<WriteOutcome> future = new CompletableFuture<>();
+
+        private boolean existed;
+
+        private byte[] previous;
+
+        private String error;
+
+        private Pending(byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+            this.doc = doc;
+            this.digest = digest;
+            this.replaced = replaced;
+        }
+    }
+
+    private static class Current {
+
+        private final String rev;
+
+        private String digest;
+
+        private Current(String rev) {
+
+            this.rev = rev;
+        }
+    }
+}
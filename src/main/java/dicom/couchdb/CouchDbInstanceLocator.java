@@ -0,0 +1,184 @@
+package dicom.couchdb;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import dicom.retrieve.InstanceLocator;
+import dicom.retrieve.InstanceRef;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.lightcouch.CouchDbClient;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds instances by their metadata documents in CouchDB: by {@code _id} for SOP Instance UIDs,
+ * with one {@code _find} request per batch, and by the {@code t0020000E} and {@code t0020000D}
+ * members for series and studies, paging through the results with bookmarks. The latter need a
+ * Mango index on those members to avoid scanning the database.
+ */
+public class CouchDbInstanceLocator implements InstanceLocator {
+
+    private static final String PATIENT_ID = "t00100020";
+
+    private static final String STUDY_INSTANCE_UID = "t0020000D";
+
+    private static final String SERIES_INSTANCE_UID = "t0020000E";
+
+    private final CouchDbClient couchdbClient;
+
+    private final int pageSize;
+
+    public CouchDbInstanceLocator(CouchDbClient couchdbClient) {
+
+        this(couchdbClient, 1000);
+    }
+
+    public CouchDbInstanceLocator(CouchDbClient couchdbClient, int pageSize) {
+
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize < 1");
+        }
+
+        this.couchdbClient = couchdbClient;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public Map<String, InstanceRef> locate(Collection<String> sopInstanceUids) throws IOException {
+
+        Map<String, InstanceRef> found = new HashMap<>();
+
+        if (sopInstanceUids.isEmpty()) {
+            return found;
+        }
+
+        JsonArray ids = new JsonArray();
+
+        for (String id : sopInstanceUids) {
+            ids.add(id);
+        }
+
+        JsonObject in = new JsonObject();
+        in.add("$in", ids);
+
+        for (InstanceRef ref : find("_id", in, sopInstanceUids.size())) {
+            found.put(ref.getSopInstanceUid(), ref);
+        }
+
+        return found;
+    }
+
+    @Override
+    public List<InstanceRef> findSeries(String seriesInstanceUid) throws IOException {
+
+        return find(SERIES_INSTANCE_UID, new JsonPrimitive(seriesInstanceUid), -1);
+    }
+
+    @Override
+    public List<InstanceRef> findStudy(String studyInstanceUid) throws IOException {
+
+        return find(STUDY_INSTANCE_UID, new JsonPrimitive(studyInstanceUid), -1);
+    }
+
+    /**
+     * Fetches the documents with one {@code _all_docs} request.
+     */
+    @Override
+    public Map<String, byte[]> documents(Collection<String> sopInstanceUids) throws IOException {
+
+        Map<String, byte[]> documents = new HashMap<>();
+
+        if (sopInstanceUids.isEmpty()) {
+            return documents;
+        }
+
+        JsonArray keys = new JsonArray();
+
+        for (String id : sopInstanceUids) {
+            keys.add(id);
+        }
+
+        JsonObject body = new JsonObject();
+        body.add("keys", keys);
+
+        JsonArray rows = CouchDbRequests.post(couchdbClient, "_all_docs?include_docs=true",
+                new StringEntity(body.toString(), ContentType.APPLICATION_JSON)).getAsJsonObject().getAsJsonArray("rows");
+
+        for (JsonElement element : rows) {
+            JsonObject row = element.getAsJsonObject();
+            JsonElement doc = row.get("doc");
+
+            if (doc != null && doc.isJsonObject()) {
+                documents.put(row.get("id").getAsString(), doc.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return documents;
+    }
+
+    /**
+     * Returns the instances whose {@code member} matches {@code condition}, at most
+     * {@code limit} of them, or all of them when {@code limit} is negative.
+     */
+    private List<InstanceRef> find(String member, JsonElement condition, int limit) throws IOException {
+
+        List<InstanceRef> found = new ArrayList<>();
+
+        JsonObject selector = new JsonObject();
+        selector.add(member, condition);
+
+        JsonArray fields = new JsonArray();
+        fields.add("_id");
+        fields.add(PATIENT_ID);
+        fields.add(STUDY_INSTANCE_UID);
+        fields.add(SERIES_INSTANCE_UID);
+
+        String bookmark = null;
+
+        while (true) {
+            int page = limit < 0 ? pageSize : Math.min(pageSize, limit - found.size());
+
+            JsonObject body = new JsonObject();
+            body.add("selector", selector);
+            body.add("fields", fields);
+            body.addProperty("limit", page);
+
+            if (bookmark != null) {
+                body.addProperty("bookmark", bookmark);
+            }
+
+            JsonObject response = CouchDbRequests.post(couchdbClient, "_find",
+                    new StringEntity(body.toString(), ContentType.APPLICATION_JSON)).getAsJsonObject();
+
+            JsonArray docs = response.getAsJsonArray("docs");
+
+            for (JsonElement element : docs) {
+                JsonObject doc = element.getAsJsonObject();
+
+                found.add(new InstanceRef(doc.get("_id").getAsString(), getString(doc, PATIENT_ID),
+                        getString(doc, STUDY_INSTANCE_UID), getString(doc, SERIES_INSTANCE_UID)));
+            }
+
+            if (docs.size() < page || !response.has("bookmark") || (limit >= 0 && found.size() >= limit)) {
+                return found;
+            }
+
+            bookmark = response.get("bookmark").getAsString();
+        }
+    }
+
+    private static String getString(JsonObject doc, String member) {
+
+        JsonElement value = doc.get(member);
+
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+}
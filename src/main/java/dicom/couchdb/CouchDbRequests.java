@@ -0,0 +1,60 @@
+package dicom.couchdb;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.lightcouch.CouchDbClient;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Requests LightCouch has no API for, sent through the client's connection pool.
+ */
+final class CouchDbRequests {
+
+    private static final JsonParser JSON_PARSER = new JsonParser();
+
+    private CouchDbRequests() {
+    }
+
+    /**
+     * Posts {@code body} to {@code path}, relative to the database, and parses the response.
+     *
+     * @throws IOException also when CouchDB answers with an error status, with the error it gave
+     */
+    static JsonElement post(CouchDbClient couchdbClient, String path, HttpEntity body) throws IOException {
+
+        URI uri = URI.create(couchdbClient.getDBUri().toString() + path);
+
+        HttpPost post = new HttpPost(uri);
+        post.setEntity(body);
+
+        HttpResponse response = couchdbClient.executeRequest(post);
+        int status = response.getStatusLine().getStatusCode();
+
+        if (status >= 300) {
+            String error;
+
+            try {
+                error = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), "UTF-8");
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+
+            throw new IOException(String.format("CouchDB POST %s failed with status %d: %s", path, status, error));
+        }
+
+        try (Reader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)) {
+            return JSON_PARSER.parse(reader);
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package dicom.hbase;
+
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blobs on the client before they are written to HBase.
+ * <ul>
+ * <li>{@code none}: stores the bytes as they are.</li>
+ * <li>{@code deflate}: zlib from the JDK, levels 1 to 9, 6 by default.</li>
+ * <li>{@code lz4}: LZ4 block format, the fast compressor by default or the high compression one
+ * for levels 1 to 17. The fastest to decode.</li>
+ * <li>{@code zstd}: Zstandard, levels 1 to 22, 3 by default.</li>
+ * </ul>
+ * A codec is named as {@code name} or {@code name:level}. The level only matters when encoding,
+ * so a blob is decoded by the codec of the same name whatever level it was encoded with.
+ * Decoding needs the size of the original bytes, which {@link BlobEncoding} stores with the blob.
+ */
+public abstract class BlobCodec {
+
+    public static final BlobCodec NONE = new NoCodec();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public abstract String getName();
+
+    public abstract byte[] encode(byte[] data);
+
+    /**
+     * Returns the {@code size} original bytes of {@code encoded}.
+     *
+     * @throws IOException when {@code encoded} is corrupt or does not hold {@code size} bytes
+     */
+    public abstract byte[] decode(byte[] encoded, int size) throws IOException;
+
+    public static BlobCodec forName(String spec) {
+
+        int separator = spec.indexOf(':');
+        String name = separator < 0 ? spec : spec.substring(0, separator);
+        Integer level = separator < 0 ? null : Integer.valueOf(spec.substring(separator + 1).trim());
+
+        switch (name.trim()) {
+            case "none":
+                return NONE;
+            case "deflate":
+                return new DeflateCodec(level == null ? 6 : level);
+            case "lz4":
+                return new Lz4Codec(level == null ? 0 : level);
+            case "zstd":
+                return new ZstdCodec(level == null ? 3 : level);
+            default:
+                throw new IllegalArgumentException("Unknown blob codec: " + spec);
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return getName();
+    }
+
+    private static IOException corrupt(String name, Throwable cause) {
+
+        return new IOException(String.format("Corrupt %s blob", name), cause);
+    }
+
+    private static class NoCodec extends BlobCodec {
+
+        @Override
+        public String getName() {
+
+            return "none";
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+
+            return data;
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int size) throws IOException {
+
+            if (encoded.length != size) {
+                throw corrupt(getName(), null);
+            }
+
+            return encoded;
+        }
+    }
+
+    private static class DeflateCodec extends BlobCodec {
+
+        private final int level;
+
+        private DeflateCodec(int level) {
+
+            if (level < 1 || level > 9) {
+                throw new IllegalArgumentException("Invalid deflate level: " + level);
+            }
+
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+
+            return "deflate";
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+
+            Deflater deflater = new Deflater(level);
+
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+                byte[] buffer = new byte[BUFFER_SIZE];
+
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int size) throws IOException {
+
+            Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(encoded);
+
+                byte[] data = new byte[size];
+                int length = 0;
+
+                while (length < size && !inflater.finished()) {
+                    int count = inflater.inflate(data, length, size - length);
+
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+
+                    length += count;
+                }
+
+                if (length != size) {
+                    throw corrupt(getName(), null);
+                }
+
+                // the stream must end with the last byte, not hold more than size bytes
+                if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished())) {
+                    throw corrupt(getName(), null);
+                }
+
+                return data;
+            } catch (DataFormatException e) {
+                throw corrupt(getName(), e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    private static class Lz4Codec extends BlobCodec {
+
+        private final int level;
+
+        private Lz4Codec(int level) {
+
+            if (level < 0 || level > 17) {
+                throw new IllegalArgumentException("Invalid lz4 level: " + level);
+            }
+
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+
+            return "lz4";
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+
+            return (level == 0 ? factory.fastCompressor() : factory.highCompressor(level)).compress(data);
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int size) throws IOException {
+
+            byte[] data = new byte[size];
+            int read;
+
+            try {
+                read = LZ4Factory.fastestInstance().fastDecompressor().decompress(encoded, 0, data, 0, size);
+            } catch (RuntimeException e) {
+                throw corrupt(getName(), e);
+            }
+
+            // the block must end with the last byte, not hold more than size bytes
+            if (read != encoded.length) {
+                throw corrupt(getName(), null);
+            }
+
+            return data;
+        }
+    }
+
+    private static class ZstdCodec extends BlobCodec {
+
+        private final int level;
+
+        private ZstdCodec(int level) {
+
+            if (level < 1 || level > 22) {
+                throw new IllegalArgumentException("Invalid zstd level: " + level);
+            }
+
+            this.level = level;
+        }
+
+        @Override
+        public String getName() {
+
+            return "zstd";
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+
+            return Zstd.compress(data, level);
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int size) throws IOException {
+
+            byte[] data;
+
+            try {
+                data = Zstd.decompress(encoded, size);
+            } catch (RuntimeException e) {
+                throw corrupt(getName(), e);
+            }
+
+            if (data.length != size) {
+                throw corrupt(getName(), null);
+            }
+
+            return data;
+        }
+    }
+}
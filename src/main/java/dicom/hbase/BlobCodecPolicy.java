@@ -0,0 +1,84 @@
+package dicom.hbase;
+
+import org.dcm4che3.data.UID;
+
+import java.util.Map;
+
+/**
+ * Chooses the {@link BlobCodec} of each blob.
+ * <p>
+ * A codec set for the transfer syntax of the file wins, then one set for its modality, then
+ * {@code defaultCodec}. Only files in a native transfer syntax are compressed unless a codec is
+ * set for their syntax: the pixel data of the others is already compressed, and encoding it again
+ * costs CPU for little or nothing. A blob is stored as is when its encoding does not save at
+ * least {@code minSaving} of its size.
+ */
+public class BlobCodecPolicy {
+
+    private final BlobCodec defaultCodec;
+
+    private final Map<String, BlobCodec> byModality;
+
+    private final Map<String, BlobCodec> byTransferSyntax;
+
+    private final double minSaving;
+
+    public BlobCodecPolicy(BlobCodec defaultCodec, Map<String, BlobCodec> byModality,
+                           Map<String, BlobCodec> byTransferSyntax, double minSaving) {
+
+        if (minSaving < 0 || minSaving >= 1) {
+            throw new IllegalArgumentException("minSaving outside [0, 1)");
+        }
+
+        this.defaultCodec = defaultCodec;
+        this.byModality = byModality;
+        this.byTransferSyntax = byTransferSyntax;
+        this.minSaving = minSaving;
+    }
+
+    /**
+     * Returns the codec of a file, given its modality and transfer syntax, either of which may be
+     * {@code null}. A file without a transfer syntax is taken as native.
+     */
+    public BlobCodec select(String modality, String transferSyntaxUid) {
+
+        if (transferSyntaxUid != null && byTransferSyntax.containsKey(transferSyntaxUid)) {
+            return byTransferSyntax.get(transferSyntaxUid);
+        }
+
+        if (!isNative(transferSyntaxUid)) {
+            return BlobCodec.NONE;
+        }
+
+        if (modality != null && byModality.containsKey(modality)) {
+            return byModality.get(modality);
+        }
+
+        return defaultCodec;
+    }
+
+    /**
+     * Tells whether an encoding of {@code encodedSize} bytes is worth keeping for a blob of
+     * {@code size} bytes.
+     */
+    public boolean isWorthwhile(long size, long encodedSize) {
+
+        return encodedSize < size && encodedSize <= size * (1 - minSaving);
+    }
+
+    public static boolean isNative(String transferSyntaxUid) {
+
+        if (transferSyntaxUid == null) {
+            return true;
+        }
+
+        switch (transferSyntaxUid) {
+            case UID.ImplicitVRLittleEndian:
+            case UID.ExplicitVRLittleEndian:
+            case UID.ExplicitVRBigEndianRetired:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up the {@link BlobManifest#digestQualifier(String) digest cells} of stored blobs in
+ * batches.
+ * <p>
+ * Lookups are queued and answered by a single thread, which sends every lookup queued while the
+ * previous batch was in flight as one multi-get, up to {@code maxBatch} at a time. A lone lookup
+ * is sent at once, so batching costs no added latency while it saves a round-trip per blob under
+ * load.
+ */
+public class BlobDigestLookup implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobDigestLookup.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    private final Connection hbaseClient;
+
+    private final TableName tableName;
+
+    private final int maxBatch;
+
+    private final BlockingQueue<Lookup> queue = new LinkedBlockingQueue<>();
+
+    private final Thread worker;
+
+    private volatile boolean running = true;
+
+    public BlobDigestLookup(Connection hbaseClient, TableName tableName, int maxBatch) {
+
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch < 1");
+        }
+
+        this.hbaseClient = hbaseClient;
+        this.tableName = tableName;
+        this.maxBatch = maxBatch;
+
+        worker = new Thread(this::work, "dicom-hbase-digests");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns a future completed with the stored digest of the blob, or with {@code null} when
+     * the blob has none, including an emptied digest cell, or does not exist.
+     */
+    public CompletableFuture<byte[]> lookup(byte[] row, byte[] family, String sopInstanceUid) {
+
+        Lookup lookup = new Lookup(row, family, sopInstanceUid);
+
+        if (!running) {
+            throw new IllegalStateException("Digest lookup closed");
+        }
+
+        queue.add(lookup);
+
+        return lookup.future;
+    }
+
+    @Override
+    public void close() {
+
+        running = false;
+
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Lookup lookup : queue) {
+            lookup.future.completeExceptionally(new IllegalStateException("Digest lookup closed"));
+        }
+    }
+
+    private void work() {
+
+        List<Lookup> batch = new ArrayList<>(maxBatch);
+
+        try {
+            while (running || !queue.isEmpty()) {
+                Lookup first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+
+                send(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<Lookup> batch) {
+
+        List<Get> gets = new ArrayList<>(batch.size());
+
+        for (Lookup lookup : batch) {
+            gets.add(new Get(lookup.row).addColumn(lookup.family, lookup.qualifier));
+        }
+
+        try (Table table = hbaseClient.getTable(tableName)) {
+            Result[] results = table.get(gets);
+
+            for (int i = 0; i < batch.size(); i++) {
+                Lookup lookup = batch.get(i);
+                byte[] digest = results[i].getValue(lookup.family, lookup.qualifier);
+
+                lookup.future.complete(digest == null || digest.length == 0 ? null : digest);
+            }
+        } catch (Throwable e) {
+            LOGGER.warn("Failed to look up {} blob digests", batch.size(), e);
+
+            for (Lookup lookup : batch) {
+                lookup.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static class Lookup {
+
+        private final byte[] row;
+
+        private final byte[] family;
+
+        private final byte[] qualifier;
+
+        private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+        private Lookup(byte[] row, byte[] family, String sopInstanceUid) {
+
+            this.row = row;
+            this.family = family;
+            this.qualifier = BlobManifest.digestQualifier(sopInstanceUid);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+/**
+ * Records the {@link BlobCodec} a blob was stored with and its size before encoding.
+ * <p>
+ * It is kept under {@code uid#codec}, written in the same mutation as the single cell or the
+ * {@link BlobManifest} of the blob, which then describe the encoded bytes. A blob without it is
+ * stored as is.
+ */
+public class BlobEncoding {
+
+    private final String codec;
+
+    private final long size;
+
+    public BlobEncoding(String codec, long size) {
+
+        this.codec = codec;
+        this.size = size;
+    }
+
+    public String getCodec() {
+
+        return codec;
+    }
+
+    /**
+     * Returns the size of the blob before encoding.
+     */
+    public long getSize() {
+
+        return size;
+    }
+
+    public boolean isEncoded() {
+
+        return !BlobCodec.NONE.getName().equals(codec);
+    }
+
+    /**
+     * Returns the original bytes of the blob of instance {@code uid}, stored as {@code stored}.
+     */
+    public byte[] decode(String uid, byte[] stored) throws IOException {
+
+        if (!isEncoded()) {
+            return stored;
+        }
+
+        if (size > HBaseBlobReader.MAX_WHOLE_SIZE) {
+            throw new IOException(String.format("Blob %s of %d bytes is too large to decode", uid, size));
+        }
+
+        try {
+            return BlobCodec.forName(codec).decode(stored, (int) size);
+        } catch (IOException e) {
+            throw new IOException(String.format("Failed to decode blob %s", uid), e);
+        }
+    }
+
+    public byte[] encode() {
+
+        return Bytes.add(Bytes.toBytes(size), Bytes.toBytes(codec));
+    }
+
+    public static BlobEncoding decode(byte[] b) {
+
+        if (b == null || b.length <= Bytes.SIZEOF_LONG) {
+            throw new IllegalArgumentException("Invalid blob encoding");
+        }
+
+        return new BlobEncoding(Bytes.toString(b, Bytes.SIZEOF_LONG, b.length - Bytes.SIZEOF_LONG), Bytes.toLong(b, 0));
+    }
+
+    public static byte[] qualifier(String uid) {
+
+        return Bytes.toBytes(uid + "#codec");
+    }
+}
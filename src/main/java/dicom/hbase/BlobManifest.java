@@ -0,0 +1,104 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Describes a blob stored as fixed-size chunks instead of a single cell.
+ * <p>
+ * A chunked blob of instance {@code uid} is kept in the same row and family a single-cell blob
+ * would use: chunk {@code i} under qualifier {@code uid#<i as 4 big-endian bytes>} and this
+ * manifest under {@code uid#manifest}. The manifest holds the blob size, the chunk size, the
+ * chunk count and the SHA-256 digest of the whole blob.
+ * <p>
+ * Any blob, single-cell or chunked, may also carry the SHA-256 of its content under
+ * {@code uid#sha256}, which is how a re-ingest of the same bytes is recognized, and the
+ * {@link BlobEncoding} of its bytes under {@code uid#codec}. Any of these cells may be empty,
+ * which means it is missing: see {@link HBaseBlobWriter} on rewrites.
+ */
+public class BlobManifest {
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int ENCODED_LENGTH = Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT;
+
+    private final long size;
+
+    private final int chunkSize;
+
+    private final int chunkCount;
+
+    private final byte[] digest;
+
+    public BlobManifest(long size, int chunkSize, int chunkCount, byte[] digest) {
+
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.digest = digest;
+    }
+
+    public long getSize() {
+
+        return size;
+    }
+
+    public int getChunkSize() {
+
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+
+        return chunkCount;
+    }
+
+    /**
+     * Returns the digest of the blob, or {@code null} for manifests written without one.
+     */
+    public byte[] getDigest() {
+
+        return digest;
+    }
+
+    public byte[] encode() {
+
+        byte[] b = new byte[ENCODED_LENGTH + (digest == null ? 0 : digest.length)];
+
+        int offset = Bytes.putLong(b, 0, size);
+        offset = Bytes.putInt(b, offset, chunkSize);
+        offset = Bytes.putInt(b, offset, chunkCount);
+
+        if (digest != null) {
+            System.arraycopy(digest, 0, b, offset, digest.length);
+        }
+
+        return b;
+    }
+
+    public static BlobManifest decode(byte[] b) {
+
+        if (b == null || b.length < ENCODED_LENGTH) {
+            throw new IllegalArgumentException("Invalid blob manifest");
+        }
+
+        byte[] digest = b.length > ENCODED_LENGTH ? Bytes.copy(b, ENCODED_LENGTH, b.length - ENCODED_LENGTH) : null;
+
+        return new BlobManifest(Bytes.toLong(b, 0), Bytes.toInt(b, Bytes.SIZEOF_LONG),
+                Bytes.toInt(b, Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT), digest);
+    }
+
+    public static byte[] qualifier(String uid) {
+
+        return Bytes.toBytes(uid + "#manifest");
+    }
+
+    public static byte[] digestQualifier(String uid) {
+
+        return Bytes.toBytes(uid + "#sha256");
+    }
+
+    public static byte[] chunkQualifier(String uid, int index) {
+
+        return Bytes.add(Bytes.toBytes(uid + '#'), Bytes.toBytes(index));
+    }
+}
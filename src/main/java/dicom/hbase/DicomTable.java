@@ -0,0 +1,71 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.ColumnFamilyDescriptorBuilder;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+/**
+ * Creates the {@code dicom} table, pre-split for the configured row key strategy.
+ */
+public class DicomTable {
+
+    public static final TableName NAME = TableName.valueOf("dicom");
+
+    public static final String FILE_FAMILY = "file";
+
+    /**
+     * Family of the {@link MetadataColumns}.
+     */
+    public static final String METADATA_FAMILY = "meta";
+
+    private DicomTable() {
+    }
+
+    /**
+     * Creates the table unless it exists. Returns whether it was created.
+     */
+    public static boolean create(Connection hbaseClient, RowKeyStrategy rowKeys, int regions) throws IOException {
+
+        return create(hbaseClient, rowKeys, regions, false);
+    }
+
+    /**
+     * @param metadataColumns also creates the {@link #METADATA_FAMILY} family, adding it to the
+     *                        table when the table exists without it
+     */
+    public static boolean create(Connection hbaseClient, RowKeyStrategy rowKeys, int regions,
+                                 boolean metadataColumns) throws IOException {
+
+        try (Admin admin = hbaseClient.getAdmin()) {
+            if (admin.tableExists(NAME)) {
+                if (metadataColumns && !admin.getDescriptor(NAME).hasColumnFamily(Bytes.toBytes(METADATA_FAMILY))) {
+                    admin.addColumnFamily(NAME, ColumnFamilyDescriptorBuilder.of(METADATA_FAMILY));
+                }
+
+                return false;
+            }
+
+            TableDescriptorBuilder builder = TableDescriptorBuilder.newBuilder(NAME)
+                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of(FILE_FAMILY));
+
+            if (metadataColumns) {
+                builder.setColumnFamily(ColumnFamilyDescriptorBuilder.of(METADATA_FAMILY));
+            }
+
+            byte[][] splits = regions > 1 ? rowKeys.splitKeys(regions) : null;
+
+            if (splits == null || splits.length == 0) {
+                admin.createTable(builder.build());
+            } else {
+                admin.createTable(builder.build(), splits);
+            }
+
+            return true;
+        }
+    }
+}
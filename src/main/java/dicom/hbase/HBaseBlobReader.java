@@ -0,0 +1,449 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reads the blobs written by {@link HBaseBlobWriter}.
+ * <p>
+ * For a chunked blob only the chunks covering the requested range are fetched, several chunks
+ * per request. A single-cell blob has to be fetched whole, since HBase cannot return part of a
+ * cell, and the range is copied out of it. Blobs stored with a {@link BlobEncoding} are decoded
+ * once read; they have to be read whole, since no part of them can be decoded alone.
+ * {@link HBaseBlobSink} therefore stores the blobs that bulk data locators point into unencoded
+ * and in small chunks, so reading a locator fetches little more than its range.
+ */
+public class HBaseBlobReader {
+
+    /**
+     * Largest blob that fits in a byte array.
+     */
+    static final int MAX_WHOLE_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Connection hbaseClient;
+
+    private final TableName tableName;
+
+    private final int prefetch;
+
+    public HBaseBlobReader(Connection hbaseClient, TableName tableName) {
+
+        this(hbaseClient, tableName, 4);
+    }
+
+    /**
+     * @param prefetch number of chunks fetched per request when streaming a chunked blob
+     */
+    public HBaseBlobReader(Connection hbaseClient, TableName tableName, int prefetch) {
+
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("prefetch < 1");
+        }
+
+        this.hbaseClient = hbaseClient;
+        this.tableName = tableName;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Opens a whole blob for reading. A chunked blob is streamed {@code prefetch} chunks at a time
+     * and checked against the digest of its manifest once fully read, unless it is encoded.
+     */
+    public InputStream open(byte[] row, byte[] family, String uid) throws IOException {
+
+        Table table = hbaseClient.getTable(tableName);
+
+        try {
+            byte[] manifestQualifier = BlobManifest.qualifier(uid);
+            Result result = table.get(new Get(row)
+                    .addColumn(family, manifestQualifier)
+                    .addColumn(family, BlobEncoding.qualifier(uid)));
+
+            byte[] manifest = result.getValue(family, manifestQualifier);
+
+            if (isEmpty(manifest) || isEncoded(result, family, uid)) {
+                table.close();
+                return new ByteArrayInputStream(readWhole(row, family, uid));
+            }
+
+            return new ChunkInputStream(table, row, family, uid, BlobManifest.decode(manifest));
+        } catch (IOException | RuntimeException e) {
+            table.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads whole blobs with as few round-trips as possible: one multi-get fetches every
+     * single-cell blob together with the manifests of the chunked ones, and a second multi-get
+     * fetches the chunks of all chunked blobs, {@code prefetch} chunks per {@link Get}, which the
+     * client sends to the region servers in parallel. Chunked blobs are checked against the digest
+     * of their manifest, and encoded blobs are decoded.
+     *
+     * @return the blobs in the order of {@code uids}, {@code null} for those not found
+     * @throws IOException also when a blob is larger than a byte array can hold, which only
+     *                     {@link #open} can read
+     */
+    public byte[][] readAll(List<byte[]> rows, byte[] family, List<String> uids) throws IOException {
+
+        if (rows.size() != uids.size()) {
+            throw new IllegalArgumentException("rows and uids differ in size");
+        }
+
+        byte[][] blobs = new byte[uids.size()][];
+
+        if (uids.isEmpty()) {
+            return blobs;
+        }
+
+        try (Table table = hbaseClient.getTable(tableName)) {
+            List<Get> gets = new ArrayList<>(uids.size());
+
+            for (int i = 0; i < uids.size(); i++) {
+                gets.add(new Get(rows.get(i))
+                        .addColumn(family, Bytes.toBytes(uids.get(i)))
+                        .addColumn(family, BlobManifest.qualifier(uids.get(i)))
+                        .addColumn(family, BlobEncoding.qualifier(uids.get(i))));
+            }
+
+            Result[] results = table.get(gets);
+
+            BlobManifest[] manifests = new BlobManifest[uids.size()];
+            BlobEncoding[] encodings = new BlobEncoding[uids.size()];
+            List<Get> chunkGets = new ArrayList<>();
+            List<int[]> chunkRanges = new ArrayList<>();
+
+            for (int i = 0; i < uids.size(); i++) {
+                String uid = uids.get(i);
+                byte[] manifest = results[i].getValue(family, BlobManifest.qualifier(uid));
+                byte[] encoding = results[i].getValue(family, BlobEncoding.qualifier(uid));
+
+                if (!isEmpty(encoding)) {
+                    encodings[i] = BlobEncoding.decode(encoding);
+                }
+
+                if (isEmpty(manifest)) {
+                    blobs[i] = results[i].getValue(family, Bytes.toBytes(uid));
+                    continue;
+                }
+
+                manifests[i] = BlobManifest.decode(manifest);
+
+                if (manifests[i].getSize() > MAX_WHOLE_SIZE) {
+                    throw new IOException(String.format("Blob %s of %d bytes is too large to read whole",
+                            uid, manifests[i].getSize()));
+                }
+
+                blobs[i] = new byte[(int) manifests[i].getSize()];
+
+                for (int first = 0; first < manifests[i].getChunkCount(); first += prefetch) {
+                    int last = Math.min(first + prefetch, manifests[i].getChunkCount());
+                    Get get = new Get(rows.get(i));
+
+                    for (int chunk = first; chunk < last; chunk++) {
+                        get.addColumn(family, BlobManifest.chunkQualifier(uid, chunk));
+                    }
+
+                    chunkGets.add(get);
+                    chunkRanges.add(new int[]{i, first, last});
+                }
+            }
+
+            Result[] chunkResults = chunkGets.isEmpty() ? new Result[0] : table.get(chunkGets);
+
+            for (int j = 0; j < chunkGets.size(); j++) {
+                int i = chunkRanges.get(j)[0];
+                String uid = uids.get(i);
+
+                for (int chunk = chunkRanges.get(j)[1]; chunk < chunkRanges.get(j)[2]; chunk++) {
+                    byte[] value = chunkResults[j].getValue(family, BlobManifest.chunkQualifier(uid, chunk));
+
+                    if (value == null) {
+                        throw new IOException(String.format("Chunk %d of blob %s missing", chunk, uid));
+                    }
+
+                    System.arraycopy(value, 0, blobs[i], (int) ((long) chunk * manifests[i].getChunkSize()), value.length);
+                }
+            }
+
+            for (int i = 0; i < uids.size(); i++) {
+                if (manifests[i] != null) {
+                    verify(uids.get(i), manifests[i], blobs[i]);
+                }
+
+                if (encodings[i] != null && blobs[i] != null) {
+                    blobs[i] = encodings[i].decode(uids.get(i), blobs[i]);
+                }
+            }
+        }
+
+        return blobs;
+    }
+
+    private static void verify(String uid, BlobManifest manifest, byte[] blob) throws IOException {
+
+        if (manifest.getDigest() == null) {
+            return;
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance(BlobManifest.DIGEST_ALGORITHM).digest(blob);
+
+            if (!MessageDigest.isEqual(digest, manifest.getDigest())) {
+                throw new IOException(String.format("Digest mismatch in blob %s", uid));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the range named by a bulk data locator, whose row is printed with
+     * {@link Bytes#toStringBinary(byte[])} and whose column is {@code family:uid}.
+     */
+    public byte[] read(String row, String column, long offset, int length) throws IOException {
+
+        int separator = column.indexOf(':');
+
+        if (separator < 0) {
+            throw new IllegalArgumentException("Invalid column: " + column);
+        }
+
+        return read(Bytes.toBytesBinary(row), Bytes.toBytes(column.substring(0, separator)),
+                column.substring(separator + 1), offset, length);
+    }
+
+    public byte[] read(byte[] row, byte[] family, String uid, long offset, int length) throws IOException {
+
+        if (length == 0) {
+            return new byte[0];
+        }
+
+        try (Table table = hbaseClient.getTable(tableName)) {
+            byte[] manifestQualifier = BlobManifest.qualifier(uid);
+
+            Result result = table.get(new Get(row)
+                    .addColumn(family, manifestQualifier)
+                    .addColumn(family, BlobEncoding.qualifier(uid)));
+
+            byte[] manifestValue = result.getValue(family, manifestQualifier);
+
+            if (isEmpty(manifestValue) || isEncoded(result, family, uid)) {
+                byte[] blob = readWhole(row, family, uid);
+
+                checkRange(uid, blob.length, offset, length);
+
+                return Bytes.copy(blob, (int) offset, length);
+            }
+
+            BlobManifest manifest = BlobManifest.decode(manifestValue);
+
+            checkRange(uid, manifest.getSize(), offset, length);
+
+            int first = (int) (offset / manifest.getChunkSize());
+            int last = (int) ((offset + length - 1) / manifest.getChunkSize());
+
+            Get get = new Get(row);
+            for (int i = first; i <= last; i++) {
+                get.addColumn(family, BlobManifest.chunkQualifier(uid, i));
+            }
+
+            Result chunks = table.get(get);
+
+            byte[] range = new byte[length];
+            int copied = 0;
+
+            for (int i = first; i <= last; i++) {
+                byte[] chunk = chunks.getValue(family, BlobManifest.chunkQualifier(uid, i));
+
+                if (chunk == null) {
+                    throw new IOException(String.format("Chunk %d of blob %s missing", i, uid));
+                }
+
+                int from = i == first ? (int) (offset - (long) first * manifest.getChunkSize()) : 0;
+                int count = Math.min(chunk.length - from, length - copied);
+
+                System.arraycopy(chunk, from, range, copied, count);
+                copied += count;
+            }
+
+            return range;
+        }
+    }
+
+    /**
+     * Reads a whole blob with {@link #readAll(List, byte[], List)}, which decodes it.
+     */
+    private byte[] readWhole(byte[] row, byte[] family, String uid) throws IOException {
+
+        byte[] blob = readAll(Collections.singletonList(row), family, Collections.singletonList(uid))[0];
+
+        if (blob == null) {
+            throw new FileNotFoundException(String.format("Blob %s not found", uid));
+        }
+
+        return blob;
+    }
+
+    private static boolean isEncoded(Result result, byte[] family, String uid) {
+
+        byte[] encoding = result.getValue(family, BlobEncoding.qualifier(uid));
+
+        return !isEmpty(encoding) && BlobEncoding.decode(encoding).isEncoded();
+    }
+
+    /**
+     * Tells whether a cell is missing or was emptied by a rewrite in the other layout.
+     */
+    private static boolean isEmpty(byte[] value) {
+
+        return value == null || value.length == 0;
+    }
+
+    private static void checkRange(String uid, long size, long offset, int length) {
+
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IllegalArgumentException(String.format(
+                    "Range %d+%d outside blob %s of %d bytes", offset, length, uid, size));
+        }
+    }
+
+    private class ChunkInputStream extends InputStream {
+
+        private final Table table;
+
+        private final byte[] row;
+
+        private final byte[] family;
+
+        private final String uid;
+
+        private final BlobManifest manifest;
+
+        private final MessageDigest digest;
+
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+        private int nextChunk = 0;
+
+        private byte[] chunk = null;
+
+        private int position = 0;
+
+        private boolean verified = false;
+
+        private ChunkInputStream(Table table, byte[] row, byte[] family, String uid, BlobManifest manifest) {
+
+            this.table = table;
+            this.row = row;
+            this.family = family;
+            this.uid = uid;
+            this.manifest = manifest;
+
+            try {
+                this.digest = manifest.getDigest() == null ? null : MessageDigest.getInstance(BlobManifest.DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!ensureChunk()) {
+                return -1;
+            }
+
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            table.close();
+        }
+
+        private boolean ensureChunk() throws IOException {
+
+            while (chunk == null || position == chunk.length) {
+                if (chunks.isEmpty() && !fetch()) {
+                    return false;
+                }
+
+                chunk = chunks.poll();
+                position = 0;
+
+                if (digest != null) {
+                    digest.update(chunk);
+                }
+            }
+
+            return true;
+        }
+
+        private boolean fetch() throws IOException {
+
+            if (nextChunk == manifest.getChunkCount()) {
+                if (!verified && digest != null && !MessageDigest.isEqual(digest.digest(), manifest.getDigest())) {
+                    throw new IOException(String.format("Digest mismatch in blob %s", uid));
+                }
+                verified = true;
+                return false;
+            }
+
+            int last = Math.min(nextChunk + prefetch, manifest.getChunkCount());
+
+            Get get = new Get(row);
+            for (int i = nextChunk; i < last; i++) {
+                get.addColumn(family, BlobManifest.chunkQualifier(uid, i));
+            }
+
+            Result result = table.get(get);
+
+            for (int i = nextChunk; i < last; i++) {
+                byte[] value = result.getValue(family, BlobManifest.chunkQualifier(uid, i));
+
+                if (value == null) {
+                    throw new IOException(String.format("Chunk %d of blob %s missing", i, uid));
+                }
+
+                chunks.add(value);
+            }
+
+            nextChunk = last;
+
+            return true;
+        }
+    }
+}
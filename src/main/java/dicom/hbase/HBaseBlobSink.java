@@ -0,0 +1,149 @@
+package dicom.hbase;
+
+import dicom.sink.BlobSink;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link BlobSink} over an {@link HBaseBlobWriter}, storing every blob in one column family.
+ * Digests are looked up in batches by a {@link BlobDigestLookup} when one is given.
+ * <p>
+ * With a {@link BlobCodecPolicy}, blobs held in heap are encoded by the codec it selects on the
+ * calling thread, and every blob is written with its {@link BlobEncoding}. Files streamed from
+ * disk are stored as they are.
+ * <p>
+ * Blobs with bulk data locators pointing into them are read by range, which neither an encoded
+ * blob nor a single cell can serve without reading the whole blob. They are never encoded, and
+ * are split into {@code locatedChunkSize} chunks once larger than {@code locatedChunkThreshold}
+ * bytes, rather than at the writer's threshold and chunk size, so a range read fetches little
+ * more than the range.
+ */
+public class HBaseBlobSink implements BlobSink {
+
+    private final HBaseBlobWriter writer;
+
+    private final BlobDigestLookup digestLookup;
+
+    private final byte[] family;
+
+    private final BlobCodecPolicy codecs;
+
+    private final int locatedChunkThreshold;
+
+    private final int locatedChunkSize;
+
+    private final LongAdder savedBytes = new LongAdder();
+
+    /**
+     * @param digestLookup lookup of stored digests, or {@code null} to report none
+     */
+    public HBaseBlobSink(HBaseBlobWriter writer, BlobDigestLookup digestLookup, String family) {
+
+        this(writer, digestLookup, family, null);
+    }
+
+    /**
+     * @param codecs choice of the codec of each blob, or {@code null} to store every blob as is
+     */
+    public HBaseBlobSink(HBaseBlobWriter writer, BlobDigestLookup digestLookup, String family,
+                         BlobCodecPolicy codecs) {
+
+        this(writer, digestLookup, family, codecs, 1024 * 1024, 1024 * 1024);
+    }
+
+    /**
+     * @param locatedChunkThreshold size above which blobs with bulk data locators are chunked
+     * @param locatedChunkSize      size of the chunks of blobs with bulk data locators
+     */
+    public HBaseBlobSink(HBaseBlobWriter writer, BlobDigestLookup digestLookup, String family,
+                         BlobCodecPolicy codecs, int locatedChunkThreshold, int locatedChunkSize) {
+
+        this.writer = writer;
+        this.digestLookup = digestLookup;
+        this.family = Bytes.toBytes(family);
+        this.codecs = codecs;
+        this.locatedChunkThreshold = locatedChunkThreshold;
+        this.locatedChunkSize = locatedChunkSize;
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) throws IOException {
+
+        return write(sopInstanceUid, row, data, digest, null, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest,
+                                         String modality, String transferSyntaxUid) throws IOException {
+
+        if (codecs == null) {
+            return writer.writeBlob(sopInstanceUid, row, family, data, digest);
+        }
+
+        BlobCodec codec = codecs.select(modality, transferSyntaxUid);
+        byte[] encoded = codec.encode(data);
+
+        if (!codecs.isWorthwhile(data.length, encoded.length)) {
+            codec = BlobCodec.NONE;
+            encoded = data;
+        }
+
+        savedBytes.add(data.length - encoded.length);
+
+        return writer.writeBlob(sopInstanceUid, row, family, encoded, digest,
+                new BlobEncoding(codec.getName(), data.length));
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException {
+
+        return writer.writeBlob(sopInstanceUid, row, family, file, digest);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeLocated(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) throws IOException {
+
+        return writer.writeBlob(sopInstanceUid, row, family, data, digest, null,
+                locatedChunkThreshold, locatedChunkSize);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeLocated(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException {
+
+        return writer.writeBlob(sopInstanceUid, row, family, file, digest, locatedChunkThreshold, locatedChunkSize);
+    }
+
+    /**
+     * Returns the number of bytes encoding saved so far.
+     */
+    public long getSavedBytes() {
+
+        return savedBytes.sum();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> findDigest(byte[] row, String sopInstanceUid) {
+
+        if (digestLookup == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return digestLookup.lookup(row, family, sopInstanceUid);
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        try {
+            if (digestLookup != null) {
+                digestLookup.close();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,664 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellBuilderFactory;
+import org.apache.hadoop.hbase.CellBuilderType;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes mutations to an HBase table through a shared {@link BufferedMutator}.
+ * <p>
+ * Mutations are sent as batched multi-puts whenever the write buffer fills up, every
+ * {@code flushMillis} and on {@link #close()}. At most {@code maxInFlightBytes} bytes of
+ * mutations, by their heap size, are buffered or being sent at once; further writes ask the flusher
+ * thread for a flush and block until it frees room. Each write returns a future that completes
+ * once its mutation was flushed, or fails with the error HBase reported for it. Mutations are only
+ * weakly referenced while pending, so their cells can be collected as soon as the mutator has sent
+ * them.
+ * <p>
+ * No lock is held while a mutation is handed to the mutator or while it flushes. Writes join the
+ * current generation; a flush closes it, waits for the writes of that generation still handing
+ * their mutation to the mutator, flushes the mutator and completes the generation. Writes made
+ * meanwhile join the next generation, so a lane never waits behind a flush unless it is out of
+ * room. Flushes are serialized among themselves only, since a mutator flush only waits for the
+ * mutations it sends itself.
+ * <p>
+ * Blobs larger than {@code chunkThreshold} bytes are split into {@code chunkSize} cells described
+ * by a {@link BlobManifest}, so no cell grows with the size of the file; a caller may give a
+ * blob its own threshold and chunk size, which the manifest records. Blobs encoded by a
+ * {@link BlobCodec} are chunked the same way, after encoding. The chunks of a blob held in heap
+ * are cells over slices of its array rather than copies. The manifest is written by the callback
+ * of the last chunk to be flushed, so neither the caller nor the flusher waits for the chunks, and
+ * a manifest, with the digest written with it, never describes chunks that failed. A flush also
+ * sends the manifests written by the callbacks of the chunks it completed.
+ * <p>
+ * A rewrite may change the layout of a blob. HBase cannot delete cells in a {@link Put}, so the
+ * Put of the single cell or the manifest empties the cells of the other layout instead, as well
+ * as the digest and encoding cells it does not set; readers take an empty cell as missing. Chunks
+ * of an older manifest are no longer reachable and are left in place.
+ */
+public class HBaseBlobWriter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HBaseBlobWriter.class);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final BufferedMutator mutator;
+
+    private final Semaphore inFlight;
+
+    private final int maxInFlightBytes;
+
+    private final ScheduledExecutorService flusher;
+
+    private final Map<PendingKey, Pending> pending = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    private Generation current = new Generation();
+
+    private final Object flushLock = new Object();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    /**
+     * Whether this thread is completing the futures of a flush, whose callbacks may write.
+     */
+    private final ThreadLocal<Boolean> completing = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Whether the callbacks of the flush in progress wrote; only touched under {@code flushLock}.
+     */
+    private boolean followUp = false;
+
+    private final int chunkThreshold;
+
+    private final int chunkSize;
+
+    public HBaseBlobWriter(Connection hbaseClient, TableName tableName,
+                           long writeBufferSize, long flushMillis, long maxInFlightBytes,
+                           int chunkThreshold, int chunkSize) throws IOException {
+
+        if (maxInFlightBytes < 1 || maxInFlightBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxInFlightBytes outside [1, 2^31)");
+        }
+
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize < 1");
+        }
+
+        this.chunkThreshold = chunkThreshold;
+        this.chunkSize = chunkSize;
+
+        BufferedMutatorParams params = new BufferedMutatorParams(tableName)
+                .writeBufferSize(writeBufferSize)
+                .listener(this::onException);
+
+        this.mutator = hbaseClient.getBufferedMutator(params);
+        this.maxInFlightBytes = (int) maxInFlightBytes;
+        this.inFlight = new Semaphore(this.maxInFlightBytes, true);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-hbase-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers a mutation. {@code sopInstanceUid} identifies the instance in failure reports. A
+     * mutation larger than {@code maxInFlightBytes} waits until nothing else is in flight.
+     * Mutations written by the callbacks of a flush, such as manifests, do not wait for room: the
+     * flush that would free it is the one running them.
+     */
+    public CompletableFuture<Void> write(String sopInstanceUid, Mutation mutation) throws IOException {
+
+        if (completing.get()) {
+            followUp = true;
+            return write(sopInstanceUid, mutation, 0);
+        }
+
+        int bytes = (int) Math.max(1, Math.min(mutation.heapSize(), maxInFlightBytes));
+
+        if (!inFlight.tryAcquire(bytes)) {
+            requestFlush();
+
+            try {
+                inFlight.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for HBase writes");
+            }
+        }
+
+        return write(sopInstanceUid, mutation, bytes);
+    }
+
+    private CompletableFuture<Void> write(String sopInstanceUid, Mutation mutation, int bytes) throws IOException {
+
+        PendingKey key = new PendingKey(mutation);
+        Pending p = new Pending(sopInstanceUid, bytes, key);
+        Generation generation;
+
+        // The generation is only flushed once this write handed its mutation to the mutator, so
+        // its future cannot complete before the mutation was sent.
+        synchronized (lock) {
+            generation = current;
+            generation.pending.add(p);
+            generation.writers++;
+            pending.put(key, p);
+        }
+
+        try {
+            mutator.mutate(mutation);
+        } catch (IOException | RuntimeException e) {
+            p.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (lock) {
+                if (--generation.writers == 0) {
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        return p.future;
+    }
+
+    /**
+     * Writes a blob held in heap: as a single cell when it is at most {@code chunkThreshold}
+     * bytes, as chunks plus a {@link BlobManifest} otherwise.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             byte[] data) throws IOException {
+
+        return writeBlob(sopInstanceUid, row, family, data, null);
+    }
+
+    /**
+     * Writes a blob as {@link #writeBlob(String, byte[], byte[], byte[])} does, along with the
+     * {@link BlobManifest#digestQualifier(String) digest cell} when {@code contentDigest} is given.
+     * The digest cell goes in the same mutation as the single cell or the manifest.
+     *
+     * The returned future fails when a chunk failed, in which case no manifest is written.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             byte[] data, byte[] contentDigest) throws IOException {
+
+        return writeBlob(sopInstanceUid, row, family, data, contentDigest, null);
+    }
+
+    /**
+     * Writes a blob as {@link #writeBlob(String, byte[], byte[], byte[], byte[])} does, where
+     * {@code data} holds the bytes encoded as {@code encoding} says when it is given. The
+     * {@link BlobEncoding} cell also goes in the mutation of the single cell or the manifest,
+     * while {@code contentDigest} stays the digest of the original bytes.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             byte[] data, byte[] contentDigest,
+                                             BlobEncoding encoding) throws IOException {
+
+        return writeBlob(sopInstanceUid, row, family, data, contentDigest, encoding, chunkThreshold, chunkSize);
+    }
+
+    /**
+     * Writes a blob as {@link #writeBlob(String, byte[], byte[], byte[], byte[], BlobEncoding)}
+     * does, split into {@code chunkLength} chunks when it is larger than {@code threshold} bytes,
+     * instead of the writer's {@code chunkSize} and {@code chunkThreshold}.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             byte[] data, byte[] contentDigest, BlobEncoding encoding,
+                                             int threshold, int chunkLength) throws IOException {
+
+        if (chunkLength < 1) {
+            throw new IllegalArgumentException("chunkLength < 1");
+        }
+
+        if (data.length <= threshold) {
+            Put put = new Put(row);
+            put.addColumn(family, Bytes.toBytes(sopInstanceUid), data);
+            put.addColumn(family, BlobManifest.qualifier(sopInstanceUid), EMPTY);
+            addDigest(put, family, sopInstanceUid, contentDigest);
+            addEncoding(put, family, sopInstanceUid, encoding);
+            return write(sopInstanceUid, put);
+        }
+
+        MessageDigest digest = newDigest();
+        int chunkCount = (int) (((long) data.length + chunkLength - 1) / chunkLength);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < chunkCount; i++) {
+            int from = i * chunkLength;
+            int length = Math.min(chunkLength, data.length - from);
+
+            digest.update(data, from, length);
+            futures.add(writeChunk(sopInstanceUid, row, family, i, data, from, length));
+        }
+
+        BlobManifest manifest = new BlobManifest(data.length, chunkLength, chunkCount, digest.digest());
+
+        return afterChunks(sopInstanceUid, futures,
+                () -> writeManifest(sopInstanceUid, row, family, manifest, contentDigest, encoding));
+    }
+
+    /**
+     * Streams a file into a blob, chunked when it is larger than {@code chunkThreshold} bytes.
+     * Only the chunks not yet flushed are held in heap.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             Path file) throws IOException {
+
+        return writeBlob(sopInstanceUid, row, family, file, null);
+    }
+
+    /**
+     * The returned future fails when a chunk failed, in which case no manifest is written.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             Path file, byte[] contentDigest) throws IOException {
+
+        return writeBlob(sopInstanceUid, row, family, file, contentDigest, chunkThreshold, chunkSize);
+    }
+
+    /**
+     * Streams a file into a blob, split into {@code chunkLength} chunks when it is larger than
+     * {@code threshold} bytes, instead of the writer's {@code chunkSize} and
+     * {@code chunkThreshold}.
+     */
+    public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                             Path file, byte[] contentDigest,
+                                             int threshold, int chunkLength) throws IOException {
+
+        if (chunkLength < 1) {
+            throw new IllegalArgumentException("chunkLength < 1");
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size <= threshold) {
+                return writeBlob(sopInstanceUid, row, family, readChunk(channel, file, (int) size), contentDigest,
+                        null, threshold, chunkLength);
+            }
+
+            MessageDigest digest = newDigest();
+            int chunkCount = (int) ((size + chunkLength - 1) / chunkLength);
+
+            for (int i = 0; i < chunkCount; i++) {
+                byte[] chunk = readChunk(channel, file, (int) Math.min(chunkLength, size - (long) i * chunkLength));
+
+                digest.update(chunk);
+                futures.add(writeChunk(sopInstanceUid, row, family, i, chunk, 0, chunk.length));
+            }
+
+            BlobManifest manifest = new BlobManifest(size, chunkLength, chunkCount, digest.digest());
+
+            return afterChunks(sopInstanceUid, futures,
+                    () -> writeManifest(sopInstanceUid, row, family, manifest, contentDigest, null));
+        }
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code data} from {@code offset} as chunk {@code index}, in a
+     * cell that refers to them instead of copying them.
+     */
+    private CompletableFuture<Void> writeChunk(String sopInstanceUid, byte[] row, byte[] family,
+                                               int index, byte[] data, int offset, int length) throws IOException {
+
+        Cell cell = CellBuilderFactory.create(CellBuilderType.SHALLOW_COPY)
+                .setRow(row)
+                .setFamily(family)
+                .setQualifier(BlobManifest.chunkQualifier(sopInstanceUid, index))
+                .setTimestamp(HConstants.LATEST_TIMESTAMP)
+                .setType(Cell.Type.Put)
+                .setValue(data, offset, length)
+                .build();
+
+        Put put = new Put(row);
+        put.add(cell);
+        return write(sopInstanceUid, put);
+    }
+
+    private CompletableFuture<Void> writeManifest(String sopInstanceUid, byte[] row, byte[] family,
+                                                  BlobManifest manifest, byte[] contentDigest,
+                                                  BlobEncoding encoding) throws IOException {
+
+        Put put = new Put(row);
+        put.addColumn(family, BlobManifest.qualifier(sopInstanceUid), manifest.encode());
+        put.addColumn(family, Bytes.toBytes(sopInstanceUid), EMPTY);
+        addDigest(put, family, sopInstanceUid, contentDigest);
+        addEncoding(put, family, sopInstanceUid, encoding);
+        return write(sopInstanceUid, put);
+    }
+
+    /**
+     * Writes the manifest of a blob once every chunk of it was flushed, from the callback of the
+     * last one, and returns the future of the manifest. Nothing waits for the chunks meanwhile.
+     */
+    private CompletableFuture<Void> afterChunks(String sopInstanceUid, List<CompletableFuture<Void>> chunks,
+                                                ManifestWrite manifest) {
+
+        CompletableFuture<Void> written = new CompletableFuture<>();
+
+        CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> {
+            if (error != null) {
+                written.completeExceptionally(new IOException(
+                        String.format("Failed to write the chunks of blob %s", sopInstanceUid),
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+                return;
+            }
+
+            try {
+                manifest.write().whenComplete((r, e) -> {
+                    if (e == null) {
+                        written.complete(null);
+                    } else {
+                        written.completeExceptionally(e);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                written.completeExceptionally(e);
+            }
+        });
+
+        return written;
+    }
+
+    private static void addDigest(Put put, byte[] family, String sopInstanceUid, byte[] contentDigest) {
+
+        put.addColumn(family, BlobManifest.digestQualifier(sopInstanceUid), contentDigest == null ? EMPTY : contentDigest);
+    }
+
+    private static void addEncoding(Put put, byte[] family, String sopInstanceUid, BlobEncoding encoding) {
+
+        put.addColumn(family, BlobEncoding.qualifier(sopInstanceUid), encoding == null ? EMPTY : encoding.encode());
+    }
+
+    private static byte[] readChunk(FileChannel channel, Path file, int length) throws IOException {
+
+        ByteBuffer chunk = ByteBuffer.allocate(length);
+
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk) < 0) {
+                throw new EOFException("Unexpected end of " + file);
+            }
+        }
+
+        return chunk.array();
+    }
+
+    private static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance(BlobManifest.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends every mutation buffered so far and completes their futures, then sends the mutations
+     * their callbacks wrote, such as the manifests of blobs whose last chunks it sent.
+     */
+    public void flush() throws IOException {
+
+        synchronized (flushLock) {
+            do {
+                followUp = false;
+                flushGeneration();
+            } while (followUp);
+        }
+    }
+
+    /**
+     * Flushes the current generation. Called under {@code flushLock}.
+     */
+    private void flushGeneration() throws IOException {
+
+        Generation generation;
+
+        synchronized (lock) {
+            generation = current;
+
+            if (generation.pending.isEmpty()) {
+                return;
+            }
+
+            current = new Generation();
+            awaitWriters(generation);
+        }
+
+        IOException error = null;
+
+        try {
+            mutator.flush();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (lock) {
+            for (Pending p : generation.pending) {
+                pending.remove(p.key);
+            }
+        }
+
+        for (Pending p : generation.pending) {
+            inFlight.release(p.bytes);
+        }
+
+        completing.set(true);
+
+        try {
+            for (Pending p : generation.pending) {
+                if (error == null) {
+                    p.future.complete(null);
+                } else {
+                    p.future.completeExceptionally(error);
+                }
+            }
+        } finally {
+            completing.set(false);
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Waits, holding {@code lock}, until every write of {@code generation} handed its mutation to
+     * the mutator. Not interruptible: a generation closed and left unflushed would never complete.
+     */
+    private void awaitWriters(Generation generation) {
+
+        boolean interrupted = false;
+
+        while (generation.writers > 0) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Has the flusher thread flush as soon as it can, unless a flush is already requested.
+     */
+    private void requestFlush() throws IOException {
+
+        if (!flushRequested.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            flusher.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            // closing: the flusher is gone
+            flushRequested.set(false);
+            flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        flusher.shutdown();
+
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+        } finally {
+            mutator.close();
+        }
+    }
+
+    private void flushQuietly() {
+
+        flushRequested.set(false);
+
+        try {
+            flush();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to flush HBase mutations", e);
+        }
+    }
+
+    private void onException(RetriesExhaustedWithDetailsException e, BufferedMutator mutator) {
+
+        for (int i = 0; i < e.getNumExceptions(); i++) {
+            Pending p;
+
+            synchronized (lock) {
+                p = pending.get(new PendingKey(e.getRow(i)));
+            }
+
+            if (p == null) {
+                LOGGER.error("HBase mutation failed on {}", e.getHostnamePort(i), e.getCause(i));
+            } else {
+                p.future.completeExceptionally(new IOException(
+                        String.format("HBase write failed for %s on %s", p.sopInstanceUid, e.getHostnamePort(i)),
+                        e.getCause(i)));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ManifestWrite {
+
+        CompletableFuture<Void> write() throws IOException;
+    }
+
+    private static class Pending {
+
+        private final String sopInstanceUid;
+
+        private final int bytes;
+
+        private final PendingKey key;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Pending(String sopInstanceUid, int bytes, PendingKey key) {
+
+            this.sopInstanceUid = sopInstanceUid;
+            this.bytes = bytes;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Writes made between two flushes.
+     */
+    private static class Generation {
+
+        private final List<Pending> pending = new ArrayList<>();
+
+        private int writers = 0;
+    }
+
+    /**
+     * Identity of a pending mutation that does not keep it reachable. A key whose mutation was
+     * collected only equals itself, which is enough to remove it once flushed.
+     */
+    private static class PendingKey extends WeakReference<Row> {
+
+        private final int hash;
+
+        private PendingKey(Row row) {
+
+            super(row);
+            this.hash = System.identityHashCode(row);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+
+            Row row = get();
+
+            return row != null && row == ((PendingKey) o).get();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package dicom.hbase;
+
+import dicom.json.TagValues;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.dcm4che3.data.Tag;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes selected attributes of an instance as cells of the {@code meta} family of its row, so
+ * scans can filter on them in the region servers.
+ * <p>
+ * Each attribute is a cell named after its JSON member, such as {@code t00189345}, holding its
+ * first value. Values are encoded so that comparing the bytes orders them as the values: a type
+ * byte, then for numbers the 8 bytes of the double with the sign bit flipped, and every bit for
+ * negatives, and for text its UTF-8 bytes. Integers, dates and times are numbers, as read by
+ * {@link TagValues}. Two more cells are written: {@code uid}, the SOP Instance UID, and
+ * {@code datetime}, the acquisition date and time as {@code yyyyMMddHHmmss}, taken from
+ * AcquisitionDateTime or else AcquisitionDate and AcquisitionTime, as the views of
+ * {@code src/config} do.
+ * <p>
+ * The cells only describe one instance per row, so they need a row key strategy that stores one.
+ */
+public class MetadataColumns {
+
+    public static final byte[] UID = Bytes.toBytes("uid");
+
+    public static final byte[] DATETIME = Bytes.toBytes("datetime");
+
+    /**
+     * Attributes the {@code datetime} cell is taken from.
+     */
+    public static final int[] DATETIME_TAGS = {Tag.AcquisitionDate, Tag.AcquisitionTime, Tag.AcquisitionDateTime};
+
+    private static final byte NUMBER = 'N';
+
+    private static final byte TEXT = 'S';
+
+    private static final long TIME_SCALE = 1000000L;
+
+    private MetadataColumns() {
+    }
+
+    /**
+     * Returns the cells of an instance, or {@code null} when no selected attribute had a value.
+     */
+    public static Put toPut(byte[] row, byte[] family, String sopInstanceUid, TagValues values) {
+
+        Put put = null;
+
+        for (int tag : values.getTags()) {
+            Object value = values.get(tag);
+
+            if (value != null) {
+                put = put != null ? put : new Put(row);
+                put.addColumn(family, Bytes.toBytes(TagValues.key(tag)), encode(value));
+            }
+        }
+
+        Long dateTime = dateTime(values);
+
+        if (dateTime != null) {
+            put = put != null ? put : new Put(row);
+            put.addColumn(family, DATETIME, encode(dateTime));
+        }
+
+        if (put != null) {
+            put.addColumn(family, UID, encode(sopInstanceUid));
+        }
+
+        return put;
+    }
+
+    /**
+     * Returns the acquisition date and time as {@code yyyyMMddHHmmss}, or {@code null} when it
+     * was not captured.
+     */
+    public static Long dateTime(TagValues values) {
+
+        Object dateTime = values.get(Tag.AcquisitionDateTime);
+
+        if (dateTime instanceof Long) {
+            return (Long) dateTime;
+        }
+
+        Object date = values.get(Tag.AcquisitionDate);
+        Object time = values.get(Tag.AcquisitionTime);
+
+        if (date instanceof Long && time instanceof Long) {
+            return (Long) date * TIME_SCALE + (Long) time;
+        }
+
+        return null;
+    }
+
+    /**
+     * Encodes a {@link Number} or a {@link String} so its bytes sort as the value.
+     */
+    public static byte[] encode(Object value) {
+
+        if (value instanceof Number) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+
+            bits ^= bits < 0 ? -1L : Long.MIN_VALUE;
+
+            byte[] b = new byte[1 + Bytes.SIZEOF_LONG];
+            b[0] = NUMBER;
+            Bytes.putLong(b, 1, bits);
+
+            return b;
+        }
+
+        byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] b = new byte[1 + text.length];
+        b[0] = TEXT;
+        System.arraycopy(text, 0, b, 1, text.length);
+
+        return b;
+    }
+
+    /**
+     * Decodes a value written by {@link #encode(Object)}: a {@link Double} or a {@link String}.
+     */
+    public static Object decode(byte[] b) {
+
+        if (b == null || b.length == 0) {
+            return null;
+        }
+
+        if (b[0] == NUMBER) {
+            long bits = Bytes.toLong(b, 1);
+
+            bits ^= bits < 0 ? Long.MIN_VALUE : -1L;
+
+            return Double.longBitsToDouble(bits);
+        }
+
+        return new String(b, 1, b.length - 1, StandardCharsets.UTF_8);
+    }
+}
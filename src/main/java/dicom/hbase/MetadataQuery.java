@@ -0,0 +1,205 @@
+package dicom.hbase;
+
+import dicom.json.TagValues;
+import org.apache.hadoop.hbase.CompareOperator;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Finds instances by the {@link MetadataColumns} of their rows, with every condition evaluated
+ * by the region servers. For example, the CT instances with a CTDIvol of at least 20 acquired in
+ * March 2018:
+ * <pre>
+ * new MetadataQuery(family)
+ *         .equal(Tag.Modality, "CT")
+ *         .atLeast(Tag.CTDIvol, 20)
+ *         .dateTimeBetween(20180301000000L, 20180331235959L)
+ *         .run(hbaseClient, DicomTable.NAME, 0);
+ * </pre>
+ * Rows lacking a column a condition names are left out. Only the metadata family is read, never
+ * the blobs.
+ */
+public class MetadataQuery {
+
+    private static final int SCAN_CACHING = 1000;
+
+    private final byte[] family;
+
+    private final List<Condition> conditions = new ArrayList<>();
+
+    public MetadataQuery(byte[] family) {
+
+        this.family = family;
+    }
+
+    public MetadataQuery equal(int tag, Object value) {
+
+        return where(TagValues.key(tag), CompareOperator.EQUAL, value);
+    }
+
+    public MetadataQuery atLeast(int tag, Number value) {
+
+        return where(TagValues.key(tag), CompareOperator.GREATER_OR_EQUAL, value);
+    }
+
+    public MetadataQuery atMost(int tag, Number value) {
+
+        return where(TagValues.key(tag), CompareOperator.LESS_OR_EQUAL, value);
+    }
+
+    public MetadataQuery between(int tag, Number from, Number to) {
+
+        return atLeast(tag, from).atMost(tag, to);
+    }
+
+    /**
+     * Keeps the instances acquired between two {@code yyyyMMddHHmmss} instants, both included.
+     */
+    public MetadataQuery dateTimeBetween(long from, long to) {
+
+        String qualifier = Bytes.toString(MetadataColumns.DATETIME);
+
+        return where(qualifier, CompareOperator.GREATER_OR_EQUAL, from)
+                .where(qualifier, CompareOperator.LESS_OR_EQUAL, to);
+    }
+
+    /**
+     * Adds a condition on any column: {@code column operator value}.
+     */
+    public MetadataQuery where(String qualifier, CompareOperator operator, Object value) {
+
+        conditions.add(new Condition(qualifier, operator, MetadataColumns.encode(value)));
+
+        return this;
+    }
+
+    /**
+     * Returns a scan of the metadata family filtered by the conditions.
+     */
+    public Scan toScan() {
+
+        List<Filter> filters = new ArrayList<>(conditions.size());
+
+        for (Condition condition : conditions) {
+            SingleColumnValueFilter filter = new SingleColumnValueFilter(family, condition.qualifier,
+                    condition.operator, new BinaryComparator(condition.value));
+
+            filter.setFilterIfMissing(true);
+            filter.setLatestVersionOnly(true);
+            filters.add(filter);
+        }
+
+        Scan scan = new Scan()
+                .addFamily(family)
+                .setCaching(SCAN_CACHING);
+
+        if (!filters.isEmpty()) {
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, filters));
+        }
+
+        return scan;
+    }
+
+    /**
+     * Runs the query and returns the decoded columns of each instance found, by qualifier, at
+     * most {@code limit} instances when it is positive.
+     */
+    public List<Map<String, Object>> run(Connection hbaseClient, TableName tableName, int limit) throws IOException {
+
+        List<Map<String, Object>> instances = new ArrayList<>();
+        Scan scan = toScan();
+
+        if (limit > 0) {
+            scan.setLimit(limit);
+        }
+
+        try (Table table = hbaseClient.getTable(tableName); ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result : scanner) {
+                Map<String, Object> columns = new LinkedHashMap<>();
+                NavigableMap<byte[], byte[]> cells = result.getFamilyMap(family);
+
+                for (Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+                    columns.put(Bytes.toString(cell.getKey()), MetadataColumns.decode(cell.getValue()));
+                }
+
+                instances.add(columns);
+            }
+        }
+
+        return instances;
+    }
+
+    /**
+     * Evaluates the conditions against the encoded columns of one instance, by qualifier, as the
+     * region servers would.
+     */
+    public boolean matches(Map<String, byte[]> columns) {
+
+        for (Condition condition : conditions) {
+            byte[] value = columns.get(condition.name);
+
+            if (value == null || !condition.test(value)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static class Condition {
+
+        private final String name;
+
+        private final byte[] qualifier;
+
+        private final CompareOperator operator;
+
+        private final byte[] value;
+
+        private Condition(String name, CompareOperator operator, byte[] value) {
+
+            this.name = name;
+            this.qualifier = Bytes.toBytes(name);
+            this.operator = operator;
+            this.value = value;
+        }
+
+        private boolean test(byte[] cell) {
+
+            int c = Bytes.compareTo(cell, value);
+
+            switch (operator) {
+                case LESS:
+                    return c < 0;
+                case LESS_OR_EQUAL:
+                    return c <= 0;
+                case EQUAL:
+                    return c == 0;
+                case NOT_EQUAL:
+                    return c != 0;
+                case GREATER_OR_EQUAL:
+                    return c >= 0;
+                case GREATER:
+                    return c > 0;
+                default:
+                    return true;
+            }
+        }
+    }
+}
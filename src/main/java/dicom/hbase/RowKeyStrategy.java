@@ -0,0 +1,191 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Builds the row keys of the {@code dicom} table.
+ * <ul>
+ * <li>{@code patient}: the patient ID, one row per patient and one column per instance. This is
+ * the original layout; large patients become huge rows and sequential IDs hit one region.</li>
+ * <li>{@code salted}: a one byte bucket derived from the patient ID, then
+ * {@code patientId 0x00 studyUid 0x00 sopInstanceUid}.</li>
+ * <li>{@code hashed}: the first four bytes of the MD5 of the patient ID, then the same
+ * composite.</li>
+ * </ul>
+ * Both composite layouts store one row per instance and keep every row of a patient under one
+ * prefix, so a patient is still read with a single prefix scan.
+ */
+public abstract class RowKeyStrategy {
+
+    private static final byte SEPARATOR = 0;
+
+    public abstract byte[] rowKey(String patientId, String studyInstanceUid, String sopInstanceUid);
+
+    /**
+     * Returns a scan over every row of a patient.
+     */
+    public abstract Scan patientScan(String patientId);
+
+    /**
+     * Returns the split keys that spread the key space evenly over {@code regions} regions, or
+     * {@code null} when the layout cannot be pre-split.
+     */
+    public abstract byte[][] splitKeys(int regions);
+
+    /**
+     * Tells whether every instance has a row of its own.
+     */
+    public boolean isRowPerInstance() {
+
+        return true;
+    }
+
+    public static RowKeyStrategy forName(String name, int buckets) {
+
+        switch (name) {
+            case "patient":
+                return new PatientKeys();
+            case "salted":
+                return new SaltedKeys(buckets);
+            case "hashed":
+                return new HashedKeys();
+            default:
+                throw new IllegalArgumentException("Unknown row key strategy: " + name);
+        }
+    }
+
+    private static byte[] composite(byte[] prefix, String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+        return Bytes.add(new byte[][]{
+                prefix,
+                Bytes.toBytes(patientId), new byte[]{SEPARATOR},
+                Bytes.toBytes(studyInstanceUid == null ? "" : studyInstanceUid), new byte[]{SEPARATOR},
+                Bytes.toBytes(sopInstanceUid)
+        });
+    }
+
+    private static Scan prefixScan(byte[] prefix, String patientId) {
+
+        return new Scan().setRowPrefixFilter(Bytes.add(prefix, Bytes.toBytes(patientId), new byte[]{SEPARATOR}));
+    }
+
+    private static class PatientKeys extends RowKeyStrategy {
+
+        @Override
+        public byte[] rowKey(String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+            return Bytes.toBytes(patientId);
+        }
+
+        @Override
+        public Scan patientScan(String patientId) {
+
+            byte[] row = Bytes.toBytes(patientId);
+
+            return new Scan().withStartRow(row).withStopRow(row, true);
+        }
+
+        @Override
+        public byte[][] splitKeys(int regions) {
+
+            return null;
+        }
+
+        @Override
+        public boolean isRowPerInstance() {
+
+            return false;
+        }
+    }
+
+    private static class SaltedKeys extends RowKeyStrategy {
+
+        private final int buckets;
+
+        private SaltedKeys(int buckets) {
+
+            if (buckets < 1 || buckets > 256) {
+                throw new IllegalArgumentException("buckets must be between 1 and 256");
+            }
+
+            this.buckets = buckets;
+        }
+
+        @Override
+        public byte[] rowKey(String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+            return composite(salt(patientId), patientId, studyInstanceUid, sopInstanceUid);
+        }
+
+        @Override
+        public Scan patientScan(String patientId) {
+
+            return prefixScan(salt(patientId), patientId);
+        }
+
+        /**
+         * Splits on bucket boundaries, so every region holds whole buckets.
+         */
+        @Override
+        public byte[][] splitKeys(int regions) {
+
+            int count = Math.min(regions, buckets);
+            byte[][] splits = new byte[count - 1][];
+
+            for (int i = 1; i < count; i++) {
+                splits[i - 1] = new byte[]{(byte) (i * buckets / count)};
+            }
+
+            return splits;
+        }
+
+        private byte[] salt(String patientId) {
+
+            return new byte[]{(byte) Math.floorMod(Arrays.hashCode(Bytes.toBytes(patientId)), buckets)};
+        }
+    }
+
+    private static class HashedKeys extends RowKeyStrategy {
+
+        private static final int HASH_LENGTH = 4;
+
+        @Override
+        public byte[] rowKey(String patientId, String studyInstanceUid, String sopInstanceUid) {
+
+            return composite(hash(patientId), patientId, studyInstanceUid, sopInstanceUid);
+        }
+
+        @Override
+        public Scan patientScan(String patientId) {
+
+            return prefixScan(hash(patientId), patientId);
+        }
+
+        @Override
+        public byte[][] splitKeys(int regions) {
+
+            byte[][] splits = new byte[regions - 1][];
+
+            for (int i = 1; i < regions; i++) {
+                splits[i - 1] = Bytes.toBytes((int) ((1L << 32) * i / regions));
+            }
+
+            return splits;
+        }
+
+        private static byte[] hash(String patientId) {
+
+            try {
+                byte[] md5 = MessageDigest.getInstance("MD5").digest(Bytes.toBytes(patientId));
+                return Arrays.copyOf(md5, HASH_LENGTH);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
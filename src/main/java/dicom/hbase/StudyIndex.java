@@ -0,0 +1,168 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.ColumnFamilyDescriptorBuilder;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.TableDescriptorBuilder;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.dcm4che3.data.Tag;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the {@code dicom_index} table, which lists the instances of every study and series.
+ * <p>
+ * Row keys start with a one byte key space:
+ * <ul>
+ * <li>{@code 0x01 study}: the study, with its patient ID and its instance and byte counters.</li>
+ * <li>{@code 0x01 study 0x00 series}: the series, with its counters.</li>
+ * <li>{@code 0x01 study 0x00 series 0x00 sop}: an instance, with its patient ID and size.</li>
+ * <li>{@code 0x02 series}: the study of the series.</li>
+ * </ul>
+ * Rows sort in hierarchy order, so a study, its series and their instances are read with one
+ * short prefix scan, and a series with a get of its pointer and a scan.
+ */
+public class StudyIndex {
+
+    public static final TableName NAME = TableName.valueOf("dicom_index");
+
+    public static final byte[] FAMILY = Bytes.toBytes("i");
+
+    /**
+     * Patient ID, on study and instance rows.
+     */
+    public static final byte[] PATIENT = Bytes.toBytes("p");
+
+    /**
+     * Size in bytes, on instance rows.
+     */
+    public static final byte[] SIZE = Bytes.toBytes("s");
+
+    /**
+     * Study Instance UID, on series pointers.
+     */
+    public static final byte[] STUDY = Bytes.toBytes("t");
+
+    /**
+     * Instance counter, on study and series rows.
+     */
+    public static final byte[] INSTANCES = Bytes.toBytes("n");
+
+    /**
+     * Byte counter, on study and series rows.
+     */
+    public static final byte[] BYTES = Bytes.toBytes("b");
+
+    /**
+     * Attributes every instance is indexed by, which the JSON projection must select.
+     */
+    public static final int[] TAGS = {Tag.SOPInstanceUID, Tag.PatientID, Tag.StudyInstanceUID, Tag.SeriesInstanceUID};
+
+    private static final byte HIERARCHY = 0x01;
+
+    private static final byte SERIES_POINTER = 0x02;
+
+    private static final byte SEPARATOR = 0x00;
+
+    private StudyIndex() {
+    }
+
+    public static byte[] studyRow(String study) {
+
+        return key(HIERARCHY, study);
+    }
+
+    public static byte[] seriesRow(String study, String series) {
+
+        return key(HIERARCHY, study, series);
+    }
+
+    public static byte[] instanceRow(String study, String series, String sopInstanceUid) {
+
+        return key(HIERARCHY, study, series, sopInstanceUid);
+    }
+
+    public static byte[] seriesPointerRow(String series) {
+
+        return key(SERIES_POINTER, series);
+    }
+
+    /**
+     * Returns the prefix of the series and instance rows of a study.
+     */
+    public static byte[] studyPrefix(String study) {
+
+        byte[] row = studyRow(study);
+
+        return ByteBuffer.allocate(row.length + 1).put(row).put(SEPARATOR).array();
+    }
+
+    /**
+     * Returns the prefix of the instance rows of a series.
+     */
+    public static byte[] seriesPrefix(String study, String series) {
+
+        byte[] row = seriesRow(study, series);
+
+        return ByteBuffer.allocate(row.length + 1).put(row).put(SEPARATOR).array();
+    }
+
+    /**
+     * Splits what follows a study prefix into series and SOP Instance UID; the latter is
+     * {@code null} for the series row itself.
+     */
+    static String[] parse(byte[] row, int prefixLength) {
+
+        for (int i = prefixLength; i < row.length; i++) {
+            if (row[i] == SEPARATOR) {
+                return new String[]{Bytes.toString(row, prefixLength, i - prefixLength),
+                        Bytes.toString(row, i + 1, row.length - i - 1)};
+            }
+        }
+
+        return new String[]{Bytes.toString(row, prefixLength, row.length - prefixLength), null};
+    }
+
+    /**
+     * Creates the table unless it exists. Returns whether it was created.
+     */
+    public static boolean create(Connection hbaseClient) throws IOException {
+
+        try (Admin admin = hbaseClient.getAdmin()) {
+            if (admin.tableExists(NAME)) {
+                return false;
+            }
+
+            admin.createTable(TableDescriptorBuilder.newBuilder(NAME)
+                    .setColumnFamily(ColumnFamilyDescriptorBuilder.of(FAMILY))
+                    .build());
+
+            return true;
+        }
+    }
+
+    private static byte[] key(byte space, String... parts) {
+
+        byte[][] bytes = new byte[parts.length][];
+        int length = 1 + parts.length - 1;
+
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = Bytes.toBytes(parts[i]);
+            length += bytes[i].length;
+        }
+
+        ByteBuffer key = ByteBuffer.allocate(length).put(space);
+
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                key.put(SEPARATOR);
+            }
+
+            key.put(bytes[i]);
+        }
+
+        return key.array();
+    }
+}
@@ -0,0 +1,153 @@
+package dicom.hbase;
+
+import dicom.retrieve.InstanceLocator;
+import dicom.retrieve.InstanceRef;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the instances of a study or series with one prefix scan of the {@link StudyIndex},
+ * instead of a query of the metadata documents. Lookups by SOP Instance UID and documents are
+ * left to {@code delegate}.
+ */
+public class StudyIndexLocator implements InstanceLocator {
+
+    private static final int SCAN_CACHING = 1000;
+
+    private final Connection hbaseClient;
+
+    private final InstanceLocator delegate;
+
+    public StudyIndexLocator(Connection hbaseClient, InstanceLocator delegate) {
+
+        this.hbaseClient = hbaseClient;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Map<String, InstanceRef> locate(Collection<String> sopInstanceUids) throws IOException {
+
+        return delegate.locate(sopInstanceUids);
+    }
+
+    @Override
+    public List<InstanceRef> findSeries(String seriesInstanceUid) throws IOException {
+
+        try (Table table = hbaseClient.getTable(StudyIndex.NAME)) {
+            Result pointer = table.get(new Get(StudyIndex.seriesPointerRow(seriesInstanceUid))
+                    .addColumn(StudyIndex.FAMILY, StudyIndex.STUDY));
+            byte[] study = pointer.getValue(StudyIndex.FAMILY, StudyIndex.STUDY);
+
+            if (study == null) {
+                return Collections.emptyList();
+            }
+
+            return scan(table, Bytes.toString(study), StudyIndex.seriesPrefix(Bytes.toString(study), seriesInstanceUid));
+        }
+    }
+
+    @Override
+    public List<InstanceRef> findStudy(String studyInstanceUid) throws IOException {
+
+        try (Table table = hbaseClient.getTable(StudyIndex.NAME)) {
+            return scan(table, studyInstanceUid, StudyIndex.studyPrefix(studyInstanceUid));
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> documents(Collection<String> sopInstanceUids) throws IOException {
+
+        return delegate.documents(sopInstanceUids);
+    }
+
+    /**
+     * Returns the number of instances and bytes of a study, or {@code null} when it is not
+     * indexed.
+     */
+    public long[] getStudyTotals(String studyInstanceUid) throws IOException {
+
+        return totals(StudyIndex.studyRow(studyInstanceUid));
+    }
+
+    /**
+     * Returns the number of instances and bytes of a series, or {@code null} when it is not
+     * indexed.
+     */
+    public long[] getSeriesTotals(String seriesInstanceUid) throws IOException {
+
+        try (Table table = hbaseClient.getTable(StudyIndex.NAME)) {
+            byte[] study = table.get(new Get(StudyIndex.seriesPointerRow(seriesInstanceUid))
+                    .addColumn(StudyIndex.FAMILY, StudyIndex.STUDY)).getValue(StudyIndex.FAMILY, StudyIndex.STUDY);
+
+            if (study == null) {
+                return null;
+            }
+
+            return totals(table, StudyIndex.seriesRow(Bytes.toString(study), seriesInstanceUid));
+        }
+    }
+
+    private long[] totals(byte[] row) throws IOException {
+
+        try (Table table = hbaseClient.getTable(StudyIndex.NAME)) {
+            return totals(table, row);
+        }
+    }
+
+    private static long[] totals(Table table, byte[] row) throws IOException {
+
+        Result result = table.get(new Get(row)
+                .addColumn(StudyIndex.FAMILY, StudyIndex.INSTANCES)
+                .addColumn(StudyIndex.FAMILY, StudyIndex.BYTES));
+        byte[] instances = result.getValue(StudyIndex.FAMILY, StudyIndex.INSTANCES);
+        byte[] bytes = result.getValue(StudyIndex.FAMILY, StudyIndex.BYTES);
+
+        if (instances == null) {
+            return null;
+        }
+
+        return new long[]{Bytes.toLong(instances), bytes == null ? 0 : Bytes.toLong(bytes)};
+    }
+
+    /**
+     * Lists the instance rows under a prefix of the rows of {@code study}, skipping series rows.
+     */
+    private static List<InstanceRef> scan(Table table, String study, byte[] prefix) throws IOException {
+
+        int studyPrefixLength = StudyIndex.studyPrefix(study).length;
+
+        Scan scan = new Scan()
+                .setRowPrefixFilter(prefix)
+                .addColumn(StudyIndex.FAMILY, StudyIndex.PATIENT)
+                .setCaching(SCAN_CACHING);
+
+        List<InstanceRef> refs = new ArrayList<>();
+
+        try (ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result : scanner) {
+                String[] uids = StudyIndex.parse(result.getRow(), studyPrefixLength);
+
+                if (uids[1] == null) {
+                    continue;
+                }
+
+                byte[] patient = result.getValue(StudyIndex.FAMILY, StudyIndex.PATIENT);
+                refs.add(new InstanceRef(uids[1], patient == null ? null : Bytes.toString(patient), study, uids[0]));
+            }
+        }
+
+        return refs;
+    }
+}
@@ -0,0 +1,191 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains the {@link StudyIndex} while ingesting.
+ * <p>
+ * Instance, series pointer and study rows are buffered in a {@link BufferedMutator} and sent as
+ * batched multi-puts; writing them again is harmless. Counter deltas are summed per study and
+ * series row in memory and sent every {@code flushMillis} as one batch of increments, so a study
+ * of a thousand instances costs a couple of increments rather than a thousand. The deltas of
+ * increments that fail are kept for the next flush; an increment applied by the server whose
+ * answer was lost is then counted twice, which is the lesser error.
+ */
+public class StudyIndexWriter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyIndexWriter.class);
+
+    private final Connection hbaseClient;
+
+    private final BufferedMutator mutator;
+
+    private final ScheduledExecutorService flusher;
+
+    private final Object lock = new Object();
+
+    private Map<ByteBuffer, long[]> deltas = new HashMap<>();
+
+    public StudyIndexWriter(Connection hbaseClient, long flushMillis) throws IOException {
+
+        this.hbaseClient = hbaseClient;
+        this.mutator = hbaseClient.getBufferedMutator(StudyIndex.NAME);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-index-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Indexes an instance. With {@code count} set, its study and series counters grow by one
+     * instance and {@code size} bytes; set it only when the instance was first stored.
+     */
+    public void add(String patientId, String studyInstanceUid, String seriesInstanceUid, String sopInstanceUid,
+                    long size, boolean count) throws IOException {
+
+        if (studyInstanceUid == null || seriesInstanceUid == null || sopInstanceUid == null) {
+            return;
+        }
+
+        byte[] patient = Bytes.toBytes(patientId == null ? "" : patientId);
+
+        List<Put> puts = new ArrayList<>(3);
+
+        puts.add(new Put(StudyIndex.instanceRow(studyInstanceUid, seriesInstanceUid, sopInstanceUid))
+                .addColumn(StudyIndex.FAMILY, StudyIndex.PATIENT, patient)
+                .addColumn(StudyIndex.FAMILY, StudyIndex.SIZE, Bytes.toBytes(size)));
+        puts.add(new Put(StudyIndex.seriesPointerRow(seriesInstanceUid))
+                .addColumn(StudyIndex.FAMILY, StudyIndex.STUDY, Bytes.toBytes(studyInstanceUid)));
+        puts.add(new Put(StudyIndex.studyRow(studyInstanceUid))
+                .addColumn(StudyIndex.FAMILY, StudyIndex.PATIENT, patient));
+
+        mutator.mutate(puts);
+
+        if (count) {
+            synchronized (lock) {
+                addDelta(StudyIndex.studyRow(studyInstanceUid), size);
+                addDelta(StudyIndex.seriesRow(studyInstanceUid, seriesInstanceUid), size);
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered rows and the counter deltas gathered since the last flush.
+     */
+    public void flush() throws IOException {
+
+        mutator.flush();
+
+        Map<ByteBuffer, long[]> flushed;
+
+        synchronized (lock) {
+            if (deltas.isEmpty()) {
+                return;
+            }
+
+            flushed = deltas;
+            deltas = new HashMap<>();
+        }
+
+        List<Map.Entry<ByteBuffer, long[]>> entries = new ArrayList<>(flushed.entrySet());
+        List<Increment> increments = new ArrayList<>(entries.size());
+
+        for (Map.Entry<ByteBuffer, long[]> entry : entries) {
+            increments.add(new Increment(entry.getKey().array())
+                    .addColumn(StudyIndex.FAMILY, StudyIndex.INSTANCES, entry.getValue()[0])
+                    .addColumn(StudyIndex.FAMILY, StudyIndex.BYTES, entry.getValue()[1]));
+        }
+
+        Object[] results = new Object[increments.size()];
+
+        try (Table table = hbaseClient.getTable(StudyIndex.NAME)) {
+            table.batch(increments, results);
+        } catch (InterruptedException e) {
+            restore(entries, results);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while incrementing the study index");
+        } catch (IOException | RuntimeException e) {
+            restore(entries, results);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        flusher.shutdown();
+
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            flush();
+        } finally {
+            mutator.close();
+        }
+    }
+
+    private void addDelta(byte[] row, long size) {
+
+        long[] delta = deltas.computeIfAbsent(ByteBuffer.wrap(row), k -> new long[2]);
+
+        delta[0]++;
+        delta[1] += size;
+    }
+
+    /**
+     * Adds the deltas of the increments without a result back to those of the next flush.
+     */
+    private void restore(List<Map.Entry<ByteBuffer, long[]>> entries, Object[] results) {
+
+        synchronized (lock) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (results[i] instanceof Result) {
+                    continue;
+                }
+
+                long[] failed = entries.get(i).getValue();
+                long[] delta = deltas.computeIfAbsent(entries.get(i).getKey(), k -> new long[2]);
+
+                delta[0] += failed[0];
+                delta[1] += failed[1];
+            }
+        }
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to flush the study index", e);
+        }
+    }
+}
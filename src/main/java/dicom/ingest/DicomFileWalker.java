@@ -0,0 +1,324 @@
+package dicom.ingest;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.media.DicomDirReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Walks a directory tree in parallel and hands every regular file to a {@link Visitor}.
+ * <p>
+ * Each directory is a task of a work-stealing pool and is read with a {@link DirectoryStream},
+ * so entries are streamed rather than loaded into an array, the tree depth does not grow the
+ * stack and an unreadable directory is logged and skipped. Subdirectories and batches of
+ * {@value #FILE_BATCH} files are forked as they are found, so even a single flat directory is
+ * visited by every thread. A directory has at most {@value #PENDING_PER_THREAD} forked tasks per
+ * thread outstanding: past that it waits for the oldest before listing further, so a huge flat
+ * directory is not queued whole. The visitor is called concurrently and may block, which
+ * throttles the walk.
+ * <p>
+ * Symbolic links are followed, but each directory is walked once, by its file key or real path,
+ * so a link loop or a directory reached through several links is not walked again.
+ * <p>
+ * With {@code expandDicomDir} set, a directory holding a {@code DICOMDIR} is not scanned: the
+ * files its records reference are visited instead. {@code DICOMDIR} files themselves are never
+ * visited.
+ */
+public class DicomFileWalker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomFileWalker.class);
+
+    public static final String DICOMDIR = "DICOMDIR";
+
+    private static final int FILE_BATCH = 256;
+
+    private static final int PENDING_PER_THREAD = 4;
+
+    private static final int PREAMBLE_LENGTH = 128;
+
+    private static final byte[] MAGIC = {'D', 'I', 'C', 'M'};
+
+    public interface Visitor {
+
+        void visit(Path file, BasicFileAttributes attributes) throws IOException;
+    }
+
+    private final int parallelism;
+
+    private final boolean expandDicomDir;
+
+    public DicomFileWalker(int parallelism, boolean expandDicomDir) {
+
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+
+        this.parallelism = parallelism;
+        this.expandDicomDir = expandDicomDir;
+    }
+
+    /**
+     * Visits the files under {@code root} and returns once all were visited. The first exception
+     * thrown by the visitor stops the walk and is rethrown.
+     */
+    public void walk(Path root, Visitor visitor) throws IOException {
+
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new DirectoryTask(root, visitor, failure, visited));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Tells whether the file starts with the 128 byte preamble and the {@code DICM} prefix of a
+     * DICOM file, reading only those 132 bytes.
+     */
+    public static boolean isDicom(Path file) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(PREAMBLE_LENGTH + MAGIC.length);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // fill
+            }
+        }
+
+        if (header.hasRemaining()) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header.get(PREAMBLE_LENGTH + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+
+        private final Path directory;
+
+        private final Visitor visitor;
+
+        private final AtomicReference<IOException> failure;
+
+        private final Set<Object> visited;
+
+        private final Deque<RecursiveAction> forked = new ArrayDeque<>();
+
+        private DirectoryTask(Path directory, Visitor visitor, AtomicReference<IOException> failure,
+                              Set<Object> visited) {
+
+            this.directory = directory;
+            this.visitor = visitor;
+            this.failure = failure;
+            this.visited = visited;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (failure.get() != null || !firstVisit()) {
+                return;
+            }
+
+            if (expandDicomDir) {
+                Path dicomDir = directory.resolve(DICOMDIR);
+
+                if (Files.isRegularFile(dicomDir) && expand(dicomDir)) {
+                    return;
+                }
+            }
+
+            List<Path> batch = new ArrayList<>(FILE_BATCH);
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (failure.get() != null) {
+                        break;
+                    }
+
+                    if (Files.isDirectory(entry)) {
+                        fork(new DirectoryTask(entry, visitor, failure, visited));
+                    } else if (!DICOMDIR.equals(entry.getFileName().toString())) {
+                        batch.add(entry);
+
+                        if (batch.size() == FILE_BATCH) {
+                            fork(new FilesTask(batch, visitor, failure));
+                            batch = new ArrayList<>(FILE_BATCH);
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                LOGGER.warn("Failed to list {}", directory, e);
+            }
+
+            new FilesTask(batch, visitor, failure).compute();
+
+            joinAll();
+        }
+
+        /**
+         * Records the directory as visited and tells whether it was not already.
+         */
+        private boolean firstVisit() {
+
+            Object key;
+
+            try {
+                key = Files.readAttributes(directory, BasicFileAttributes.class).fileKey();
+
+                if (key == null) {
+                    key = directory.toRealPath();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read the attributes of {}", directory, e);
+                return false;
+            }
+
+            if (!visited.add(key)) {
+                LOGGER.debug("Skipping {}, already walked through another link", directory);
+                return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Forks a task, first waiting for the oldest one when too many are outstanding.
+         */
+        private void fork(RecursiveAction task) {
+
+            if (forked.size() >= PENDING_PER_THREAD * parallelism) {
+                forked.poll().join();
+            }
+
+            task.fork();
+            forked.add(task);
+        }
+
+        private void joinAll() {
+
+            for (RecursiveAction task = forked.poll(); task != null; task = forked.poll()) {
+                task.join();
+            }
+        }
+
+        /**
+         * Visits the files referenced by a DICOMDIR. Returns {@code false} when it cannot be read,
+         * so the directory is scanned instead.
+         */
+        private boolean expand(Path dicomDir) {
+
+            List<Path> files = new ArrayList<>();
+
+            try (DicomDirReader reader = new DicomDirReader(dicomDir.toFile())) {
+                collect(reader, reader.readFirstRootDirectoryRecord(), files);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read {}, scanning its directory instead", dicomDir, e);
+                return false;
+            }
+
+            LOGGER.info("Expanded {} to {} file(s)", dicomDir, files.size());
+
+            for (int from = 0; from < files.size(); from += FILE_BATCH) {
+                fork(new FilesTask(files.subList(from, Math.min(files.size(), from + FILE_BATCH)), visitor, failure));
+            }
+
+            joinAll();
+
+            return true;
+        }
+
+        private void collect(DicomDirReader reader, Attributes record, List<Path> files) throws IOException {
+
+            for (; record != null; record = reader.readNextDirectoryRecord(record)) {
+                String[] fileId = record.getStrings(Tag.ReferencedFileID);
+
+                if (fileId != null && fileId.length > 0) {
+                    File file = reader.toFile(fileId);
+                    files.add(file.toPath());
+                }
+
+                collect(reader, reader.readLowerDirectoryRecord(record), files);
+            }
+        }
+    }
+
+    private static class FilesTask extends RecursiveAction {
+
+        private final List<Path> files;
+
+        private final Visitor visitor;
+
+        private final AtomicReference<IOException> failure;
+
+        private FilesTask(List<Path> files, Visitor visitor, AtomicReference<IOException> failure) {
+
+            this.files = files;
+            this.visitor = visitor;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+
+            for (Path file : files) {
+                if (failure.get() != null) {
+                    return;
+                }
+
+                BasicFileAttributes attributes;
+
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to read the attributes of {}", file, e);
+                    continue;
+                }
+
+                if (!attributes.isRegularFile()) {
+                    continue;
+                }
+
+                try {
+                    visitor.visit(file, attributes);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+}
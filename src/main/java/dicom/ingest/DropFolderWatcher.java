@@ -0,0 +1,409 @@
+package dicom.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches drop folders and hands every file to a {@link DicomFileWalker.Visitor} once it is
+ * completely written.
+ * <p>
+ * The folders and their subdirectories are registered with a {@link WatchService}; files created
+ * or modified there become candidates. The folders are walked with a {@link DicomFileWalker} on
+ * start and whenever the watch service overflowed. Every {@code rescanMillis} the watched
+ * directories are also checked, which catches what the watch service missed, such as files on a
+ * file system it cannot watch: only the directories whose modification time changed since they
+ * were last listed are listed again, so a rescan costs one stat per directory rather than a walk
+ * of the tree. A file rewritten in place does not change its directory, so only the watch service
+ * or a walk sees it.
+ * <p>
+ * A candidate is handed over once its size and modification time stayed the same for
+ * {@code settleMillis}, and is not handed over again, unless either changes, until it is
+ * {@link #done(Path) done}. Telling later repeats apart is left to the caller, such as through
+ * its {@link IngestManifest}.
+ */
+public class DropFolderWatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DropFolderWatcher.class);
+
+    /**
+     * Directories modified this recently are listed again by the next rescan, since a change
+     * within the resolution of their modification time would not move it.
+     */
+    private static final long RACY_MILLIS = 2000;
+
+    private final List<Path> folders;
+
+    private final DicomFileWalker walker;
+
+    private final long settleMillis;
+
+    private final long rescanMillis;
+
+    private final WatchService watchService;
+
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+
+    private final Set<Path> directories = new HashSet<>();
+
+    /**
+     * Modification time of each directory when it was last listed.
+     */
+    private final Map<Path, Long> listed = new HashMap<>();
+
+    private final Map<Path, Candidate> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * Size and modification time of the files handed over and not done yet.
+     */
+    private final Map<Path, Candidate> handed = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    private boolean walkNow = true;
+
+    public DropFolderWatcher(List<Path> folders, DicomFileWalker walker, long settleMillis, long rescanMillis)
+            throws IOException {
+
+        this.folders = folders;
+        this.walker = walker;
+        this.settleMillis = settleMillis;
+        this.rescanMillis = rescanMillis;
+
+        watchService = FileSystems.getDefault().newWatchService();
+
+        for (Path folder : folders) {
+            register(folder, false);
+        }
+    }
+
+    /**
+     * Watches until {@link #close()} is called. Starts with a scan of the folders, so files
+     * dropped while not watching are taken too.
+     */
+    public void run(DicomFileWalker.Visitor visitor) throws IOException {
+
+        long pollMillis = Math.max(10, Math.min(settleMillis, 1000));
+        long nextRescan = 0;
+
+        try {
+            while (running) {
+                if (System.currentTimeMillis() >= nextRescan) {
+                    rescan();
+                    nextRescan = System.currentTimeMillis() + rescanMillis;
+                }
+
+                WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+
+                while (key != null) {
+                    events(key);
+                    key = watchService.poll();
+                }
+
+                settle(visitor);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while watching");
+        }
+    }
+
+    /**
+     * Tells that the caller is done with a file handed over, ingested or not, so it is forgotten.
+     * Called from any thread.
+     */
+    public void done(Path file) {
+
+        handed.remove(file);
+    }
+
+    /**
+     * Stops {@link #run(DicomFileWalker.Visitor)}; files still settling are left for the next
+     * start.
+     */
+    @Override
+    public void close() throws IOException {
+
+        running = false;
+        watchService.close();
+    }
+
+    /**
+     * Registers a directory and its subdirectories; with {@code offerFiles} set, also offers the
+     * files already there, which were created before the directory could be watched.
+     */
+    private void register(Path directory, boolean offerFiles) throws IOException {
+
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+                watched.put(key, dir);
+                directories.add(dir);
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+
+                if (offerFiles && attributes.isRegularFile()) {
+                    offer(file, attributes);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+
+                LOGGER.warn("Failed to watch {}", file, e);
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void events(WatchKey key) {
+
+        Path directory = watched.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                LOGGER.warn("Missed file events, walking the folders");
+                walkNow = true;
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+                if (attributes.isDirectory()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        register(path, true);
+                    }
+                } else if (attributes.isRegularFile()) {
+                    offer(path, attributes);
+                }
+            } catch (IOException e) {
+                // removed or renamed before it could be read
+            }
+        }
+
+        if (!key.reset()) {
+            Path removed = watched.remove(key);
+
+            directories.remove(removed);
+            listed.remove(removed);
+        }
+    }
+
+    /**
+     * Walks the folders when due, otherwise lists the directories changed since they were last
+     * listed, and offers the files found.
+     */
+    private void rescan() throws IOException {
+
+        if (walkNow) {
+            walk();
+            return;
+        }
+
+        for (Path directory : new ArrayList<>(directories)) {
+            long modified;
+
+            try {
+                modified = Files.getLastModifiedTime(directory).toMillis();
+            } catch (IOException e) {
+                continue;
+            }
+
+            Long previous = listed.get(directory);
+
+            if (previous == null || previous != modified) {
+                list(directory);
+                markListed(directory, modified);
+            }
+        }
+    }
+
+    /**
+     * Walks the folders and offers every file. The modification times of the directories are
+     * taken first, so any change made during the walk has them listed again.
+     */
+    private void walk() throws IOException {
+
+        walkNow = false;
+
+        Map<Path, Long> modified = new HashMap<>();
+
+        for (Path directory : directories) {
+            try {
+                modified.put(directory, Files.getLastModifiedTime(directory).toMillis());
+            } catch (IOException e) {
+                // gone
+            }
+        }
+
+        for (Path folder : folders) {
+            walker.walk(folder, this::offer);
+        }
+
+        for (Map.Entry<Path, Long> entry : modified.entrySet()) {
+            markListed(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Offers the files of a directory and registers the subdirectories not watched yet.
+     */
+    private void list(Path directory) {
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    if (!directories.contains(entry)) {
+                        register(entry, true);
+                    }
+                } else if (attributes.isRegularFile()) {
+                    offer(entry, attributes);
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            LOGGER.warn("Failed to list {}", directory, e);
+        }
+    }
+
+    private void markListed(Path directory, long modified) {
+
+        if (System.currentTimeMillis() - modified < RACY_MILLIS) {
+            listed.remove(directory);
+        } else {
+            listed.put(directory, modified);
+        }
+    }
+
+    private void offer(Path file, BasicFileAttributes attributes) {
+
+        if (DicomFileWalker.DICOMDIR.equals(file.getFileName().toString())) {
+            return;
+        }
+
+        Candidate candidate = new Candidate(attributes, System.currentTimeMillis());
+        Candidate previous = handed.get(file);
+
+        if (previous == null || !previous.isSame(candidate)) {
+            candidates.putIfAbsent(file, candidate);
+        }
+    }
+
+    /**
+     * Hands over the candidates unchanged for settleMillis.
+     */
+    private void settle(DicomFileWalker.Visitor visitor) throws IOException {
+
+        if (walkNow) {
+            walk();
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Candidate> entry = it.next();
+            Candidate candidate = entry.getValue();
+
+            if (now - candidate.since < settleMillis) {
+                continue;
+            }
+
+            BasicFileAttributes attributes;
+
+            try {
+                attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                it.remove();
+                continue;
+            }
+
+            Candidate current = new Candidate(attributes, now);
+
+            if (!current.isSame(candidate)) {
+                entry.setValue(current);
+                continue;
+            }
+
+            it.remove();
+            handed.put(entry.getKey(), candidate);
+
+            try {
+                visitor.visit(entry.getKey(), attributes);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to hand over {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    private static class Candidate {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final long since;
+
+        private Candidate(BasicFileAttributes attributes, long since) {
+
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.since = since;
+        }
+
+        private boolean isSame(Candidate other) {
+
+            return size == other.size && lastModified == other.lastModified;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package dicom.ingest;
+
+import java.io.File;
+
+public class IngestFailure {
+
+    private final File file;
+
+    private final String stage;
+
+    private final Throwable cause;
+
+    public IngestFailure(File file, String stage, Throwable cause) {
+
+        this.file = file;
+        this.stage = stage;
+        this.cause = cause;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    public String getStage() {
+
+        return stage;
+    }
+
+    public Throwable getCause() {
+
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("%s [%s]: %s", file, stage, cause);
+    }
+}
@@ -0,0 +1,12 @@
+package dicom.ingest;
+
+import java.io.IOException;
+
+/**
+ * Submits files to the pipeline an {@link IngestRunner} opened for it.
+ */
+@FunctionalInterface
+public interface IngestJob {
+
+    void run(IngestPipeline pipeline) throws IOException;
+}
@@ -0,0 +1,12 @@
+package dicom.ingest;
+
+/**
+ * Notified once a file leaves the {@link IngestPipeline}, either ingested or failed. Called from
+ * the pipeline workers and write callbacks, so implementations must be thread safe.
+ */
+public interface IngestListener {
+
+    void ingested(IngestTask task) throws Exception;
+
+    void failed(IngestTask task, IngestFailure failure) throws Exception;
+}
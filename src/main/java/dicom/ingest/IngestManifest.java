@@ -0,0 +1,434 @@
+package dicom.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent record of the files already ingested, so a later run skips unchanged files and an
+ * interrupted run resumes where it stopped.
+ * <p>
+ * The manifest is an append-only log: every outcome appends one record holding the path, size,
+ * modification time, content digest, SOP Instance UID and outcome, framed by its length and a
+ * CRC32. The last record of a path wins. A torn record left by a crash is truncated on open, and
+ * the log is compacted on open once most of its records are superseded.
+ * <p>
+ * Records are buffered and written to the file every {@code flushRecords} records and every
+ * {@code flushMillis}, so a crashed process loses at most that many outcomes, whose files are
+ * then ingested again.
+ * <p>
+ * Only a 64 bit hash of each path is kept in heap, with its size, modification time and outcome,
+ * in an open-addressed table of primitive arrays. The hash is stored in the record, so loading
+ * reads the log sequentially without hashing or decoding any path.
+ */
+public class IngestManifest implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestManifest.class);
+
+    private static final int MAGIC = 0x44434D4D; // DCMM
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * key + size + lastModified + outcome
+     */
+    private static final int FIXED_LENGTH = 8 + 8 + 8 + 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    public enum Outcome {
+        INGESTED, FAILED
+    }
+
+    private final Path file;
+
+    private final int flushRecords;
+
+    private final ScheduledExecutorService flusher;
+
+    private long[] keys;
+
+    private long[] sizes;
+
+    private long[] lastModifieds;
+
+    private long[] offsets;
+
+    private byte[] outcomes;
+
+    private int count = 0;
+
+    private long records = 0;
+
+    private FileChannel channel;
+
+    private DataOutputStream out;
+
+    private long position;
+
+    private int unflushed = 0;
+
+    public IngestManifest(Path file) throws IOException {
+
+        this(file, 256, 1000);
+    }
+
+    /**
+     * @param flushRecords number of records buffered before they are written to the file
+     * @param flushMillis  time after which buffered records are written to the file
+     */
+    public IngestManifest(Path file, int flushRecords, long flushMillis) throws IOException {
+
+        this.file = file;
+        this.flushRecords = Math.max(1, flushRecords);
+
+        allocate(1024);
+
+        if (Files.exists(file)) {
+            load();
+
+            if (records > COMPACT_MIN_RECORDS && records > 2L * count) {
+                compact();
+            }
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        if (channel.size() < HEADER_LENGTH) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        }
+
+        position = channel.size();
+        channel.position(position);
+
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-manifest-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tells whether {@code path} was ingested with the given size and modification time.
+     */
+    public synchronized boolean isIngested(Path path, long size, long lastModified) {
+
+        int slot = find(key(path));
+
+        return keys[slot] != 0
+                && outcomes[slot] == Outcome.INGESTED.ordinal()
+                && sizes[slot] == size
+                && lastModifieds[slot] == lastModified;
+    }
+
+    public synchronized void record(Path path, long size, long lastModified, byte[] digest, String sopInstanceUid,
+                                    Outcome outcome) throws IOException {
+
+        long key = key(path);
+
+        byte[] pathBytes = path.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        byte[] sopBytes = sopInstanceUid == null ? new byte[0] : sopInstanceUid.getBytes(StandardCharsets.UTF_8);
+        byte[] digestBytes = digest == null ? new byte[0] : digest;
+
+        ByteBuffer body = ByteBuffer.allocate(FIXED_LENGTH + 1 + digestBytes.length
+                + 2 + sopBytes.length + 2 + pathBytes.length);
+
+        body.putLong(key).putLong(size).putLong(lastModified).put((byte) outcome.ordinal());
+        body.put((byte) digestBytes.length).put(digestBytes);
+        body.putShort((short) sopBytes.length).put(sopBytes);
+        body.putShort((short) pathBytes.length).put(pathBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.capacity());
+
+        out.writeInt(body.capacity());
+        out.write(body.array());
+        out.writeInt((int) crc.getValue());
+
+        put(key, size, lastModified, (byte) outcome.ordinal(), position);
+
+        position += 4 + body.capacity() + 4;
+        records++;
+
+        if (++unflushed >= flushRecords) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns the number of distinct files recorded.
+     */
+    public synchronized int size() {
+
+        return count;
+    }
+
+    public synchronized void flush() throws IOException {
+
+        if (out != null) {
+            out.flush();
+            unflushed = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        flusher.shutdown();
+
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        closeLog();
+    }
+
+    private synchronized void closeLog() throws IOException {
+
+        if (out != null) {
+            try {
+                out.flush();
+                channel.force(false);
+            } finally {
+                out.close();
+                out = null;
+                channel = null;
+            }
+        }
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to flush {}", file, e);
+        }
+    }
+
+    private void load() throws IOException {
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = scan(in, null);
+
+            if (end < in.size()) {
+                LOGGER.warn("Truncating {} bytes of torn records from {}", in.size() - end, file);
+                in.truncate(end);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest record of each path.
+     */
+    private void compact() throws IOException {
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE))) {
+            compacted.writeInt(MAGIC);
+            compacted.writeInt(VERSION);
+
+            scan(in, compacted);
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        LOGGER.info("Compacted {} from {} to {} records", file, records, count);
+
+        records = count;
+    }
+
+    /**
+     * Reads the records of the log into the index and returns the offset after the last valid
+     * one. With {@code compacted} set, the index is already loaded: the records still current are
+     * copied there and the index is updated to their new offsets.
+     */
+    private long scan(FileChannel in, DataOutputStream compacted) throws IOException {
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in.position(0)), BUFFER_SIZE));
+
+        long offset;
+
+        try {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw new IOException("Not an ingest manifest: " + file);
+            }
+            offset = HEADER_LENGTH;
+        } catch (EOFException e) {
+            return 0;
+        }
+
+        long target = HEADER_LENGTH;
+        byte[] body = new byte[256];
+        CRC32 crc = new CRC32();
+
+        while (true) {
+            int length;
+
+            try {
+                length = data.readInt();
+
+                if (length < FIXED_LENGTH) {
+                    return offset;
+                }
+
+                if (length > body.length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+
+                data.readFully(body, 0, length);
+
+                crc.reset();
+                crc.update(body, 0, length);
+
+                if (data.readInt() != (int) crc.getValue()) {
+                    return offset;
+                }
+            } catch (EOFException e) {
+                return offset;
+            }
+
+            ByteBuffer fixed = ByteBuffer.wrap(body, 0, FIXED_LENGTH);
+            long key = fixed.getLong();
+
+            if (compacted == null) {
+                put(key, fixed.getLong(), fixed.getLong(), fixed.get(), offset);
+                records++;
+            } else {
+                int slot = find(key);
+
+                if (offsets[slot] == offset) {
+                    compacted.writeInt(length);
+                    compacted.write(body, 0, length);
+                    compacted.writeInt((int) crc.getValue());
+
+                    offsets[slot] = target;
+                    target += 4 + length + 4;
+                }
+            }
+
+            offset += 4 + length + 4;
+        }
+    }
+
+    private void put(long key, long size, long lastModified, byte outcome, long offset) {
+
+        int slot = find(key);
+
+        if (keys[slot] == 0) {
+            if (2 * (count + 1) > keys.length) {
+                grow();
+                slot = find(key);
+            }
+
+            keys[slot] = key;
+            count++;
+        }
+
+        sizes[slot] = size;
+        lastModifieds[slot] = lastModified;
+        outcomes[slot] = outcome;
+        offsets[slot] = offset;
+    }
+
+    /**
+     * Returns the slot holding {@code key}, or the empty slot where it belongs.
+     */
+    private int find(long key) {
+
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void grow() {
+
+        long[] oldKeys = keys;
+        long[] oldSizes = sizes;
+        long[] oldLastModifieds = lastModifieds;
+        long[] oldOffsets = offsets;
+        byte[] oldOutcomes = outcomes;
+
+        allocate(oldKeys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+
+                keys[slot] = oldKeys[i];
+                sizes[slot] = oldSizes[i];
+                lastModifieds[slot] = oldLastModifieds[i];
+                offsets[slot] = oldOffsets[i];
+                outcomes[slot] = oldOutcomes[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+
+        keys = new long[capacity];
+        sizes = new long[capacity];
+        lastModifieds = new long[capacity];
+        offsets = new long[capacity];
+        outcomes = new byte[capacity];
+    }
+
+    /**
+     * Hashes the absolute path to the first 8 bytes of its MD5; 0 marks an empty slot, so it is
+     * never returned.
+     */
+    private static long key(Path path) {
+
+        byte[] bytes = path.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            long key = ByteBuffer.wrap(Arrays.copyOf(MessageDigest.getInstance("MD5").digest(bytes), 8)).getLong();
+
+            return key == 0 ? 1 : key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
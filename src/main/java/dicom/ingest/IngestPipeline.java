@@ -0,0 +1,406 @@
+package dicom.ingest;
+
+import dicom.metrics.IngestMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged ingest pipeline: read -> parse -> CouchDB write -> HBase write.
+ * <p>
+ * Stages are connected by bounded queues, so a slow stage blocks its producers instead of
+ * buffering files in heap. Read and parse run on a pool of workers, so they finish files out of
+ * order; a sequencer then hands parsed files to the write stages in the order they were
+ * submitted. The write stages run on single-threaded lanes selected by SOP Instance UID, so two
+ * files of the same instance reach each write stage in submission order and their writes are
+ * never interleaved. Files of different instances may finish in any order.
+ * <p>
+ * The sequencer holds the files parsed ahead of an earlier one still being read, at most
+ * {@code 2 * (queueSize + workers)} files; past that, {@link #submit} blocks.
+ */
+public class IngestPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<IngestTask> readQueue;
+
+    private final BlockingQueue<IngestTask> parseQueue;
+
+    private final Sequencer sequencer;
+
+    private final List<BlockingQueue<IngestTask>> couchDbLanes = new ArrayList<>();
+
+    private final List<BlockingQueue<IngestTask>> hbaseLanes = new ArrayList<>();
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final ConcurrentLinkedQueue<IngestFailure> failures = new ConcurrentLinkedQueue<>();
+
+    private final IngestListener listener;
+
+    private final IngestMetrics metrics = new IngestMetrics();
+
+    private final Object pendingLock = new Object();
+
+    private int pending = 0;
+
+    private volatile boolean running = true;
+
+    public IngestPipeline(int workers, int queueSize,
+                          IngestStage reader, IngestStage parser, IngestStage couchDbWriter, IngestStage hbaseWriter) {
+
+        this(workers, queueSize, reader, parser, couchDbWriter, hbaseWriter, null);
+    }
+
+    /**
+     * @param listener notified of every file leaving the pipeline, or {@code null}
+     */
+    public IngestPipeline(int workers, int queueSize,
+                          IngestStage reader, IngestStage parser, IngestStage couchDbWriter, IngestStage hbaseWriter,
+                          IngestListener listener) {
+
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers < 1");
+        }
+
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize < 1");
+        }
+
+        this.listener = listener;
+
+        readQueue = new ArrayBlockingQueue<>(queueSize);
+        parseQueue = new ArrayBlockingQueue<>(queueSize);
+        sequencer = new Sequencer(2 * (queueSize + workers));
+
+        for (int i = 0; i < workers; i++) {
+            couchDbLanes.add(new ArrayBlockingQueue<>(queueSize));
+            hbaseLanes.add(new ArrayBlockingQueue<>(queueSize));
+        }
+
+        metrics.addQueue("read", readQueue::size);
+        metrics.addQueue("parse", parseQueue::size);
+        metrics.addQueue("sequence", sequencer::size);
+        metrics.addQueue("couchdb", () -> depth(couchDbLanes));
+        metrics.addQueue("hbase", () -> depth(hbaseLanes));
+
+        for (int i = 0; i < workers; i++) {
+            start("read-" + i, "read", reader, readQueue, true, parseQueue::put);
+            start("parse-" + i, "parse", parser, parseQueue, true, sequencer::release);
+        }
+
+        for (int i = 0; i < workers; i++) {
+            start("couchdb-" + i, "couchdb", couchDbWriter, couchDbLanes.get(i), false,
+                    task -> hbaseLanes.get(lane(task)).put(task));
+            start("hbase-" + i, "hbase", hbaseWriter, hbaseLanes.get(i), false, null);
+        }
+    }
+
+    public void submit(File file) throws InterruptedIOException {
+
+        synchronized (pendingLock) {
+            pending++;
+        }
+
+        metrics.submitted();
+
+        IngestTask task = new IngestTask(file);
+
+        try {
+            sequencer.admit(task);
+        } catch (InterruptedException e) {
+            done();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while submitting " + file);
+        }
+
+        try {
+            readQueue.put(task);
+        } catch (InterruptedException e) {
+            done();
+
+            try {
+                sequencer.skip(task);
+            } catch (InterruptedException ie) {
+                // interrupted again, the task it would have routed stays held
+            }
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while submitting " + file);
+        }
+    }
+
+    /**
+     * Waits for every file submitted so far to leave the pipeline, leaving the workers running.
+     */
+    public void awaitIdle() throws InterruptedIOException {
+
+        try {
+            synchronized (pendingLock) {
+                while (pending > 0) {
+                    pendingLock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        }
+    }
+
+    /**
+     * Waits for every submitted file to leave the pipeline, stops the workers and returns the
+     * files that failed, in the order the failures happened.
+     */
+    public List<IngestFailure> finish() throws InterruptedIOException {
+
+        try {
+            awaitIdle();
+        } finally {
+            running = false;
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping the pipeline");
+            }
+        }
+
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Returns the metrics of this pipeline: stage and write latencies, queue depths and file
+     * counters.
+     */
+    public IngestMetrics getMetrics() {
+
+        return metrics;
+    }
+
+    private static int depth(List<BlockingQueue<IngestTask>> lanes) {
+
+        int depth = 0;
+
+        for (BlockingQueue<IngestTask> lane : lanes) {
+            depth += lane.size();
+        }
+
+        return depth;
+    }
+
+    private int lane(IngestTask task) {
+
+        return Math.floorMod(Objects.hashCode(task.getSopInstanceUid()), couchDbLanes.size());
+    }
+
+    /**
+     * @param beforeSequencer whether tasks of this stage have not passed the sequencer yet, so a
+     *                        failed one must be skipped there
+     */
+    private void start(String name, String stageName, IngestStage stage, BlockingQueue<IngestTask> input,
+                       boolean beforeSequencer, Router next) {
+
+        Thread thread = new Thread(() -> work(stageName, stage, input, beforeSequencer, next), "dicom-" + name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void work(String stageName, IngestStage stage, BlockingQueue<IngestTask> input, boolean beforeSequencer,
+                      Router next) {
+
+        try {
+            while (running) {
+                IngestTask task = input.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (task == null) {
+                    continue;
+                }
+
+                long start = System.nanoTime();
+
+                try {
+                    stage.process(task);
+                } catch (Throwable e) {
+                    fail(task, stageName, e);
+
+                    if (beforeSequencer) {
+                        sequencer.skip(task);
+                    }
+
+                    continue;
+                } finally {
+                    metrics.recordStage(stageName, System.nanoTime() - start);
+                }
+
+                CompletableFuture<?> deferred = task.getDeferred().get(stageName);
+
+                if (deferred != null) {
+                    deferred.whenComplete((result, error) -> {
+                        if (error == null) {
+                            metrics.recordWrite(stageName, System.nanoTime() - start);
+                        }
+                    });
+                }
+
+                if (next == null) {
+                    complete(task);
+                } else {
+                    next.route(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void complete(IngestTask task) {
+
+        Map<String, CompletableFuture<?>> deferred = task.getDeferred();
+
+        CompletableFuture.allOf(deferred.values().toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> {
+            for (Map.Entry<String, CompletableFuture<?>> entry : deferred.entrySet()) {
+                try {
+                    entry.getValue().join();
+                } catch (CompletionException | CancellationException e) {
+                    fail(task, entry.getKey(), e.getCause() != null ? e.getCause() : e);
+                    return;
+                }
+            }
+
+            metrics.ingested(task.getSize(), task.getAttributeCount());
+
+            if (listener != null) {
+                try {
+                    listener.ingested(task);
+                } catch (Exception e) {
+                    LOGGER.error("Listener failed on {}", task.getFile(), e);
+                }
+            }
+
+            done();
+        });
+    }
+
+    private void fail(IngestTask task, String stageName, Throwable e) {
+
+        LOGGER.error("Failed to {} {}", stageName, task.getFile(), e);
+
+        IngestFailure failure = new IngestFailure(task.getFile(), stageName, e);
+        failures.add(failure);
+        metrics.failed(stageName);
+
+        if (listener != null) {
+            try {
+                listener.failed(task, failure);
+            } catch (Exception le) {
+                LOGGER.error("Listener failed on {}", task.getFile(), le);
+            }
+        }
+
+        done();
+    }
+
+    private void done() {
+
+        synchronized (pendingLock) {
+            pending--;
+            if (pending == 0) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Router {
+
+        void route(IngestTask task) throws InterruptedException;
+    }
+
+    /**
+     * Numbers tasks as they are submitted and passes them on to the write lanes in that order,
+     * holding those that arrive ahead of an earlier one. Failed tasks are skipped so they do not
+     * hold back the ones behind them.
+     */
+    private final class Sequencer {
+
+        private final IngestTask skipped = new IngestTask(null);
+
+        private final Semaphore window;
+
+        private final Map<Long, IngestTask> arrived = new ConcurrentHashMap<>();
+
+        private final AtomicLong submitted = new AtomicLong();
+
+        private long next = 0;
+
+        private Sequencer(int window) {
+
+            this.window = new Semaphore(window);
+        }
+
+        /**
+         * Numbers {@code task}, waiting while the sequencer could have to hold more tasks than
+         * its window.
+         */
+        private void admit(IngestTask task) throws InterruptedException {
+
+            window.acquire();
+            task.setSequence(submitted.getAndIncrement());
+        }
+
+        private void release(IngestTask task) throws InterruptedException {
+
+            arrive(task.getSequence(), task);
+        }
+
+        private void skip(IngestTask task) throws InterruptedException {
+
+            arrive(task.getSequence(), skipped);
+        }
+
+        private int size() {
+
+            return arrived.size();
+        }
+
+        /**
+         * Routes every task that is next in line. Holds the lock while a lane is full, which
+         * blocks the parse workers behind it as a full queue would.
+         */
+        private synchronized void arrive(long sequence, IngestTask task) throws InterruptedException {
+
+            arrived.put(sequence, task);
+
+            for (IngestTask ready = arrived.get(next); ready != null; ready = arrived.get(next)) {
+                if (ready != skipped) {
+                    couchDbLanes.get(lane(ready)).put(ready);
+                }
+
+                arrived.remove(next++);
+                window.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package dicom.ingest;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * Runs {@link IngestJob}s over the configured stores, for the modes that decide which files to
+ * ingest and when.
+ */
+public interface IngestRunner {
+
+    /**
+     * Opens the stores, runs the job against a new pipeline, waits until every file it submitted
+     * left the pipeline and closes the stores. {@code listener}, unless {@code null}, is told of
+     * every outcome once the manifest recorded it.
+     */
+    List<IngestFailure> ingest(IngestJob job, IngestListener listener) throws IOException;
+
+    /**
+     * Submits a file unless the manifest has it unchanged or it is not a DICOM file, and tells
+     * whether it was submitted.
+     */
+    boolean submit(IngestPipeline pipeline, Path file, BasicFileAttributes attributes) throws IOException;
+}
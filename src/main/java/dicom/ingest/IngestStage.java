@@ -0,0 +1,7 @@
+package dicom.ingest;
+
+@FunctionalInterface
+public interface IngestStage {
+
+    void process(IngestTask task) throws Exception;
+}
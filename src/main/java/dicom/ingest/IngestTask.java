@@ -0,0 +1,288 @@
+package dicom.ingest;
+
+import dicom.json.TagValues;
+import dicom.rollup.RollupInput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public class IngestTask {
+
+    private final File file;
+
+    private long sequence;
+
+    private long size;
+
+    private long lastModified;
+
+    private byte[] digest;
+
+    private CompletableFuture<byte[]> storedDigest;
+
+    private int attributeCount;
+
+    private boolean located;
+
+    private byte[] data;
+
+    private Source source;
+
+    private byte[] json;
+
+    private String sopInstanceUid;
+
+    private String patientId;
+
+    private String studyInstanceUid;
+
+    private String seriesInstanceUid;
+
+    private String modality;
+
+    private String transferSyntaxUid;
+
+    private TagValues tagValues;
+
+    private RollupInput rollupInput;
+
+    private final Map<String, CompletableFuture<?>> deferred = new LinkedHashMap<>();
+
+    public IngestTask(File file) {
+
+        this.file = file;
+    }
+
+    public File getFile() {
+
+        return file;
+    }
+
+    /**
+     * Returns the position of this task in the order files were submitted to the pipeline.
+     */
+    long getSequence() {
+
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+
+        this.sequence = sequence;
+    }
+
+    public long getSize() {
+
+        return size;
+    }
+
+    public void setSize(long size) {
+
+        this.size = size;
+    }
+
+    public long getLastModified() {
+
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the SHA-256 of the file content, or {@code null} when it was not computed.
+     */
+    public byte[] getDigest() {
+
+        return digest;
+    }
+
+    public void setDigest(byte[] digest) {
+
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the pending lookup of the digest already stored for this instance, or {@code null}
+     * when none was made.
+     */
+    public CompletableFuture<byte[]> getStoredDigest() {
+
+        return storedDigest;
+    }
+
+    public void setStoredDigest(CompletableFuture<byte[]> storedDigest) {
+
+        this.storedDigest = storedDigest;
+    }
+
+    public int getAttributeCount() {
+
+        return attributeCount;
+    }
+
+    public void setAttributeCount(int attributeCount) {
+
+        this.attributeCount = attributeCount;
+    }
+
+    /**
+     * Tells whether the document points into the file with bulk data locators.
+     */
+    public boolean isLocated() {
+
+        return located;
+    }
+
+    public void setLocated(boolean located) {
+
+        this.located = located;
+    }
+
+    public byte[] getData() {
+
+        return data;
+    }
+
+    public void setData(byte[] data) {
+
+        this.data = data;
+    }
+
+    /**
+     * Returns where the content is read from when it is neither in {@link #getData() heap} nor in
+     * a file, or {@code null}.
+     */
+    public Source getSource() {
+
+        return source;
+    }
+
+    public void setSource(Source source) {
+
+        this.source = source;
+    }
+
+    public byte[] getJson() {
+
+        return json;
+    }
+
+    public void setJson(byte[] json) {
+
+        this.json = json;
+    }
+
+    public String getSopInstanceUid() {
+
+        return sopInstanceUid;
+    }
+
+    public void setSopInstanceUid(String sopInstanceUid) {
+
+        this.sopInstanceUid = sopInstanceUid;
+    }
+
+    public String getPatientId() {
+
+        return patientId;
+    }
+
+    public void setPatientId(String patientId) {
+
+        this.patientId = patientId;
+    }
+
+    public String getStudyInstanceUid() {
+
+        return studyInstanceUid;
+    }
+
+    public void setStudyInstanceUid(String studyInstanceUid) {
+
+        this.studyInstanceUid = studyInstanceUid;
+    }
+
+    public String getSeriesInstanceUid() {
+
+        return seriesInstanceUid;
+    }
+
+    public void setSeriesInstanceUid(String seriesInstanceUid) {
+
+        this.seriesInstanceUid = seriesInstanceUid;
+    }
+
+    public String getModality() {
+
+        return modality;
+    }
+
+    public void setModality(String modality) {
+
+        this.modality = modality;
+    }
+
+    /**
+     * Returns the transfer syntax the dataset of the file is encoded in, or {@code null} when it
+     * was not parsed.
+     */
+    public String getTransferSyntaxUid() {
+
+        return transferSyntaxUid;
+    }
+
+    public void setTransferSyntaxUid(String transferSyntaxUid) {
+
+        this.transferSyntaxUid = transferSyntaxUid;
+    }
+
+    public TagValues getTagValues() {
+
+        return tagValues;
+    }
+
+    public void setTagValues(TagValues tagValues) {
+
+        this.tagValues = tagValues;
+    }
+
+    public RollupInput getRollupInput() {
+
+        return rollupInput;
+    }
+
+    public void setRollupInput(RollupInput rollupInput) {
+
+        this.rollupInput = rollupInput;
+    }
+
+    /**
+     * Registers an asynchronous write made by {@code stage}. The file only counts as ingested once
+     * every deferred write completed; a failed one is reported against its stage.
+     */
+    public void defer(String stage, CompletableFuture<?> future) {
+
+        deferred.put(stage, future);
+    }
+
+    public Map<String, CompletableFuture<?>> getDeferred() {
+
+        return deferred;
+    }
+
+    /**
+     * Content of a task read from elsewhere than a file, such as a blob streamed back from HBase.
+     * Each call opens the content anew.
+     */
+    public interface Source {
+
+        InputStream open() throws IOException;
+    }
+}
@@ -0,0 +1,491 @@
+package dicom.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Ledger shared by the processes of a sharded ingest, each of which owns some of the
+ * {@code shards} shards of the files.
+ * <p>
+ * The ledger is a text file every process appends to without locking: each record is one line,
+ * written with a single write on a channel opened for appending, so records of concurrent writers
+ * never interleave on a local file system. Appends are not atomic on NFS, so the processes sharing
+ * a ledger must run on one node, or on a file system that does guarantee atomic appends. A record
+ * holds its type, the shard as {@code index/count}, the owner, the time it was written, for
+ * information only, and for {@code OWN} and {@code DONE} one more field, followed by the CRC32 of
+ * all that; a torn or corrupt line is skipped.
+ * <ul>
+ * <li>{@code OWN}: claims the shard, naming the offset of the last record of the owner the
+ * claimant saw, or -1. It wins when the shard has no owner, when its owner finished it, or when
+ * the owner appended nothing since that record; otherwise it is ignored.</li>
+ * <li>{@code BEAT}: heartbeat of the owner.</li>
+ * <li>{@code DONE}: a file of the shard was ingested, with its path.</li>
+ * <li>{@code END}: the owner went through every file of the shard.</li>
+ * </ul>
+ * Every process replays the records in file order, so all agree on who owns each shard, and no
+ * clocks are compared: a process only claims a shard owned by another once it has seen no record
+ * of that owner for {@code staleMillis}, measured on its own clock, and the claim loses if the
+ * owner beat in the meantime. A process that stops beating loses its shards to the first process
+ * claiming them, which skips the files already done. Only files in flight when the owner crashed
+ * are uploaded again. A shard nobody claimed is abandoned once {@code staleMillis} passed since
+ * the ledger was opened, so the shards of a process that never started are ingested too.
+ * <p>
+ * Only a 64 bit hash of the paths done is kept in heap.
+ */
+public class ShardLedger implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardLedger.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Tells apart the ledgers opened by one process.
+     */
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    private final Path file;
+
+    private final int shards;
+
+    private final long staleMillis;
+
+    private final String owner;
+
+    private final FileChannel appender;
+
+    private final FileChannel reader;
+
+    private final String[] owners;
+
+    /**
+     * Offset of the last record of the owner of each shard, -1 when it has none.
+     */
+    private final long[] lastRecords;
+
+    /**
+     * {@link System#nanoTime()} when the last record of the owner of each shard was read, or when
+     * the ledger was opened for a shard without owner.
+     */
+    private final long[] seen;
+
+    private final boolean[] finished;
+
+    private final PathSet done = new PathSet();
+
+    private long position = 0;
+
+    public ShardLedger(Path file, int shards, long staleMillis) throws IOException {
+
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards < 1");
+        }
+
+        this.file = file;
+        this.shards = shards;
+        this.staleMillis = staleMillis;
+
+        owner = ManagementFactory.getRuntimeMXBean().getName().replaceAll("\\s", "_") + '/'
+                + Long.toString(System.currentTimeMillis(), 36) + '.' + INSTANCES.incrementAndGet();
+
+        owners = new String[shards];
+        lastRecords = new long[shards];
+        seen = new long[shards];
+        finished = new boolean[shards];
+
+        Arrays.fill(lastRecords, -1);
+        Arrays.fill(seen, System.nanoTime());
+
+        appender = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        reader = FileChannel.open(file, StandardOpenOption.READ);
+
+        refresh();
+    }
+
+    /**
+     * Returns the shard of a path relative to the ingested tree.
+     */
+    public static int shardOf(String path, int shards) {
+
+        return (int) Long.remainderUnsigned(key(escape(path)), shards);
+    }
+
+    public int shardOf(String path) {
+
+        return shardOf(path, shards);
+    }
+
+    public String getOwner() {
+
+        return owner;
+    }
+
+    /**
+     * Returns the owner of a shard, or {@code null} when it was never claimed.
+     */
+    public synchronized String getOwner(int shard) {
+
+        return owners[shard];
+    }
+
+    public synchronized boolean isOwner(int shard) {
+
+        return owner.equals(owners[shard]);
+    }
+
+    public synchronized boolean isFinished(int shard) {
+
+        return finished[shard];
+    }
+
+    /**
+     * Tells whether a file was done by any process.
+     */
+    public synchronized boolean isDone(String path) {
+
+        return done.contains(key(escape(path)));
+    }
+
+    /**
+     * Tells whether a shard is not finished and owned by another process, alive or not, or by
+     * none.
+     */
+    public synchronized boolean hasOtherOwners() throws IOException {
+
+        refresh();
+
+        for (int shard = 0; shard < shards; shard++) {
+            if (!finished[shard] && !isOwner(shard)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Claims a shard and tells whether the claim won. No claim is made while another process
+     * owns the shard and keeps beating.
+     */
+    public synchronized boolean claim(int shard) throws IOException {
+
+        refresh();
+
+        if (!isOwner(shard) && (owners[shard] == null || finished[shard] || isStale(shard))) {
+            append("OWN", shard, Long.toString(lastRecords[shard]));
+            refresh();
+        }
+
+        return isOwner(shard);
+    }
+
+    /**
+     * Claims the shards whose owner stopped beating before finishing them, and those nobody
+     * claimed for {@code staleMillis}, and returns those won.
+     */
+    public synchronized List<Integer> claimAbandoned() throws IOException {
+
+        refresh();
+
+        List<Integer> abandoned = new ArrayList<>();
+
+        for (int shard = 0; shard < shards; shard++) {
+            if (!finished[shard] && !isOwner(shard) && isStale(shard)) {
+                append("OWN", shard, Long.toString(lastRecords[shard]));
+                abandoned.add(shard);
+            }
+        }
+
+        if (abandoned.isEmpty()) {
+            return abandoned;
+        }
+
+        refresh();
+
+        List<Integer> won = new ArrayList<>();
+
+        for (int shard : abandoned) {
+            if (isOwner(shard)) {
+                won.add(shard);
+            }
+        }
+
+        return won;
+    }
+
+    /**
+     * Appends a heartbeat for every shard owned and not finished, and reads what the other
+     * processes appended since.
+     */
+    public synchronized void beat() throws IOException {
+
+        refresh();
+
+        for (int shard = 0; shard < shards; shard++) {
+            if (isOwner(shard) && !finished[shard]) {
+                append("BEAT", shard, null);
+            }
+        }
+    }
+
+    public synchronized void done(String path) throws IOException {
+
+        String escaped = escape(path);
+
+        append("DONE", shardOf(path), escaped);
+        done.add(key(escaped));
+    }
+
+    public synchronized void finish(int shard) throws IOException {
+
+        append("END", shard, null);
+        refresh();
+    }
+
+    /**
+     * Reads the records appended since the last call. A line still being written is left for the
+     * next call.
+     */
+    public synchronized void refresh() throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = position;
+
+        while (reader.read(buffer, offset) > 0) {
+            buffer.flip();
+
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                offset++;
+
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+
+                apply(new String(line.toByteArray(), StandardCharsets.UTF_8), position);
+                line.reset();
+                position = offset;
+            }
+
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        try {
+            appender.close();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean isStale(int shard) {
+
+        return System.nanoTime() - seen[shard] > TimeUnit.MILLISECONDS.toNanos(staleMillis);
+    }
+
+    private void append(String type, int shard, String field) throws IOException {
+
+        StringBuilder body = new StringBuilder()
+                .append(type).append('\t')
+                .append(shard).append('/').append(shards).append('\t')
+                .append(owner).append('\t')
+                .append(System.currentTimeMillis());
+
+        if (field != null) {
+            body.append('\t').append(field);
+        }
+
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        String crc = String.format("\t%08x\n", crc(bytes));
+
+        ByteBuffer record = ByteBuffer.allocate(bytes.length + crc.length());
+        record.put(bytes).put(crc.getBytes(StandardCharsets.US_ASCII));
+        record.flip();
+
+        while (record.hasRemaining()) {
+            appender.write(record);
+        }
+    }
+
+    /**
+     * Replays the record starting at {@code offset}.
+     */
+    private void apply(String line, long offset) throws IOException {
+
+        int separator = line.lastIndexOf('\t');
+
+        if (separator < 0 || !isValid(line, separator)) {
+            LOGGER.warn("Skipping corrupt record in {}: {}", file, line);
+            return;
+        }
+
+        String[] fields = line.substring(0, separator).split("\t", 5);
+
+        if (fields.length < 4) {
+            LOGGER.warn("Skipping corrupt record in {}: {}", file, line);
+            return;
+        }
+
+        int slash = fields[1].indexOf('/');
+        int shard = Integer.parseInt(fields[1].substring(0, slash));
+        int count = Integer.parseInt(fields[1].substring(slash + 1));
+        String recordOwner = fields[2];
+
+        if (count != shards) {
+            throw new IOException(String.format("%s was written for %d shards, not %d", file, count, shards));
+        }
+
+        switch (fields[0]) {
+            case "OWN":
+                long claimed = fields.length == 5 ? Long.parseLong(fields[4]) : -1;
+
+                if (owners[shard] == null || finished[shard] || claimed == lastRecords[shard]) {
+                    owners[shard] = recordOwner;
+                    finished[shard] = false;
+                    seen(shard, offset);
+                }
+                break;
+            case "BEAT":
+                if (recordOwner.equals(owners[shard])) {
+                    seen(shard, offset);
+                }
+                break;
+            case "DONE":
+                if (fields.length == 5) {
+                    done.add(key(fields[4]));
+                }
+                break;
+            case "END":
+                if (recordOwner.equals(owners[shard])) {
+                    finished[shard] = true;
+                }
+                break;
+            default:
+                LOGGER.warn("Skipping unknown record in {}: {}", file, line);
+        }
+    }
+
+    private void seen(int shard, long offset) {
+
+        lastRecords[shard] = offset;
+        seen[shard] = System.nanoTime();
+    }
+
+    private static boolean isValid(String line, int separator) {
+
+        try {
+            return Long.parseLong(line.substring(separator + 1), 16)
+                    == crc(line.substring(0, separator).getBytes(StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static long crc(byte[] bytes) {
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        return crc.getValue();
+    }
+
+    /**
+     * Escapes the characters that would break a record. Paths are hashed escaped, as they are
+     * read back, so they are never unescaped.
+     */
+    private static String escape(String path) {
+
+        return path.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Hashes an escaped path to the first 8 bytes of its MD5; 0 marks an empty slot, so it is
+     * never returned.
+     */
+    private static long key(String escaped) {
+
+        byte[] bytes = escaped.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            long key = ByteBuffer.wrap(Arrays.copyOf(MessageDigest.getInstance("MD5").digest(bytes), 8)).getLong();
+
+            return key == 0 ? 1 : key;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Open-addressed set of path hashes.
+     */
+    private static class PathSet {
+
+        private long[] keys = new long[1024];
+
+        private int count = 0;
+
+        private boolean contains(long key) {
+
+            return keys[find(keys, key)] != 0;
+        }
+
+        private void add(long key) {
+
+            int slot = find(keys, key);
+
+            if (keys[slot] != 0) {
+                return;
+            }
+
+            if (2 * (count + 1) > keys.length) {
+                long[] old = keys;
+                keys = new long[old.length * 2];
+
+                for (long k : old) {
+                    if (k != 0) {
+                        keys[find(keys, k)] = k;
+                    }
+                }
+
+                slot = find(keys, key);
+            }
+
+            keys[slot] = key;
+            count++;
+        }
+
+        private static int find(long[] keys, long key) {
+
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package dicom.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingests shard {@code index} of the files under {@code target}: those whose path, relative to
+ * it, hashes to that shard. Processes started with the other indexes coordinate through the
+ * {@link ShardLedger}, which this one beats into every {@code beatMillis}. A process whose shard
+ * has a live owner waits as a standby. Once done with its shard, a process stays until every
+ * other shard is finished, and takes over those the ledger reports abandoned, unless
+ * {@code takeover} is false.
+ */
+public class ShardMode {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardMode.class);
+
+    private final IngestRunner runner;
+
+    private final ShardLedger ledger;
+
+    private final DicomFileWalker walker;
+
+    private final Path target;
+
+    private final int index;
+
+    private final long beatMillis;
+
+    private final boolean takeover;
+
+    public ShardMode(IngestRunner runner, ShardLedger ledger, DicomFileWalker walker, Path target, int index,
+                     long beatMillis, boolean takeover) {
+
+        this.runner = runner;
+        this.ledger = ledger;
+        this.walker = walker;
+        this.target = target;
+        this.index = index;
+        this.beatMillis = beatMillis;
+        this.takeover = takeover;
+    }
+
+    public List<IngestFailure> run() throws IOException {
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-shard-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                ledger.beat();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to beat in the shard ledger", e);
+            }
+        }, beatMillis, beatMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            return runner.ingest(pipeline -> {
+                awaitShard();
+                ingestShards(pipeline, Collections.singletonList(index));
+
+                while (takeover) {
+                    List<Integer> taken = ledger.claimAbandoned();
+
+                    if (!taken.isEmpty()) {
+                        System.out.println(String.format("Assumindo fragmento(s) abandonado(s) %s", taken));
+
+                        ingestShards(pipeline, taken);
+                    } else if (ledger.hasOtherOwners()) {
+                        sleep(beatMillis);
+                    } else {
+                        break;
+                    }
+                }
+            }, new Recorder());
+        } finally {
+            heartbeat.shutdown();
+        }
+    }
+
+    /**
+     * Claims the shard, waiting while another process owns it and keeps beating.
+     */
+    private void awaitShard() throws IOException {
+
+        boolean waiting = false;
+
+        while (!ledger.claim(index)) {
+            if (!waiting) {
+                System.out.println(String.format("Fragmento %d em uso por %s, aguardando...", index, ledger.getOwner(index)));
+                waiting = true;
+            }
+
+            sleep(beatMillis);
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the shard ledger");
+        }
+    }
+
+    /**
+     * Submits the files of the shards still owned that no process ingested yet, waits until they
+     * left the pipeline and marks the shards finished.
+     */
+    private void ingestShards(IngestPipeline pipeline, List<Integer> shards) throws IOException {
+
+        walker.walk(target, (file, attributes) -> {
+            String path = relativePath(file);
+            int shard = ledger.shardOf(path);
+
+            if (shards.contains(shard) && ledger.isOwner(shard) && !ledger.isDone(path)) {
+                runner.submit(pipeline, file, attributes);
+            }
+        });
+
+        pipeline.awaitIdle();
+
+        for (int shard : shards) {
+            if (ledger.isOwner(shard)) {
+                ledger.finish(shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of a file relative to the target, with / separators, which is the same on
+     * every node sharing the storage whatever its mount point.
+     */
+    private String relativePath(Path file) {
+
+        return target.toAbsolutePath().normalize()
+                .relativize(file.toAbsolutePath().normalize())
+                .toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Records the files ingested in the ledger, so no other process ingests them again.
+     */
+    private class Recorder implements IngestListener {
+
+        @Override
+        public void ingested(IngestTask task) throws IOException {
+
+            ledger.done(relativePath(task.getFile().toPath()));
+        }
+
+        @Override
+        public void failed(IngestTask task, IngestFailure failure) {
+
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package dicom.ingest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs as a daemon: ingests every file the {@link DropFolderWatcher} hands over, keeping the
+ * stores open, until the JVM is asked to stop. On shutdown the watching stops, the files already
+ * submitted are drained for up to {@code drainMillis} and everything is closed before the JVM
+ * exits.
+ */
+public class WatchMode {
+
+    private final IngestRunner runner;
+
+    private final DropFolderWatcher watcher;
+
+    private final long drainMillis;
+
+    public WatchMode(IngestRunner runner, DropFolderWatcher watcher, long drainMillis) {
+
+        this.runner = runner;
+        this.watcher = watcher;
+        this.drainMillis = drainMillis;
+    }
+
+    public List<IngestFailure> run() throws IOException {
+
+        CountDownLatch drained = new CountDownLatch(1);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Encerrando...");
+
+            try {
+                watcher.close();
+                drained.await(drainMillis, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "dicom-shutdown"));
+
+        try {
+            return runner.ingest(pipeline -> watcher.run((file, attributes) -> {
+                if (!runner.submit(pipeline, file, attributes)) {
+                    watcher.done(file);
+                }
+            }), new Forgetter());
+        } finally {
+            watcher.close();
+            drained.countDown();
+        }
+    }
+
+    /**
+     * Lets the watcher hand a file over again once it has an outcome, should it change.
+     */
+    private class Forgetter implements IngestListener {
+
+        @Override
+        public void ingested(IngestTask task) {
+
+            watcher.done(task.getFile().toPath());
+        }
+
+        @Override
+        public void failed(IngestTask task, IngestFailure failure) {
+
+            watcher.done(task.getFile().toPath());
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package dicom.json;
+
+/**
+ * Names the stored blob holding the raw file of an instance, so that {@link JsonInputHandler}
+ * can write bulk data as locators into it instead of inline values.
+ */
+public interface BlobLocation {
+
+    String row(String patientId, String studyInstanceUid, String sopInstanceUid);
+
+    String column(String sopInstanceUid);
+}
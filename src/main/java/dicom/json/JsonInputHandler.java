@@ -4,6 +4,7 @@ import org.dcm4che3.data.*;
 import org.dcm4che3.io.DicomInputHandler;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.util.Base64;
+import org.dcm4che3.util.StreamUtils;
 import org.dcm4che3.util.StringUtils;
 import org.dcm4che3.util.TagUtils;
 import org.slf4j.Logger;
@@ -16,10 +17,28 @@ public class JsonInputHandler implements DicomInputHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JsonInputHandler.class);
 
-    private final JsonGenerator jsonGenerator;
+    /**
+     * Version of the documents written; raise it whenever the same file would be written
+     * differently, so documents stored by an earlier version are not taken as unchanged.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private JsonGenerator jsonGenerator;
 
     private final boolean includeBinary;
 
+    private final boolean writeId;
+
+    private final Projection projection;
+
+    private int suppressed = 0;
+
+    private BlobLocation blobLocation = null;
+
+    private int bulkDataThreshold = -1;
+
+    private String contentDigest = null;
+
     private boolean sopInstanceUidReady = false;
 
     private String sopInstanceUid = null;
@@ -28,6 +47,30 @@ public class JsonInputHandler implements DicomInputHandler {
 
     private String patientId = null;
 
+    private boolean studyInstanceUidReady = false;
+
+    private String studyInstanceUid = null;
+
+    private boolean seriesInstanceUidReady = false;
+
+    private String seriesInstanceUid = null;
+
+    private boolean modalityReady = false;
+
+    private String modality = null;
+
+    private int numberOfFrames = 0;
+
+    private int attributeCount = 0;
+
+    private int locatorCount = 0;
+
+    private boolean topLevel = false;
+
+    private TagValues tagValues = null;
+
+    private MemberCapture memberCapture = null;
+
     public JsonInputHandler(JsonGenerator jsonGenerator) {
 
         this(jsonGenerator, false);
@@ -35,8 +78,28 @@ public class JsonInputHandler implements DicomInputHandler {
 
     public JsonInputHandler(JsonGenerator jsonGenerator, boolean includeBinary) {
 
+        this(jsonGenerator, includeBinary, false);
+    }
+
+    /**
+     * @param writeId when set, the SOP Instance UID is also written as the document {@code _id},
+     *                so the generated JSON can be sent to CouchDB as is
+     */
+    public JsonInputHandler(JsonGenerator jsonGenerator, boolean includeBinary, boolean writeId) {
+
+        this(jsonGenerator, includeBinary, writeId, Projection.ALL);
+    }
+
+    /**
+     * @param projection attributes to write; the others are skipped without being decoded
+     */
+    public JsonInputHandler(JsonGenerator jsonGenerator, boolean includeBinary, boolean writeId,
+                            Projection projection) {
+
         this.jsonGenerator = jsonGenerator;
         this.includeBinary = includeBinary;
+        this.writeId = writeId;
+        this.projection = projection;
     }
 
     public String getSopInstanceUid() {
@@ -49,21 +112,143 @@ public class JsonInputHandler implements DicomInputHandler {
         return patientIdReady ? patientId : null;
     }
 
+    public String getStudyInstanceUid() {
+
+        return studyInstanceUidReady ? studyInstanceUid : null;
+    }
+
+    public String getSeriesInstanceUid() {
+
+        return seriesInstanceUidReady ? seriesInstanceUid : null;
+    }
+
+    public String getModality() {
+
+        return modalityReady ? modality : null;
+    }
+
+    /**
+     * Returns the number of attributes written for the last dataset, nested ones included.
+     */
+    public int getAttributeCount() {
+
+        return attributeCount;
+    }
+
+    /**
+     * Returns the number of bulk data locators written for the last dataset.
+     */
+    public int getLocatorCount() {
+
+        return locatorCount;
+    }
+
+    /**
+     * Writes binary values longer than {@code threshold} bytes as locators into the stored file,
+     * {@code {"row": ..., "column": ..., "offset": ..., "length": ...}}, instead of inline. The
+     * offset is the position of the value in the file, in the file's own byte order. Shorter
+     * values are written inline when binary values are included.
+     */
+    public void setBulkDataLocation(BlobLocation blobLocation, int threshold) {
+
+        this.blobLocation = blobLocation;
+        this.bulkDataThreshold = threshold;
+    }
+
+    /**
+     * Writes {@code contentDigest}, which identifies the file and how it was converted, as the
+     * {@code digest} member of the document, so a later ingest of the same bytes can be
+     * recognized.
+     */
+    public void setContentDigest(String contentDigest) {
+
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Captures the first value of the top-level attributes {@code tagValues} selects, typed, as
+     * they are written. The attributes must be selected by the projection too.
+     */
+    public void setTagValues(TagValues tagValues) {
+
+        this.tagValues = tagValues;
+    }
+
+    /**
+     * Keeps the JSON of the top-level members {@code memberCapture} selects as they are written.
+     * The attributes must be selected by the projection too.
+     */
+    public void setMemberCapture(MemberCapture memberCapture) {
+
+        this.memberCapture = memberCapture;
+    }
+
+    /**
+     * Reads the dataset of {@code dis}, stopping as soon as the projection cannot select any
+     * further attribute.
+     */
+    public void readDataset(DicomInputStream dis) throws IOException {
+
+        dis.setDicomInputHandler(this);
+
+        try {
+            dis.readDataset(-1, -1);
+        } catch (ProjectionComplete e) {
+            endDataset(dis);
+        }
+    }
+
     @Override
     public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
 
         VR vr = dis.vr();
         int tag = dis.tag();
         int len = dis.length();
+        int level = dis.level();
+
+        topLevel = level == 0;
+
+        if (level == 0 && projection.isComplete(tag)) {
+            throw ProjectionComplete.INSTANCE;
+        }
+
+        if (level == 0 && memberCapture != null && memberCapture.isSelected(tag)) {
+            MemberCapture.Tee tee = memberCapture.tee(jsonGenerator, TagKeys.of(tag));
+            jsonGenerator = tee;
+
+            try {
+                readValue(dis, attrs, tag, vr, len, level);
+                tee.keep();
+            } finally {
+                jsonGenerator = tee.getOut();
+            }
+        } else {
+            readValue(dis, attrs, tag, vr, len, level);
+        }
+    }
+
+    private void readValue(DicomInputStream dis, Attributes attrs, int tag, VR vr, int len, int level)
+            throws IOException {
 
         if (TagUtils.isGroupLength(tag)) {
             dis.readValue(dis, attrs);
+        } else if (suppressed > 0 || !projection.isSelected(tag, vr, level)) {
+            skipValue(dis, attrs, tag, vr, len);
+        } else if (vr != VR.SQ && len == -1) {
+            attributeCount++;
+            readFragments(dis, TagKeys.of(tag));
+        } else if (isLocated(vr, len)) {
+            attributeCount++;
+            writeLocator(tag, dis.getPosition(), len & 0xffffffffL);
+            StreamUtils.skipFully(dis, len & 0xffffffffL);
         } else if (dis.isExcludeBulkData()) {
             dis.readValue(dis, attrs);
         } else {
-            String htag = 't' + TagUtils.toHexString(tag);
+            String htag = TagKeys.of(tag);
 
-            if (vr == VR.SQ || len == -1) {
+            attributeCount++;
+
+            if (vr == VR.SQ) {
                 jsonGenerator.writeStartArray(htag);
                 dis.readValue(dis, attrs);
                 jsonGenerator.writeEnd();
@@ -85,6 +270,114 @@ public class JsonInputHandler implements DicomInputHandler {
         }
     }
 
+    /**
+     * Writes encapsulated data as locators instead of values:
+     * {@code {"frames": n, "offsets": [...], "fragments": [[offset, length], ...]}}, where each
+     * fragment offset is the position of its first byte in the file and {@code offsets} is the
+     * basic offset table. Fragment bytes are skipped, never read into heap.
+     */
+    private void readFragments(DicomInputStream dis, String htag) throws IOException {
+
+        int[] offsetTable = null;
+
+        jsonGenerator.writeStartObject(htag);
+        jsonGenerator.writeStartArray("fragments");
+
+        while (dis.readItemHeader()) {
+            int len = dis.length();
+
+            if (offsetTable == null) {
+                offsetTable = readOffsetTable(dis, len);
+            } else {
+                jsonGenerator.writeStartArray();
+                jsonGenerator.write(dis.getPosition());
+                jsonGenerator.write(len & 0xffffffffL);
+                jsonGenerator.writeEnd();
+
+                StreamUtils.skipFully(dis, len & 0xffffffffL);
+            }
+        }
+
+        jsonGenerator.writeEnd();
+
+        int frames = offsetTable != null && offsetTable.length > 0 ? offsetTable.length : numberOfFrames;
+        jsonGenerator.write("frames", frames > 0 ? frames : 1);
+
+        jsonGenerator.writeStartArray("offsets");
+        if (offsetTable != null) {
+            for (int offset : offsetTable) {
+                jsonGenerator.write(offset & 0xffffffffL);
+            }
+        }
+        jsonGenerator.writeEnd();
+
+        jsonGenerator.writeEnd();
+    }
+
+    private static int[] readOffsetTable(DicomInputStream dis, int len) throws IOException {
+
+        byte[] b = new byte[len];
+        StreamUtils.readFully(dis, b, 0, len);
+
+        int[] offsets = new int[len / 4];
+
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = VR.UL.toInt(b, dis.bigEndian(), i, 0);
+        }
+
+        return offsets;
+    }
+
+    private void skipValue(DicomInputStream dis, Attributes attrs, int tag, VR vr, int len) throws IOException {
+
+        if (len == -1) {
+            suppressed++;
+
+            try {
+                dis.readValue(dis, attrs);
+            } finally {
+                suppressed--;
+            }
+        } else if (suppressed == 0 && len > 0 && isCollected(tag)) {
+            byte[] b = dis.readValue();
+
+            if (tag == Tag.TransferSyntaxUID || tag == Tag.SpecificCharacterSet) {
+                attrs.setBytes(tag, vr, b);
+            } else {
+                Object o = vr.toStrings(b, dis.bigEndian(), attrs.getSpecificCharacterSet(vr));
+
+                if (o instanceof String[]) {
+                    for (String s : (String[]) o) {
+                        if (s != null && !s.isEmpty()) {
+                            collectValue(tag, s, true);
+                        }
+                    }
+                } else if (o != null && !((String) o).isEmpty()) {
+                    collectValue(tag, (String) o, false);
+                }
+            }
+        } else {
+            StreamUtils.skipFully(dis, len & 0xffffffffL);
+        }
+    }
+
+    private static boolean isCollected(int tag) {
+
+        switch (tag) {
+            case Tag.TransferSyntaxUID:
+            case Tag.SpecificCharacterSet:
+            case Tag.SOPInstanceUID:
+            case Tag.PatientID:
+            case Tag.StudyInstanceUID:
+            case Tag.SeriesInstanceUID:
+            case Tag.Modality:
+            case Tag.NumberOfFrames:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private void writeValue(int tag, VR vr, Object val, boolean bigEndian, SpecificCharacterSet cs, boolean preserve) {
         switch (vr) {
             case AE:
@@ -134,13 +427,15 @@ public class JsonInputHandler implements DicomInputHandler {
 
     private void writeStringValues(int tag, VR vr, Object val, boolean bigEndian, SpecificCharacterSet cs) {
 
-        String htag = 't' + TagUtils.toHexString(tag);
+        String htag = TagKeys.of(tag);
         Object o = vr.toStrings(val, bigEndian, cs);
 
         if (o instanceof String[]) {
             jsonGenerator.writeStartArray(htag);
 
             for (String s : (String[]) o) {
+                captureValue(tag, vr, s);
+
                 if (s == null || s.isEmpty())
                     jsonGenerator.writeNull();
                 else switch (vr) {
@@ -167,28 +462,16 @@ public class JsonInputHandler implements DicomInputHandler {
                     default:
                         jsonGenerator.write(s);
 
-                        switch (tag) {
-                            case 524312:
-                                if (sopInstanceUid == null) {
-                                    sopInstanceUid = s;
-                                } else {
-                                    sopInstanceUid = sopInstanceUid + ';' + s;
-                                }
-                                break;
-                            case 1048608:
-                                if (patientId == null) {
-                                    patientId = s;
-                                } else {
-                                    patientId = patientId + ';' + s;
-                                }
-                                break;
-                        }
+                        collectValue(tag, s, true);
                 }
             }
 
             jsonGenerator.writeEnd();
         } else {
             String s = (String) o;
+
+            captureValue(tag, vr, s);
+
             if (s == null || s.isEmpty())
                 jsonGenerator.writeNull(htag);
             else switch (vr) {
@@ -207,6 +490,8 @@ public class JsonInputHandler implements DicomInputHandler {
                         LOGGER.info("illegal IS value: {} - encoded as null", s);
                         jsonGenerator.writeNull(htag);
                     }
+
+                    collectValue(tag, s, false);
                     break;
                 case PN:
                     PersonName pn = new PersonName(s, true);
@@ -215,21 +500,73 @@ public class JsonInputHandler implements DicomInputHandler {
                 default:
                     jsonGenerator.write(htag, s);
 
-                    switch (tag) {
-                        case 524312:
-                            sopInstanceUid = s;
-                            break;
-                        case 1048608:
-                            patientId = s;
-                            break;
-                    }
+                    collectValue(tag, s, false);
             }
         }
     }
 
+    /**
+     * Keeps the values of the attributes the caller needs besides the JSON document. Values of a
+     * multi-valued attribute are joined with {@code ;}. Only top-level attributes are kept, so a
+     * UID referenced from a sequence item cannot replace the instance's own.
+     */
+    private void collectValue(int tag, String s, boolean multiValued) {
+
+        if (!topLevel) {
+            return;
+        }
+
+        switch (tag) {
+            case Tag.SOPInstanceUID:
+                sopInstanceUid = multiValued ? join(sopInstanceUid, s) : s;
+                break;
+            case Tag.PatientID:
+                patientId = multiValued ? join(patientId, s) : s;
+                break;
+            case Tag.StudyInstanceUID:
+                studyInstanceUid = multiValued ? join(studyInstanceUid, s) : s;
+                break;
+            case Tag.SeriesInstanceUID:
+                seriesInstanceUid = multiValued ? join(seriesInstanceUid, s) : s;
+                break;
+            case Tag.Modality:
+                modality = multiValued ? join(modality, s) : s;
+                break;
+            case Tag.NumberOfFrames:
+                try {
+                    numberOfFrames = StringUtils.parseIS(s);
+                } catch (NumberFormatException e) {
+                    numberOfFrames = 0;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Keeps the first non-empty value of a top-level attribute selected by {@link #tagValues}.
+     */
+    private void captureValue(int tag, VR vr, String s) {
+
+        if (tagValues != null && topLevel && s != null && !s.isEmpty() && tagValues.isSelected(tag)) {
+            tagValues.put(tag, vr, s);
+        }
+    }
+
+    private void captureValue(int tag, Object value) {
+
+        if (tagValues != null && topLevel && tagValues.isSelected(tag)) {
+            tagValues.put(tag, value);
+        }
+    }
+
+    private static String join(String values, String s) {
+
+        return values == null ? s : values + ';' + s;
+    }
+
     private void writeDoubleValues(int tag, VR vr, Object val, boolean bigEndian) {
 
-        String htag = 't' + TagUtils.toHexString(tag);
+        String htag = TagKeys.of(tag);
 
         int vm = vr.vmOf(val);
         switch (vm) {
@@ -238,6 +575,7 @@ public class JsonInputHandler implements DicomInputHandler {
                 break;
             case 1:
                 jsonGenerator.write(htag, vr.toDouble(val, bigEndian, 0, 0));
+                captureValue(tag, vr.toDouble(val, bigEndian, 0, 0));
                 break;
             default:
                 jsonGenerator.writeStartArray(htag);
@@ -246,13 +584,15 @@ public class JsonInputHandler implements DicomInputHandler {
                     jsonGenerator.write(vr.toDouble(val, bigEndian, i, 0));
                 }
 
+                captureValue(tag, vr.toDouble(val, bigEndian, 0, 0));
+
                 jsonGenerator.writeEnd();
         }
     }
 
     private void writeIntValues(int tag, VR vr, Object val, boolean bigEndian) {
 
-        String htag = 't' + TagUtils.toHexString(tag);
+        String htag = TagKeys.of(tag);
 
         int vm = vr.vmOf(val);
         switch (vm) {
@@ -261,6 +601,7 @@ public class JsonInputHandler implements DicomInputHandler {
                 break;
             case 1:
                 jsonGenerator.write(htag, vr.toInt(val, bigEndian, 0, 0));
+                captureValue(tag, (long) vr.toInt(val, bigEndian, 0, 0));
                 break;
             default:
                 jsonGenerator.writeStartArray(htag);
@@ -269,13 +610,15 @@ public class JsonInputHandler implements DicomInputHandler {
                     jsonGenerator.write(vr.toInt(val, bigEndian, i, 0));
                 }
 
+                captureValue(tag, (long) vr.toInt(val, bigEndian, 0, 0));
+
                 jsonGenerator.writeEnd();
         }
     }
 
     private void writeUIntValues(int tag, VR vr, Object val, boolean bigEndian) {
 
-        String htag = 't' + TagUtils.toHexString(tag);
+        String htag = TagKeys.of(tag);
 
         int vm = vr.vmOf(val);
         switch (vm) {
@@ -284,6 +627,7 @@ public class JsonInputHandler implements DicomInputHandler {
                 break;
             case 1:
                 jsonGenerator.write(htag, vr.toInt(val, bigEndian, 0, 0) & 0xffffffffL);
+                captureValue(tag, vr.toInt(val, bigEndian, 0, 0) & 0xffffffffL);
                 break;
             default:
                 jsonGenerator.writeStartArray(htag);
@@ -292,6 +636,8 @@ public class JsonInputHandler implements DicomInputHandler {
                     jsonGenerator.write(vr.toInt(val, bigEndian, i, 0) & 0xffffffffL);
                 }
 
+                captureValue(tag, vr.toInt(val, bigEndian, 0, 0) & 0xffffffffL);
+
                 jsonGenerator.writeEnd();
         }
     }
@@ -299,16 +645,48 @@ public class JsonInputHandler implements DicomInputHandler {
     private void writeBulkData(int tag, BulkData blkdata) {
 
         if (includeBinary) {
-            String htag = 't' + TagUtils.toHexString(tag);
+            String htag = TagKeys.of(tag);
 
             jsonGenerator.write(htag, blkdata.getURI());
         }
     }
 
+    private boolean isLocated(VR vr, int len) {
+
+        if (blobLocation == null || (len & 0xffffffffL) <= bulkDataThreshold
+                || sopInstanceUid == null || patientId == null || studyInstanceUid == null) {
+            return false;
+        }
+
+        switch (vr) {
+            case OB:
+            case OD:
+            case OF:
+            case OL:
+            case OW:
+            case UN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void writeLocator(int tag, long offset, long length) {
+
+        jsonGenerator.writeStartObject(TagKeys.of(tag));
+        jsonGenerator.write("row", blobLocation.row(patientId, studyInstanceUid, sopInstanceUid));
+        jsonGenerator.write("column", blobLocation.column(sopInstanceUid));
+        jsonGenerator.write("offset", offset);
+        jsonGenerator.write("length", length);
+        jsonGenerator.writeEnd();
+
+        locatorCount++;
+    }
+
     private void writeInlineBinary(int tag, VR vr, byte[] b, boolean bigEndian, boolean preserve) {
 
         if (includeBinary) {
-            String htag = 't' + TagUtils.toHexString(tag);
+            String htag = TagKeys.of(tag);
 
             if (bigEndian) {
                 b = vr.toggleEndian(b, preserve);
@@ -331,15 +709,19 @@ public class JsonInputHandler implements DicomInputHandler {
     @Override
     public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
 
-        jsonGenerator.writeStartObject();
-        dis.readValue(dis, seq);
-        jsonGenerator.writeEnd();
+        if (suppressed > 0) {
+            dis.readValue(dis, seq);
+        } else {
+            jsonGenerator.writeStartObject();
+            dis.readValue(dis, seq);
+            jsonGenerator.writeEnd();
+        }
     }
 
     @Override
     public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
 
-        throw new UnsupportedOperationException("DICOM fragments not supported");
+        StreamUtils.skipFully(dis, dis.length() & 0xffffffffL);
     }
 
     @Override
@@ -351,16 +733,67 @@ public class JsonInputHandler implements DicomInputHandler {
         patientId = null;
         patientIdReady = false;
 
+        studyInstanceUid = null;
+        studyInstanceUidReady = false;
+
+        seriesInstanceUid = null;
+        seriesInstanceUidReady = false;
+
+        modality = null;
+        modalityReady = false;
+
+        numberOfFrames = 0;
+
+        attributeCount = 0;
+        locatorCount = 0;
+
+        if (tagValues != null) {
+            tagValues.clear();
+        }
+
+        if (memberCapture != null) {
+            memberCapture.clear();
+        }
+
         jsonGenerator.writeStartObject();
     }
 
     @Override
     public void endDataset(DicomInputStream dis) throws IOException {
 
+        if (writeId && sopInstanceUid != null) {
+            jsonGenerator.write("_id", sopInstanceUid);
+        }
+
+        if (contentDigest != null) {
+            jsonGenerator.write("digest", contentDigest);
+        }
+
         jsonGenerator.writeEnd();
 
         sopInstanceUidReady = true;
 
         patientIdReady = true;
+
+        studyInstanceUidReady = true;
+
+        seriesInstanceUidReady = true;
+
+        modalityReady = true;
+    }
+
+    /**
+     * Thrown to leave {@link DicomInputStream#readDataset(int, int)} once the projection is
+     * complete; its stop tag only matches one exact tag.
+     */
+    private static final class ProjectionComplete extends IOException {
+
+        private static final ProjectionComplete INSTANCE = new ProjectionComplete();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+
+            return this;
+        }
     }
 }
@@ -0,0 +1,393 @@
+package dicom.json;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the JSON of the top-level members it selects as {@link JsonInputHandler} writes them, so
+ * a caller that needs a few members of the document does not parse the whole document again.
+ * <p>
+ * A member is kept exactly as it is written, nested values included. Members the projection
+ * skips are not written, so they are not kept either.
+ */
+public class MemberCapture {
+
+    private final int[] tags;
+
+    private final Map<String, String> members = new LinkedHashMap<>();
+
+    public MemberCapture(int... tags) {
+
+        this.tags = tags.clone();
+
+        Arrays.sort(this.tags);
+    }
+
+    public boolean isSelected(int tag) {
+
+        return Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    /**
+     * Returns the JSON of the member named {@code key}, or {@code null} when it was not written.
+     */
+    public String get(String key) {
+
+        return members.get(key);
+    }
+
+    public boolean isEmpty() {
+
+        return members.isEmpty();
+    }
+
+    /**
+     * Returns the kept members as a UTF-8 JSON object.
+     */
+    public byte[] toJson() {
+
+        StringBuilder json = new StringBuilder("{");
+
+        for (Map.Entry<String, String> member : members.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+
+            json.append('"').append(member.getKey()).append("\":").append(member.getValue());
+        }
+
+        return json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    void clear() {
+
+        members.clear();
+    }
+
+    /**
+     * Returns a generator that writes the member named {@code key} to {@code out} and copies it;
+     * {@link Tee#keep()} keeps the copy once the member is complete.
+     */
+    Tee tee(JsonGenerator out, String key) {
+
+        return new Tee(out, key);
+    }
+
+    /**
+     * Copies everything written through it to a second generator, which writes the member's
+     * value alone, inside an array so that values which are not objects can be written. The
+     * member's name is dropped from the copy; names of nested members are kept.
+     */
+    final class Tee implements JsonGenerator {
+
+        private final JsonGenerator out;
+
+        private final String key;
+
+        private final StringWriter json = new StringWriter();
+
+        private final JsonGenerator copy = Json.createGenerator(json);
+
+        private int depth = 0;
+
+        private Tee(JsonGenerator out, String key) {
+
+            this.out = out;
+            this.key = key;
+
+            copy.writeStartArray();
+        }
+
+        JsonGenerator getOut() {
+
+            return out;
+        }
+
+        void keep() {
+
+            copy.writeEnd();
+            copy.close();
+
+            StringBuffer buffer = json.getBuffer();
+
+            if (buffer.length() > 2) {
+                members.put(key, buffer.substring(1, buffer.length() - 1));
+            }
+        }
+
+        @Override
+        public JsonGenerator writeStartObject() {
+
+            out.writeStartObject();
+            copy.writeStartObject();
+            depth++;
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartObject(String name) {
+
+            out.writeStartObject(name);
+
+            if (depth == 0) {
+                copy.writeStartObject();
+            } else {
+                copy.writeStartObject(name);
+            }
+
+            depth++;
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartArray() {
+
+            out.writeStartArray();
+            copy.writeStartArray();
+            depth++;
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartArray(String name) {
+
+            out.writeStartArray(name);
+
+            if (depth == 0) {
+                copy.writeStartArray();
+            } else {
+                copy.writeStartArray(name);
+            }
+
+            depth++;
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, JsonValue value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, String value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, BigInteger value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, BigDecimal value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, int value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, long value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, double value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, boolean value) {
+
+            out.write(name, value);
+
+            if (depth == 0) {
+                copy.write(value);
+            } else {
+                copy.write(name, value);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeNull(String name) {
+
+            out.writeNull(name);
+
+            if (depth == 0) {
+                copy.writeNull();
+            } else {
+                copy.writeNull(name);
+            }
+
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeEnd() {
+
+            out.writeEnd();
+            copy.writeEnd();
+            depth--;
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(JsonValue value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(BigDecimal value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(BigInteger value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(int value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(long value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(double value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(boolean value) {
+
+            out.write(value);
+            copy.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeNull() {
+
+            out.writeNull();
+            copy.writeNull();
+            return this;
+        }
+
+        @Override
+        public void close() {
+
+            out.close();
+        }
+
+        @Override
+        public void flush() {
+
+            out.flush();
+        }
+    }
+}
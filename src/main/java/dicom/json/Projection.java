@@ -0,0 +1,145 @@
+package dicom.json;
+
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+
+import java.util.Arrays;
+
+/**
+ * Selects the attributes {@link JsonInputHandler} writes to the JSON document.
+ * <p>
+ * The include set applies to top-level attributes only: when it is given, any other top-level
+ * attribute is skipped, while the items of an included sequence are written in full. The exclude
+ * set applies at every level. Sequences nested {@code maxDepth} or more levels deep are skipped;
+ * a negative {@code maxDepth} keeps every level.
+ */
+public class Projection {
+
+    public static final Projection ALL = new Projection(null, new int[0], -1);
+
+    private final int[] includes;
+
+    private final int[] excludes;
+
+    private final int maxDepth;
+
+    private final int lastTag;
+
+    /**
+     * @param includes top-level tags to write, or {@code null} to write every tag
+     * @param excludes tags never written
+     * @param maxDepth number of nested sequence levels to write, negative for all
+     */
+    public Projection(int[] includes, int[] excludes, int maxDepth) {
+
+        this.includes = includes == null ? null : sorted(includes);
+        this.excludes = sorted(excludes);
+        this.maxDepth = maxDepth;
+
+        int last = -1;
+
+        if (includes != null) {
+            last = Tag.SeriesInstanceUID;
+
+            for (int tag : includes) {
+                if (Integer.compareUnsigned(tag, last) > 0) {
+                    last = tag;
+                }
+            }
+        }
+
+        this.lastTag = last;
+    }
+
+    /**
+     * Parses comma separated lists of hex tags, such as {@code 00080060,00100020}; a leading
+     * {@code t} is accepted, so the JSON member names can be used as well. An empty include list
+     * selects every tag.
+     */
+    public static Projection parse(String includes, String excludes, int maxDepth) {
+
+        boolean all = includes == null || includes.trim().isEmpty();
+
+        return new Projection(all ? null : parseTags(includes), parseTags(excludes), maxDepth);
+    }
+
+    public boolean isSelected(int tag, VR vr, int level) {
+
+        if (Arrays.binarySearch(excludes, tag) >= 0) {
+            return false;
+        }
+
+        if (vr == VR.SQ && maxDepth >= 0 && level >= maxDepth) {
+            return false;
+        }
+
+        return includes == null || level > 0 || Arrays.binarySearch(includes, tag) >= 0;
+    }
+
+    /**
+     * Tells whether no top-level attribute at or after {@code tag} can be selected. The tags the
+     * handler collects for the caller are always considered requested.
+     */
+    public boolean isComplete(int tag) {
+
+        return includes != null && Integer.compareUnsigned(tag, lastTag) > 0;
+    }
+
+    /**
+     * Returns those of {@code tags} this projection does not select at the top level, in the
+     * order given.
+     */
+    public int[] unselected(int... tags) {
+
+        int[] unselected = new int[tags.length];
+        int count = 0;
+
+        for (int tag : tags) {
+            if (!isSelected(tag, ElementDictionary.vrOf(tag, null), 0)) {
+                unselected[count++] = tag;
+            }
+        }
+
+        return Arrays.copyOf(unselected, count);
+    }
+
+    /**
+     * Describes the selection, alike for projections that select the same attributes.
+     */
+    @Override
+    public String toString() {
+
+        return "include=" + (includes == null ? "*" : Arrays.toString(includes))
+                + ";exclude=" + Arrays.toString(excludes) + ";depth=" + Math.max(maxDepth, -1);
+    }
+
+    private static int[] sorted(int[] tags) {
+
+        int[] copy = tags.clone();
+        Arrays.sort(copy);
+        return copy;
+    }
+
+    static int[] parseTags(String s) {
+
+        if (s == null || s.trim().isEmpty()) {
+            return new int[0];
+        }
+
+        String[] parts = s.split(",");
+        int[] tags = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+
+            if (part.startsWith("t") || part.startsWith("T")) {
+                part = part.substring(1);
+            }
+
+            tags[i] = (int) Long.parseLong(part, 16);
+        }
+
+        return tags;
+    }
+}
@@ -0,0 +1,125 @@
+package dicom.json;
+
+import org.dcm4che3.data.Tag;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Cache of the JSON member names ({@code t} followed by the 8 digit hex tag) written by
+ * {@link JsonInputHandler}.
+ * <p>
+ * The names of the tags of the standard dictionary, the constants of {@link Tag}, are built once
+ * into a table sorted by tag and found by binary search, so each has its own entry and none is
+ * ever evicted. Other tags, private ones above all, are unbounded: they share a small
+ * direct-mapped table where a colliding tag simply replaces the previous entry. Looking up a
+ * cached name allocates nothing.
+ */
+final class TagKeys {
+
+    private static final int OTHER_BITS = 10;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final int[] STANDARD_TAGS = dictionary();
+
+    private static final String[] STANDARD_KEYS = new String[STANDARD_TAGS.length];
+
+    private static final Entry[] OTHER = new Entry[1 << OTHER_BITS];
+
+    static {
+        for (int i = 0; i < STANDARD_TAGS.length; i++) {
+            STANDARD_KEYS[i] = toKey(STANDARD_TAGS[i]);
+        }
+    }
+
+    private TagKeys() {
+    }
+
+    static String of(int tag) {
+
+        int index = Arrays.binarySearch(STANDARD_TAGS, tag);
+
+        if (index >= 0) {
+            return STANDARD_KEYS[index];
+        }
+
+        index = (tag * 0x9E3779B9) >>> (32 - OTHER_BITS);
+
+        // entries are immutable, so a racy read sees either a complete entry or none
+        Entry entry = OTHER[index];
+
+        if (entry == null || entry.tag != tag) {
+            entry = new Entry(tag, toKey(tag));
+            OTHER[index] = entry;
+        }
+
+        return entry.key;
+    }
+
+    /**
+     * Returns the tags of the standard dictionary, sorted.
+     */
+    static int[] standardTags() {
+
+        return STANDARD_TAGS.clone();
+    }
+
+    private static int[] dictionary() {
+
+        Field[] fields = Tag.class.getFields();
+        int[] tags = new int[fields.length];
+        int count = 0;
+
+        for (Field field : fields) {
+            if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+                try {
+                    tags[count++] = field.getInt(null);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        tags = Arrays.copyOf(tags, count);
+        Arrays.sort(tags);
+
+        int distinct = 0;
+
+        for (int i = 0; i < tags.length; i++) {
+            if (i == 0 || tags[i] != tags[i - 1]) {
+                tags[distinct++] = tags[i];
+            }
+        }
+
+        return Arrays.copyOf(tags, distinct);
+    }
+
+    private static String toKey(int tag) {
+
+        char[] ch = new char[9];
+
+        ch[0] = 't';
+
+        for (int i = 8; i > 0; i--) {
+            ch[i] = HEX[tag & 0xF];
+            tag >>>= 4;
+        }
+
+        return new String(ch);
+    }
+
+    private static final class Entry {
+
+        private final int tag;
+
+        private final String key;
+
+        private Entry(int tag, String key) {
+
+            this.tag = tag;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package dicom.json;
+
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.StringUtils;
+
+import java.util.Arrays;
+
+/**
+ * First value of selected top-level attributes, captured by {@link JsonInputHandler} while it
+ * writes them, typed for ordering rather than as text:
+ * <ul>
+ * <li>{@link Long} for IS, SS, SL, US and UL, and for DA, DT and TM read as digits:
+ * {@code yyyyMMdd}, {@code yyyyMMddHHmmss} and {@code HHmmss}, missing components as zero.</li>
+ * <li>{@link Double} for DS, FL and FD.</li>
+ * <li>{@link String} for the other text VRs.</li>
+ * </ul>
+ * A value that cannot be read as its type is left out, as the JSON document writes it as null.
+ */
+public class TagValues {
+
+    private static final int DATE_DIGITS = 8;
+
+    private static final int DATE_TIME_DIGITS = 14;
+
+    private static final int TIME_DIGITS = 6;
+
+    private final int[] tags;
+
+    private final Object[] values;
+
+    /**
+     * @param tags the attributes to capture
+     */
+    public TagValues(int[] tags) {
+
+        this.tags = tags.clone();
+        Arrays.sort(this.tags);
+        this.values = new Object[this.tags.length];
+    }
+
+    /**
+     * Parses a comma separated list of hex tags, as {@link Projection#parse} does.
+     */
+    public static int[] parseTags(String s) {
+
+        return Projection.parseTags(s);
+    }
+
+    /**
+     * Returns the JSON member name of a tag, {@code t} followed by its 8 hex digits.
+     */
+    public static String key(int tag) {
+
+        return TagKeys.of(tag);
+    }
+
+    public int[] getTags() {
+
+        return tags.clone();
+    }
+
+    public boolean isSelected(int tag) {
+
+        return Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    /**
+     * Returns the value captured for {@code tag}, or {@code null} when there was none.
+     */
+    public Object get(int tag) {
+
+        int i = Arrays.binarySearch(tags, tag);
+
+        return i >= 0 ? values[i] : null;
+    }
+
+    void clear() {
+
+        Arrays.fill(values, null);
+    }
+
+    void put(int tag, VR vr, String s) {
+
+        switch (vr) {
+            case DS:
+                try {
+                    put(tag, StringUtils.parseDS(s));
+                } catch (NumberFormatException e) {
+                    // written as null
+                }
+                break;
+            case IS:
+                try {
+                    put(tag, (long) StringUtils.parseIS(s));
+                } catch (NumberFormatException e) {
+                    // written as null
+                }
+                break;
+            case DA:
+                put(tag, digits(s, DATE_DIGITS));
+                break;
+            case DT:
+                put(tag, digits(s, DATE_TIME_DIGITS));
+                break;
+            case TM:
+                put(tag, digits(s, TIME_DIGITS));
+                break;
+            default:
+                put(tag, (Object) s);
+        }
+    }
+
+    void put(int tag, Object value) {
+
+        int i = Arrays.binarySearch(tags, tag);
+
+        if (i >= 0 && values[i] == null && value != null) {
+            values[i] = value;
+        }
+    }
+
+    /**
+     * Reads the leading digits of a date or time, skipping the separators of older encodings, and
+     * pads them with zeros to {@code count} digits. Returns {@code null} when it does not start
+     * with a digit.
+     */
+    private static Long digits(String s, int count) {
+
+        long value = 0;
+        int read = 0;
+
+        for (int i = 0; i < s.length() && read < count; i++) {
+            char c = s.charAt(i);
+
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                read++;
+            } else if (c != ':' && c != '-' && c != '.' && c != ' ') {
+                break;
+            }
+        }
+
+        if (read == 0) {
+            return null;
+        }
+
+        for (; read < count; read++) {
+            value *= 10;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,21 @@
+package dicom.metrics;
+
+/**
+ * JMX view of a size-bounded cache. Weights are in bytes.
+ */
+public interface CacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    int getSize();
+
+    long getWeight();
+
+    long getMaxWeight();
+}
@@ -0,0 +1,277 @@
+package dicom.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters, latency histograms and queue depths of an ingest run.
+ * <p>
+ * Latencies are kept per name: {@code stage.<name>} is the time a stage worker spent on a file,
+ * {@code write.<name>} the time from the start of a write stage until the store acknowledged the
+ * write. Everything is exposed over JMX under the {@code dicom} domain once {@link #register()}
+ * is called, and can be written in the Prometheus text format with {@link #writePrometheus(Writer)}.
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestMetrics.class);
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder ingested = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder attributes = new LongAdder();
+
+    private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+
+    private final Map<String, IntSupplier> queues = new ConcurrentHashMap<>();
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public void submitted() {
+
+        submitted.increment();
+    }
+
+    public void ingested(long size, int attributeCount) {
+
+        ingested.increment();
+        bytes.add(size);
+        attributes.add(attributeCount);
+    }
+
+    public void failed(String stage) {
+
+        failed.increment();
+        failures.computeIfAbsent(stage, s -> new LongAdder()).increment();
+    }
+
+    public void recordStage(String stage, long nanos) {
+
+        latency("stage." + stage).record(nanos);
+    }
+
+    public void recordWrite(String store, long nanos) {
+
+        latency("write." + store).record(nanos);
+    }
+
+    public void addQueue(String name, IntSupplier depth) {
+
+        queues.put(name, depth);
+    }
+
+    public LatencyHistogram latency(String name) {
+
+        LatencyHistogram histogram = latencies.get(name);
+
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = latencies.putIfAbsent(name, created);
+
+            if (histogram == null) {
+                histogram = created;
+                registerLatency(name, created);
+            }
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public long getFilesSubmitted() {
+
+        return submitted.sum();
+    }
+
+    @Override
+    public long getFilesIngested() {
+
+        return ingested.sum();
+    }
+
+    @Override
+    public long getFilesFailed() {
+
+        return failed.sum();
+    }
+
+    @Override
+    public long getBytesIngested() {
+
+        return bytes.sum();
+    }
+
+    @Override
+    public long getAttributesWritten() {
+
+        return attributes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByStage() {
+
+        Map<String, Long> byStage = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> entry : failures.entrySet()) {
+            byStage.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return byStage;
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+
+        Map<String, Integer> depths = new TreeMap<>();
+
+        for (Map.Entry<String, IntSupplier> entry : queues.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().getAsInt());
+        }
+
+        return depths;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as {@code dicom:type=Ingest} and one
+     * {@code dicom:type=Latency,name=<name>} per histogram, including those created later.
+     */
+    public synchronized void register() throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("dicom:type=Ingest");
+
+        server.registerMBean(this, name);
+        registered.add(name);
+
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            registerLatency(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized void unregister() {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.warn("Failed to unregister {}", name, e);
+            }
+        }
+
+        registered.clear();
+    }
+
+    private synchronized void registerLatency(String name, LatencyHistogram histogram) {
+
+        if (registered.isEmpty()) {
+            return;
+        }
+
+        try {
+            ObjectName objectName = new ObjectName("dicom:type=Latency,name=" + ObjectName.quote(name));
+
+            if (!registered.contains(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(histogram, objectName);
+                registered.add(objectName);
+            }
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register latency {}", name, e);
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+
+        counter(out, "dicom_ingest_files_total", "Files by outcome");
+        sample(out, "dicom_ingest_files_total{outcome=\"submitted\"}", submitted.sum());
+        sample(out, "dicom_ingest_files_total{outcome=\"ingested\"}", ingested.sum());
+        sample(out, "dicom_ingest_files_total{outcome=\"failed\"}", failed.sum());
+
+        counter(out, "dicom_ingest_failures_total", "Failed files by stage");
+        for (Map.Entry<String, Long> entry : getFailuresByStage().entrySet()) {
+            sample(out, "dicom_ingest_failures_total{stage=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+
+        counter(out, "dicom_ingest_bytes_total", "Bytes of the files ingested");
+        sample(out, "dicom_ingest_bytes_total", bytes.sum());
+
+        counter(out, "dicom_ingest_attributes_total", "Attributes written to the JSON documents");
+        sample(out, "dicom_ingest_attributes_total", attributes.sum());
+
+        out.write("# HELP dicom_ingest_queue_depth Files waiting in each stage queue\n");
+        out.write("# TYPE dicom_ingest_queue_depth gauge\n");
+        for (Map.Entry<String, Integer> entry : getQueueDepths().entrySet()) {
+            sample(out, "dicom_ingest_queue_depth{queue=\"" + entry.getKey() + "\"}", entry.getValue());
+        }
+
+        histograms(out, "dicom_ingest_stage_seconds", "Time a stage worker spent on a file", "stage.", "stage");
+        histograms(out, "dicom_ingest_write_seconds", "Time until a store acknowledged a write", "write.", "store");
+    }
+
+    private void histograms(Writer out, String metric, String help, String prefix, String label) throws IOException {
+
+        out.write("# HELP " + metric + " " + help + "\n");
+        out.write("# TYPE " + metric + " histogram\n");
+
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+
+            String labels = label + "=\"" + entry.getKey().substring(prefix.length()) + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            long cumulative = 0;
+
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                cumulative += histogram.getBucket(i);
+                sample(out, String.format(Locale.ROOT, "%s_bucket{%s,le=\"%s\"}", metric, labels,
+                        LatencyHistogram.bucketSeconds(i)), cumulative);
+            }
+
+            cumulative += histogram.getBucket(LatencyHistogram.BUCKETS);
+            sample(out, metric + "_bucket{" + labels + ",le=\"+Inf\"}", cumulative);
+            out.write(String.format(Locale.ROOT, "%s_sum{%s} %s\n", metric, labels, histogram.getSumNanos() / 1e9));
+            sample(out, metric + "_count{" + labels + "}", cumulative);
+        }
+    }
+
+    private static void counter(Writer out, String metric, String help) throws IOException {
+
+        out.write("# HELP " + metric + " " + help + "\n");
+        out.write("# TYPE " + metric + " counter\n");
+    }
+
+    private static void sample(Writer out, String series, long value) throws IOException {
+
+        out.write(series);
+        out.write(' ');
+        out.write(Long.toString(value));
+        out.write('\n');
+    }
+}
@@ -0,0 +1,23 @@
+package dicom.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link IngestMetrics}.
+ */
+public interface IngestMetricsMXBean {
+
+    long getFilesSubmitted();
+
+    long getFilesIngested();
+
+    long getFilesFailed();
+
+    long getBytesIngested();
+
+    long getAttributesWritten();
+
+    Map<String, Long> getFailuresByStage();
+
+    Map<String, Integer> getQueueDepths();
+}
@@ -0,0 +1,117 @@
+package dicom.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets: bucket {@code i} counts the latencies
+ * of at most {@code 2^i} microseconds, up to about 36 minutes, and the last bucket the rest.
+ */
+public class LatencyHistogram implements LatencyMXBean {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS));
+        count.increment();
+        sumNanos.add(nanos);
+
+        long max;
+        do {
+            max = maxNanos.get();
+        } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    @Override
+    public long getCount() {
+
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+
+        return sumNanos.sum();
+    }
+
+    /**
+     * Returns the count of bucket {@code i}, {@code BUCKETS} being the overflow bucket.
+     */
+    long getBucket(int i) {
+
+        return buckets.get(i);
+    }
+
+    /**
+     * Returns the upper bound of bucket {@code i} in seconds.
+     */
+    static double bucketSeconds(int i) {
+
+        return (1L << i) / 1e6;
+    }
+
+    @Override
+    public double getMeanMillis() {
+
+        long n = count.sum();
+
+        return n == 0 ? 0 : sumNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getMedianMillis() {
+
+        return percentileMillis(0.5);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+
+        return percentileMillis(0.99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+
+        return maxNanos.get() / 1e6;
+    }
+
+    public double percentileMillis(double quantile) {
+
+        long n = 0;
+
+        for (int i = 0; i <= BUCKETS; i++) {
+            n += buckets.get(i);
+        }
+
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+
+            if (seen >= rank) {
+                return Math.min(bucketSeconds(i) * 1e3, getMaxMillis());
+            }
+        }
+
+        return getMaxMillis();
+    }
+}
@@ -0,0 +1,18 @@
+package dicom.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}. Percentiles are the upper bound of the bucket they
+ * fall in, so they are accurate within a factor of two.
+ */
+public interface LatencyMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMedianMillis();
+
+    double get99thPercentileMillis();
+
+    double getMaxMillis();
+}
@@ -0,0 +1,79 @@
+package dicom.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes {@link IngestMetrics} to a file in the Prometheus text format every {@code millis} and
+ * once more on {@link #close()}. The file is replaced atomically, so it can be read by the
+ * node_exporter textfile collector or any scraper at any time.
+ */
+public class PrometheusFileReporter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusFileReporter.class);
+
+    private final IngestMetrics metrics;
+
+    private final Path file;
+
+    private final ScheduledExecutorService reporter;
+
+    public PrometheusFileReporter(IngestMetrics metrics, Path file, long millis) {
+
+        this.metrics = metrics;
+        this.file = file;
+
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        reporter.scheduleWithFixedDelay(this::reportQuietly, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void report() throws IOException {
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            metrics.writePrometheus(out);
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        reporter.shutdown();
+
+        try {
+            reporter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        report();
+    }
+
+    private void reportQuietly() {
+
+        try {
+            report();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to write metrics to {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package dicom.reindex;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of row keys, from {@code start} inclusive to {@code stop} exclusive. An empty start or
+ * stop is unbounded, as in HBase.
+ */
+public class KeyRange {
+
+    private final byte[] start;
+
+    private final byte[] stop;
+
+    public KeyRange(byte[] start, byte[] stop) {
+
+        this.start = start;
+        this.stop = stop;
+    }
+
+    public byte[] getStart() {
+
+        return start;
+    }
+
+    public byte[] getStop() {
+
+        return stop;
+    }
+
+    /**
+     * Returns one range per region of the table, in key order.
+     */
+    public static List<KeyRange> regions(Connection hbaseClient, TableName tableName) throws IOException {
+
+        try (RegionLocator locator = hbaseClient.getRegionLocator(tableName)) {
+            byte[][] starts = locator.getStartKeys();
+            byte[][] stops = locator.getEndKeys();
+
+            List<KeyRange> ranges = new ArrayList<>(starts.length);
+
+            for (int i = 0; i < starts.length; i++) {
+                ranges.add(new KeyRange(starts[i], stops[i]));
+            }
+
+            return ranges;
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("[%s, %s)", Bytes.toStringBinary(start), Bytes.toStringBinary(stop));
+    }
+}
@@ -0,0 +1,171 @@
+package dicom.reindex;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of a reindex, per key range, so an interrupted run resumes where it stopped.
+ * <p>
+ * The file holds one line per range, with tab separated fields: its start, its stop and its
+ * state, which is {@code -} before any row was stored, {@code >row} after the last row whose
+ * instances were all stored, or {@code DONE} once the range is finished. Rows are printed with
+ * {@link Bytes#toStringBinary(byte[])}. The ranges are kept as first computed, so a resumed
+ * run ignores regions split in the meantime. {@link #save()} rewrites the file into a temporary
+ * one that replaces it atomically.
+ */
+public class ReindexCheckpoint {
+
+    private static final String DONE = "DONE";
+
+    private static final String NONE = "-";
+
+    private static final String AFTER = ">";
+
+    private final Path file;
+
+    private final List<KeyRange> ranges;
+
+    private final byte[][] positions;
+
+    private final boolean[] done;
+
+    private boolean dirty = false;
+
+    private ReindexCheckpoint(Path file, List<KeyRange> ranges) {
+
+        this.file = file;
+        this.ranges = ranges;
+        this.positions = new byte[ranges.size()][];
+        this.done = new boolean[ranges.size()];
+    }
+
+    /**
+     * Loads the checkpoint kept in {@code file}, or starts one over {@code ranges} when there is
+     * none.
+     */
+    public static ReindexCheckpoint open(Path file, List<KeyRange> ranges) throws IOException {
+
+        if (!Files.exists(file)) {
+            ReindexCheckpoint checkpoint = new ReindexCheckpoint(file, ranges);
+            checkpoint.dirty = true;
+            checkpoint.save();
+            return checkpoint;
+        }
+
+        List<KeyRange> loaded = new ArrayList<>();
+        List<String> states = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] fields = line.split("\t", -1);
+
+                if (fields.length != 3) {
+                    throw new IOException(String.format("Invalid checkpoint line in %s: %s", file, line));
+                }
+
+                loaded.add(new KeyRange(Bytes.toBytesBinary(fields[0]), Bytes.toBytesBinary(fields[1])));
+                states.add(fields[2]);
+            }
+        }
+
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(file, loaded);
+
+        for (int i = 0; i < states.size(); i++) {
+            if (DONE.equals(states.get(i))) {
+                checkpoint.done[i] = true;
+            } else if (states.get(i).startsWith(AFTER)) {
+                checkpoint.positions[i] = Bytes.toBytesBinary(states.get(i).substring(AFTER.length()));
+            } else if (!NONE.equals(states.get(i))) {
+                throw new IOException(String.format("Invalid checkpoint state in %s: %s", file, states.get(i)));
+            }
+        }
+
+        return checkpoint;
+    }
+
+    public List<KeyRange> getRanges() {
+
+        return ranges;
+    }
+
+    /**
+     * Returns the last row of the range whose instances were all stored, or {@code null} when
+     * none was.
+     */
+    public synchronized byte[] getPosition(int range) {
+
+        return positions[range];
+    }
+
+    public synchronized boolean isDone(int range) {
+
+        return done[range];
+    }
+
+    public synchronized int getRemaining() {
+
+        int remaining = 0;
+
+        for (boolean d : done) {
+            if (!d) {
+                remaining++;
+            }
+        }
+
+        return remaining;
+    }
+
+    public synchronized void advance(int range, byte[] row) {
+
+        positions[range] = row;
+        dirty = true;
+    }
+
+    public synchronized void finish(int range) {
+
+        done[range] = true;
+        dirty = true;
+    }
+
+    /**
+     * Writes the checkpoint when it changed since the last save.
+     */
+    public synchronized void save() throws IOException {
+
+        if (!dirty) {
+            return;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                writer.write(Bytes.toStringBinary(ranges.get(i).getStart()));
+                writer.write('\t');
+                writer.write(Bytes.toStringBinary(ranges.get(i).getStop()));
+                writer.write('\t');
+                writer.write(done[i] ? DONE : positions[i] == null ? NONE : AFTER + Bytes.toStringBinary(positions[i]));
+                writer.newLine();
+            }
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        dirty = false;
+    }
+}
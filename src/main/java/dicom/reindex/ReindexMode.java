@@ -0,0 +1,73 @@
+package dicom.reindex;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link Reindexer} over the ranges a {@link ReindexCheckpoint} has pending, saving it
+ * every {@code checkpointMillis}. When the JVM is asked to stop, the reindexer is stopped and
+ * given up to {@code drainMillis} to save its progress, so the next run resumes from there.
+ */
+public class ReindexMode {
+
+    private final Reindexer reindexer;
+
+    private final ReindexCheckpoint checkpoint;
+
+    private final long checkpointMillis;
+
+    private final long drainMillis;
+
+    public ReindexMode(Reindexer reindexer, ReindexCheckpoint checkpoint, long checkpointMillis, long drainMillis) {
+
+        this.reindexer = reindexer;
+        this.checkpoint = checkpoint;
+        this.checkpointMillis = checkpointMillis;
+        this.drainMillis = drainMillis;
+    }
+
+    public void run() throws IOException {
+
+        CountDownLatch stopped = new CountDownLatch(1);
+
+        Thread shutdownHook = new Thread(() -> {
+            System.out.println("Encerrando...");
+
+            reindexer.stop();
+
+            try {
+                stopped.await(drainMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "dicom-shutdown");
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        System.out.println(String.format("Reindexando %d intervalo(s) pendente(s)...", checkpoint.getRemaining()));
+
+        try {
+            reindexer.run(checkpoint, checkpointMillis);
+        } finally {
+            stopped.countDown();
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // shutting down
+        }
+
+        if (reindexer.getFailures() > 0) {
+            System.out.println(String.format("%d instância(s) com falha", reindexer.getFailures()));
+        }
+
+        if (checkpoint.getRemaining() > 0) {
+            System.out.println(String.format("%d intervalo(s) pendente(s), execute novamente para continuar",
+                    checkpoint.getRemaining()));
+        } else {
+            System.out.println("Reindexação concluída!");
+        }
+    }
+}
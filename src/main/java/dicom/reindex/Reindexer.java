@@ -0,0 +1,560 @@
+package dicom.reindex;
+
+import dicom.hbase.HBaseBlobReader;
+import dicom.ingest.IngestStage;
+import dicom.ingest.IngestTask;
+import dicom.metrics.IngestMetrics;
+import dicom.sink.MetadataSink;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the metadata documents from the blobs stored in HBase, without the original files.
+ * <p>
+ * The key ranges of a {@link ReindexCheckpoint} are scanned by {@code threads} workers, one range
+ * each at a time. A worker lists the blobs of its rows and their stored sizes with a key-only
+ * scan. Single-cell blobs are read {@code batchSize} at a time, and at most {@code maxBatchBytes}
+ * at a time, with {@link HBaseBlobReader#readAll}; chunked blobs are streamed one at a time
+ * through {@link HBaseBlobReader#open}, so no blob larger than a cell is held in heap unless it is
+ * encoded. Each blob is handed to the parse stage of the ingest and its document written to the
+ * {@link MetadataSink}, replacing the one stored.
+ * <p>
+ * Once the documents of a batch were acknowledged, the range advances to the last row whose
+ * instances were all written, and the checkpoint is saved every {@code checkpointMillis}. A
+ * document that fails stops the range from advancing any further: the rest of the range is still
+ * reindexed, but the range is left unfinished and the next run resumes before the failure.
+ * <p>
+ * Reads are held under {@code maxBytesPerSecond} when it is positive. Progress is recorded in the
+ * given {@link IngestMetrics}: instances are counted as files, with the {@code read} and
+ * {@code parse} stage latencies, the {@code couchdb} write latency and the number of ranges left
+ * as the {@code ranges} queue.
+ */
+public class Reindexer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reindexer.class);
+
+    private static final int SCAN_CACHING = 1000;
+
+    /**
+     * Separates the UID from the suffix of the manifest, digest and chunk qualifiers.
+     */
+    private static final byte SUFFIX_SEPARATOR = '#';
+
+    private static final byte[] MANIFEST_SUFFIX = Bytes.toBytes("#manifest");
+
+    /**
+     * Length of the suffix of a chunk qualifier: the separator and the chunk index.
+     */
+    private static final int CHUNK_SUFFIX_LENGTH = 1 + Bytes.SIZEOF_INT;
+
+    private final Connection hbaseClient;
+
+    private final TableName tableName;
+
+    private final byte[] family;
+
+    private final HBaseBlobReader reader;
+
+    private final IngestStage parser;
+
+    private final MetadataSink sink;
+
+    private final IngestMetrics metrics;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    private final long maxBatchBytes;
+
+    private final Throttle throttle;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param parser the parse stage of the ingest, which turns {@link IngestTask#getData()} into
+     *               {@link IngestTask#getJson()} and sets the UIDs of the task
+     */
+    public Reindexer(Connection hbaseClient, TableName tableName, byte[] family, HBaseBlobReader reader,
+                     IngestStage parser, MetadataSink sink, IngestMetrics metrics,
+                     int threads, int batchSize, long maxBytesPerSecond) {
+
+        this(hbaseClient, tableName, family, reader, parser, sink, metrics, threads, batchSize, 64L * 1024 * 1024,
+                maxBytesPerSecond);
+    }
+
+    /**
+     * @param maxBatchBytes stored bytes of the single-cell blobs read in one batch
+     */
+    public Reindexer(Connection hbaseClient, TableName tableName, byte[] family, HBaseBlobReader reader,
+                     IngestStage parser, MetadataSink sink, IngestMetrics metrics,
+                     int threads, int batchSize, long maxBatchBytes, long maxBytesPerSecond) {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize < 1");
+        }
+
+        if (maxBatchBytes < 1) {
+            throw new IllegalArgumentException("maxBatchBytes < 1");
+        }
+
+        this.hbaseClient = hbaseClient;
+        this.tableName = tableName;
+        this.family = family;
+        this.reader = reader;
+        this.parser = parser;
+        this.sink = sink;
+        this.metrics = metrics;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.throttle = new Throttle(maxBytesPerSecond);
+    }
+
+    /**
+     * Reindexes the ranges of {@code checkpoint} not yet done and returns once every worker
+     * stopped. A range whose scan failed is left unfinished, to be resumed by the next run.
+     */
+    public void run(ReindexCheckpoint checkpoint, long checkpointMillis) throws IOException {
+
+        metrics.addQueue("ranges", checkpoint::getRemaining);
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new WorkerFactory());
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-reindex-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        saver.scheduleWithFixedDelay(() -> save(checkpoint), checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int i = 0; i < checkpoint.getRanges().size(); i++) {
+                if (!checkpoint.isDone(i)) {
+                    int range = i;
+                    futures.add(workers.submit(() -> reindex(checkpoint, range)));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reindexing");
+                } catch (ExecutionException e) {
+                    LOGGER.error("Reindex worker failed", e.getCause());
+                }
+            }
+        } finally {
+            running = false;
+            workers.shutdownNow();
+            saver.shutdown();
+
+            try {
+                saver.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            checkpoint.save();
+        }
+    }
+
+    /**
+     * Stops the workers once their current batch was written, leaving the rest to a later run.
+     */
+    public void stop() {
+
+        running = false;
+    }
+
+    /**
+     * Returns the number of instances that could not be reindexed.
+     */
+    public long getFailures() {
+
+        return failures.get();
+    }
+
+    private void reindex(ReindexCheckpoint checkpoint, int range) {
+
+        KeyRange keys = checkpoint.getRanges().get(range);
+        byte[] position = checkpoint.getPosition(range);
+
+        // the value of each cell is replaced by its length
+        Scan scan = new Scan()
+                .addFamily(family)
+                .setFilter(new KeyOnlyFilter(true))
+                .setCaching(SCAN_CACHING)
+                .setCacheBlocks(false);
+
+        if (position != null) {
+            scan.withStartRow(position, false);
+        } else if (keys.getStart().length > 0) {
+            scan.withStartRow(keys.getStart());
+        }
+
+        if (keys.getStop().length > 0) {
+            scan.withStopRow(keys.getStop());
+        }
+
+        List<byte[]> rows = new ArrayList<>(batchSize);
+        List<String> uids = new ArrayList<>(batchSize);
+        long batchBytes = 0;
+        byte[] complete = null;
+        boolean acknowledged = true;
+
+        try (Table table = hbaseClient.getTable(tableName); ResultScanner scanner = table.getScanner(scan)) {
+            for (Result result = scanner.next(); result != null && running; result = scanner.next()) {
+                byte[] row = result.getRow();
+
+                for (Blob blob : blobs(result)) {
+                    boolean processed = false;
+
+                    if (!uids.isEmpty() && (blob.chunked || uids.size() >= batchSize
+                            || batchBytes + blob.size > maxBatchBytes)) {
+                        acknowledged &= process(rows, uids);
+                        rows.clear();
+                        uids.clear();
+                        batchBytes = 0;
+                        processed = true;
+                    }
+
+                    if (blob.chunked) {
+                        acknowledged &= stream(row, blob);
+                        processed = true;
+                    } else {
+                        rows.add(row);
+                        uids.add(blob.uid);
+                        batchBytes += blob.size;
+                    }
+
+                    if (processed && acknowledged && complete != null) {
+                        checkpoint.advance(range, complete);
+                    }
+                }
+
+                complete = row;
+
+                if (uids.isEmpty() && acknowledged) {
+                    checkpoint.advance(range, row);
+                }
+            }
+
+            if (!running) {
+                return;
+            }
+
+            acknowledged &= process(rows, uids);
+
+            if (acknowledged) {
+                checkpoint.finish(range);
+                LOGGER.info("Reindexed range {}", keys);
+            } else {
+                LOGGER.warn("Range {} had failures, left for the next run", keys);
+            }
+        } catch (InterruptedIOException e) {
+            LOGGER.info("Reindex of range {} interrupted", keys);
+        } catch (IOException e) {
+            LOGGER.error("Failed to reindex range {}, left for the next run", keys, e);
+        }
+    }
+
+    /**
+     * Returns the blobs of a row, read from a scan that replaced each value by its length: the
+     * qualifiers of single-cell blobs with the length of their cell, and those the manifests of
+     * chunked blobs belong to with the sum of the lengths of their chunks. Empty cells were left by
+     * a rewrite in the other layout and are skipped. Sizes are those stored, before decoding.
+     */
+    private static List<Blob> blobs(Result result) {
+
+        Map<String, Blob> blobs = new LinkedHashMap<>();
+        Map<String, Long> chunkBytes = new HashMap<>();
+
+        for (Cell cell : result.rawCells()) {
+            byte[] qualifier = new byte[cell.getQualifierLength()];
+            System.arraycopy(cell.getQualifierArray(), cell.getQualifierOffset(), qualifier, 0, qualifier.length);
+
+            int length = Bytes.toInt(cell.getValueArray(), cell.getValueOffset());
+            int separator = indexOf(qualifier, SUFFIX_SEPARATOR);
+
+            if (separator < 0) {
+                if (length > 0) {
+                    String uid = Bytes.toString(qualifier);
+                    blobs.put(uid, new Blob(uid, false, length));
+                }
+            } else if (qualifier.length - separator == MANIFEST_SUFFIX.length
+                    && Bytes.equals(Bytes.tail(qualifier, MANIFEST_SUFFIX.length), MANIFEST_SUFFIX)) {
+                if (length > 0) {
+                    // sorts after the single cell of the same UID, which it takes precedence over
+                    String uid = Bytes.toString(qualifier, 0, separator);
+                    blobs.put(uid, new Blob(uid, true, 0));
+                }
+            } else if (qualifier.length - separator == CHUNK_SUFFIX_LENGTH) {
+                chunkBytes.merge(Bytes.toString(qualifier, 0, separator), (long) length, Long::sum);
+            }
+        }
+
+        List<Blob> list = new ArrayList<>(blobs.size());
+
+        for (Blob blob : blobs.values()) {
+            list.add(blob.chunked ? new Blob(blob.uid, true, chunkBytes.getOrDefault(blob.uid, 0L)) : blob);
+        }
+
+        return list;
+    }
+
+    private static int indexOf(byte[] bytes, byte b) {
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads, parses and writes a batch, waits until the sink acknowledged every document and
+     * tells whether all were written.
+     */
+    private boolean process(List<byte[]> rows, List<String> uids) throws IOException {
+
+        if (uids.isEmpty()) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        boolean[] failed = new boolean[uids.size()];
+        byte[][] blobs = read(rows, uids, failed);
+        long readNanos = (System.nanoTime() - start) / uids.size();
+
+        long bytes = 0;
+        boolean acknowledged = true;
+
+        for (byte[] blob : blobs) {
+            bytes += blob == null ? 0 : blob.length;
+        }
+
+        throttle.acquire(bytes);
+
+        List<CompletableFuture<?>> writes = new ArrayList<>(uids.size());
+
+        for (int i = 0; i < uids.size(); i++) {
+            metrics.submitted();
+
+            if (blobs[i] == null) {
+                // not found: removed since the scan
+                acknowledged &= !failed[i];
+                continue;
+            }
+
+            metrics.recordStage("read", readNanos);
+
+            IngestTask task = new IngestTask(null);
+            task.setSize(blobs[i].length);
+            task.setData(blobs[i]);
+
+            CompletableFuture<?> write = write(uids.get(i), task);
+
+            if (write == null) {
+                acknowledged = false;
+            } else {
+                writes.add(write);
+            }
+
+            blobs[i] = null;
+        }
+
+        return acknowledged & await(writes);
+    }
+
+    /**
+     * Streams a chunked blob through the parse stage and writes its document.
+     */
+    private boolean stream(byte[] row, Blob blob) throws IOException {
+
+        metrics.submitted();
+        throttle.acquire(blob.size);
+
+        IngestTask task = new IngestTask(null);
+        task.setSize(blob.size);
+        task.setSource(() -> reader.open(row, family, blob.uid));
+
+        CompletableFuture<?> write = write(blob.uid, task);
+
+        return write != null && await(Collections.singletonList(write));
+    }
+
+    private static boolean await(List<CompletableFuture<?>> writes) {
+
+        try {
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+            return true;
+        } catch (CompletionException e) {
+            // counted per document
+            return false;
+        }
+    }
+
+    /**
+     * Reads the blobs of a batch; when the batch fails as a whole, reads them one by one so a
+     * damaged blob fails alone. The blobs that could not be read are flagged in {@code failed}.
+     */
+    private byte[][] read(List<byte[]> rows, List<String> uids, boolean[] failed) throws IOException {
+
+        try {
+            return reader.readAll(rows, family, uids);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            if (uids.size() == 1) {
+                fail(uids.get(0), "read", e);
+                failed[0] = true;
+                return new byte[1][];
+            }
+        }
+
+        byte[][] blobs = new byte[uids.size()][];
+
+        for (int i = 0; i < uids.size(); i++) {
+            try {
+                blobs[i] = reader.readAll(Collections.singletonList(rows.get(i)), family,
+                        Collections.singletonList(uids.get(i)))[0];
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                fail(uids.get(i), "read", e);
+                failed[i] = true;
+            }
+        }
+
+        return blobs;
+    }
+
+    /**
+     * Parses a task and writes its document, returning {@code null} when the parse failed.
+     */
+    private CompletableFuture<?> write(String uid, IngestTask task) throws InterruptedIOException {
+
+        long start = System.nanoTime();
+
+        try {
+            parser.process(task);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            fail(uid, "parse", e);
+            return null;
+        } finally {
+            metrics.recordStage("parse", System.nanoTime() - start);
+        }
+
+        if (!uid.equals(task.getSopInstanceUid())) {
+            fail(uid, "parse", new IOException("Blob holds SOP Instance UID " + task.getSopInstanceUid()));
+            return null;
+        }
+
+        long size = task.getSize();
+        int attributeCount = task.getAttributeCount();
+        long writeStart = System.nanoTime();
+
+        return sink.write(uid, task.getJson(), null).whenComplete((outcome, e) -> {
+            metrics.recordWrite("couchdb", System.nanoTime() - writeStart);
+
+            if (e != null) {
+                fail(uid, "couchdb", e);
+            } else {
+                metrics.ingested(size, attributeCount);
+            }
+        });
+    }
+
+    private void fail(String uid, String stage, Throwable e) {
+
+        failures.incrementAndGet();
+        metrics.failed(stage);
+
+        LOGGER.warn("Failed to reindex {} ({})", uid, stage, e);
+    }
+
+    private static void save(ReindexCheckpoint checkpoint) {
+
+        try {
+            checkpoint.save();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to save the reindex checkpoint", e);
+        }
+    }
+
+    /**
+     * A blob listed by the scan, with its stored size.
+     */
+    private static class Blob {
+
+        private final String uid;
+
+        private final boolean chunked;
+
+        private final long size;
+
+        private Blob(String uid, boolean chunked, long size) {
+
+            this.uid = uid;
+            this.chunked = chunked;
+            this.size = size;
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Thread thread = new Thread(r, "dicom-reindex-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package dicom.reindex;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the bytes read by every worker under {@code bytesPerSecond}. A worker that read ahead of
+ * the rate sleeps until the rate catches up; idle time is not saved up beyond one second.
+ */
+class Throttle {
+
+    private final long bytesPerSecond;
+
+    /**
+     * Time at which the bytes acquired so far are paid off.
+     */
+    private long paidUntil = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the rate, or 0 for none
+     */
+    Throttle(long bytesPerSecond) {
+
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void acquire(long bytes) throws InterruptedIOException {
+
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+
+        long wait;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            paidUntil = Math.max(paidUntil, now - TimeUnit.SECONDS.toNanos(1))
+                    + (long) (bytes * 1e9 / bytesPerSecond);
+            wait = paidUntil - now;
+        }
+
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+}
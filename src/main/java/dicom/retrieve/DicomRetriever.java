@@ -0,0 +1,347 @@
+package dicom.retrieve;
+
+import dicom.hbase.HBaseBlobReader;
+import dicom.hbase.RowKeyStrategy;
+import dicom.metrics.CacheMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads stored instances back by SOP Instance UID, series or study.
+ * <p>
+ * Every request costs at most one lookup in the {@link InstanceLocator} and two multi-gets in
+ * HBase, whatever the number of instances: a viewer prefetching a series gets it in one call.
+ * Blobs are kept in a least recently used cache of {@code blobCacheBytes}, off-heap in direct
+ * buffers when {@code offHeap} is set, and metadata documents in an on-heap one of
+ * {@code metadataCacheBytes}. Both are exposed over JMX as {@code dicom:type=Cache} once
+ * {@link #register()} is called.
+ * <p>
+ * Instances are returned as read-only views of the cached buffers, so a cache hit copies nothing,
+ * whether the cache is on or off heap. {@link #getInstanceRange(String, long, int)} reads part of
+ * an instance, from the cache or, on a miss, only the chunks holding the range.
+ */
+public class DicomRetriever {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DicomRetriever.class);
+
+    private final InstanceLocator locator;
+
+    private final HBaseBlobReader reader;
+
+    private final RowKeyStrategy rowKeys;
+
+    private final byte[] family;
+
+    private final boolean offHeap;
+
+    private final LruCache<String, byte[]> metadataCache;
+
+    private final LruCache<String, ByteBuffer> blobCache;
+
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public DicomRetriever(InstanceLocator locator, HBaseBlobReader reader, RowKeyStrategy rowKeys, byte[] family,
+                          long metadataCacheBytes, long blobCacheBytes, boolean offHeap) {
+
+        this.locator = locator;
+        this.reader = reader;
+        this.rowKeys = rowKeys;
+        this.family = family;
+        this.offHeap = offHeap;
+
+        metadataCache = new LruCache<>(metadataCacheBytes, doc -> doc.length);
+        blobCache = new LruCache<>(blobCacheBytes, ByteBuffer::capacity);
+    }
+
+    /**
+     * Returns the DICOM file of an instance, or {@code null} when it is not stored.
+     */
+    public ByteBuffer getInstance(String sopInstanceUid) throws IOException {
+
+        return getInstances(Collections.singletonList(sopInstanceUid)).get(sopInstanceUid);
+    }
+
+    /**
+     * Returns {@code length} bytes of the DICOM file of an instance from {@code offset}, or
+     * {@code null} when it is not stored. A range of an instance that is not cached is read
+     * from HBase on its own and not cached.
+     *
+     * @throws IllegalArgumentException when the range is outside the file
+     */
+    public ByteBuffer getInstanceRange(String sopInstanceUid, long offset, int length) throws IOException {
+
+        ByteBuffer cached = getCachedBlob(sopInstanceUid);
+
+        if (cached != null) {
+            if (offset < 0 || length < 0 || offset + length > cached.capacity()) {
+                throw new IllegalArgumentException(String.format("Range %d+%d outside blob %s of %d bytes",
+                        offset, length, sopInstanceUid, cached.capacity()));
+            }
+
+            cached.position((int) offset).limit((int) offset + length);
+
+            return cached.slice();
+        }
+
+        InstanceRef ref = locator.locate(Collections.singletonList(sopInstanceUid)).get(sopInstanceUid);
+
+        if (ref == null) {
+            return null;
+        }
+
+        byte[] range = reader.read(rowKeys.rowKey(ref.getPatientId(), ref.getStudyInstanceUid(), sopInstanceUid),
+                family, sopInstanceUid, offset, length);
+
+        return ByteBuffer.wrap(range).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the DICOM files of the instances found, by SOP Instance UID, in the order given.
+     */
+    public Map<String, ByteBuffer> getInstances(Collection<String> sopInstanceUids) throws IOException {
+
+        Map<String, ByteBuffer> cached = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String uid : sopInstanceUids) {
+            ByteBuffer blob = getCachedBlob(uid);
+
+            if (blob != null) {
+                cached.put(uid, blob);
+            } else {
+                missing.add(uid);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return cached;
+        }
+
+        Map<String, InstanceRef> refs = locator.locate(missing);
+        List<InstanceRef> found = new ArrayList<>(refs.size());
+
+        for (String uid : missing) {
+            if (refs.containsKey(uid)) {
+                found.add(refs.get(uid));
+            }
+        }
+
+        Map<String, ByteBuffer> fetched = fetch(found);
+        Map<String, ByteBuffer> instances = new LinkedHashMap<>();
+
+        for (String uid : sopInstanceUids) {
+            ByteBuffer blob = cached.containsKey(uid) ? cached.get(uid) : fetched.get(uid);
+
+            if (blob != null) {
+                instances.put(uid, blob);
+            }
+        }
+
+        return instances;
+    }
+
+    /**
+     * Returns the DICOM files of every instance of a series, by SOP Instance UID.
+     */
+    public Map<String, ByteBuffer> getSeries(String seriesInstanceUid) throws IOException {
+
+        return getAll(locator.findSeries(seriesInstanceUid));
+    }
+
+    /**
+     * Returns the DICOM files of every instance of a study, by SOP Instance UID.
+     */
+    public Map<String, ByteBuffer> getStudy(String studyInstanceUid) throws IOException {
+
+        return getAll(locator.findStudy(studyInstanceUid));
+    }
+
+    /**
+     * Returns the JSON metadata document of an instance, or {@code null} when it is not stored.
+     */
+    public byte[] getMetadata(String sopInstanceUid) throws IOException {
+
+        return getMetadata(Collections.singletonList(sopInstanceUid)).get(sopInstanceUid);
+    }
+
+    public Map<String, byte[]> getMetadata(Collection<String> sopInstanceUids) throws IOException {
+
+        Map<String, byte[]> documents = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+
+        for (String uid : sopInstanceUids) {
+            byte[] doc = metadataCache.get(uid);
+
+            if (doc != null) {
+                documents.put(uid, doc);
+            } else {
+                missing.add(uid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            for (Map.Entry<String, byte[]> entry : locator.documents(missing).entrySet()) {
+                metadataCache.put(entry.getKey(), entry.getValue());
+                documents.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return documents;
+    }
+
+    /**
+     * Drops an instance from the caches, after it was written again.
+     */
+    public void invalidate(String sopInstanceUid) {
+
+        metadataCache.invalidate(sopInstanceUid);
+        blobCache.invalidate(sopInstanceUid);
+    }
+
+    public CacheMXBean getMetadataCache() {
+
+        return metadataCache;
+    }
+
+    public CacheMXBean getBlobCache() {
+
+        return blobCache;
+    }
+
+    /**
+     * Registers the caches with the platform MBean server as
+     * {@code dicom:type=Cache,name=metadata} and {@code dicom:type=Cache,name=blob}.
+     */
+    public synchronized void register() throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        ObjectName metadataName = new ObjectName("dicom:type=Cache,name=metadata");
+        server.registerMBean(metadataCache, metadataName);
+        registered.add(metadataName);
+
+        ObjectName blobName = new ObjectName("dicom:type=Cache,name=blob");
+        server.registerMBean(blobCache, blobName);
+        registered.add(blobName);
+    }
+
+    public synchronized void unregister() {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.warn("Failed to unregister {}", name, e);
+            }
+        }
+
+        registered.clear();
+    }
+
+    private Map<String, ByteBuffer> getAll(List<InstanceRef> refs) throws IOException {
+
+        Map<String, ByteBuffer> instances = new LinkedHashMap<>();
+        List<InstanceRef> missing = new ArrayList<>();
+
+        for (InstanceRef ref : refs) {
+            ByteBuffer blob = getCachedBlob(ref.getSopInstanceUid());
+
+            if (blob != null) {
+                instances.put(ref.getSopInstanceUid(), blob);
+            } else {
+                missing.add(ref);
+                instances.put(ref.getSopInstanceUid(), null);
+            }
+        }
+
+        Map<String, ByteBuffer> fetched = fetch(missing);
+
+        for (InstanceRef ref : missing) {
+            ByteBuffer blob = fetched.get(ref.getSopInstanceUid());
+
+            if (blob != null) {
+                instances.put(ref.getSopInstanceUid(), blob);
+            } else {
+                instances.remove(ref.getSopInstanceUid());
+            }
+        }
+
+        return instances;
+    }
+
+    /**
+     * Reads the blobs of the instances from HBase with {@link HBaseBlobReader#readAll} and
+     * caches them.
+     */
+    private Map<String, ByteBuffer> fetch(List<InstanceRef> refs) throws IOException {
+
+        Map<String, ByteBuffer> fetched = new LinkedHashMap<>();
+
+        if (refs.isEmpty()) {
+            return fetched;
+        }
+
+        List<byte[]> rows = new ArrayList<>(refs.size());
+        List<String> uids = new ArrayList<>(refs.size());
+
+        for (InstanceRef ref : refs) {
+            rows.add(rowKeys.rowKey(ref.getPatientId(), ref.getStudyInstanceUid(), ref.getSopInstanceUid()));
+            uids.add(ref.getSopInstanceUid());
+        }
+
+        byte[][] blobs = reader.readAll(rows, family, uids);
+
+        for (int i = 0; i < blobs.length; i++) {
+            if (blobs[i] != null) {
+                ByteBuffer buffer = toBuffer(blobs[i]);
+
+                blobCache.put(uids.get(i), buffer);
+                fetched.put(uids.get(i), buffer.asReadOnlyBuffer());
+            }
+        }
+
+        return fetched;
+    }
+
+    /**
+     * Returns a read-only view of a cached blob, or {@code null} when it is not cached.
+     */
+    private ByteBuffer getCachedBlob(String uid) {
+
+        ByteBuffer buffer = blobCache.get(uid);
+
+        return buffer == null ? null : buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the buffer to cache for a blob just read. The blob array itself is only ever handed
+     * out through read-only views, so it is kept as it is on heap.
+     */
+    private ByteBuffer toBuffer(byte[] blob) {
+
+        if (!offHeap) {
+            return ByteBuffer.wrap(blob);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(blob.length);
+        buffer.put(blob);
+        buffer.flip();
+
+        return buffer;
+    }
+}
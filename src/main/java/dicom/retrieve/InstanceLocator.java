@@ -0,0 +1,26 @@
+package dicom.retrieve;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds stored instances and their metadata documents.
+ */
+public interface InstanceLocator {
+
+    /**
+     * Returns the instances found among {@code sopInstanceUids}, by SOP Instance UID.
+     */
+    Map<String, InstanceRef> locate(Collection<String> sopInstanceUids) throws IOException;
+
+    List<InstanceRef> findSeries(String seriesInstanceUid) throws IOException;
+
+    List<InstanceRef> findStudy(String studyInstanceUid) throws IOException;
+
+    /**
+     * Returns the UTF-8 JSON documents found among {@code sopInstanceUids}, by SOP Instance UID.
+     */
+    Map<String, byte[]> documents(Collection<String> sopInstanceUids) throws IOException;
+}
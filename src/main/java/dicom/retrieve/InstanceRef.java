@@ -0,0 +1,44 @@
+package dicom.retrieve;
+
+/**
+ * The identifiers of a stored instance: enough to build its row key and to group it by series
+ * and study.
+ */
+public class InstanceRef {
+
+    private final String sopInstanceUid;
+
+    private final String patientId;
+
+    private final String studyInstanceUid;
+
+    private final String seriesInstanceUid;
+
+    public InstanceRef(String sopInstanceUid, String patientId, String studyInstanceUid, String seriesInstanceUid) {
+
+        this.sopInstanceUid = sopInstanceUid;
+        this.patientId = patientId;
+        this.studyInstanceUid = studyInstanceUid;
+        this.seriesInstanceUid = seriesInstanceUid;
+    }
+
+    public String getSopInstanceUid() {
+
+        return sopInstanceUid;
+    }
+
+    public String getPatientId() {
+
+        return patientId;
+    }
+
+    public String getStudyInstanceUid() {
+
+        return studyInstanceUid;
+    }
+
+    public String getSeriesInstanceUid() {
+
+        return seriesInstanceUid;
+    }
+}
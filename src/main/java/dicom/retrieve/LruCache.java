@@ -0,0 +1,155 @@
+package dicom.retrieve;
+
+import dicom.metrics.CacheMXBean;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Least recently used cache bounded by the total weight of its values rather than their number,
+ * with hit, miss and eviction counters. Values heavier than the whole cache are not kept.
+ */
+public class LruCache<K, V> implements CacheMXBean {
+
+    private final long maxWeight;
+
+    private final ToLongFunction<V> weigher;
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private long weight = 0;
+
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("maxWeight < 0");
+        }
+
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Returns the cached value, or {@code null} when there is none.
+     */
+    public V get(K key) {
+
+        V value;
+
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return value;
+    }
+
+    public void put(K key, V value) {
+
+        long valueWeight = weigher.applyAsLong(value);
+
+        synchronized (entries) {
+            if (valueWeight > maxWeight) {
+                remove(key);
+                return;
+            }
+
+            V previous = entries.put(key, value);
+
+            if (previous != null) {
+                weight -= weigher.applyAsLong(previous);
+            }
+
+            weight += valueWeight;
+
+            Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+
+            while (weight > maxWeight) {
+                Map.Entry<K, V> entry = eldest.next();
+
+                weight -= weigher.applyAsLong(entry.getValue());
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    public void invalidate(K key) {
+
+        synchronized (entries) {
+            remove(key);
+        }
+    }
+
+    private void remove(K key) {
+
+        V previous = entries.remove(key);
+
+        if (previous != null) {
+            weight -= weigher.applyAsLong(previous);
+        }
+    }
+
+    @Override
+    public long getHits() {
+
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+
+        long hits = getHits();
+        long requests = hits + getMisses();
+
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getEvictions() {
+
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize() {
+
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    @Override
+    public long getMaxWeight() {
+
+        return maxWeight;
+    }
+}
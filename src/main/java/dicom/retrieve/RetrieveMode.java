@@ -0,0 +1,76 @@
+package dicom.retrieve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Retrieves the instance, series or study with a given UID through a {@link DicomRetriever},
+ * whose caches are exposed over JMX meanwhile, and writes each instance to a directory as
+ * &lt;SOP Instance UID&gt;.dcm.
+ */
+public class RetrieveMode {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetrieveMode.class);
+
+    private final DicomRetriever retriever;
+
+    public RetrieveMode(DicomRetriever retriever) {
+
+        this.retriever = retriever;
+    }
+
+    /**
+     * @param level instance, series or study
+     */
+    public void run(String level, String uid, Path directory) throws IOException {
+
+        try {
+            retriever.register();
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register the retrieve caches over JMX", e);
+        }
+
+        try {
+            Map<String, ByteBuffer> instances;
+
+            switch (level) {
+                case "instance":
+                    instances = retriever.getInstances(Collections.singletonList(uid));
+                    break;
+                case "series":
+                    instances = retriever.getSeries(uid);
+                    break;
+                case "study":
+                    instances = retriever.getStudy(uid);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Nível desconhecido: " + level);
+            }
+
+            Files.createDirectories(directory);
+
+            for (Map.Entry<String, ByteBuffer> instance : instances.entrySet()) {
+                try (FileChannel channel = FileChannel.open(directory.resolve(instance.getKey() + ".dcm"),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    while (instance.getValue().hasRemaining()) {
+                        channel.write(instance.getValue());
+                    }
+                }
+            }
+
+            System.out.println(String.format("%d arquivo(s) recuperado(s)", instances.size()));
+        } finally {
+            retriever.unregister();
+        }
+    }
+}
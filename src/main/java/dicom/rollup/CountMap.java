@@ -0,0 +1,116 @@
+package dicom.rollup;
+
+/**
+ * Counts keyed by a pair of longs, in an open-addressed table of primitive arrays. Counts may be
+ * negative or drop back to zero; {@link #forEach(Visitor)} skips the keys whose count is zero.
+ */
+class CountMap {
+
+    interface Visitor {
+
+        void visit(long high, long low, long count);
+    }
+
+    private long[] highs;
+
+    private long[] lows;
+
+    private long[] counts;
+
+    private boolean[] used;
+
+    private int size = 0;
+
+    CountMap() {
+
+        allocate(1024);
+    }
+
+    void add(long high, long low, long delta) {
+
+        int slot = find(high, low);
+
+        if (!used[slot]) {
+            if (2 * (size + 1) > counts.length) {
+                grow();
+                slot = find(high, low);
+            }
+
+            highs[slot] = high;
+            lows[slot] = low;
+            used[slot] = true;
+            size++;
+        }
+
+        counts[slot] += delta;
+    }
+
+    /**
+     * Returns the number of keys added, those whose count dropped back to zero included.
+     */
+    int size() {
+
+        return size;
+    }
+
+    void forEach(Visitor visitor) {
+
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                visitor.visit(highs[i], lows[i], counts[i]);
+            }
+        }
+    }
+
+    private int find(long high, long low) {
+
+        int mask = counts.length - 1;
+        int slot = hash(high, low) & mask;
+
+        while (used[slot] && (highs[slot] != high || lows[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private void grow() {
+
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        long[] oldCounts = counts;
+        boolean[] oldUsed = used;
+
+        allocate(oldCounts.length * 2);
+
+        for (int i = 0; i < oldCounts.length; i++) {
+            if (oldUsed[i]) {
+                int slot = find(oldHighs[i], oldLows[i]);
+
+                highs[slot] = oldHighs[i];
+                lows[slot] = oldLows[i];
+                counts[slot] = oldCounts[i];
+                used[slot] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+
+        highs = new long[capacity];
+        lows = new long[capacity];
+        counts = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    private static int hash(long high, long low) {
+
+        long h = high * 0x9E3779B97F4A7C15L + low;
+
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+
+        return (int) h;
+    }
+}
@@ -0,0 +1,349 @@
+package dicom.rollup;
+
+import dicom.sink.MetadataSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the exam count and radiation views of {@code src/config} while ingesting, instead of
+ * leaving CouchDB to run them over every instance document.
+ * <p>
+ * Each instance added is counted under the same keys the views emit. Counts are kept in
+ * open-addressed tables of primitive arrays, keyed by the patient and modality interned to ints
+ * and the time fields packed in a long; dose records are kept as the rows the views emit. Every
+ * {@code flushMillis} the rows gathered since the last flush are written through the
+ * {@link MetadataSink} as rollup documents of at most {@code rowsPerDocument} rows:
+ * <pre>
+ * {"_id": "rollup:&lt;view&gt;:&lt;run&gt;:&lt;n&gt;", "rollup": "&lt;view&gt;", "rows": [[key, value], ...]}
+ * </pre>
+ * Rollup documents are only ever added, so flushing never conflicts with another run. The
+ * {@code rollup-*} views of {@code src/config} emit their rows, which gives the keys and values
+ * of the original views, reduced with the built-in {@code _sum} for the counts.
+ */
+public class RollupEngine implements Closeable {
+
+    public static final String EXAM_COUNT_BY_PATIENT = "exam_count-by_patient_and_datetime";
+
+    public static final String EXAM_COUNT_BY_MODALITY = "exam_count-by_modality_and_patient_and_datetime";
+
+    public static final String RADIATION_BY_MODALITY = "radiation-by_modality_and_datetime";
+
+    public static final String RADIATION_BY_PATIENT = "radiation-by_patient_and_modality_and_datetime";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RollupEngine.class);
+
+    private final MetadataSink sink;
+
+    private final int rowsPerDocument;
+
+    private final String run = UUID.randomUUID().toString();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicLong documents = new AtomicLong();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Object lock = new Object();
+
+    private final List<CompletableFuture<?>> pending = new ArrayList<>();
+
+    private Interval current = new Interval();
+
+    public RollupEngine(MetadataSink sink, long flushMillis, int rowsPerDocument) {
+
+        if (rowsPerDocument < 1) {
+            throw new IllegalArgumentException("rowsPerDocument < 1");
+        }
+
+        this.sink = sink;
+        this.rowsPerDocument = rowsPerDocument;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dicom-rollup-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts an instance. Add each instance once, when its document is first stored, since
+     * CouchDB would map a replaced document only once too.
+     */
+    public void add(RollupInput input) {
+
+        synchronized (lock) {
+            current.add(input, 1, true);
+        }
+    }
+
+    /**
+     * Moves the counts of a replaced document to the document replacing it, as CouchDB drops the
+     * rows of the old revision and maps the new one: the counts of {@code previous} are taken
+     * back and those of {@code next} added. Either may be {@code null}. Radiation rows already
+     * written cannot be taken back, so the row of {@code next} is added only when it differs
+     * from that of {@code previous}, and the row of a dose that changed stays as well.
+     */
+    public void replace(RollupInput previous, RollupInput next) {
+
+        synchronized (lock) {
+            if (previous != null) {
+                current.add(previous, -1, false);
+            }
+
+            if (next != null) {
+                current.add(next, 1, previous == null || !previous.hasSameRadiation(next));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rollup documents written.
+     */
+    public long getDocumentsWritten() {
+
+        return documents.get();
+    }
+
+    /**
+     * Writes the rows gathered since the last flush.
+     */
+    public void flush() {
+
+        Interval flushed;
+
+        synchronized (lock) {
+            if (current.isEmpty()) {
+                return;
+            }
+
+            flushed = current;
+            current = new Interval();
+        }
+
+        write(EXAM_COUNT_BY_PATIENT, flushed.countsByPatient());
+        write(EXAM_COUNT_BY_MODALITY, flushed.countsByModality());
+        write(RADIATION_BY_MODALITY, flushed.radiationByModality);
+        write(RADIATION_BY_PATIENT, flushed.radiationByPatient);
+    }
+
+    /**
+     * Flushes and waits until the sink acknowledged every rollup document. Close it before the
+     * sink.
+     */
+    @Override
+    public void close() {
+
+        flusher.shutdown();
+
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+
+        CompletableFuture<?>[] futures;
+
+        synchronized (pending) {
+            futures = pending.toArray(new CompletableFuture<?>[0]);
+            pending.clear();
+        }
+
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            // already logged
+        }
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (Throwable e) {
+            LOGGER.error("Failed to flush the rollups", e);
+        }
+    }
+
+    private void write(String view, List<String> rows) {
+
+        for (int from = 0; from < rows.size(); from += rowsPerDocument) {
+            String id = "rollup:" + view + ":" + run + ":" + sequence.incrementAndGet();
+
+            StringBuilder doc = new StringBuilder();
+            doc.append("{\"_id\":\"").append(id).append("\",\"rollup\":\"").append(view).append("\",\"rows\":[");
+
+            for (int i = from; i < Math.min(rows.size(), from + rowsPerDocument); i++) {
+                if (i > from) {
+                    doc.append(',');
+                }
+
+                doc.append(rows.get(i));
+            }
+
+            doc.append("]}");
+
+            CompletableFuture<?> future = sink.write(id, doc.toString().getBytes(StandardCharsets.UTF_8), null)
+                    .whenComplete((outcome, e) -> {
+                        if (e != null) {
+                            LOGGER.error("Failed to write rollup {}", id, e);
+                        } else {
+                            documents.incrementAndGet();
+                        }
+                    });
+
+            synchronized (pending) {
+                pending.removeIf(CompletableFuture::isDone);
+                pending.add(future);
+            }
+        }
+    }
+
+    /**
+     * The rows gathered between two flushes.
+     */
+    private static class Interval {
+
+        private final Map<String, Integer> patientIds = new HashMap<>();
+
+        private final List<String> patients = new ArrayList<>();
+
+        private final Map<String, Integer> modalityIds = new HashMap<>();
+
+        private final List<String> modalities = new ArrayList<>();
+
+        /**
+         * patient, time
+         */
+        private final CountMap byPatient = new CountMap();
+
+        /**
+         * modality &lt;&lt; 32 | patient, time
+         */
+        private final CountMap byModality = new CountMap();
+
+        /**
+         * Counts whose time fields do not fit in a long, by key.
+         */
+        private final Map<String, Long> unpackedByPatient = new HashMap<>();
+
+        private final Map<String, Long> unpackedByModality = new HashMap<>();
+
+        private final List<String> radiationByModality = new ArrayList<>();
+
+        private final List<String> radiationByPatient = new ArrayList<>();
+
+        /**
+         * Adds {@code delta} to the counts of an instance, and its radiation rows when
+         * {@code radiation} is set.
+         */
+        private void add(RollupInput input, long delta, boolean radiation) {
+
+            String patient = input.getPatient();
+            String modality = input.getModality();
+
+            if (patient != null) {
+                int patientId = intern(patient, patientIds, patients);
+
+                if (input.getTime() >= 0) {
+                    byPatient.add(patientId, input.getTime(), delta);
+                } else {
+                    unpackedByPatient.merge(key(patient, null, input), delta, Long::sum);
+                }
+
+                if (modality != null) {
+                    int modalityId = intern(modality, modalityIds, modalities);
+
+                    if (input.getTime() >= 0) {
+                        byModality.add(((long) modalityId << 32) | patientId, input.getTime(), delta);
+                    } else {
+                        unpackedByModality.merge(key(modality, patient, input), delta, Long::sum);
+                    }
+                }
+            }
+
+            if (radiation && input.getDose() != null && modality != null) {
+                radiationByModality.add("[" + key(modality, null, input) + "," + input.getDose() + "]");
+
+                if (patient != null) {
+                    radiationByPatient.add("[" + key(patient, modality, input) + "," + input.getDose() + "]");
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+
+            return byPatient.size() == 0 && unpackedByPatient.isEmpty()
+                    && radiationByModality.isEmpty() && radiationByPatient.isEmpty();
+        }
+
+        private List<String> countsByPatient() {
+
+            List<String> rows = new ArrayList<>(byPatient.size() + unpackedByPatient.size());
+
+            byPatient.forEach((patientId, time, count) ->
+                    rows.add("[[" + patients.get((int) patientId) + "," + RollupInput.unpack(time) + "]," + count + "]"));
+
+            for (Map.Entry<String, Long> entry : unpackedByPatient.entrySet()) {
+                if (entry.getValue() != 0) {
+                    rows.add("[" + entry.getKey() + "," + entry.getValue() + "]");
+                }
+            }
+
+            return rows;
+        }
+
+        private List<String> countsByModality() {
+
+            List<String> rows = new ArrayList<>(byModality.size() + unpackedByModality.size());
+
+            byModality.forEach((ids, time, count) ->
+                    rows.add("[[" + modalities.get((int) (ids >>> 32)) + "," + patients.get((int) ids) + ","
+                            + RollupInput.unpack(time) + "]," + count + "]"));
+
+            for (Map.Entry<String, Long> entry : unpackedByModality.entrySet()) {
+                if (entry.getValue() != 0) {
+                    rows.add("[" + entry.getKey() + "," + entry.getValue() + "]");
+                }
+            }
+
+            return rows;
+        }
+
+        private static String key(String first, String second, RollupInput input) {
+
+            return "[" + first + "," + (second == null ? "" : second + ",") + input.getTimeFields() + "]";
+        }
+
+        private static int intern(String value, Map<String, Integer> ids, List<String> values) {
+
+            Integer id = ids.get(value);
+
+            if (id == null) {
+                id = values.size();
+                ids.put(value, id);
+                values.add(value);
+            }
+
+            return id;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package dicom.rollup;
+
+import dicom.json.MemberCapture;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * What the rollup views need from one instance document: its patient, modality, acquisition
+ * time and dose attributes.
+ * <p>
+ * The values are taken the way the JavaScript views in {@code src/config} take them: patient and
+ * modality are copied as JSON, the acquisition time is {@code t0008002A}, or {@code t00080022}
+ * followed by {@code t00080032}, split with {@code substr} into six fields and converted with
+ * {@code Number}, so a field that is not a number becomes {@code null} as {@code NaN} does in the
+ * emitted keys.
+ */
+public final class RollupInput {
+
+    static final String SOP_INSTANCE_UID = "t00080018";
+
+    static final String PATIENT_ID = "t00100020";
+
+    static final String MODALITY = "t00080060";
+
+    static final String ACQUISITION_DATE_TIME = "t0008002A";
+
+    static final String ACQUISITION_DATE = "t00080022";
+
+    static final String ACQUISITION_TIME = "t00080032";
+
+    /**
+     * KVP, Exposure Time, X-Ray Tube Current, CT Exposure Sequence, CTDIvol and Relative X-Ray
+     * Exposure, in the order the views add them to the dose record.
+     */
+    static final String[] DOSE = {"t00180060", "t00181150", "t00181151", "t00189321", "t00189345", "t00181405"};
+
+    /**
+     * The tags of every member read, for a {@link MemberCapture}.
+     */
+    public static final int[] TAGS = tags(SOP_INSTANCE_UID, PATIENT_ID, MODALITY,
+            ACQUISITION_DATE_TIME, ACQUISITION_DATE, ACQUISITION_TIME);
+
+    /**
+     * The six time fields packed as year (14 bits) and month, day, hour, minute and second
+     * (7 bits each), or -1 when a field is not a small non-negative integer.
+     */
+    static final int[] TIME_BITS = {14, 7, 7, 7, 7, 7};
+
+    private static final int[][] TIME_FIELDS = {{0, 4}, {4, 2}, {6, 2}, {8, 2}, {10, 2}, {12, 2}};
+
+    private static final Pattern DECIMAL = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+
+    private static final Pattern HEX = Pattern.compile("0[xX][0-9a-fA-F]+");
+
+    private final String patient;
+
+    private final String modality;
+
+    private final long time;
+
+    private final String timeFields;
+
+    private final String dose;
+
+    private RollupInput(String patient, String modality, long time, String timeFields, String dose) {
+
+        this.patient = patient;
+        this.modality = modality;
+        this.time = time;
+        this.timeFields = timeFields;
+        this.dose = dose;
+    }
+
+    /**
+     * Returns the patient as JSON, or {@code null} when the document has none.
+     */
+    public String getPatient() {
+
+        return patient;
+    }
+
+    /**
+     * Returns the modality as JSON, or {@code null} when the document has none.
+     */
+    public String getModality() {
+
+        return modality;
+    }
+
+    /**
+     * Returns the packed time fields, or -1 when they do not fit; see {@link #getTimeFields()}.
+     */
+    public long getTime() {
+
+        return time;
+    }
+
+    /**
+     * Returns the six time fields as comma separated JSON values.
+     */
+    public String getTimeFields() {
+
+        return timeFields != null ? timeFields : unpack(time);
+    }
+
+    /**
+     * Returns the dose record the radiation views emit, or {@code null} when the document has no
+     * dose attribute.
+     */
+    public String getDose() {
+
+        return dose;
+    }
+
+    /**
+     * Tells whether the radiation views emit the same row for both instances.
+     */
+    public boolean hasSameRadiation(RollupInput other) {
+
+        return Objects.equals(patient, other.patient) && Objects.equals(modality, other.modality)
+                && getTimeFields().equals(other.getTimeFields()) && Objects.equals(dose, other.dose);
+    }
+
+    /**
+     * Reads the members {@code members} kept while the document was written; it must select
+     * {@link #TAGS}. Only those few members are parsed. Returns {@code null} as
+     * {@link #extract(byte[])} does.
+     */
+    public static RollupInput extract(MemberCapture members) {
+
+        return members.isEmpty() ? null : extract(members.toJson());
+    }
+
+    /**
+     * Reads the top level members of a UTF-8 JSON instance document. Returns {@code null} when
+     * none of the views would emit the document, that is when it has no usable acquisition time
+     * or neither a patient nor a modality.
+     */
+    public static RollupInput extract(byte[] doc) {
+
+        String[] members = new String[3 + DOSE.length];
+        String dateTime = null;
+        String date = null;
+        String time = null;
+        boolean hasDateTime = false;
+        boolean hasDate = false;
+        boolean hasTime = false;
+        boolean numericDate = false;
+        boolean numericTime = false;
+
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(doc))) {
+            if (parser.next() != Event.START_OBJECT) {
+                return null;
+            }
+
+            Event event;
+
+            while ((event = parser.next()) != Event.END_OBJECT) {
+                String name = parser.getString();
+
+                event = parser.next();
+
+                switch (name) {
+                    case ACQUISITION_DATE_TIME:
+                        hasDateTime = true;
+                        dateTime = event == Event.VALUE_STRING ? parser.getString() : null;
+                        skip(parser, event);
+                        break;
+                    case ACQUISITION_DATE:
+                        hasDate = true;
+                        numericDate = event == Event.VALUE_NUMBER;
+                        date = toJsString(parser, event);
+                        break;
+                    case ACQUISITION_TIME:
+                        hasTime = true;
+                        numericTime = event == Event.VALUE_NUMBER;
+                        time = toJsString(parser, event);
+                        break;
+                    default:
+                        int member = member(name);
+
+                        if (member >= 0) {
+                            members[member] = toJson(parser, event);
+                        } else {
+                            skip(parser, event);
+                        }
+                }
+            }
+        }
+
+        String patient = members[1];
+        String modality = members[2];
+
+        if (patient == null && modality == null) {
+            return null;
+        }
+
+        // the views call substr on the time, which throws on anything but a string
+        String datetime;
+
+        if (hasDateTime) {
+            datetime = dateTime;
+        } else if (hasDate && hasTime && !(numericDate && numericTime)) {
+            datetime = date + time;
+        } else {
+            datetime = null;
+        }
+
+        if (datetime == null) {
+            return null;
+        }
+
+        StringBuilder fields = new StringBuilder();
+        long packed = 0;
+
+        for (int i = 0; i < TIME_FIELDS.length; i++) {
+            double value = toJsNumber(substr(datetime, TIME_FIELDS[i][0], TIME_FIELDS[i][1]));
+
+            if (i > 0) {
+                fields.append(',');
+            }
+
+            fields.append(toJson(value));
+
+            if (packed >= 0 && value >= 0 && value < (1 << TIME_BITS[i]) && value == Math.rint(value)) {
+                packed = (packed << TIME_BITS[i]) | (long) value;
+            } else {
+                packed = -1;
+            }
+        }
+
+        return new RollupInput(patient, modality, packed, packed >= 0 ? null : fields.toString(), dose(members));
+    }
+
+    private static int[] tags(String... names) {
+
+        int[] tags = new int[names.length + DOSE.length];
+
+        for (int i = 0; i < names.length; i++) {
+            tags[i] = Integer.parseUnsignedInt(names[i].substring(1), 16);
+        }
+
+        for (int i = 0; i < DOSE.length; i++) {
+            tags[names.length + i] = Integer.parseUnsignedInt(DOSE[i].substring(1), 16);
+        }
+
+        return tags;
+    }
+
+    static String unpack(long time) {
+
+        StringBuilder fields = new StringBuilder();
+        int shift = 0;
+
+        for (int bits : TIME_BITS) {
+            shift += bits;
+        }
+
+        for (int i = 0; i < TIME_BITS.length; i++) {
+            shift -= TIME_BITS[i];
+
+            if (i > 0) {
+                fields.append(',');
+            }
+
+            fields.append((time >>> shift) & ((1L << TIME_BITS[i]) - 1));
+        }
+
+        return fields.toString();
+    }
+
+    private static int member(String name) {
+
+        switch (name) {
+            case SOP_INSTANCE_UID:
+                return 0;
+            case PATIENT_ID:
+                return 1;
+            case MODALITY:
+                return 2;
+            default:
+                for (int i = 0; i < DOSE.length; i++) {
+                    if (DOSE[i].equals(name)) {
+                        return 3 + i;
+                    }
+                }
+                return -1;
+        }
+    }
+
+    /**
+     * Builds the dose record: SOP Instance UID and patient, when present, then every dose
+     * attribute present; {@code null} when there is no dose attribute.
+     */
+    private static String dose(String[] members) {
+
+        StringBuilder dose = null;
+
+        for (int i = 0; i < DOSE.length; i++) {
+            if (members[3 + i] == null) {
+                continue;
+            }
+
+            if (dose == null) {
+                dose = new StringBuilder("{");
+                member(dose, SOP_INSTANCE_UID, members[0]);
+                member(dose, PATIENT_ID, members[1]);
+            }
+
+            member(dose, DOSE[i], members[3 + i]);
+        }
+
+        return dose == null ? null : dose.append('}').toString();
+    }
+
+    private static void member(StringBuilder object, String name, String json) {
+
+        if (json != null) {
+            if (object.length() > 1) {
+                object.append(',');
+            }
+
+            object.append('"').append(name).append("\":").append(json);
+        }
+    }
+
+    /**
+     * JavaScript's {@code String.prototype.substr}.
+     */
+    private static String substr(String s, int start, int length) {
+
+        return start >= s.length() ? "" : s.substring(start, Math.min(s.length(), start + length));
+    }
+
+    /**
+     * JavaScript's {@code Number} applied to a string.
+     */
+    static double toJsNumber(String s) {
+
+        s = s.trim();
+
+        if (s.isEmpty()) {
+            return 0;
+        }
+
+        if (DECIMAL.matcher(s).matches()) {
+            return Double.parseDouble(s);
+        }
+
+        if (HEX.matcher(s).matches()) {
+            return Long.parseLong(s.substring(2), 16);
+        }
+
+        return Double.NaN;
+    }
+
+    private static String toJson(double value) {
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+
+        return Double.toString(value);
+    }
+
+    /**
+     * Reads a value as JavaScript converts it to a string when it is concatenated.
+     */
+    private static String toJsString(JsonParser parser, Event event) {
+
+        switch (event) {
+            case VALUE_STRING:
+            case VALUE_NUMBER:
+                return parser.getString();
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            case START_ARRAY:
+                StringBuilder joined = new StringBuilder();
+                boolean first = true;
+
+                while ((event = parser.next()) != Event.END_ARRAY) {
+                    if (!first) {
+                        joined.append(',');
+                    }
+
+                    first = false;
+
+                    // Array.prototype.join leaves null elements empty
+                    if (event != Event.VALUE_NULL) {
+                        joined.append(toJsString(parser, event));
+                    }
+                }
+
+                return joined.toString();
+            default:
+                skip(parser, event);
+                return "[object Object]";
+        }
+    }
+
+    /**
+     * Reads a value back to JSON.
+     */
+    private static String toJson(JsonParser parser, Event event) {
+
+        switch (event) {
+            case VALUE_NUMBER:
+                return parser.getString();
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            default:
+                StringWriter json = new StringWriter();
+
+                try (JsonGenerator generator = Json.createGenerator(json)) {
+                    generator.writeStartArray();
+                    copy(parser, event, null, generator);
+                    generator.writeEnd();
+                }
+
+                StringBuffer buffer = json.getBuffer();
+
+                return buffer.substring(1, buffer.length() - 1);
+        }
+    }
+
+    private static void copy(JsonParser parser, Event event, String name, JsonGenerator generator) {
+
+        switch (event) {
+            case START_OBJECT:
+                if (name == null) {
+                    generator.writeStartObject();
+                } else {
+                    generator.writeStartObject(name);
+                }
+
+                while (parser.next() != Event.END_OBJECT) {
+                    String member = parser.getString();
+                    copy(parser, parser.next(), member, generator);
+                }
+
+                generator.writeEnd();
+                break;
+            case START_ARRAY:
+                if (name == null) {
+                    generator.writeStartArray();
+                } else {
+                    generator.writeStartArray(name);
+                }
+
+                while ((event = parser.next()) != Event.END_ARRAY) {
+                    copy(parser, event, null, generator);
+                }
+
+                generator.writeEnd();
+                break;
+            case VALUE_STRING:
+                if (name == null) {
+                    generator.write(parser.getString());
+                } else {
+                    generator.write(name, parser.getString());
+                }
+                break;
+            case VALUE_NUMBER:
+                if (name == null) {
+                    generator.write(parser.getBigDecimal());
+                } else {
+                    generator.write(name, parser.getBigDecimal());
+                }
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                if (name == null) {
+                    generator.write(event == Event.VALUE_TRUE);
+                } else {
+                    generator.write(name, event == Event.VALUE_TRUE);
+                }
+                break;
+            default:
+                if (name == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeNull(name);
+                }
+        }
+    }
+
+    private static void skip(JsonParser parser, Event event) {
+
+        if (event != Event.START_OBJECT && event != Event.START_ARRAY) {
+            return;
+        }
+
+        int depth = 1;
+
+        while (depth > 0) {
+            event = parser.next();
+
+            if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+                depth++;
+            } else if (event == Event.END_OBJECT || event == Event.END_ARRAY) {
+                depth--;
+            }
+        }
+    }
+}
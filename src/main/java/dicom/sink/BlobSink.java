@@ -0,0 +1,60 @@
+package dicom.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores the file of each instance under its row key.
+ */
+public interface BlobSink extends Closeable {
+
+    /**
+     * Stores a file held in heap, along with its {@code digest} when given. The returned future
+     * completes once the blob is stored.
+     */
+    CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) throws IOException;
+
+    /**
+     * Stores a file held in heap as {@link #write(String, byte[], byte[], byte[])} does. Sinks
+     * that compress blobs choose the codec from {@code modality} and {@code transferSyntaxUid},
+     * either of which may be {@code null}; the others ignore them.
+     */
+    default CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest,
+                                          String modality, String transferSyntaxUid) throws IOException {
+
+        return write(sopInstanceUid, row, data, digest);
+    }
+
+    /**
+     * Stores a file left on disk, streaming it instead of loading it whole.
+     */
+    CompletableFuture<Void> write(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException;
+
+    /**
+     * Stores a file whose metadata document points into it with bulk data locators, so ranges of
+     * it are read on their own. Sinks that chunk or compress blobs store it so that any range can
+     * be read without the whole blob; the others store it as
+     * {@link #write(String, byte[], byte[], byte[])} does.
+     */
+    default CompletableFuture<Void> writeLocated(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) throws IOException {
+
+        return write(sopInstanceUid, row, data, digest);
+    }
+
+    /**
+     * Streams a file left on disk that carries bulk data locators, as
+     * {@link #writeLocated(String, byte[], byte[], byte[])} stores one held in heap.
+     */
+    default CompletableFuture<Void> writeLocated(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException {
+
+        return write(sopInstanceUid, row, file, digest);
+    }
+
+    /**
+     * Returns a future completed with the digest stored with the blob, or with {@code null} when
+     * the blob has none or does not exist.
+     */
+    CompletableFuture<byte[]> findDigest(byte[] row, String sopInstanceUid);
+}
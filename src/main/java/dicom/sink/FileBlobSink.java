@@ -0,0 +1,94 @@
+package dicom.sink;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes each blob to {@code <directory>/<row as hex>/<uid>.dcm}, with its digest in
+ * {@code <uid>.sha256}, for runs on one machine without HBase. The digest is written after the
+ * blob, so it never vouches for a partial file.
+ */
+public class FileBlobSink implements BlobSink {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+
+    private final SimulatedLatency latency;
+
+    public FileBlobSink(Path directory, long latencyMillis) throws IOException {
+
+        this.directory = Files.createDirectories(directory);
+        this.latency = new SimulatedLatency(latencyMillis, "blob");
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) throws IOException {
+
+        Path rowDirectory = Files.createDirectories(directory.resolve(hex(row)));
+
+        FileMetadataSink.replace(rowDirectory.resolve(sopInstanceUid + ".dcm"), data);
+        writeDigest(rowDirectory, sopInstanceUid, digest);
+
+        return latency.complete(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException {
+
+        Path rowDirectory = Files.createDirectories(directory.resolve(hex(row)));
+        Path target = rowDirectory.resolve(sopInstanceUid + ".dcm");
+        Path temp = rowDirectory.resolve(sopInstanceUid + ".dcm.tmp");
+
+        Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writeDigest(rowDirectory, sopInstanceUid, digest);
+
+        return latency.complete(null);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> findDigest(byte[] row, String sopInstanceUid) {
+
+        try {
+            return latency.complete(Files.readAllBytes(directory.resolve(hex(row)).resolve(sopInstanceUid + ".sha256")));
+        } catch (NoSuchFileException e) {
+            return latency.complete(null);
+        } catch (IOException e) {
+            return latency.fail(e);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        latency.close();
+    }
+
+    private static void writeDigest(Path rowDirectory, String sopInstanceUid, byte[] digest) throws IOException {
+
+        Path digestFile = rowDirectory.resolve(sopInstanceUid + ".sha256");
+
+        if (digest != null) {
+            FileMetadataSink.replace(digestFile, digest);
+        } else {
+            Files.deleteIfExists(digestFile);
+        }
+    }
+
+    private static String hex(byte[] row) {
+
+        char[] ch = new char[row.length * 2];
+
+        for (int i = 0; i < row.length; i++) {
+            ch[2 * i] = HEX[(row[i] >> 4) & 0xF];
+            ch[2 * i + 1] = HEX[row[i] & 0xF];
+        }
+
+        return new String(ch);
+    }
+}
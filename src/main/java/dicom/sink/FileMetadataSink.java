@@ -0,0 +1,74 @@
+package dicom.sink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Writes each document to {@code <directory>/<id>.json}, with its digest in
+ * {@code <id>.sha256}, for runs on one machine without CouchDB. Documents are written through a
+ * temporary file and moved into place, so a reader never sees a partial document.
+ */
+public class FileMetadataSink implements MetadataSink {
+
+    private final Path directory;
+
+    private final SimulatedLatency latency;
+
+    public FileMetadataSink(Path directory, long latencyMillis) throws IOException {
+
+        this.directory = Files.createDirectories(directory);
+        this.latency = new SimulatedLatency(latencyMillis, "metadata");
+    }
+
+    @Override
+    public CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+        try {
+            Path digestFile = directory.resolve(id + ".sha256");
+
+            if (digest != null && Files.exists(digestFile)
+                    && digest.equals(new String(Files.readAllBytes(digestFile), StandardCharsets.US_ASCII))) {
+                return latency.complete(WriteOutcome.UNCHANGED);
+            }
+
+            Path docFile = directory.resolve(id + ".json");
+            boolean existed = Files.exists(docFile);
+            byte[] previous = existed && replaced != null ? Files.readAllBytes(docFile) : null;
+
+            replace(docFile, doc);
+
+            if (digest != null) {
+                replace(digestFile, digest.getBytes(StandardCharsets.US_ASCII));
+            } else {
+                Files.deleteIfExists(digestFile);
+            }
+
+            if (previous != null) {
+                replaced.accept(previous);
+            }
+
+            return latency.complete(existed ? WriteOutcome.UPDATED : WriteOutcome.CREATED);
+        } catch (IOException e) {
+            return latency.fail(e);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        latency.close();
+    }
+
+    static void replace(Path file, byte[] content) throws IOException {
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        Files.write(temp, content);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,94 @@
+package dicom.sink;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the blobs in heap, for load tests and benchmarks without HBase. With {@code retain}
+ * unset only the digests are kept and files left on disk are not even read.
+ */
+public class MemoryBlobSink implements BlobSink {
+
+    private final ConcurrentMap<String, Stored> blobs = new ConcurrentHashMap<>();
+
+    private final boolean retain;
+
+    private final SimulatedLatency latency;
+
+    /**
+     * @param latencyMillis time each write and lookup takes to complete
+     * @param retain        whether the blob bytes are kept
+     */
+    public MemoryBlobSink(long latencyMillis, boolean retain) {
+
+        this.retain = retain;
+        this.latency = new SimulatedLatency(latencyMillis, "blob");
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest) {
+
+        blobs.put(key(row, sopInstanceUid), new Stored(retain ? data : null, digest));
+
+        return latency.complete(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, Path file, byte[] digest) throws IOException {
+
+        return write(sopInstanceUid, row, retain ? Files.readAllBytes(file) : null, digest);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> findDigest(byte[] row, String sopInstanceUid) {
+
+        Stored stored = blobs.get(key(row, sopInstanceUid));
+
+        return latency.complete(stored == null ? null : stored.digest);
+    }
+
+    /**
+     * Returns the stored blob, or {@code null} when there is none or it was not retained.
+     */
+    public byte[] get(byte[] row, String sopInstanceUid) {
+
+        Stored stored = blobs.get(key(row, sopInstanceUid));
+
+        return stored == null ? null : stored.data;
+    }
+
+    public int size() {
+
+        return blobs.size();
+    }
+
+    @Override
+    public void close() {
+
+        latency.close();
+    }
+
+    private static String key(byte[] row, String sopInstanceUid) {
+
+        return Bytes.toStringBinary(row) + '/' + sopInstanceUid;
+    }
+
+    private static class Stored {
+
+        private final byte[] data;
+
+        private final byte[] digest;
+
+        private Stored(byte[] data, byte[] digest) {
+
+            this.data = data;
+            this.digest = digest;
+        }
+    }
+}
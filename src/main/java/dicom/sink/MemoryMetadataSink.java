@@ -0,0 +1,82 @@
+package dicom.sink;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the documents in heap, for load tests and benchmarks without CouchDB. With
+ * {@code retain} unset only the digests are kept, so arbitrarily large runs fit in heap and
+ * deduplication still works, but a replaced document is not handed back.
+ */
+public class MemoryMetadataSink implements MetadataSink {
+
+    private final ConcurrentMap<String, Stored> docs = new ConcurrentHashMap<>();
+
+    private final boolean retain;
+
+    private final SimulatedLatency latency;
+
+    /**
+     * @param latencyMillis time each write takes to complete
+     * @param retain        whether the document bytes are kept
+     */
+    public MemoryMetadataSink(long latencyMillis, boolean retain) {
+
+        this.retain = retain;
+        this.latency = new SimulatedLatency(latencyMillis, "metadata");
+    }
+
+    @Override
+    public CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+        Stored stored = docs.get(id);
+
+        if (digest != null && stored != null && digest.equals(stored.digest)) {
+            return latency.complete(WriteOutcome.UNCHANGED);
+        }
+
+        stored = docs.put(id, new Stored(retain ? doc : null, digest));
+
+        if (stored != null && stored.doc != null && replaced != null) {
+            replaced.accept(stored.doc);
+        }
+
+        return latency.complete(stored == null ? WriteOutcome.CREATED : WriteOutcome.UPDATED);
+    }
+
+    /**
+     * Returns the stored document, or {@code null} when there is none or it was not retained.
+     */
+    public byte[] get(String id) {
+
+        Stored stored = docs.get(id);
+
+        return stored == null ? null : stored.doc;
+    }
+
+    public int size() {
+
+        return docs.size();
+    }
+
+    @Override
+    public void close() {
+
+        latency.close();
+    }
+
+    private static class Stored {
+
+        private final byte[] doc;
+
+        private final String digest;
+
+        private Stored(byte[] doc, String digest) {
+
+            this.doc = doc;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package dicom.sink;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Stores the JSON document of each instance.
+ */
+public interface MetadataSink extends Closeable {
+
+    /**
+     * Stores {@code doc}, a UTF-8 JSON object that carries {@code _id}. When {@code digest} is
+     * given and the stored document already has it, the document is left as it is and the
+     * returned future completes with {@link WriteOutcome#UNCHANGED}; otherwise it completes once
+     * the document is stored, telling whether it was created or replaced.
+     */
+    default CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest) {
+
+        return write(id, doc, digest, null);
+    }
+
+    /**
+     * Stores {@code doc} as {@link #write(String, byte[], String)} does. When it replaces a
+     * document whose bytes the sink can tell, {@code replaced} is given them before the returned
+     * future completes with {@link WriteOutcome#UPDATED}.
+     *
+     * @param replaced receives the replaced document, or {@code null} when it is not needed
+     */
+    CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced);
+}
@@ -0,0 +1,68 @@
+package dicom.sink;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays the completion of the stand-in sinks' futures by a fixed time, as a remote store would,
+ * without holding the calling thread.
+ */
+final class SimulatedLatency implements Closeable {
+
+    private final long millis;
+
+    private final ScheduledExecutorService scheduler;
+
+    SimulatedLatency(long millis, String name) {
+
+        this.millis = millis;
+
+        if (millis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dicom-" + name + "-latency");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            scheduler = null;
+        }
+    }
+
+    <T> CompletableFuture<T> complete(T value) {
+
+        if (scheduler == null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        scheduler.schedule(() -> future.complete(value), millis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    <T> CompletableFuture<T> fail(Throwable e) {
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Waits for the pending completions, so nothing is left incomplete after close.
+     */
+    @Override
+    public void close() {
+
+        if (scheduler != null) {
+            scheduler.shutdown();
+
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
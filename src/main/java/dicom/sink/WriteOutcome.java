@@ -0,0 +1,22 @@
+package dicom.sink;
+
+/**
+ * What a {@link MetadataSink} did with a document.
+ */
+public enum WriteOutcome {
+
+    /**
+     * No document with the id existed; the document was stored.
+     */
+    CREATED,
+
+    /**
+     * The stored document was replaced.
+     */
+    UPDATED,
+
+    /**
+     * The stored document already had the digest of the new one and was left as it is.
+     */
+    UNCHANGED
+}
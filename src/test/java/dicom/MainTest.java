@@ -0,0 +1,297 @@
+package dicom;
+
+import dicom.ingest.IngestFailure;
+import dicom.ingest.ShardLedger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class MainTest {
+
+    private static final String SOP_INSTANCE_UID = "1.2.826.0.1.3680043.2.1125.1.1";
+
+    private static final int SHARDS = 3;
+
+    private static final int SHARD_FILES = 60;
+
+    private static final long STALE_MILLIS = 1000;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("main");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Ingests a DICOM file whose pixel data alone is larger than the heap: it must be read,
+     * parsed and written without ever being loaded whole.
+     */
+    @Test
+    public void ingestsDicomFileLargerThanHeap() throws Exception {
+
+        long pixelBytes = (Runtime.getRuntime().maxMemory() + 64L * 1024 * 1024) & ~1L;
+
+        // the pixel data length is written as an int; the build runs the tests with -Xmx256m
+        assumeTrue(pixelBytes < Integer.MAX_VALUE);
+
+        Path file = directory.resolve("input").resolve("large.dcm");
+        Files.createDirectories(file.getParent());
+        writeDicom(file, pixelBytes);
+
+        Path config = directory.resolve("config.properties");
+
+        try (Writer writer = Files.newBufferedWriter(config, StandardCharsets.ISO_8859_1)) {
+            writer.write("sink.metadata=file\n");
+            writer.write("sink.blob=file\n");
+            writer.write("sink.directory=" + directory.resolve("sink").toString().replace('\\', '/') + "\n");
+            writer.write("ingest.streaming.threshold=" + 16 * 1024 * 1024 + "\n");
+            writer.write("ingest.workers=2\n");
+            writer.write("log.file.level=OFF\n");
+        }
+
+        List<IngestFailure> failures = new Main(config.toString(), file.getParent().toString()).process();
+
+        assertEquals(0, failures.size());
+
+        Path blob;
+
+        try (Stream<Path> paths = Files.walk(directory.resolve("sink").resolve("blob"))) {
+            blob = paths.filter(path -> path.getFileName().toString().equals(SOP_INSTANCE_UID + ".dcm"))
+                    .findFirst().orElseThrow(() -> new AssertionError("blob not written"));
+        }
+
+        assertEquals(Files.size(file), Files.size(blob));
+
+        String json = new String(Files.readAllBytes(directory.resolve("sink").resolve("metadata")
+                .resolve(SOP_INSTANCE_UID + ".json")), StandardCharsets.UTF_8);
+
+        assertTrue(json, json.contains("LARGE^PATIENT"));
+        assertTrue(json, json.length() < 64 * 1024);
+    }
+
+    /**
+     * A projection that leaves out attributes the rollups read fails the ingest before anything
+     * is written, rather than rolling up nothing.
+     */
+    @Test
+    public void rejectsProjectionMissingRollupTags() throws Exception {
+
+        Path file = directory.resolve("input").resolve("small.dcm");
+        Files.createDirectories(file.getParent());
+        writeDicom(file, 16);
+
+        Path config = directory.resolve("config.properties");
+
+        try (Writer writer = Files.newBufferedWriter(config, StandardCharsets.ISO_8859_1)) {
+            writer.write("sink.metadata=memory\n");
+            writer.write("sink.blob=memory\n");
+            writer.write("json.projection=narrow\n");
+            writer.write("json.projection.narrow.include=00080018,00100020,0020000D,0020000E\n");
+            writer.write("rollup.enabled=true\n");
+            writer.write("log.file.level=OFF\n");
+        }
+
+        try {
+            new Main(config.toString(), file.getParent().toString()).process();
+            fail("projection accepted");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("00080060"));
+            assertTrue(e.getMessage(), e.getMessage().contains("rollup.enabled"));
+        }
+    }
+
+    /**
+     * Runs {@code --shard} in its own JVM for every shard but the last, which gets no process.
+     * One process halts midway: the other must take over its shard and the unclaimed one, and
+     * every file must end up in the sinks and done in the ledger.
+     */
+    @Test
+    public void shardsTakeOverHaltedAndMissingProcesses() throws Exception {
+
+        Path input = directory.resolve("input");
+
+        for (int i = 0; i < SHARD_FILES; i++) {
+            Path file = input.resolve(shardPath(i));
+            Files.createDirectories(file.getParent());
+            writeDicom(file, shardUid(i), 16);
+        }
+
+        Path ledger = directory.resolve("ingest.ledger");
+        Path sink = directory.resolve("sink");
+        Path config = directory.resolve("config.properties");
+
+        try (Writer writer = Files.newBufferedWriter(config, StandardCharsets.ISO_8859_1)) {
+            writer.write("sink.metadata=file\n");
+            writer.write("sink.blob=file\n");
+            writer.write("sink.directory=" + sink.toString().replace('\\', '/') + "\n");
+            writer.write("sink.latency.millis=5\n");
+            writer.write("ingest.workers=2\n");
+            writer.write("ingest.shard.ledger=" + ledger.toString().replace('\\', '/') + "\n");
+            writer.write("ingest.shard.stale.millis=" + STALE_MILLIS + "\n");
+            writer.write("log.file.level=OFF\n");
+        }
+
+        List<Process> processes = new ArrayList<>();
+
+        for (int index = 0; index < SHARDS - 1; index++) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path")));
+
+            if (index == 1) {
+                command.addAll(Arrays.asList(HaltingMain.class.getName(), ledger.toString(), "10"));
+            } else {
+                command.add(Main.class.getName());
+            }
+
+            command.addAll(Arrays.asList("--shard", index + "/" + SHARDS, config.toString(), input.toString()));
+
+            processes.add(new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("shard-" + index + ".out").toFile())
+                    .start());
+        }
+
+        for (int index = 0; index < processes.size(); index++) {
+            assertTrue("shard " + index + " timed out", processes.get(index).waitFor(2, TimeUnit.MINUTES));
+            assertEquals("shard " + index, index == 1 ? HaltingMain.HALT_STATUS : 0, processes.get(index).exitValue());
+        }
+
+        Set<String> blobs;
+
+        try (Stream<Path> paths = Files.walk(sink.resolve("blob"))) {
+            blobs = paths.map(path -> path.getFileName().toString()).collect(Collectors.toSet());
+        }
+
+        try (ShardLedger check = new ShardLedger(ledger, SHARDS, STALE_MILLIS)) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertTrue("shard " + shard + " finished", check.isFinished(shard));
+            }
+
+            for (int i = 0; i < SHARD_FILES; i++) {
+                assertTrue(shardPath(i) + " done", check.isDone(shardPath(i)));
+                assertTrue(shardPath(i) + " blob", blobs.contains(shardUid(i) + ".dcm"));
+                assertTrue(shardPath(i) + " metadata",
+                        Files.exists(sink.resolve("metadata").resolve(shardUid(i) + ".json")));
+            }
+        }
+    }
+
+    /**
+     * Runs {@link Main} with the arguments after the ledger and the count, halting the JVM once
+     * the ledger holds that many files done, as a crash would.
+     */
+    public static class HaltingMain {
+
+        static final int HALT_STATUS = 9;
+
+        public static void main(String[] args) throws Exception {
+
+            Path ledger = Paths.get(args[0]);
+            int haltAfter = Integer.parseInt(args[1]);
+
+            Thread watchdog = new Thread(() -> {
+                while (true) {
+                    try {
+                        if (Files.exists(ledger) && Files.readAllLines(ledger, StandardCharsets.UTF_8).stream()
+                                .filter(line -> line.startsWith("DONE\t")).count() >= haltAfter) {
+                            Runtime.getRuntime().halt(HALT_STATUS);
+                        }
+
+                        Thread.sleep(10);
+                    } catch (IOException | InterruptedException e) {
+                        Runtime.getRuntime().halt(1);
+                    }
+                }
+            });
+
+            watchdog.setDaemon(true);
+            watchdog.start();
+
+            Main.main(Arrays.copyOfRange(args, 2, args.length));
+        }
+    }
+
+    private static String shardPath(int i) {
+
+        return "d" + i % 7 + "/f" + i + ".dcm";
+    }
+
+    private static String shardUid(int i) {
+
+        return "1.2.826.0.1.3680043.2.1125.4." + i;
+    }
+
+    private static void writeDicom(Path file, long pixelBytes) throws IOException {
+
+        writeDicom(file, SOP_INSTANCE_UID, pixelBytes);
+    }
+
+    /**
+     * Writes the header with dcm4che, then streams the pixel data value as zeros, so the file is
+     * never held in heap.
+     */
+    private static void writeDicom(Path file, String sopInstanceUid, long pixelBytes) throws IOException {
+
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, sopInstanceUid);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.826.0.1.3680043.2.1125.2");
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, "1.2.826.0.1.3680043.2.1125.3");
+        attrs.setString(Tag.Modality, VR.CS, "CT");
+        attrs.setString(Tag.PatientID, VR.LO, "LARGE");
+        attrs.setString(Tag.PatientName, VR.PN, "LARGE^PATIENT");
+        attrs.setInt(Tag.Rows, VR.US, 512);
+        attrs.setInt(Tag.Columns, VR.US, 512);
+        attrs.setInt(Tag.BitsAllocated, VR.US, 16);
+
+        byte[] zeros = new byte[1024 * 1024];
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file));
+             DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+            dos.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+            dos.writeHeader(Tag.PixelData, VR.OW, (int) pixelBytes);
+
+            for (long written = 0; written < pixelBytes; written += zeros.length) {
+                dos.write(zeros, 0, (int) Math.min(zeros.length, pixelBytes - written));
+            }
+        }
+    }
+}
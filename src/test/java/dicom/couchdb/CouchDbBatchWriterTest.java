@@ -0,0 +1,79 @@
+package dicom.couchdb;
+
+import com.google.gson.JsonObject;
+import dicom.sink.WriteOutcome;
+import org.junit.Test;
+import org.lightcouch.CouchDbClient;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CouchDbBatchWriterTest {
+
+    private static final int VERSIONS = 100;
+
+    @Test
+    public void newestDocumentWins() throws Exception {
+
+        try (FakeCouchDb couchDb = new FakeCouchDb(5)) {
+            CouchDbClient client = couchDb.client();
+            List<CompletableFuture<WriteOutcome>> futures = new ArrayList<>();
+
+            // a short batch window makes the flusher close batches while rewrites of the same id
+            // close them on the writer thread
+            CouchDbBatchWriter writer = new CouchDbBatchWriter(client, 1000, 2, 3);
+
+            try {
+                for (int version = 0; version < VERSIONS; version++) {
+                    futures.add(writer.write("1.2.3", doc("1.2.3", version), null, null));
+                    futures.add(writer.write("1.2.4." + version, doc("1.2.4." + version, version), null, null));
+                }
+            } finally {
+                writer.close();
+            }
+
+            for (CompletableFuture<WriteOutcome> future : futures) {
+                future.join();
+            }
+
+            assertEquals(VERSIONS - 1, couchDb.get("1.2.3").get("version").getAsInt());
+
+            int last = -1;
+
+            for (JsonObject stored : couchDb.history("1.2.3")) {
+                assertTrue(stored.get("version").getAsInt() > last);
+                last = stored.get("version").getAsInt();
+            }
+        }
+    }
+
+    @Test
+    public void reportsCreatedThenUpdated() throws Exception {
+
+        try (FakeCouchDb couchDb = new FakeCouchDb(0)) {
+            CouchDbBatchWriter writer = new CouchDbBatchWriter(couchDb.client(), 10, 1000, 3);
+
+            try {
+                CompletableFuture<WriteOutcome> created = writer.write("1.2.3", doc("1.2.3", 0), null, null);
+                writer.flush();
+                CompletableFuture<WriteOutcome> updated = writer.write("1.2.3", doc("1.2.3", 1), null, null);
+                writer.flush();
+
+                assertEquals(WriteOutcome.CREATED, created.join());
+                assertEquals(WriteOutcome.UPDATED, updated.join());
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static byte[] doc(String id, int version) {
+
+        return String.format("{\"_id\":\"%s\",\"version\":%d}", id, version).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,198 @@
+package dicom.couchdb;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.lightcouch.CouchDbClient;
+import org.lightcouch.CouchDbProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Serves the few CouchDB requests the writers send, {@code _all_docs} by key and
+ * {@code _bulk_docs} with revision checks, from documents held in memory. {@code _bulk_docs} is
+ * slowed down by a random delay, so concurrent commits overlap.
+ */
+class FakeCouchDb implements AutoCloseable {
+
+    static final String DATABASE = "dicom";
+
+    private final HttpServer server;
+
+    private final Map<String, JsonObject> docs = new HashMap<>();
+
+    private final Map<String, List<JsonObject>> history = new HashMap<>();
+
+    private final Random random = new Random(42);
+
+    private final int maxDelayMillis;
+
+    private int revisions = 0;
+
+    FakeCouchDb(int maxDelayMillis) throws IOException {
+
+        this.maxDelayMillis = maxDelayMillis;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    CouchDbClient client() {
+
+        CouchDbProperties properties = new CouchDbProperties();
+        properties.setProtocol("http");
+        properties.setHost("127.0.0.1");
+        properties.setPort(server.getAddress().getPort());
+        properties.setDbName(DATABASE);
+        properties.setCreateDbIfNotExist(false);
+
+        return new CouchDbClient(properties);
+    }
+
+    synchronized JsonObject get(String id) {
+
+        return docs.get(id);
+    }
+
+    /**
+     * Returns every version stored under {@code id}, oldest first.
+     */
+    synchronized List<JsonObject> history(String id) {
+
+        return new ArrayList<>(history.getOrDefault(id, new ArrayList<>()));
+    }
+
+    @Override
+    public void close() {
+
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        String path = exchange.getRequestURI().getPath();
+        JsonElement response;
+
+        if (path.endsWith("/_all_docs")) {
+            response = allDocs(read(exchange).getAsJsonArray("keys"));
+        } else if (path.endsWith("/_bulk_docs")) {
+            delay();
+            response = bulkDocs(read(exchange).getAsJsonArray("docs"));
+        } else {
+            response = new JsonObject();
+            ((JsonObject) response).addProperty("couchdb", "Welcome");
+        }
+
+        byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(path.endsWith("/_bulk_docs") ? 201 : 200, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private synchronized JsonObject allDocs(JsonArray keys) {
+
+        JsonArray rows = new JsonArray();
+
+        for (JsonElement key : keys) {
+            JsonObject row = new JsonObject();
+            JsonObject doc = docs.get(key.getAsString());
+
+            row.add("key", key);
+
+            if (doc == null) {
+                row.addProperty("error", "not_found");
+            } else {
+                JsonObject value = new JsonObject();
+                value.addProperty("rev", doc.get("_rev").getAsString());
+
+                row.addProperty("id", key.getAsString());
+                row.add("value", value);
+            }
+
+            rows.add(row);
+        }
+
+        JsonObject result = new JsonObject();
+        result.add("rows", rows);
+        return result;
+    }
+
+    private synchronized JsonArray bulkDocs(JsonArray bulk) {
+
+        JsonArray results = new JsonArray();
+
+        for (JsonElement element : bulk) {
+            JsonObject doc = element.getAsJsonObject();
+            String id = doc.get("_id").getAsString();
+            JsonObject stored = docs.get(id);
+            String rev = doc.has("_rev") ? doc.get("_rev").getAsString() : null;
+            JsonObject result = new JsonObject();
+
+            result.addProperty("id", id);
+
+            if (stored == null ? rev != null : !stored.get("_rev").getAsString().equals(rev)) {
+                result.addProperty("error", "conflict");
+                result.addProperty("reason", "Document update conflict.");
+            } else {
+                String next = (++revisions) + "-fake";
+
+                doc.addProperty("_rev", next);
+                docs.put(id, doc);
+                history.computeIfAbsent(id, k -> new ArrayList<>()).add(doc);
+                result.addProperty("rev", next);
+            }
+
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    private void delay() {
+
+        int millis;
+
+        synchronized (this) {
+            millis = maxDelayMillis == 0 ? 0 : random.nextInt(maxDelayMillis);
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static JsonObject read(HttpExchange exchange) throws IOException {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                body.write(buffer, 0, n);
+            }
+        }
+
+        return new JsonParser().parse(new String(body.toByteArray(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+}
@@ -0,0 +1,145 @@
+package dicom.hbase;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlobCodecTest {
+
+    @Test
+    public void roundTripsDeflate() throws IOException {
+
+        for (String spec : new String[]{"deflate", "deflate:1", "deflate:9"}) {
+            assertRoundTrips(spec);
+        }
+    }
+
+    @Test
+    public void roundTripsLz4() throws IOException {
+
+        for (String spec : new String[]{"lz4", "lz4:9"}) {
+            assertRoundTrips(spec);
+        }
+    }
+
+    @Test
+    public void roundTripsZstd() throws IOException {
+
+        for (String spec : new String[]{"zstd", "zstd:1", "zstd:19"}) {
+            assertRoundTrips(spec);
+        }
+    }
+
+    @Test
+    public void storesAsIsWithoutCodec() throws IOException {
+
+        byte[] data = compressible(1000);
+
+        assertSame(BlobCodec.NONE, BlobCodec.forName("none"));
+        assertSame(data, BlobCodec.NONE.encode(data));
+        assertSame(data, BlobCodec.NONE.decode(data, data.length));
+        assertCorrupt(BlobCodec.NONE, data, data.length - 1);
+    }
+
+    /**
+     * A blob that does not decode to the size stored with it is reported rather than returned
+     * short or padded.
+     */
+    @Test
+    public void rejectsCorruptDeflateBlobs() {
+
+        BlobCodec codec = BlobCodec.forName("deflate");
+        byte[] data = compressible(100000);
+        byte[] encoded = codec.encode(data);
+
+        assertCorrupt(codec, encoded, data.length + 1);
+        assertCorrupt(codec, encoded, data.length - 1);
+        assertCorrupt(codec, Arrays.copyOf(encoded, encoded.length / 2), data.length);
+        assertCorrupt(codec, new byte[]{1, 2, 3, 4}, data.length);
+    }
+
+    /**
+     * The level only matters when encoding: a blob decodes with any level of its codec.
+     */
+    @Test
+    public void decodesWhateverTheLevel() throws IOException {
+
+        byte[] data = compressible(100000);
+        byte[] encoded = BlobCodec.forName("deflate:9").encode(data);
+
+        assertEquals("deflate", BlobCodec.forName("deflate:9").getName());
+        assertArrayEquals(data, BlobCodec.forName("deflate").decode(encoded, data.length));
+        assertArrayEquals(data, BlobCodec.forName(" deflate : 1 ").decode(encoded, data.length));
+    }
+
+    @Test
+    public void rejectsInvalidSpecs() {
+
+        for (String spec : new String[]{"gzip", "deflate:0", "deflate:10", "lz4:18", "zstd:0", "zstd:23"}) {
+            try {
+                BlobCodec.forName(spec);
+                fail(spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertRoundTrips(String spec) throws IOException {
+
+        BlobCodec codec = BlobCodec.forName(spec);
+        byte[] data = compressible(256 * 1024);
+        byte[] encoded = codec.encode(data);
+
+        assertTrue(spec, encoded.length < data.length / 2);
+        assertArrayEquals(spec, data, codec.decode(encoded, data.length));
+        assertCorrupt(codec, encoded, data.length - 1);
+
+        // what does not compress still comes back whole
+        byte[] random = random(64 * 1024);
+
+        assertArrayEquals(spec, random, codec.decode(codec.encode(random), random.length));
+        assertArrayEquals(spec, new byte[0], codec.decode(codec.encode(new byte[0]), 0));
+    }
+
+    private static void assertCorrupt(BlobCodec codec, byte[] encoded, int size) {
+
+        try {
+            codec.decode(encoded, size);
+            fail(codec + " decoded " + size + " bytes");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(codec.getName()));
+        }
+    }
+
+    /**
+     * Returns {@code size} bytes shaped like a dataset: repeated text with a few varying fields.
+     */
+    static byte[] compressible(int size) {
+
+        byte[] data = new byte[size];
+        byte[] text = "PatientID\u0000P1\u0000StudyInstanceUID\u00001.2.840.10008.".getBytes(StandardCharsets.US_ASCII);
+
+        for (int i = 0; i < size; i++) {
+            data[i] = i % 97 == 0 ? (byte) (i / 97) : text[i % text.length];
+        }
+
+        return data;
+    }
+
+    static byte[] random(int size) {
+
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,198 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.dcm4che3.data.UID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static dicom.hbase.BlobCodecTest.compressible;
+import static dicom.hbase.BlobCodecTest.random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HBaseBlobSinkTest {
+
+    private static final byte[] ROW = Bytes.toBytes("row");
+
+    private CapturingWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+
+        writer = new CapturingWriter();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        writer.close();
+    }
+
+    @Test
+    public void storesEncodedBlobWithItsEncoding() throws IOException {
+
+        HBaseBlobSink sink = sink(0.1);
+        byte[] data = compressible(100000);
+
+        sink.write("1.2.3", ROW, data, null, "CT", UID.ExplicitVRLittleEndian);
+
+        assertEquals("deflate", writer.encoding.getCodec());
+        assertTrue(writer.encoding.isEncoded());
+        assertEquals(data.length, writer.encoding.getSize());
+        assertEquals(data.length - writer.data.length, sink.getSavedBytes());
+
+        // read back as the reader does, from the stored bytes and the encoding cell
+        BlobEncoding stored = BlobEncoding.decode(writer.encoding.encode());
+
+        assertArrayEquals(data, stored.decode("1.2.3", writer.data));
+    }
+
+    /**
+     * A blob that encoding does not shrink by at least the minimum saving is stored as is, and
+     * still written with an encoding cell, saying {@code none}.
+     */
+    @Test
+    public void storesAsIsBelowMinimumSaving() throws IOException {
+
+        HBaseBlobSink sink = sink(0.1);
+        byte[] data = random(100000);
+
+        sink.write("1.2.3", ROW, data, null, "CT", UID.ExplicitVRLittleEndian);
+
+        assertSame(data, writer.data);
+        assertEquals("none", writer.encoding.getCodec());
+        assertFalse(writer.encoding.isEncoded());
+        assertEquals(data.length, writer.encoding.getSize());
+        assertEquals(0, sink.getSavedBytes());
+
+        // half random, half text: deflate saves less than 60%, but more than 10%
+        byte[] mixed = new byte[100000];
+        System.arraycopy(random(50000), 0, mixed, 0, 50000);
+        System.arraycopy(compressible(50000), 0, mixed, 50000, 50000);
+
+        sink(0.6).write("1.2.4", ROW, mixed, null, "CT", UID.ExplicitVRLittleEndian);
+
+        assertSame(mixed, writer.data);
+        assertEquals("none", writer.encoding.getCodec());
+
+        sink.write("1.2.5", ROW, mixed, null, "CT", UID.ExplicitVRLittleEndian);
+
+        assertEquals("deflate", writer.encoding.getCodec());
+        assertTrue(writer.data.length < mixed.length * 0.9);
+    }
+
+    @Test
+    public void keepsMinimumSavingInRange() {
+
+        BlobCodecPolicy policy = new BlobCodecPolicy(BlobCodec.NONE, Collections.emptyMap(),
+                Collections.emptyMap(), 0.25);
+
+        assertTrue(policy.isWorthwhile(100, 75));
+        assertFalse(policy.isWorthwhile(100, 76));
+        assertFalse(policy.isWorthwhile(0, 0));
+
+        BlobCodecPolicy any = new BlobCodecPolicy(BlobCodec.NONE, Collections.emptyMap(),
+                Collections.emptyMap(), 0);
+
+        assertTrue(any.isWorthwhile(100, 99));
+        assertFalse(any.isWorthwhile(100, 100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMinimumSavingOfEverything() {
+
+        new BlobCodecPolicy(BlobCodec.NONE, Collections.emptyMap(), Collections.emptyMap(), 1);
+    }
+
+    @Test
+    public void selectsCodecBySyntaxThenModality() {
+
+        BlobCodec deflate = BlobCodec.forName("deflate");
+        BlobCodec fast = BlobCodec.forName("deflate:1");
+        BlobCodec best = BlobCodec.forName("deflate:9");
+
+        Map<String, BlobCodec> byModality = new HashMap<>();
+        byModality.put("MR", fast);
+
+        Map<String, BlobCodec> byTransferSyntax = new HashMap<>();
+        byTransferSyntax.put(UID.ImplicitVRLittleEndian, best);
+        byTransferSyntax.put(UID.DeflatedExplicitVRLittleEndian, BlobCodec.NONE);
+
+        BlobCodecPolicy policy = new BlobCodecPolicy(deflate, byModality, byTransferSyntax, 0);
+
+        assertSame(deflate, policy.select("CT", UID.ExplicitVRLittleEndian));
+        assertSame(deflate, policy.select(null, null));
+        assertSame(fast, policy.select("MR", UID.ExplicitVRLittleEndian));
+        assertSame(best, policy.select("MR", UID.ImplicitVRLittleEndian));
+
+        // compressed syntaxes are stored as they are unless a codec is set for them
+        assertSame(BlobCodec.NONE, policy.select("MR", UID.DeflatedExplicitVRLittleEndian));
+        assertSame(BlobCodec.NONE, policy.select("CT", "1.2.840.10008.1.2.4.50"));
+    }
+
+    private HBaseBlobSink sink(double minSaving) {
+
+        BlobCodecPolicy policy = new BlobCodecPolicy(BlobCodec.forName("deflate"), Collections.emptyMap(),
+                Collections.emptyMap(), minSaving);
+
+        return new HBaseBlobSink(writer, null, "f", policy);
+    }
+
+    /**
+     * Keeps the last blob written in heap instead of buffering mutations.
+     */
+    private static class CapturingWriter extends HBaseBlobWriter {
+
+        private byte[] data;
+
+        private BlobEncoding encoding;
+
+        private CapturingWriter() throws IOException {
+
+            super(connection(), TableName.valueOf("dicom"), 1024 * 1024, 60000, 1024 * 1024, 1024 * 1024, 1024 * 1024);
+        }
+
+        @Override
+        public CompletableFuture<Void> writeBlob(String sopInstanceUid, byte[] row, byte[] family,
+                                                 byte[] data, byte[] contentDigest,
+                                                 BlobEncoding encoding) {
+
+            this.data = data;
+            this.encoding = encoding;
+
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private static Connection connection() {
+
+        BufferedMutator mutator = (BufferedMutator) Proxy.newProxyInstance(
+                BufferedMutator.class.getClassLoader(), new Class<?>[]{BufferedMutator.class},
+                (p, method, args) -> null);
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (p, method, args) -> {
+                    if (method.getName().equals("getBufferedMutator")
+                            && method.getParameterTypes()[0] == BufferedMutatorParams.class) {
+                        return mutator;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,365 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HBaseBlobWriterTest {
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final long MAX_IN_FLIGHT_BYTES = 32L * 1024 * 1024;
+
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+
+        file = Files.createTempFile("blob", ".dcm");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Streams a file larger than the heap: the writer must neither hold the chunks it has handed
+     * to the mutator nor buffer more than its byte budget.
+     */
+    @Test
+    public void streamsFileLargerThanHeap() throws Exception {
+
+        long size = Runtime.getRuntime().maxMemory() + 64L * 1024 * 1024;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+
+        FakeMutator fake = new FakeMutator();
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, CHUNK_SIZE, CHUNK_SIZE)) {
+            CompletableFuture<Void> future = writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, file);
+
+            writer.flush();
+            future.get(1, TimeUnit.MINUTES);
+        }
+
+        long chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+        assertEquals(chunks + 1, fake.mutations);
+        assertTrue("sent " + fake.sentBytes + " bytes", fake.sentBytes >= size);
+        assertTrue("buffered " + fake.maxBufferedBytes + " bytes", fake.maxBufferedBytes <= MAX_IN_FLIGHT_BYTES);
+    }
+
+    @Test
+    public void writesOversizedMutationAlone() throws Exception {
+
+        byte[] data = new byte[2 * (int) MAX_IN_FLIGHT_BYTES];
+        FakeMutator fake = new FakeMutator();
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, Integer.MAX_VALUE, CHUNK_SIZE)) {
+            writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, new byte[1]);
+            CompletableFuture<Void> future = writer.writeBlob("1.2.4", Bytes.toBytes("row"), FAMILY, data);
+
+            writer.flush();
+            future.get(1, TimeUnit.MINUTES);
+        }
+
+        assertEquals(2, fake.mutations);
+        assertEquals(2, fake.flushes);
+    }
+
+    @Test
+    public void writesWhileFlushing() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.flushMillis = 1000;
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, CHUNK_SIZE, CHUNK_SIZE)) {
+            CompletableFuture<Void> first = writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, new byte[16]);
+
+            Thread flush = new Thread(() -> {
+                try {
+                    writer.flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            flush.start();
+            fake.flushing.await();
+
+            long start = System.nanoTime();
+            CompletableFuture<Void> second = writer.writeBlob("1.2.4", Bytes.toBytes("row"), FAMILY, new byte[16]);
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue("write waited " + millis + " ms for the flush", millis < fake.flushMillis / 2);
+            assertFalse(first.isDone());
+
+            flush.join();
+
+            assertTrue(first.isDone());
+            assertFalse(second.isDone());
+
+            writer.flush();
+
+            assertTrue(second.isDone());
+        }
+    }
+
+    @Test
+    public void emptiesManifestWhenWritingSingleCell() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.retain = true;
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, CHUNK_SIZE, CHUNK_SIZE)) {
+            writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, new byte[16]);
+        }
+
+        Put put = (Put) fake.retained.get(0);
+
+        assertTrue(put.has(FAMILY, Bytes.toBytes("1.2.3"), new byte[16]));
+        assertTrue(put.has(FAMILY, BlobManifest.qualifier("1.2.3"), new byte[0]));
+        assertTrue(put.has(FAMILY, BlobManifest.digestQualifier("1.2.3"), new byte[0]));
+        assertTrue(put.has(FAMILY, BlobEncoding.qualifier("1.2.3"), new byte[0]));
+    }
+
+    @Test
+    public void writesManifestAfterChunks() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.retain = true;
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, 16, 16)) {
+            writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, new byte[40], new byte[32]);
+        }
+
+        assertEquals(4, fake.retained.size());
+        assertEquals(1, fake.flushesBefore.get(3).longValue());
+
+        Put manifest = (Put) fake.retained.get(3);
+
+        assertTrue(manifest.has(FAMILY, BlobManifest.qualifier("1.2.3")));
+        assertTrue(manifest.has(FAMILY, Bytes.toBytes("1.2.3"), new byte[0]));
+        assertTrue(manifest.has(FAMILY, BlobManifest.digestQualifier("1.2.3"), new byte[32]));
+    }
+
+    @Test
+    public void writesManifestWithoutWaitingForChunks() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.retain = true;
+        byte[] data = new byte[40];
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, 16, 16)) {
+            CompletableFuture<Void> future = writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, data, new byte[32]);
+
+            assertEquals(0, fake.flushes);
+            assertEquals(3, fake.retained.size());
+            assertFalse(future.isDone());
+
+            writer.flush();
+
+            assertEquals(2, fake.flushes);
+            assertEquals(4, fake.retained.size());
+            assertTrue(future.isDone());
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Cell chunk = ((Put) fake.retained.get(i)).getFamilyCellMap().get(FAMILY).get(0);
+
+            assertSame(data, chunk.getValueArray());
+            assertEquals(16 * i, chunk.getValueOffset());
+            assertEquals(Math.min(16, data.length - 16 * i), chunk.getValueLength());
+        }
+    }
+
+    @Test
+    public void skipsManifestWhenChunksFail() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.retain = true;
+        fake.failFlush = true;
+
+        HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, 16, 16);
+        CompletableFuture<Void> future = writer.writeBlob("1.2.3", Bytes.toBytes("row"), FAMILY, new byte[40], new byte[32]);
+
+        try {
+            writer.close();
+            fail("flush failure not reported");
+        } catch (IOException e) {
+            // the chunks failed
+        }
+
+        try {
+            future.join();
+            fail("chunk failure not reported");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        assertEquals(3, fake.retained.size());
+    }
+
+    @Test
+    public void writesLocatedBlobUnencodedInItsOwnChunks() throws Exception {
+
+        FakeMutator fake = new FakeMutator();
+        fake.retain = true;
+
+        BlobCodecPolicy deflate = new BlobCodecPolicy(BlobCodec.forName("deflate"),
+                Collections.emptyMap(), Collections.emptyMap(), 0.1);
+
+        try (HBaseBlobWriter writer = new HBaseBlobWriter(connection(fake), TableName.valueOf("dicom"),
+                8L * 1024 * 1024, 60000, MAX_IN_FLIGHT_BYTES, CHUNK_SIZE, CHUNK_SIZE);
+             HBaseBlobSink sink = new HBaseBlobSink(writer, null, "f", deflate, 16, 16)) {
+            sink.writeLocated("1.2.3", Bytes.toBytes("row"), new byte[40], new byte[32]);
+        }
+
+        assertEquals(4, fake.retained.size());
+
+        for (int i = 0; i < 3; i++) {
+            Cell chunk = ((Put) fake.retained.get(i)).getFamilyCellMap().get(FAMILY).get(0);
+
+            assertEquals(Math.min(16, 40 - 16 * i), chunk.getValueLength());
+        }
+
+        Put manifest = (Put) fake.retained.get(3);
+
+        assertTrue(manifest.has(FAMILY, BlobManifest.qualifier("1.2.3")));
+        assertTrue(manifest.has(FAMILY, BlobEncoding.qualifier("1.2.3"), new byte[0]));
+    }
+
+    private static Connection connection(FakeMutator mutator) {
+
+        BufferedMutator proxy = (BufferedMutator) Proxy.newProxyInstance(
+                BufferedMutator.class.getClassLoader(), new Class<?>[]{BufferedMutator.class},
+                (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "mutate":
+                            mutator.mutate((Mutation) args[0]);
+                            return null;
+                        case "flush":
+                            mutator.flush();
+                            return null;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (p, method, args) -> {
+                    if (method.getName().equals("getBufferedMutator")
+                            && method.getParameterTypes()[0] == BufferedMutatorParams.class) {
+                        return proxy;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * Stands in for a {@link BufferedMutator}: keeps only the sizes of the mutations it buffers
+     * and drops them on flush, as a mutator does once it has sent them.
+     */
+    private static class FakeMutator {
+
+        private long mutations = 0;
+
+        private long flushes = 0;
+
+        private long bufferedBytes = 0;
+
+        private long maxBufferedBytes = 0;
+
+        private long sentBytes = 0;
+
+        private boolean retain = false;
+
+        private boolean failFlush = false;
+
+        private long flushMillis = 0;
+
+        private final CountDownLatch flushing = new CountDownLatch(1);
+
+        private final List<Mutation> retained = new ArrayList<>();
+
+        private final List<Long> flushesBefore = new ArrayList<>();
+
+        private synchronized void mutate(Mutation m) {
+
+            if (retain) {
+                retained.add(m);
+                flushesBefore.add(flushes);
+            }
+
+            mutations++;
+            bufferedBytes += m.heapSize();
+            maxBufferedBytes = Math.max(maxBufferedBytes, bufferedBytes);
+        }
+
+        private void flush() throws IOException {
+
+            flushing.countDown();
+
+            try {
+                Thread.sleep(flushMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            flushed();
+        }
+
+        private synchronized void flushed() throws IOException {
+
+            if (failFlush) {
+                throw new IOException("Region server unavailable");
+            }
+
+            flushes += bufferedBytes > 0 ? 1 : 0;
+            sentBytes += bufferedBytes;
+            bufferedBytes = 0;
+        }
+    }
+}
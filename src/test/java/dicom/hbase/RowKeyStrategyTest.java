@@ -0,0 +1,167 @@
+package dicom.hbase;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RowKeyStrategyTest {
+
+    private static final int PATIENTS = 1000;
+
+    @Test
+    public void keysPatientRows() {
+
+        RowKeyStrategy keys = RowKeyStrategy.forName("patient", 16);
+
+        assertArrayEquals(Bytes.toBytes("P1"), keys.rowKey("P1", "1.2.3", "1.2.3.4"));
+        assertFalse(keys.isRowPerInstance());
+        assertNull(keys.splitKeys(16));
+
+        Scan scan = keys.patientScan("P1");
+
+        assertTrue(contains(scan, keys.rowKey("P1", "1.2.3", "1.2.3.4")));
+        assertFalse(contains(scan, keys.rowKey("P10", "1.2.3", "1.2.3.4")));
+        assertFalse(contains(scan, keys.rowKey("P0", "1.2.3", "1.2.3.4")));
+    }
+
+    @Test
+    public void composesSaltedKeys() {
+
+        RowKeyStrategy keys = RowKeyStrategy.forName("salted", 16);
+        byte[] row = keys.rowKey("P1", "1.2.3", "1.2.3.4");
+
+        assertTrue(keys.isRowPerInstance());
+        assertTrue((row[0] & 0xff) < 16);
+        assertArrayEquals(Bytes.toBytes("P1\u00001.2.3\u00001.2.3.4"), Arrays.copyOfRange(row, 1, row.length));
+
+        // the salt depends on the patient only, so a patient stays under one prefix
+        assertEquals(row[0], keys.rowKey("P1", "9.9", "9.9.9")[0]);
+
+        byte[] noStudy = keys.rowKey("P1", null, "1.2.3.4");
+
+        assertArrayEquals(Bytes.toBytes("P1\u0000\u00001.2.3.4"), Arrays.copyOfRange(noStudy, 1, noStudy.length));
+    }
+
+    @Test
+    public void composesHashedKeys() {
+
+        RowKeyStrategy keys = RowKeyStrategy.forName("hashed", 16);
+        byte[] row = keys.rowKey("P1", "1.2.3", "1.2.3.4");
+
+        assertTrue(keys.isRowPerInstance());
+        assertArrayEquals(Bytes.toBytes("P1\u00001.2.3\u00001.2.3.4"), Arrays.copyOfRange(row, 4, row.length));
+        assertArrayEquals(Arrays.copyOf(row, 4), Arrays.copyOf(keys.rowKey("P1", "9.9", "9.9.9"), 4));
+    }
+
+    @Test
+    public void scansOnePatientOfSaltedAndHashedKeys() {
+
+        for (String name : new String[]{"salted", "hashed"}) {
+            RowKeyStrategy keys = RowKeyStrategy.forName(name, 4);
+            Scan scan = keys.patientScan("P1");
+
+            assertTrue(name, contains(scan, keys.rowKey("P1", "1.2.3", "1.2.3.4")));
+            assertTrue(name, contains(scan, keys.rowKey("P1", null, "1.2.3.5")));
+            assertTrue(name, contains(scan, keys.rowKey("P1", "\uffff", "\uffff")));
+
+            // the separator keeps out a patient whose ID starts with this one's, whatever the salt
+            for (int i = 0; i < PATIENTS; i++) {
+                assertFalse(name, contains(scan, keys.rowKey("P1" + i, "1.2.3", "1.2.3.4")));
+                assertFalse(name, contains(scan, keys.rowKey("P" + i + "1", "1.2.3", "1.2.3.4")));
+            }
+        }
+    }
+
+    @Test
+    public void splitsSaltedKeysOnBucketBoundaries() {
+
+        RowKeyStrategy keys = RowKeyStrategy.forName("salted", 16);
+        byte[][] splits = keys.splitKeys(4);
+
+        assertEquals(3, splits.length);
+        assertArrayEquals(new byte[]{4}, splits[0]);
+        assertArrayEquals(new byte[]{8}, splits[1]);
+        assertArrayEquals(new byte[]{12}, splits[2]);
+
+        // no more regions than buckets, since a bucket is never split
+        assertEquals(15, keys.splitKeys(64).length);
+        assertEquals(0, keys.splitKeys(1).length);
+
+        assertEvenSpread(keys, 4);
+        assertEvenSpread(RowKeyStrategy.forName("salted", 256), 16);
+    }
+
+    @Test
+    public void splitsHashedKeysEvenly() {
+
+        RowKeyStrategy keys = RowKeyStrategy.forName("hashed", 16);
+        byte[][] splits = keys.splitKeys(4);
+
+        assertEquals(3, splits.length);
+        assertArrayEquals(new byte[]{0x40, 0, 0, 0}, splits[0]);
+        assertArrayEquals(new byte[]{(byte) 0x80, 0, 0, 0}, splits[1]);
+        assertArrayEquals(new byte[]{(byte) 0xc0, 0, 0, 0}, splits[2]);
+
+        assertEvenSpread(keys, 4);
+        assertEvenSpread(keys, 16);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyBuckets() {
+
+        RowKeyStrategy.forName("salted", 257);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownStrategy() {
+
+        RowKeyStrategy.forName("random", 16);
+    }
+
+    /**
+     * Checks that the split keys are sorted and that sequential patient IDs spread over every
+     * region, none holding more than twice its share.
+     */
+    private static void assertEvenSpread(RowKeyStrategy keys, int regions) {
+
+        byte[][] splits = keys.splitKeys(regions);
+
+        assertEquals(regions - 1, splits.length);
+
+        for (int i = 1; i < splits.length; i++) {
+            assertTrue(Bytes.compareTo(splits[i - 1], splits[i]) < 0);
+        }
+
+        int[] counts = new int[regions];
+
+        for (int i = 0; i < PATIENTS; i++) {
+            byte[] row = keys.rowKey(String.format("%08d", i), "1.2.3", "1.2.3.4");
+            int region = 0;
+
+            while (region < splits.length && Bytes.compareTo(row, splits[region]) >= 0) {
+                region++;
+            }
+
+            counts[region]++;
+        }
+
+        for (int count : counts) {
+            assertTrue(Arrays.toString(counts), count > 0 && count < 2 * PATIENTS / regions);
+        }
+    }
+
+    private static boolean contains(Scan scan, byte[] row) {
+
+        return Bytes.compareTo(row, scan.getStartRow()) >= 0
+                && (scan.getStopRow().length == 0 || Bytes.compareTo(row, scan.getStopRow()) < 0
+                || scan.includeStopRow() && Bytes.equals(row, scan.getStopRow()));
+    }
+}
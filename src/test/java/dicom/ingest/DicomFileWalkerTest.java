@@ -0,0 +1,157 @@
+package dicom.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DicomFileWalkerTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("walk");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void detectsDicomMagic() throws IOException {
+
+        byte[] dicom = new byte[200];
+        System.arraycopy(new byte[]{'D', 'I', 'C', 'M'}, 0, dicom, 128, 4);
+
+        assertTrue(DicomFileWalker.isDicom(Files.write(directory.resolve("a.dcm"), dicom)));
+
+        // the magic alone, with nothing after it
+        byte[] header = new byte[132];
+        System.arraycopy(dicom, 0, header, 0, 132);
+        assertTrue(DicomFileWalker.isDicom(Files.write(directory.resolve("b.dcm"), header)));
+
+        dicom[131] = 'X';
+        assertFalse(DicomFileWalker.isDicom(Files.write(directory.resolve("c.dcm"), dicom)));
+
+        // the magic at the start, without a preamble
+        assertFalse(DicomFileWalker.isDicom(Files.write(directory.resolve("d.dcm"), new byte[]{'D', 'I', 'C', 'M'})));
+        assertFalse(DicomFileWalker.isDicom(Files.write(directory.resolve("e.dcm"), new byte[131])));
+        assertFalse(DicomFileWalker.isDicom(Files.write(directory.resolve("f.dcm"), new byte[0])));
+    }
+
+    @Test
+    public void visitsEveryFileOnceThroughLinks() throws IOException {
+
+        int files = 0;
+
+        for (int i = 0; i < 5; i++) {
+            Path sub = Files.createDirectories(directory.resolve("s" + i).resolve("t" + i));
+
+            for (int j = 0; j < 300; j++) {
+                Files.createFile(sub.resolve(j + ".dcm"));
+                files++;
+            }
+        }
+
+        Files.createFile(directory.resolve(DicomFileWalker.DICOMDIR));
+
+        try {
+            Files.createSymbolicLink(directory.resolve("s0").resolve("loop"), directory);
+            Files.createSymbolicLink(directory.resolve("again"), directory.resolve("s1"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // links are optional, the walk is checked without them
+        }
+
+        // keyed by the directory the file is in and its name, whatever link it was reached through
+        Map<String, AtomicInteger> visits = new ConcurrentHashMap<>();
+
+        new DicomFileWalker(4, false).walk(directory, (file, attributes) ->
+                visits.computeIfAbsent(file.getParent().getFileName() + "/" + file.getFileName(),
+                        k -> new AtomicInteger()).incrementAndGet());
+
+        assertEquals(files, visits.size());
+
+        for (Map.Entry<String, AtomicInteger> entry : visits.entrySet()) {
+            assertEquals(entry.getKey(), 1, entry.getValue().get());
+        }
+    }
+
+    /**
+     * Listing a flat directory stops while more than four batches per thread wait to be visited.
+     */
+    @Test
+    public void boundsForkedBatches() throws IOException {
+
+        int parallelism = 2;
+        int files = 256 * 24;
+
+        for (int i = 0; i < files; i++) {
+            Files.createFile(directory.resolve(i + ".dcm"));
+        }
+
+        AtomicInteger visited = new AtomicInteger();
+        AtomicLong queued = new AtomicLong();
+
+        new DicomFileWalker(parallelism, false).walk(directory, (file, attributes) -> {
+            queued.accumulateAndGet(ForkJoinTask.getPool().getQueuedTaskCount(), Math::max);
+            visited.incrementAndGet();
+
+            // visiting is slower than listing, as when the pipeline pushes back
+            LockSupport.parkNanos(100000);
+        });
+
+        assertEquals(files, visited.get());
+        assertTrue(Long.toString(queued.get()), queued.get() > 0 && queued.get() <= 4 * parallelism);
+    }
+
+    @Test
+    public void stopsAtFirstFailure() throws IOException {
+
+        for (int i = 0; i < 1000; i++) {
+            Files.createFile(directory.resolve(i + ".dcm"));
+        }
+
+        IOException failure = new IOException("disk gone");
+        List<Path> visited = new CopyOnWriteArrayList<>();
+
+        try {
+            new DicomFileWalker(2, false).walk(directory, (file, attributes) -> {
+                visited.add(file);
+
+                if (visited.size() == 10) {
+                    throw failure;
+                }
+            });
+            fail("failure swallowed");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+
+        assertTrue(Integer.toString(visited.size()), visited.size() < 1000);
+    }
+}
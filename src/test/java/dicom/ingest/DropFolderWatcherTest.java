@@ -0,0 +1,125 @@
+package dicom.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class DropFolderWatcherTest {
+
+    private static final long SETTLE_MILLIS = 50;
+
+    private static final long RESCAN_MILLIS = 50;
+
+    private Path folder;
+
+    @Before
+    public void setUp() throws IOException {
+
+        folder = Files.createTempDirectory("drop");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * A file is handed over once while the caller holds it; once done, rescans of an unchanged
+     * directory do not list it again.
+     */
+    @Test
+    public void handsOverOnceUntilDone() throws Exception {
+
+        Path file = Files.write(folder.resolve("1.dcm"), new byte[16]);
+        long old = System.currentTimeMillis() - 60000;
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(old));
+        Files.setLastModifiedTime(folder, FileTime.fromMillis(old));
+
+        List<Path> handed = new CopyOnWriteArrayList<>();
+
+        try (DropFolderWatcher watcher = new DropFolderWatcher(Collections.singletonList(folder),
+                new DicomFileWalker(1, false), SETTLE_MILLIS, RESCAN_MILLIS)) {
+            Thread thread = start(watcher, handed);
+
+            await(handed, 1);
+            Thread.sleep(10 * RESCAN_MILLIS);
+
+            assertEquals(1, handed.size());
+
+            watcher.done(file);
+            Thread.sleep(10 * RESCAN_MILLIS);
+
+            assertEquals(1, handed.size());
+
+            watcher.close();
+            thread.join();
+        }
+    }
+
+    /**
+     * A file changed after it was handed over is handed over again once settled.
+     */
+    @Test
+    public void handsOverChangedFileAgain() throws Exception {
+
+        Path file = Files.write(folder.resolve("1.dcm"), new byte[16]);
+        List<Path> handed = new CopyOnWriteArrayList<>();
+
+        try (DropFolderWatcher watcher = new DropFolderWatcher(Collections.singletonList(folder),
+                new DicomFileWalker(1, false), SETTLE_MILLIS, RESCAN_MILLIS)) {
+            Thread thread = start(watcher, handed);
+
+            await(handed, 1);
+            watcher.done(file);
+
+            Files.write(file, new byte[32]);
+            await(handed, 2);
+
+            watcher.close();
+            thread.join();
+        }
+
+        assertEquals(file, handed.get(1));
+    }
+
+    private static Thread start(DropFolderWatcher watcher, List<Path> handed) {
+
+        Thread thread = new Thread(() -> {
+            try {
+                watcher.run((file, attributes) -> handed.add(file));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        thread.start();
+        return thread;
+    }
+
+    private static void await(List<Path> handed, int count) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (handed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(count, handed.size());
+    }
+}
@@ -0,0 +1,163 @@
+package dicom.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestManifestTest {
+
+    private static final byte[] DIGEST = new byte[32];
+
+    private Path directory;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("manifest");
+        file = directory.resolve("ingest.manifest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory.resolve("ingest.manifest.tmp"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void looksUpLatestOutcome() throws IOException {
+
+        Path a = directory.resolve("a.dcm");
+        Path b = directory.resolve("b.dcm");
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            manifest.record(a, 10, 100, DIGEST, "1.2.3", IngestManifest.Outcome.INGESTED);
+            manifest.record(b, 20, 200, DIGEST, "1.2.4", IngestManifest.Outcome.INGESTED);
+            manifest.record(b, 20, 200, DIGEST, "1.2.4", IngestManifest.Outcome.FAILED);
+
+            assertTrue(manifest.isIngested(a, 10, 100));
+            assertFalse(manifest.isIngested(a, 11, 100));
+            assertFalse(manifest.isIngested(a, 10, 101));
+            assertFalse(manifest.isIngested(b, 20, 200));
+            assertFalse(manifest.isIngested(directory.resolve("c.dcm"), 10, 100));
+        }
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            assertEquals(2, manifest.size());
+            assertTrue(manifest.isIngested(a, 10, 100));
+            assertFalse(manifest.isIngested(b, 20, 200));
+        }
+    }
+
+    @Test
+    public void truncatesTornRecord() throws IOException {
+
+        Path a = directory.resolve("a.dcm");
+        Path b = directory.resolve("b.dcm");
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            manifest.record(a, 10, 100, DIGEST, "1.2.3", IngestManifest.Outcome.INGESTED);
+        }
+
+        long valid = Files.size(file);
+
+        // a record cut short by a crash: its length, then less than that many bytes
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(24).putInt(200).putLong(42).putLong(10));
+        }
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            assertEquals(valid, Files.size(file));
+            assertEquals(1, manifest.size());
+            assertTrue(manifest.isIngested(a, 10, 100));
+
+            manifest.record(b, 20, 200, DIGEST, "1.2.4", IngestManifest.Outcome.INGESTED);
+        }
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            assertEquals(2, manifest.size());
+            assertTrue(manifest.isIngested(a, 10, 100));
+            assertTrue(manifest.isIngested(b, 20, 200));
+        }
+    }
+
+    @Test
+    public void compactsSupersededRecords() throws IOException {
+
+        int paths = 10;
+        int rounds = 300;
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < paths; i++) {
+                    manifest.record(directory.resolve(i + ".dcm"), i, round, DIGEST, "1.2." + i,
+                            IngestManifest.Outcome.INGESTED);
+                }
+            }
+        }
+
+        long before = Files.size(file);
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            assertTrue(Files.size(file) * rounds / 2 < before);
+            assertEquals(paths, manifest.size());
+
+            for (int i = 0; i < paths; i++) {
+                assertTrue(manifest.isIngested(directory.resolve(i + ".dcm"), i, rounds - 1));
+                assertFalse(manifest.isIngested(directory.resolve(i + ".dcm"), i, rounds - 2));
+            }
+
+            manifest.record(directory.resolve("0.dcm"), 0, rounds, DIGEST, "1.2.0", IngestManifest.Outcome.FAILED);
+        }
+
+        try (IngestManifest manifest = new IngestManifest(file)) {
+            assertEquals(paths, manifest.size());
+            assertFalse(manifest.isIngested(directory.resolve("0.dcm"), 0, rounds));
+            assertTrue(manifest.isIngested(directory.resolve("1.dcm"), 1, rounds - 1));
+        }
+    }
+
+    @Test
+    public void flushesEveryRecordsAndMillis() throws Exception {
+
+        try (IngestManifest manifest = new IngestManifest(file, 2, 60000)) {
+            long empty = Files.size(file);
+
+            manifest.record(directory.resolve("a.dcm"), 10, 100, DIGEST, "1.2.3", IngestManifest.Outcome.INGESTED);
+            assertEquals(empty, Files.size(file));
+
+            manifest.record(directory.resolve("b.dcm"), 10, 100, DIGEST, "1.2.4", IngestManifest.Outcome.INGESTED);
+            assertTrue(Files.size(file) > empty);
+        }
+
+        Files.delete(file);
+
+        try (IngestManifest manifest = new IngestManifest(file, 1000, 50)) {
+            long empty = Files.size(file);
+
+            manifest.record(directory.resolve("a.dcm"), 10, 100, DIGEST, "1.2.3", IngestManifest.Outcome.INGESTED);
+
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (Files.size(file) == empty && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertTrue(Files.size(file) > empty);
+        }
+    }
+}
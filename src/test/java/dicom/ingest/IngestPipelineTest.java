@@ -0,0 +1,84 @@
+package dicom.ingest;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IngestPipelineTest {
+
+    private static final int FILES = 200;
+
+    @Test
+    public void writesSameInstanceInSubmissionOrder() throws Exception {
+
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+        // early files read slowest, so later ones are parsed first
+        IngestStage reader = task -> Thread.sleep(Math.max(0, 20 - index(task) / 10));
+        IngestStage parser = task -> task.setSopInstanceUid("1.2.3." + index(task) % 3);
+        IngestStage couchDbWriter = task -> written.add(task.getFile().getName());
+
+        IngestPipeline pipeline = new IngestPipeline(4, 4, reader, parser, couchDbWriter, task -> {
+        });
+
+        for (int i = 0; i < FILES; i++) {
+            pipeline.submit(new File(Integer.toString(i)));
+        }
+
+        assertEquals(0, pipeline.finish().size());
+        assertEquals(FILES, written.size());
+
+        int[] last = {-1, -1, -1};
+
+        for (String name : written) {
+            int index = Integer.parseInt(name);
+
+            if (index <= last[index % 3]) {
+                throw new AssertionError(String.format("%d written after %d", index, last[index % 3]));
+            }
+
+            last[index % 3] = index;
+        }
+    }
+
+    @Test
+    public void failedFilesDoNotHoldBackLaterOnes() throws IOException {
+
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+        IngestStage reader = task -> {
+            if (index(task) % 5 == 0) {
+                throw new IOException("unreadable");
+            }
+        };
+        IngestStage parser = task -> task.setSopInstanceUid("1.2.3");
+        IngestStage couchDbWriter = task -> written.add(task.getFile().getName());
+
+        IngestPipeline pipeline = new IngestPipeline(2, 2, reader, parser, couchDbWriter, task -> {
+        });
+
+        for (int i = 0; i < FILES; i++) {
+            pipeline.submit(new File(Integer.toString(i)));
+        }
+
+        List<IngestFailure> failures = pipeline.finish();
+
+        assertEquals(FILES / 5, failures.size());
+        assertEquals(FILES - FILES / 5, written.size());
+
+        for (int i = 1; i < written.size(); i++) {
+            assertEquals(true, Integer.parseInt(written.get(i - 1)) < Integer.parseInt(written.get(i)));
+        }
+    }
+
+    private static int index(IngestTask task) {
+
+        return Integer.parseInt(task.getFile().getName());
+    }
+}
@@ -0,0 +1,139 @@
+package dicom.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardLedgerTest {
+
+    private static final int SHARDS = 3;
+
+    private static final long STALE_MILLIS = 1000;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("ledger");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void firstClaimWins() throws IOException {
+
+        Path file = directory.resolve("ledger");
+
+        try (ShardLedger first = new ShardLedger(file, SHARDS, STALE_MILLIS);
+             ShardLedger second = new ShardLedger(file, SHARDS, STALE_MILLIS)) {
+            assertTrue(first.claim(0));
+            assertFalse(second.claim(0));
+
+            second.refresh();
+
+            assertEquals(first.getOwner(), second.getOwner(0));
+            assertTrue(second.claimAbandoned().isEmpty());
+        }
+    }
+
+    @Test
+    public void claimsShardOnceOwnerStopsBeating() throws Exception {
+
+        Path file = directory.resolve("ledger");
+
+        try (ShardLedger owner = new ShardLedger(file, SHARDS, 200);
+             ShardLedger standby = new ShardLedger(file, SHARDS, 200)) {
+            for (int shard = 0; shard < SHARDS; shard++) {
+                assertTrue(owner.claim(shard));
+            }
+
+            owner.finish(0);
+
+            for (int i = 0; i < 4; i++) {
+                Thread.sleep(100);
+                owner.beat();
+                assertTrue(standby.claimAbandoned().isEmpty());
+            }
+
+            Thread.sleep(300);
+
+            assertEquals(Arrays.asList(1, 2), standby.claimAbandoned());
+
+            owner.refresh();
+
+            assertFalse(owner.isOwner(1));
+            assertTrue(owner.hasOtherOwners());
+        }
+    }
+
+    /**
+     * A shard whose process never started is taken over like one whose owner stopped beating,
+     * counting from when the ledger was opened.
+     */
+    @Test
+    public void claimsShardNobodyClaimed() throws Exception {
+
+        Path file = directory.resolve("ledger");
+
+        try (ShardLedger first = new ShardLedger(file, SHARDS, 200)) {
+            assertTrue(first.claim(0));
+            first.finish(0);
+
+            assertTrue(first.hasOtherOwners());
+            assertTrue(first.claimAbandoned().isEmpty());
+
+            Thread.sleep(300);
+
+            try (ShardLedger late = new ShardLedger(file, SHARDS, 200)) {
+                // just opened, so it waits as long as the first process did
+                assertTrue(late.claimAbandoned().isEmpty());
+                assertEquals(Arrays.asList(1, 2), first.claimAbandoned());
+
+                late.refresh();
+
+                assertEquals(first.getOwner(), late.getOwner(2));
+                assertFalse(late.claim(1));
+            }
+
+            first.finish(1);
+            first.finish(2);
+
+            assertFalse(first.hasOtherOwners());
+        }
+    }
+
+    @Test
+    public void finishedShardCanBeClaimed() throws IOException {
+
+        Path file = directory.resolve("ledger");
+
+        try (ShardLedger first = new ShardLedger(file, SHARDS, STALE_MILLIS);
+             ShardLedger second = new ShardLedger(file, SHARDS, STALE_MILLIS)) {
+            assertTrue(first.claim(2));
+            first.done("a/b.dcm");
+            first.finish(2);
+
+            assertTrue(second.claim(2));
+            assertTrue(second.isDone("a/b.dcm"));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package dicom.json;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.junit.Test;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonInputHandlerTest {
+
+    private static final int NUMBER_OF_FRAMES = 0x00280008;
+
+    private static final int PIXEL_DATA = 0x7FE00010;
+
+    private static final int ITEM = 0xFFFEE000;
+
+    private static final int SEQUENCE_DELIMITATION_ITEM = 0xFFFEE0DD;
+
+    @Test
+    public void locatesOneFragmentPerFrameWithOffsetTable() throws IOException {
+
+        Dataset dataset = new Dataset()
+                .numberOfFrames(3)
+                .pixelData(new long[]{0, 108, 316}, 100, 200, 50);
+
+        JsonObject pixelData = read(dataset).getAsJsonObject("t7FE00010");
+
+        assertEquals(3, pixelData.get("frames").getAsInt());
+        assertOffsets(pixelData, 0, 108, 316);
+        assertFragments(pixelData, dataset);
+    }
+
+    @Test
+    public void locatesSeveralFragmentsOfOneFrame() throws IOException {
+
+        Dataset dataset = new Dataset().pixelData(new long[0], 40, 30, 20, 10);
+
+        JsonObject pixelData = read(dataset).getAsJsonObject("t7FE00010");
+
+        assertEquals(1, pixelData.get("frames").getAsInt());
+        assertOffsets(pixelData);
+        assertFragments(pixelData, dataset);
+    }
+
+    @Test
+    public void countsFramesWithoutOffsetTable() throws IOException {
+
+        Dataset dataset = new Dataset()
+                .numberOfFrames(2)
+                .pixelData(new long[0], 64, 64);
+
+        JsonObject pixelData = read(dataset).getAsJsonObject("t7FE00010");
+
+        assertEquals(2, pixelData.get("frames").getAsInt());
+        assertOffsets(pixelData);
+        assertFragments(pixelData, dataset);
+    }
+
+    @Test
+    public void locatesFramesSplitAcrossFragments() throws IOException {
+
+        // two frames of two fragments each: the offset table points at the first of each
+        Dataset dataset = new Dataset()
+                .numberOfFrames(2)
+                .pixelData(new long[]{0, 76}, 30, 30, 50, 10);
+
+        JsonObject pixelData = read(dataset).getAsJsonObject("t7FE00010");
+
+        assertEquals(2, pixelData.get("frames").getAsInt());
+        assertOffsets(pixelData, 0, 76);
+        assertFragments(pixelData, dataset);
+    }
+
+    private static JsonObject read(Dataset dataset) throws IOException {
+
+        StringWriter json = new StringWriter();
+
+        try (JsonGenerator generator = Json.createGenerator(json);
+             DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(dataset.toByteArray()),
+                     UID.ExplicitVRLittleEndian)) {
+            new JsonInputHandler(generator).readDataset(dis);
+        }
+
+        return new JsonParser().parse(json.toString()).getAsJsonObject();
+    }
+
+    private static void assertOffsets(JsonObject pixelData, long... expected) {
+
+        JsonArray offsets = pixelData.getAsJsonArray("offsets");
+
+        assertEquals(expected.length, offsets.size());
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], offsets.get(i).getAsLong());
+        }
+    }
+
+    private static void assertFragments(JsonObject pixelData, Dataset dataset) {
+
+        JsonArray fragments = pixelData.getAsJsonArray("fragments");
+
+        assertEquals(dataset.fragmentPositions.size(), fragments.size());
+
+        for (int i = 0; i < fragments.size(); i++) {
+            JsonArray fragment = fragments.get(i).getAsJsonArray();
+
+            assertEquals((long) dataset.fragmentPositions.get(i), fragment.get(0).getAsLong());
+            assertEquals((long) dataset.fragmentLengths.get(i), fragment.get(1).getAsLong());
+        }
+    }
+
+    /**
+     * A dataset in explicit VR little endian without file meta information, noting where each
+     * pixel data fragment starts.
+     */
+    private static final class Dataset {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        private final List<Long> fragmentPositions = new ArrayList<>();
+
+        private final List<Long> fragmentLengths = new ArrayList<>();
+
+        private Dataset numberOfFrames(int frames) {
+
+            String value = Integer.toString(frames);
+
+            if (value.length() % 2 != 0) {
+                value += ' ';
+            }
+
+            tag(NUMBER_OF_FRAMES);
+            out.write('I');
+            out.write('S');
+            uint16(value.length());
+            out.write(value.getBytes(StandardCharsets.US_ASCII), 0, value.length());
+
+            return this;
+        }
+
+        private Dataset pixelData(long[] offsetTable, int... fragmentLengths) {
+
+            tag(PIXEL_DATA);
+            out.write('O');
+            out.write('B');
+            uint16(0);
+            uint32(0xFFFFFFFFL);
+
+            tag(ITEM);
+            uint32(4L * offsetTable.length);
+
+            for (long offset : offsetTable) {
+                uint32(offset);
+            }
+
+            for (int length : fragmentLengths) {
+                tag(ITEM);
+                uint32(length);
+
+                this.fragmentPositions.add((long) out.size());
+                this.fragmentLengths.add((long) length);
+
+                for (int i = 0; i < length; i++) {
+                    out.write(i);
+                }
+            }
+
+            tag(SEQUENCE_DELIMITATION_ITEM);
+            uint32(0);
+
+            return this;
+        }
+
+        private byte[] toByteArray() {
+
+            return out.toByteArray();
+        }
+
+        private void tag(int tag) {
+
+            uint16(tag >>> 16);
+            uint16(tag & 0xFFFF);
+        }
+
+        private void uint16(int value) {
+
+            out.write(value);
+            out.write(value >>> 8);
+        }
+
+        private void uint32(long value) {
+
+            uint16((int) (value & 0xFFFF));
+            uint16((int) (value >>> 16));
+        }
+    }
+}
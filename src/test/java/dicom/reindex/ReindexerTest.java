@@ -0,0 +1,281 @@
+package dicom.reindex;
+
+import dicom.hbase.HBaseBlobReader;
+import dicom.ingest.IngestStage;
+import dicom.metrics.IngestMetrics;
+import dicom.sink.MetadataSink;
+import dicom.sink.WriteOutcome;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellBuilderFactory;
+import org.apache.hadoop.hbase.CellBuilderType;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReindexerTest {
+
+    private static final TableName TABLE = TableName.valueOf("dicom");
+
+    private static final byte[] FAMILY = Bytes.toBytes("f");
+
+    /**
+     * Row, then the UIDs of the blobs it holds; each blob holds its UID.
+     */
+    private final NavigableMap<byte[], List<String>> rows = new TreeMap<>(Bytes::compareTo);
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile String failing;
+
+    private Path directory;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+
+        directory = Files.createTempDirectory("reindex");
+        file = directory.resolve("reindex.checkpoint");
+
+        rows.put(Bytes.toBytes("r0"), Collections.singletonList("1.2.0"));
+        rows.put(Bytes.toBytes("r1"), Arrays.asList("1.2.1.1", "1.2.1.2"));
+        rows.put(Bytes.toBytes("r2"), Collections.singletonList("1.2.2"));
+        rows.put(Bytes.toBytes("r3"), Collections.singletonList("1.2.3"));
+        rows.put(Bytes.toBytes("r4"), Collections.singletonList("1.2.4"));
+        rows.put(Bytes.toBytes("r5"), Collections.singletonList("1.2.5"));
+        rows.put(Bytes.toBytes("r6"), Collections.singletonList("1.2.6"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory.resolve("reindex.checkpoint.tmp"));
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * A document that fails holds its range before the failure: the rest of the range is still
+     * reindexed, the next run resumes after the last row that was fully written and does not
+     * scan the finished ranges again.
+     */
+    @Test
+    public void resumesFromCheckpointAfterFailure() throws IOException {
+
+        List<KeyRange> ranges = Arrays.asList(
+                new KeyRange(new byte[0], Bytes.toBytes("r5")),
+                new KeyRange(Bytes.toBytes("r5"), new byte[0]));
+
+        failing = "1.2.2";
+
+        Reindexer first = reindexer();
+        first.run(ReindexCheckpoint.open(file, ranges), 10);
+
+        assertEquals(1, first.getFailures());
+        assertEquals(Arrays.asList("1.2.0", "1.2.1.1", "1.2.1.2", "1.2.3", "1.2.4", "1.2.5", "1.2.6"), sorted(written));
+
+        ReindexCheckpoint checkpoint = ReindexCheckpoint.open(file, Collections.emptyList());
+
+        assertEquals(2, checkpoint.getRanges().size());
+        assertFalse(checkpoint.isDone(0));
+        assertTrue(checkpoint.isDone(1));
+        assertArrayEquals(Bytes.toBytes("r1"), checkpoint.getPosition(0));
+
+        failing = null;
+        written.clear();
+
+        Reindexer second = reindexer();
+        second.run(checkpoint, 10);
+
+        assertEquals(0, second.getFailures());
+        assertEquals(Arrays.asList("1.2.2", "1.2.3", "1.2.4"), written);
+
+        checkpoint = ReindexCheckpoint.open(file, Collections.emptyList());
+
+        assertEquals(0, checkpoint.getRemaining());
+    }
+
+    @Test
+    public void keepsCheckpointAcrossRestarts() throws IOException {
+
+        List<KeyRange> ranges = Arrays.asList(
+                new KeyRange(new byte[0], new byte[]{0, (byte) 0xff}),
+                new KeyRange(new byte[]{0, (byte) 0xff}, new byte[0]));
+
+        ReindexCheckpoint checkpoint = ReindexCheckpoint.open(file, ranges);
+
+        checkpoint.advance(0, new byte[]{0, 1, '\t', '\n'});
+        checkpoint.finish(1);
+        checkpoint.save();
+
+        ReindexCheckpoint reopened = ReindexCheckpoint.open(file, Collections.emptyList());
+
+        assertArrayEquals(new byte[]{0, (byte) 0xff}, reopened.getRanges().get(0).getStop());
+        assertArrayEquals(new byte[]{0, 1, '\t', '\n'}, reopened.getPosition(0));
+        assertFalse(reopened.isDone(0));
+        assertTrue(reopened.isDone(1));
+        assertEquals(1, reopened.getRemaining());
+    }
+
+    private Reindexer reindexer() {
+
+        Connection connection = connection();
+
+        HBaseBlobReader reader = new HBaseBlobReader(connection, TABLE) {
+
+            @Override
+            public byte[][] readAll(List<byte[]> rows, byte[] family, List<String> uids) {
+
+                byte[][] blobs = new byte[uids.size()][];
+
+                for (int i = 0; i < uids.size(); i++) {
+                    blobs[i] = uids.get(i).getBytes(StandardCharsets.UTF_8);
+                }
+
+                return blobs;
+            }
+        };
+
+        IngestStage parser = task -> {
+            String uid = new String(task.getData(), StandardCharsets.UTF_8);
+
+            task.setSopInstanceUid(uid);
+            task.setJson(("{\"_id\":\"" + uid + "\"}").getBytes(StandardCharsets.UTF_8));
+        };
+
+        MetadataSink sink = new MetadataSink() {
+
+            @Override
+            public CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+                CompletableFuture<WriteOutcome> future = new CompletableFuture<>();
+
+                if (id.equals(failing)) {
+                    future.completeExceptionally(new IOException("conflict"));
+                } else {
+                    written.add(id);
+                    future.complete(WriteOutcome.UPDATED);
+                }
+
+                return future;
+            }
+
+            @Override
+            public void close() {
+
+            }
+        };
+
+        return new Reindexer(connection, TABLE, FAMILY, reader, parser, sink, new IngestMetrics(), 2, 1, 0);
+    }
+
+    /**
+     * Serves the key-only scans of the reindexer from {@link #rows}: one cell per blob, its value
+     * the stored length.
+     */
+    private Connection connection() {
+
+        Table table = (Table) Proxy.newProxyInstance(Table.class.getClassLoader(), new Class<?>[]{Table.class},
+                (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "getScanner":
+                            return scanner((Scan) args[0]);
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (p, method, args) -> {
+                    if (method.getName().equals("getTable")) {
+                        return table;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private ResultScanner scanner(Scan scan) {
+
+        NavigableMap<byte[], List<String>> range = rows;
+
+        if (scan.getStartRow().length > 0) {
+            range = range.tailMap(scan.getStartRow(), scan.includeStartRow());
+        }
+
+        if (scan.getStopRow().length > 0) {
+            range = range.headMap(scan.getStopRow(), false);
+        }
+
+        Map<byte[], List<String>> scanned = new LinkedHashMap<>(range);
+        Iterator<Map.Entry<byte[], List<String>>> entries = scanned.entrySet().iterator();
+
+        return (ResultScanner) Proxy.newProxyInstance(ResultScanner.class.getClassLoader(),
+                new Class<?>[]{ResultScanner.class},
+                (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return entries.hasNext() ? result(entries.next()) : null;
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static Result result(Map.Entry<byte[], List<String>> row) {
+
+        List<Cell> cells = new ArrayList<>();
+
+        for (String uid : row.getValue()) {
+            cells.add(CellBuilderFactory.create(CellBuilderType.DEEP_COPY)
+                    .setRow(row.getKey())
+                    .setFamily(FAMILY)
+                    .setQualifier(Bytes.toBytes(uid))
+                    .setTimestamp(1)
+                    .setType(Cell.Type.Put)
+                    .setValue(Bytes.toBytes(uid.length()))
+                    .build());
+        }
+
+        return Result.create(cells);
+    }
+
+    private static List<String> sorted(List<String> list) {
+
+        List<String> sorted = new ArrayList<>(list);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
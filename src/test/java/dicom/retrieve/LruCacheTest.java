@@ -0,0 +1,94 @@
+package dicom.retrieve;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LruCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsedPastMaxWeight() {
+
+        LruCache<String, byte[]> cache = new LruCache<>(100, value -> value.length);
+
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        cache.get("a");
+        cache.put("c", new byte[40]);
+
+        assertNull(cache.get("b"));
+        assertEquals(40, cache.get("a").length);
+        assertEquals(40, cache.get("c").length);
+        assertEquals(80, cache.getWeight());
+        assertEquals(1, cache.getEvictions());
+
+        // one heavy value makes room by evicting as many light ones as needed
+        cache.put("d", new byte[90]);
+
+        assertEquals(1, cache.getSize());
+        assertEquals(90, cache.getWeight());
+        assertEquals(3, cache.getEvictions());
+    }
+
+    @Test
+    public void reweighsReplacedValues() {
+
+        LruCache<String, byte[]> cache = new LruCache<>(100, value -> value.length);
+
+        cache.put("a", new byte[30]);
+        cache.put("b", new byte[30]);
+        cache.put("a", new byte[60]);
+
+        assertEquals(90, cache.getWeight());
+        assertEquals(0, cache.getEvictions());
+
+        // the replaced value is the most recent, so the other one goes
+        cache.put("a", new byte[80]);
+
+        assertNull(cache.get("b"));
+        assertEquals(80, cache.getWeight());
+
+        cache.invalidate("a");
+
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void dropsValuesHeavierThanTheCache() {
+
+        LruCache<String, byte[]> cache = new LruCache<>(100, value -> value.length);
+
+        cache.put("a", new byte[10]);
+        cache.put("b", new byte[50]);
+        cache.put("a", new byte[101]);
+
+        assertNull(cache.get("a"));
+        assertEquals(50, cache.getWeight());
+        assertEquals(0, cache.getEvictions());
+
+        LruCache<String, byte[]> disabled = new LruCache<>(0, value -> value.length);
+        disabled.put("a", new byte[1]);
+
+        assertNull(disabled.get("a"));
+        assertEquals(0, disabled.getSize());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+
+        LruCache<String, byte[]> cache = new LruCache<>(100, value -> value.length);
+
+        cache.put("a", new byte[10]);
+        cache.get("a");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRatio(), 0);
+        assertEquals(100, cache.getMaxWeight());
+    }
+}
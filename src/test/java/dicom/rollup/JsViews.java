@@ -0,0 +1,58 @@
+package dicom.rollup;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the map functions of the JavaScript views in {@code src/config} over instance documents,
+ * as CouchDB does, with the JavaScript engine of the JDK. Each emitted row is returned as the
+ * JSON array {@code [key, value]}.
+ */
+class JsViews {
+
+    private final ScriptEngine engine;
+
+    private JsViews(ScriptEngine engine) {
+
+        this.engine = engine;
+    }
+
+    /**
+     * Loads the views, or returns {@code null} when the JDK has no JavaScript engine.
+     */
+    static JsViews load(String... views) throws IOException, ScriptException {
+
+        ScriptEngine engine = new ScriptEngineManager().getEngineByName("javascript");
+
+        if (engine == null) {
+            return null;
+        }
+
+        engine.eval("var views = {}, emitted = [];"
+                + "function emit(key, value) { emitted.push(JSON.stringify([key, value])); }");
+
+        for (String view : views) {
+            engine.eval(new String(Files.readAllBytes(Paths.get("src", "config", view + ".js")), StandardCharsets.UTF_8));
+            engine.eval("views['" + view + "'] = map;");
+        }
+
+        return new JsViews(engine);
+    }
+
+    List<String> map(String view, String doc) throws ScriptException {
+
+        engine.put("doc", doc);
+
+        String emitted = (String) engine.eval("emitted = []; views['" + view + "'](JSON.parse(doc)); emitted.join('\\n');");
+
+        return emitted.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(emitted.split("\n")));
+    }
+}
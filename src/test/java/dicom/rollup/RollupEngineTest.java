@@ -0,0 +1,274 @@
+package dicom.rollup;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import dicom.sink.MetadataSink;
+import dicom.sink.WriteOutcome;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the rollup documents against the JavaScript views they replace: summed over every
+ * rollup document, the counts must be those the views reduce to over the instance documents,
+ * and the radiation rows those the views emit.
+ */
+public class RollupEngineTest {
+
+    private static final String[] VIEWS = {RollupEngine.EXAM_COUNT_BY_PATIENT, RollupEngine.EXAM_COUNT_BY_MODALITY,
+            RollupEngine.RADIATION_BY_MODALITY, RollupEngine.RADIATION_BY_PATIENT};
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+
+    private final MetadataSink sink = new MetadataSink() {
+
+        @Override
+        public CompletableFuture<WriteOutcome> write(String id, byte[] doc, String digest, Consumer<byte[]> replaced) {
+
+            written.add(new String(doc, StandardCharsets.UTF_8));
+            return CompletableFuture.completedFuture(WriteOutcome.CREATED);
+        }
+
+        @Override
+        public void close() {
+
+        }
+    };
+
+    private JsViews views;
+
+    @Before
+    public void setUp() throws Exception {
+
+        views = JsViews.load(VIEWS);
+    }
+
+    @Test
+    public void countsLikeTheViews() {
+
+        List<String> docs = Arrays.asList(
+                doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""),
+                doc("2", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, null),
+                doc("3", "\"P1\"", "\"MR\"", null, "\"20180102\"", "\"030405.123\"", null),
+                doc("4", "\"P2\"", "\"CT\"", null, "\"20180102\"", "\"03:04\"", "\"100\""),
+                doc("5", null, "\"CT\"", "\"20190101\"", null, null, "\"80\""),
+                doc("6", "\"P3\"", null, "\"2019\"", null, null, null),
+                doc("7", "[\"P4\",\"P5\"]", "\"CT\"", "\"20200229235959\"", null, null, "1.5"),
+                doc("8", "\"P1\"", "\"CT\"", null, "20180102", "030405", null),
+                doc("9", "\"P1\"", "\"CT\"", null, null, null, "\"120\""));
+
+        RollupEngine engine = new RollupEngine(sink, 60000, 2);
+
+        try {
+            for (int i = 0; i < docs.size(); i++) {
+                RollupInput input = RollupInput.extract(docs.get(i).getBytes(StandardCharsets.UTF_8));
+
+                if (input != null) {
+                    engine.add(input);
+                }
+
+                if (i == docs.size() / 2) {
+                    engine.flush();
+                }
+            }
+        } finally {
+            engine.close();
+        }
+
+        assertEquals(written.size(), engine.getDocumentsWritten());
+
+        for (String view : VIEWS) {
+            assertEquals(view, mapped(view, docs), rolledUp(view));
+        }
+    }
+
+    /**
+     * Replacing documents moves their counts as CouchDB remaps a new revision. Radiation rows
+     * already written stay, so a replaced document with another dose or time leaves its old row
+     * besides the new one, while one with the same radiation adds none.
+     */
+    @Test
+    public void correctsReplacedDocuments() {
+
+        List<String> before = Arrays.asList(
+                doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""),
+                doc("2", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""),
+                doc("3", "\"P1\"", "\"MR\"", "\"20180102030405\"", null, null, null),
+                doc("4", "\"P2\"", "\"CT\"", null, "\"20180102\"", "\"03:04\"", "\"100\""),
+                doc("5", "\"P3\"", "\"CT\"", "\"20180102030405\"", null, null, null));
+
+        List<String> after = Arrays.asList(
+                doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""),
+                doc("2", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"140\""),
+                doc("3", "\"P2\"", "\"MR\"", "\"20190102030405\"", null, null, null),
+                doc("4", "\"P2\"", "\"CT\"", null, "\"20180102\"", "\"03:05\"", "\"100\""),
+                doc("5", "\"P3\"", null, "\"2018\"", null, null, null));
+
+        RollupEngine engine = new RollupEngine(sink, 60000, 1000);
+
+        try {
+            for (String doc : before) {
+                engine.add(RollupInput.extract(doc.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            engine.flush();
+
+            for (int i = 0; i < after.size(); i++) {
+                engine.replace(RollupInput.extract(before.get(i).getBytes(StandardCharsets.UTF_8)),
+                        RollupInput.extract(after.get(i).getBytes(StandardCharsets.UTF_8)));
+            }
+        } finally {
+            engine.close();
+        }
+
+        assertEquals(mapped(RollupEngine.EXAM_COUNT_BY_PATIENT, after), rolledUp(RollupEngine.EXAM_COUNT_BY_PATIENT));
+        assertEquals(mapped(RollupEngine.EXAM_COUNT_BY_MODALITY, after), rolledUp(RollupEngine.EXAM_COUNT_BY_MODALITY));
+
+        // 1 kept its radiation, 2 and 4 changed theirs
+        List<String> radiated = new ArrayList<>(before);
+        radiated.add(after.get(1));
+        radiated.add(after.get(3));
+
+        assertEquals(mapped(RollupEngine.RADIATION_BY_MODALITY, radiated), rolledUp(RollupEngine.RADIATION_BY_MODALITY));
+        assertEquals(mapped(RollupEngine.RADIATION_BY_PATIENT, radiated), rolledUp(RollupEngine.RADIATION_BY_PATIENT));
+    }
+
+    @Test
+    public void writesNothingForCountsTakenBackToZero() {
+
+        RollupInput packed = RollupInput.extract(doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, null)
+                .getBytes(StandardCharsets.UTF_8));
+        RollupInput unpacked = RollupInput.extract(doc("2", "\"P1\"", "\"CT\"", null, "\"20180102\"", "\"03:04\"", null)
+                .getBytes(StandardCharsets.UTF_8));
+
+        RollupEngine engine = new RollupEngine(sink, 60000, 1000);
+
+        try {
+            engine.add(packed);
+            engine.add(unpacked);
+            engine.replace(packed, null);
+            engine.replace(unpacked, null);
+        } finally {
+            engine.close();
+        }
+
+        assertEquals(0, engine.getDocumentsWritten());
+        assertTrue(written.isEmpty());
+    }
+
+    /**
+     * Returns what the JavaScript view gives over {@code docs}: the count of every key for the
+     * exam count views, the sorted rows for the radiation views.
+     */
+    private Object mapped(String view, List<String> docs) {
+
+        assumeTrue("no JavaScript engine", views != null);
+
+        List<JsonArray> rows = new ArrayList<>();
+
+        for (String doc : docs) {
+            try {
+                for (String row : views.map(view, doc)) {
+                    rows.add(new JsonParser().parse(row).getAsJsonArray());
+                }
+            } catch (Exception e) {
+                // the view fails on this document, so CouchDB emits nothing for it
+            }
+        }
+
+        return reduce(view, rows);
+    }
+
+    /**
+     * Returns what the {@code rollup-*} view gives over the rollup documents written.
+     */
+    private Object rolledUp(String view) {
+
+        List<JsonArray> rows = new ArrayList<>();
+
+        for (String doc : written) {
+            JsonObject object = new JsonParser().parse(doc).getAsJsonObject();
+
+            if (object.get("rollup").getAsString().equals(view)) {
+                rows.addAll(rows(doc));
+            }
+        }
+
+        return reduce(view, rows);
+    }
+
+    private static List<JsonArray> rows(String doc) {
+
+        List<JsonArray> rows = new ArrayList<>();
+
+        for (JsonElement row : new JsonParser().parse(doc).getAsJsonObject().getAsJsonArray("rows")) {
+            rows.add(row.getAsJsonArray());
+        }
+
+        return rows;
+    }
+
+    private static Object reduce(String view, List<JsonArray> rows) {
+
+        if (view.startsWith("exam_count")) {
+            Map<String, Long> counts = new HashMap<>();
+
+            for (JsonArray row : rows) {
+                counts.merge(row.get(0).toString(), row.get(1).getAsLong(), Long::sum);
+            }
+
+            counts.values().removeIf(count -> count == 0);
+            return counts;
+        }
+
+        List<String> sorted = new ArrayList<>();
+
+        for (JsonArray row : rows) {
+            sorted.add(row.toString());
+        }
+
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Builds an instance document; each value is given as JSON, or {@code null} to leave the
+     * member out.
+     */
+    static String doc(String sop, String patient, String modality, String dateTime, String date, String time,
+                      String kvp) {
+
+        StringBuilder doc = new StringBuilder("{\"t00080018\":\"1.2.3.").append(sop).append('"');
+
+        member(doc, RollupInput.ACQUISITION_DATE, date);
+        member(doc, RollupInput.ACQUISITION_DATE_TIME, dateTime);
+        member(doc, RollupInput.ACQUISITION_TIME, time);
+        member(doc, RollupInput.MODALITY, modality);
+        member(doc, RollupInput.PATIENT_ID, patient);
+        member(doc, "t00180060", kvp);
+
+        return doc.append('}').toString();
+    }
+
+    private static void member(StringBuilder doc, String name, String json) {
+
+        if (json != null) {
+            doc.append(",\"").append(name).append("\":").append(json);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package dicom.rollup;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static dicom.rollup.RollupEngineTest.doc;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RollupInputTest {
+
+    @Test
+    public void packsAcquisitionDateTime() {
+
+        RollupInput input = extract(doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, null));
+
+        assertEquals("\"P1\"", input.getPatient());
+        assertEquals("\"CT\"", input.getModality());
+        assertTrue(input.getTime() >= 0);
+        assertEquals("2018,1,2,3,4,5", input.getTimeFields());
+        assertNull(input.getDose());
+    }
+
+    @Test
+    public void joinsAcquisitionDateAndTime() {
+
+        RollupInput input = extract(doc("1", "\"P1\"", null, null, "\"20180102\"", "\"030405.123\"", null));
+
+        assertEquals("2018,1,2,3,4,5", input.getTimeFields());
+        assertNull(input.getModality());
+    }
+
+    /**
+     * As {@code Number} does, a field that is not a number becomes {@code NaN}, emitted as
+     * {@code null}, and a missing field becomes 0.
+     */
+    @Test
+    public void convertsFieldsAsNumberDoes() {
+
+        RollupInput input = extract(doc("1", "\"P1\"", "\"CT\"", null, "\"20180102\"", "\"03:04\"", null));
+
+        assertEquals(-1, input.getTime());
+        assertEquals("2018,1,2,3,null,4", input.getTimeFields());
+
+        assertEquals("2019,0,0,0,0,0", extract(doc("1", "\"P1\"", "\"CT\"", "\"2019\"", null, null, null)).getTimeFields());
+    }
+
+    @Test
+    public void skipsDocumentsTheViewsDoNotEmit() {
+
+        // no acquisition time
+        assertNull(extract(doc("1", "\"P1\"", "\"CT\"", null, "\"20180102\"", null, "\"120\"")));
+        // neither patient nor modality
+        assertNull(extract(doc("1", null, null, "\"20180102030405\"", null, null, "\"120\"")));
+        // numbers add up instead of joining, and substr fails on the sum
+        assertNull(extract(doc("1", "\"P1\"", "\"CT\"", null, "20180102", "30405", null)));
+        // substr fails on anything but a string
+        assertNull(extract(doc("1", "\"P1\"", "\"CT\"", "20180102030405", null, null, null)));
+    }
+
+    @Test
+    public void buildsDoseRecord() {
+
+        RollupInput input = extract(doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""));
+
+        assertEquals("{\"t00080018\":\"1.2.3.1\",\"t00100020\":\"P1\",\"t00180060\":\"120\"}", input.getDose());
+
+        RollupInput anonymous = extract(doc("1", null, "\"CT\"", "\"20180102030405\"", null, null, "1.5"));
+
+        assertEquals("{\"t00080018\":\"1.2.3.1\",\"t00180060\":1.5}", anonymous.getDose());
+    }
+
+    @Test
+    public void comparesRadiation() {
+
+        RollupInput a = extract(doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"120\""));
+        RollupInput b = extract(doc("1", "\"P1\"", "\"CT\"", null, "\"20180102\"", "\"030405\"", "\"120\""));
+        RollupInput c = extract(doc("1", "\"P1\"", "\"CT\"", "\"20180102030405\"", null, null, "\"140\""));
+
+        assertTrue(a.hasSameRadiation(b));
+        assertFalse(a.hasSameRadiation(c));
+    }
+
+    private static RollupInput extract(String doc) {
+
+        return RollupInput.extract(doc.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,306 @@
+package dicom.sink;
+
+import dicom.ingest.IngestFailure;
+import dicom.ingest.IngestListener;
+import dicom.ingest.IngestPipeline;
+import dicom.ingest.IngestStage;
+import dicom.ingest.IngestTask;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs files through the {@link IngestPipeline} into the in-memory sinks, with their writes
+ * completing after a delay as a remote store's would.
+ */
+public class MemorySinkPipelineTest {
+
+    private static final int FILES = 50;
+
+    private static final long LATENCY_MILLIS = 2;
+
+    private MemoryMetadataSink metadataSink;
+
+    private MemoryBlobSink blobSink;
+
+    private final Map<String, byte[]> contents = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() {
+
+        metadataSink = new MemoryMetadataSink(LATENCY_MILLIS, true);
+        blobSink = new MemoryBlobSink(LATENCY_MILLIS, true);
+
+        for (int i = 0; i < FILES; i++) {
+            contents.put(Integer.toString(i), ("content " + i).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @After
+    public void tearDown() {
+
+        metadataSink.close();
+        blobSink.close();
+    }
+
+    @Test
+    public void storesEveryFileAndReportsCreatedThenUpdated() throws Exception {
+
+        Run first = new Run(blobSink, false);
+        assertEquals(0, first.ingest().size());
+
+        assertEquals(FILES, first.ingested.size());
+        assertEquals(FILES, metadataSink.size());
+        assertEquals(FILES, blobSink.size());
+
+        for (int i = 0; i < FILES; i++) {
+            String name = Integer.toString(i);
+
+            assertEquals(WriteOutcome.CREATED, first.outcomes.get(name));
+            assertArrayEquals(doc(name, contents.get(name)), metadataSink.get(uid(name)));
+            assertArrayEquals(contents.get(name), blobSink.get(row(name), uid(name)));
+        }
+
+        contents.put("7", "changed".getBytes(StandardCharsets.UTF_8));
+
+        Run second = new Run(blobSink, false);
+        assertEquals(0, second.ingest().size());
+
+        assertEquals(FILES, metadataSink.size());
+
+        for (int i = 0; i < FILES; i++) {
+            assertEquals(WriteOutcome.UPDATED, second.outcomes.get(Integer.toString(i)));
+        }
+
+        assertEquals(FILES, second.replaced.size());
+        assertArrayEquals(doc("7", ("content " + 7).getBytes(StandardCharsets.UTF_8)), second.replaced.get("7"));
+        assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), blobSink.get(row("7"), uid("7")));
+    }
+
+    @Test
+    public void reportsFailedWritesAgainstTheirStage() throws Exception {
+
+        BlobSink failing = new BlobSink() {
+
+            @Override
+            public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, byte[] data, byte[] digest)
+                    throws IOException {
+
+                if (index(sopInstanceUid) % 5 == 0) {
+                    CompletableFuture<Void> future = new CompletableFuture<>();
+                    future.completeExceptionally(new IOException("region unavailable"));
+                    return future;
+                }
+
+                return blobSink.write(sopInstanceUid, row, data, digest);
+            }
+
+            @Override
+            public CompletableFuture<Void> write(String sopInstanceUid, byte[] row, Path file, byte[] digest) {
+
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public CompletableFuture<byte[]> findDigest(byte[] row, String sopInstanceUid) {
+
+                return blobSink.findDigest(row, sopInstanceUid);
+            }
+
+            @Override
+            public void close() {
+
+            }
+        };
+
+        Run run = new Run(failing, false);
+        List<IngestFailure> failures = run.ingest();
+
+        assertEquals(FILES / 5, failures.size());
+        assertEquals(FILES / 5, run.failed.size());
+        assertEquals(FILES - FILES / 5, run.ingested.size());
+        assertEquals(FILES - FILES / 5, blobSink.size());
+
+        for (IngestFailure failure : failures) {
+            assertEquals("hbase", failure.getStage());
+            assertEquals("region unavailable", failure.getCause().getMessage());
+            assertEquals(0, index(uid(failure.getFile().getName())) % 5);
+            assertNull(blobSink.get(row(failure.getFile().getName()), uid(failure.getFile().getName())));
+        }
+
+        // the document is written before the blob, so it is there even when the blob failed
+        assertEquals(FILES, metadataSink.size());
+    }
+
+    @Test
+    public void leavesUnchangedFilesAlone() throws Exception {
+
+        assertEquals(0, new Run(blobSink, true).ingest().size());
+
+        contents.put("7", "changed".getBytes(StandardCharsets.UTF_8));
+
+        Run second = new Run(blobSink, true);
+        assertEquals(0, second.ingest().size());
+
+        assertEquals(FILES, second.ingested.size());
+        assertEquals(FILES - 1, second.storedBlobs.get());
+        assertEquals(1, second.replaced.size());
+        assertArrayEquals("changed".getBytes(StandardCharsets.UTF_8), blobSink.get(row("7"), uid("7")));
+
+        for (int i = 0; i < FILES; i++) {
+            String name = Integer.toString(i);
+
+            assertEquals(name.equals("7") ? WriteOutcome.UPDATED : WriteOutcome.UNCHANGED, second.outcomes.get(name));
+            assertArrayEquals(doc(name, contents.get(name)), metadataSink.get(uid(name)));
+        }
+    }
+
+    /**
+     * One pass over the files: read and parse set what the real stages would, the write stages
+     * defer on the sinks' futures and, with {@code dedup}, skip what the sinks already hold.
+     */
+    private final class Run implements IngestListener {
+
+        private final BlobSink blobs;
+
+        private final boolean dedup;
+
+        private final Map<String, WriteOutcome> outcomes = new ConcurrentHashMap<>();
+
+        private final Map<String, byte[]> replaced = new ConcurrentHashMap<>();
+
+        private final Map<String, IngestTask> ingested = new ConcurrentHashMap<>();
+
+        private final Map<String, IngestFailure> failed = new ConcurrentHashMap<>();
+
+        private final AtomicInteger storedBlobs = new AtomicInteger();
+
+        private Run(BlobSink blobs, boolean dedup) {
+
+            this.blobs = blobs;
+            this.dedup = dedup;
+        }
+
+        private List<IngestFailure> ingest() throws IOException {
+
+            IngestStage reader = task -> {
+                byte[] data = contents.get(task.getFile().getName());
+
+                task.setData(data);
+                task.setSize(data.length);
+                task.setDigest(sha256(data));
+            };
+
+            IngestStage parser = task -> {
+                String name = task.getFile().getName();
+
+                task.setSopInstanceUid(uid(name));
+                task.setJson(doc(name, task.getData()));
+
+                if (dedup) {
+                    task.setStoredDigest(blobs.findDigest(row(name), task.getSopInstanceUid()));
+                }
+            };
+
+            IngestStage couchDbWriter = task -> {
+                String name = task.getFile().getName();
+
+                task.defer("couchdb", metadataSink.write(task.getSopInstanceUid(), task.getJson(),
+                        dedup ? hex(task.getDigest()) : null, previous -> replaced.put(name, previous))
+                        .thenAccept(outcome -> outcomes.put(name, outcome)));
+            };
+
+            IngestStage hbaseWriter = task -> {
+                if (task.getStoredDigest() != null && Arrays.equals(task.getStoredDigest().join(), task.getDigest())) {
+                    storedBlobs.incrementAndGet();
+                    return;
+                }
+
+                task.defer("hbase", blobs.write(task.getSopInstanceUid(), row(task.getFile().getName()),
+                        task.getData(), task.getDigest()));
+            };
+
+            IngestPipeline pipeline = new IngestPipeline(4, 4, reader, parser, couchDbWriter, hbaseWriter, this);
+
+            for (int i = 0; i < FILES; i++) {
+                pipeline.submit(new File(Integer.toString(i)));
+            }
+
+            List<IngestFailure> failures = pipeline.finish();
+
+            assertEquals(FILES, ingested.size() + failed.size());
+
+            return failures;
+        }
+
+        @Override
+        public void ingested(IngestTask task) {
+
+            ingested.put(task.getFile().getName(), task);
+        }
+
+        @Override
+        public void failed(IngestTask task, IngestFailure failure) {
+
+            failed.put(task.getFile().getName(), failure);
+        }
+    }
+
+    private static String uid(String name) {
+
+        return "1.2.826.0.1.3680043.2.1125." + name;
+    }
+
+    private static int index(String uid) {
+
+        return Integer.parseInt(uid.substring(uid.lastIndexOf('.') + 1));
+    }
+
+    private static byte[] row(String name) {
+
+        return Bytes.toBytes("patient-" + Integer.parseInt(name) % 3);
+    }
+
+    private static byte[] doc(String name, byte[] data) {
+
+        return String.format("{\"_id\":\"%s\",\"size\":%d}", uid(name), data.length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hex(byte[] bytes) {
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] sha256(byte[] data) {
+
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}